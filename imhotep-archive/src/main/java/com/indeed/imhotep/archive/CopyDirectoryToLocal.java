@@ -21,6 +21,10 @@ import org.apache.hadoop.fs.Path;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nullable;
 
 /**
  * @author jsgroth
@@ -28,12 +32,21 @@ import java.io.IOException;
 public class CopyDirectoryToLocal {
     public static void main(String[] args) throws IOException {
         if (args.length < 2) {
-            System.err.println("ARGS: from to");
+            System.err.println("ARGS: from to [threads]");
             System.exit(1);
         }
 
+        final int threads = args.length > 2 ? Integer.parseInt(args[2]) : 1;
         System.out.println("Copying archives from " + args[0] + " to " + args[1]);
-        copy(new Path(args[0]), new File(args[1]));
+        final Path from = new Path(args[0]);
+        final ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            copy(from.getFileSystem(new Configuration()), from, new File(args[1]), executor);
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
         System.out.println("Wrote to: " + args[1]);
     }
 
@@ -42,6 +55,10 @@ public class CopyDirectoryToLocal {
     }
 
     public static void copy(FileSystem fs, Path from, File to) throws IOException {
+        copy(fs, from, to, null);
+    }
+
+    public static void copy(FileSystem fs, Path from, File to, @Nullable ExecutorService executor) throws IOException {
         if ((to.exists() && !to.isDirectory())) {
             throw new FileNotFoundException(to.getAbsolutePath() + " is not a directory");
         } else if (!to.exists() && !to.mkdirs()) {
@@ -54,7 +71,7 @@ public class CopyDirectoryToLocal {
                 System.out.println("copying " + path);
                 final String pathName = path.getName();
                 final String dirName = pathName.endsWith(".sqar") ? pathName.substring(0, pathName.length() - 5) : pathName;
-                new SquallArchiveReader(fs, path).copyAllToLocal(new File(to, dirName));
+                new SquallArchiveReader(fs, path, executor).copyAllToLocal(new File(to, dirName));
             }
         }
     }
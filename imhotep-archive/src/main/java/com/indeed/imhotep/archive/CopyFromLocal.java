@@ -21,6 +21,10 @@ import org.apache.hadoop.fs.Path;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nullable;
 
 /**
  * @author jsgroth
@@ -28,20 +32,38 @@ import java.io.IOException;
 public class CopyFromLocal {
     public static void main(String[] args) throws IOException {
         if (args.length < 2) {
-            System.err.println("ARGS: from to [--overwrite]");
+            System.err.println("ARGS: from to [--overwrite] [--threads=N] [--verify]");
             System.exit(1);
         }
 
         boolean overwrite = false;
+        boolean verify = false;
+        int threads = 1;
         for (int i = 2; i < args.length; ++i) {
             if (args[i].equals("--overwrite")) {
                 overwrite = true;
+            } else if (args[i].equals("--verify")) {
+                verify = true;
+            } else if (args[i].startsWith("--threads=")) {
+                threads = Integer.parseInt(args[i].substring("--threads=".length()));
             } else {
                 throw new IllegalArgumentException("unrecognized arg: " + args[i]);
             }
         }
 
-        copy(new File(args[0]), new Path(args[1]), overwrite);
+        final Path to = new Path(args[1]);
+        final FileSystem fs = to.getFileSystem(new Configuration());
+        final ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            copy(fs, new File(args[0]), to, overwrite, SquallArchiveCompressor.GZIP, executor);
+            if (verify) {
+                new SquallArchiveReader(fs, to, executor).verifyAll();
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
     }
 
     public static void copy(File from, Path to, boolean overwrite) throws IOException {
@@ -53,13 +75,17 @@ public class CopyFromLocal {
     }
 
     public static void copy(FileSystem fs, File from, Path to, boolean overwrite, SquallArchiveCompressor compressor) throws IOException {
+        copy(fs, from, to, overwrite, compressor, null);
+    }
+
+    public static void copy(FileSystem fs, File from, Path to, boolean overwrite, SquallArchiveCompressor compressor, @Nullable ExecutorService executor) throws IOException {
         if (fs.exists(to)) {
             if (!overwrite) {
                 throw new IOException("path already exists: " + to);
             }
             fs.delete(to, true);
         }
-        final SquallArchiveWriter w = new SquallArchiveWriter(fs, to, true, compressor);
+        final SquallArchiveWriter w = new SquallArchiveWriter(fs, to, true, compressor, executor);
         if (from.isDirectory()) {
             w.batchAppendDirectory(from);
         } else {
@@ -19,6 +19,10 @@ import org.apache.hadoop.fs.Path;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nullable;
 
 /**
  * @author jsgroth
@@ -26,11 +30,20 @@ import java.io.IOException;
 public class CopyToLocal {
     public static void main(String[] args) throws IOException {
         if (args.length < 2) {
-            System.err.println("ARGS: from to");
+            System.err.println("ARGS: from to [threads]");
             System.exit(1);
         }
 
-        copy(new Path(args[0]), new File(args[1]));
+        final int threads = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        final Path from = new Path(args[0]);
+        final ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            copy(from.getFileSystem(new Configuration()), from, new File(args[1]), executor);
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
         System.out.println("Wrote: " + args[1]);
     }
 
@@ -39,6 +52,10 @@ public class CopyToLocal {
     }
 
     public static void copy(FileSystem fs, Path from, File to) throws IOException {
-        new SquallArchiveReader(fs, from).copyAllToLocal(to);
+        copy(fs, from, to, null);
+    }
+
+    public static void copy(FileSystem fs, Path from, File to, @Nullable ExecutorService executor) throws IOException {
+        new SquallArchiveReader(fs, from, executor).copyAllToLocal(to);
     }
 }
@@ -13,8 +13,11 @@
  */
  package com.indeed.imhotep.archive;
 
+import com.indeed.imhotep.archive.compression.BlockIndex;
 import com.indeed.imhotep.archive.compression.SquallArchiveCompressor;
 
+import javax.annotation.Nullable;
+
 /**
  * @author jsgroth
  */
@@ -26,6 +29,7 @@ public class FileMetadata {
     private final long startOffset;
     private final SquallArchiveCompressor compressor;
     private String archiveFilename;
+    private final BlockIndex blockIndex;
 
     public FileMetadata(String filename,
                         long size,
@@ -34,6 +38,17 @@ public class FileMetadata {
                         long startOffset,
                         SquallArchiveCompressor compressor,
                         String archiveFilename) {
+        this(filename, size, timestamp, checksum, startOffset, compressor, archiveFilename, null);
+    }
+
+    public FileMetadata(String filename,
+                        long size,
+                        long timestamp,
+                        String checksum,
+                        long startOffset,
+                        SquallArchiveCompressor compressor,
+                        String archiveFilename,
+                        @Nullable BlockIndex blockIndex) {
         this.filename = filename;
         this.size = size;
         this.timestamp = timestamp;
@@ -41,6 +56,7 @@ public class FileMetadata {
         this.startOffset = startOffset;
         this.compressor = compressor;
         this.archiveFilename = archiveFilename;
+        this.blockIndex = blockIndex;
     }
 
     public String getFilename() {
@@ -71,6 +87,14 @@ public class FileMetadata {
         return archiveFilename;
     }
 
+    /**
+     * @return the block offsets of a file written with a block compressor, null for stream compressors
+     */
+    @Nullable
+    public BlockIndex getBlockIndex() {
+        return blockIndex;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -87,6 +111,7 @@ public class FileMetadata {
         if (checksum != null ? !checksum.equals(that.checksum) : that.checksum != null) return false;
         if (compressor != that.compressor) return false;
         if (filename != null ? !filename.equals(that.filename) : that.filename != null) return false;
+        if (blockIndex != null ? !blockIndex.equals(that.blockIndex) : that.blockIndex != null) return false;
 
         return true;
     }
@@ -100,6 +125,7 @@ public class FileMetadata {
         result = 31 * result + (int) (startOffset ^ (startOffset >>> 32));
         result = 31 * result + (compressor != null ? compressor.hashCode() : 0);
         result = 31 * result + (archiveFilename != null ? archiveFilename.hashCode() : 0);
+        result = 31 * result + (blockIndex != null ? blockIndex.hashCode() : 0);
         return result;
     }
 
@@ -112,6 +138,7 @@ public class FileMetadata {
                 ", checksum='" + checksum + '\'' +
                 ", startOffset=" + startOffset +
                 ", compressor=" + compressor +
+                ", blockIndex=" + blockIndex +
                 '}';
     }
 
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.archive;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.indeed.imhotep.archive.compression.BlockCompressionOutputStream;
+import com.indeed.imhotep.archive.compression.BlockIndex;
+import com.indeed.imhotep.archive.compression.SquallArchiveCompressor;
+import com.indeed.util.compress.CompressionOutputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Compresses files on a worker pool while the calling thread appends the results to a single archive file
+ * in submission order, so the archive is byte for byte the same as one written sequentially.
+ *
+ * Files no larger than the segment size are compressed in memory. Larger files written with
+ * {@link SquallArchiveCompressor#BLOCK_DEFLATE} are split into segments of whole blocks that are compressed
+ * independently, which lets a single large file use every worker. Larger files written with a stream
+ * compressor are compressed by one worker into a local spool file.
+ *
+ * The number of compressed segments waiting to be appended is bounded, which bounds memory use to roughly
+ * twice the segment size per pending segment.
+ */
+final class ParallelArchiveAppender {
+    private static final Logger log = Logger.getLogger(ParallelArchiveAppender.class);
+
+    private final ExecutorService executor;
+    private final FSDataOutputStream os;
+    private final SquallArchiveCompressor compressor;
+    private final String archiveFilename;
+    private final int segmentSize;
+    private final int maxPendingSegments;
+    private final List<FileMetadata> metadataOut;
+
+    private final Deque<PendingSegment> pending = new ArrayDeque<PendingSegment>();
+
+    ParallelArchiveAppender(ExecutorService executor,
+                            FSDataOutputStream os,
+                            SquallArchiveCompressor compressor,
+                            String archiveFilename,
+                            int segmentSize,
+                            int maxPendingSegments,
+                            List<FileMetadata> metadataOut) {
+        this.executor = executor;
+        this.os = os;
+        this.compressor = compressor;
+        this.archiveFilename = archiveFilename;
+        // segments of a block compressed file must hold whole blocks for the output to match a sequential write
+        final int blockSize = SquallArchiveCompressor.DEFAULT_BLOCK_SIZE;
+        this.segmentSize = Math.max(blockSize, segmentSize / blockSize * blockSize);
+        this.maxPendingSegments = Math.max(1, maxPendingSegments);
+        this.metadataOut = metadataOut;
+    }
+
+    /**
+     * queues a file to be compressed and appended, appending earlier files if too many are pending
+     */
+    void append(final File file, final String filename) throws IOException {
+        final long size = file.length();
+        final PendingFile pendingFile = new PendingFile(filename, size, file.lastModified());
+        try {
+            if (size <= segmentSize) {
+                enqueue(new PendingSegment(pendingFile, executor.submit(new Callable<CompressedSegment>() {
+                    @Override
+                    public CompressedSegment call() throws IOException {
+                        return compressInMemory(file);
+                    }
+                }), true));
+            } else if (compressor == SquallArchiveCompressor.BLOCK_DEFLATE) {
+                appendSegments(file, pendingFile);
+            } else {
+                enqueue(new PendingSegment(pendingFile, executor.submit(new Callable<CompressedSegment>() {
+                    @Override
+                    public CompressedSegment call() throws IOException {
+                        return compressToSpool(file);
+                    }
+                }), true));
+            }
+        } catch (IOException e) {
+            abort();
+            throw e;
+        } catch (RuntimeException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    private void appendSegments(final File file, final PendingFile pendingFile) throws IOException {
+        final MessageDigest digest = ArchiveUtils.getMD5Digest();
+        final InputStream is = new FileInputStream(file);
+        try {
+            long remaining = pendingFile.size;
+            while (remaining > 0) {
+                final byte[] segment = new byte[(int) Math.min(segmentSize, remaining)];
+                ByteStreams.readFully(is, segment);
+                digest.update(segment);
+                remaining -= segment.length;
+                if (remaining == 0) {
+                    pendingFile.checksum = ArchiveUtils.toHex(digest.digest());
+                }
+                enqueue(new PendingSegment(pendingFile, executor.submit(new Callable<CompressedSegment>() {
+                    @Override
+                    public CompressedSegment call() throws IOException {
+                        final ByteArrayOutputStream out = new ByteArrayOutputStream(segment.length / 2);
+                        final BlockCompressionOutputStream cos = new BlockCompressionOutputStream(out, SquallArchiveCompressor.DEFAULT_BLOCK_SIZE);
+                        cos.write(segment);
+                        cos.finish();
+                        return new CompressedSegment(out.toByteArray(), null, null, cos.getBlockIndex());
+                    }
+                }), remaining == 0));
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    private CompressedSegment compressInMemory(File file) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(32, file.length() / 2));
+        final CompressedSegment result = compress(file, out);
+        return new CompressedSegment(out.toByteArray(), null, result.checksum, result.blockIndex);
+    }
+
+    private CompressedSegment compressToSpool(File file) throws IOException {
+        final File spoolFile = File.createTempFile("squall", ".spool");
+        boolean success = false;
+        try {
+            final OutputStream out = new BufferedOutputStream(new FileOutputStream(spoolFile));
+            final CompressedSegment result;
+            try {
+                result = compress(file, out);
+            } finally {
+                out.close();
+            }
+            success = true;
+            return new CompressedSegment(null, spoolFile, result.checksum, result.blockIndex);
+        } finally {
+            if (!success && !spoolFile.delete()) {
+                log.warn("unable to delete " + spoolFile);
+            }
+        }
+    }
+
+    private CompressedSegment compress(File file, OutputStream out) throws IOException {
+        final InputStream is = new BufferedInputStream(new FileInputStream(file));
+        try {
+            final CompressionOutputStream cos = compressor.newOutputStream(out);
+            final DigestOutputStream dos = new DigestOutputStream(cos, ArchiveUtils.getMD5Digest());
+            ByteStreams.copy(is, dos);
+            final String checksum = ArchiveUtils.toHex(dos.getMessageDigest().digest());
+            cos.finish();
+            final BlockIndex blockIndex = cos instanceof BlockCompressionOutputStream ?
+                    ((BlockCompressionOutputStream) cos).getBlockIndex() : null;
+            return new CompressedSegment(null, null, checksum, blockIndex);
+        } finally {
+            is.close();
+        }
+    }
+
+    private void enqueue(PendingSegment segment) throws IOException {
+        pending.addLast(segment);
+        while (pending.size() > maxPendingSegments) {
+            writeNext();
+        }
+    }
+
+    /**
+     * appends every pending file to the archive
+     */
+    void finish() throws IOException {
+        try {
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+        } catch (IOException e) {
+            abort();
+            throw e;
+        } catch (RuntimeException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    private void writeNext() throws IOException {
+        final PendingSegment segment = pending.removeFirst();
+        final CompressedSegment compressed = getResult(segment.result);
+        final PendingFile file = segment.file;
+        if (file.startOffset < 0) {
+            file.startOffset = os.getPos();
+        }
+        if (compressed.blockIndex != null) {
+            file.addBlocks(compressed.blockIndex);
+        }
+        compressed.writeTo(os);
+        if (segment.last) {
+            final String checksum = file.checksum != null ? file.checksum : compressed.checksum;
+            metadataOut.add(new FileMetadata(file.filename, file.size, file.timestamp, checksum, file.startOffset,
+                                             compressor, archiveFilename, file.getBlockIndex()));
+        }
+    }
+
+    private static CompressedSegment getResult(Future<CompressedSegment> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for compression");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * waits for the outstanding compressions so that their spool files can be removed
+     */
+    private void abort() {
+        while (!pending.isEmpty()) {
+            final PendingSegment segment = pending.removeFirst();
+            try {
+                getResult(segment.result).discard();
+            } catch (Throwable t) {
+                // already failing, the first error is the one that is reported
+            }
+        }
+    }
+
+    private static final class PendingSegment {
+        final PendingFile file;
+        final Future<CompressedSegment> result;
+        final boolean last;
+
+        PendingSegment(PendingFile file, Future<CompressedSegment> result, boolean last) {
+            this.file = file;
+            this.result = result;
+            this.last = last;
+        }
+    }
+
+    private static final class PendingFile {
+        final String filename;
+        final long size;
+        final long timestamp;
+        /** set up front for files that are split into segments */
+        String checksum;
+        long startOffset = -1;
+        int blockSize;
+        long[] blockOffsets;
+        int numBlocks;
+
+        PendingFile(String filename, long size, long timestamp) {
+            this.filename = filename;
+            this.size = size;
+            this.timestamp = timestamp;
+        }
+
+        void addBlocks(BlockIndex index) {
+            if (blockOffsets == null) {
+                blockSize = index.getBlockSize();
+                blockOffsets = new long[index.getNumBlocks() + 1];
+            } else if (blockOffsets.length < numBlocks + index.getNumBlocks() + 1) {
+                blockOffsets = Arrays.copyOf(blockOffsets, Math.max(blockOffsets.length * 2, numBlocks + index.getNumBlocks() + 1));
+            }
+            final long base = blockOffsets[numBlocks];
+            for (int i = 1; i <= index.getNumBlocks(); ++i) {
+                blockOffsets[numBlocks + i] = base + index.getBlockOffset(i);
+            }
+            numBlocks += index.getNumBlocks();
+        }
+
+        BlockIndex getBlockIndex() {
+            return blockOffsets == null ? null : new BlockIndex(blockSize, Arrays.copyOf(blockOffsets, numBlocks + 1));
+        }
+    }
+
+    private static final class CompressedSegment {
+        final byte[] bytes;
+        final File spoolFile;
+        final String checksum;
+        final BlockIndex blockIndex;
+
+        CompressedSegment(byte[] bytes, File spoolFile, String checksum, BlockIndex blockIndex) {
+            this.bytes = bytes;
+            this.spoolFile = spoolFile;
+            this.checksum = checksum;
+            this.blockIndex = blockIndex;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            if (bytes != null) {
+                out.write(bytes);
+            } else {
+                try {
+                    Files.copy(spoolFile, out);
+                } finally {
+                    discard();
+                }
+            }
+        }
+
+        void discard() {
+            if (spoolFile != null && !spoolFile.delete()) {
+                log.warn("unable to delete " + spoolFile);
+            }
+        }
+    }
+}
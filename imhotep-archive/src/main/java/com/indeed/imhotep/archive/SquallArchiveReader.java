@@ -14,7 +14,11 @@
  package com.indeed.imhotep.archive;
 
 import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import com.indeed.util.io.Files;
+import com.indeed.imhotep.archive.compression.BlockCompressionInputStream;
+import com.indeed.imhotep.archive.compression.BlockIndex;
 import com.indeed.imhotep.archive.compression.SquallArchiveCompressor;
 
 import org.apache.hadoop.fs.FSDataInputStream;
@@ -22,17 +26,31 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.log4j.Logger;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.DigestInputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nullable;
 
 /**
  * @author jsgroth
@@ -40,8 +58,12 @@ import java.util.List;
 public class SquallArchiveReader {
     private static final Logger log = Logger.getLogger(SquallArchiveReader.class);
 
+    /** block compressed files with more blocks than this are extracted by several workers */
+    private static final int BLOCKS_PER_SEGMENT = 64;
+
     private final FileSystem fs;
     private final Path path;
+    private final ExecutorService executor;
 
     /**
      * create a SquallArchiveReader
@@ -50,8 +72,21 @@ public class SquallArchiveReader {
      * @param path the directory where the archive is located
      */
     public SquallArchiveReader(FileSystem fs, Path path) {
+        this(fs, path, null);
+    }
+
+    /**
+     * create a SquallArchiveReader that extracts and verifies files on the given executor
+     * the caller remains responsible for shutting down the executor
+     *
+     * @param fs a file system
+     * @param path the directory where the archive is located
+     * @param executor the pool to extract files on, or null to extract on the calling thread
+     */
+    public SquallArchiveReader(FileSystem fs, Path path, @Nullable ExecutorService executor) {
         this.fs = fs;
         this.path = path;
+        this.executor = executor;
     }
 
     /**
@@ -99,7 +134,8 @@ public class SquallArchiveReader {
         final SquallArchiveCompressor compressor = split.length > 5 ?
                 SquallArchiveCompressor.fromKey(split[5]) : SquallArchiveCompressor.NONE;
         final String archiveFilename = split.length > 6 ? split[6] : "archive.bin";
-        return new FileMetadata(filename, size, timestamp, checksum, startOffset, compressor, archiveFilename);
+        final BlockIndex blockIndex = split.length > 7 ? BlockIndex.parse(split[7]) : null;
+        return new FileMetadata(filename, size, timestamp, checksum, startOffset, compressor, archiveFilename, blockIndex);
     }
 
     /**
@@ -129,6 +165,10 @@ public class SquallArchiveReader {
      * @throws IOException if there is an IO problem
      */
     public void copyAllToLocal(File localDir, FileMetadataFilter filter) throws IOException {
+        if (executor != null) {
+            parallelCopyAllToLocal(localDir, filter);
+            return;
+        }
         for (final FileMetadata metadata : readMetadata()) {
             if (filter.accept(metadata)) {
                 copyToLocal(metadata, localDir);
@@ -136,6 +176,146 @@ public class SquallArchiveReader {
         }
     }
 
+    /**
+     * extracts files concurrently. large block compressed files are split into ranges of blocks that are
+     * decompressed concurrently into their place in the target file, and are verified once all of their
+     * ranges have been written.
+     */
+    private void parallelCopyAllToLocal(final File localDir, FileMetadataFilter filter) throws IOException {
+        final List<Future<Void>> copies = Lists.newArrayList();
+        final List<SegmentedCopy> segmentedCopies = Lists.newArrayList();
+        try {
+            for (final FileMetadata metadata : readMetadata()) {
+                if (!filter.accept(metadata)) {
+                    continue;
+                }
+                final BlockIndex blockIndex = metadata.getBlockIndex();
+                if (blockIndex != null && blockIndex.getNumBlocks() > BLOCKS_PER_SEGMENT) {
+                    final SegmentedCopy copy = new SegmentedCopy(metadata, getTargetFile(metadata, localDir));
+                    segmentedCopies.add(copy);
+                    for (int block = 0; block < blockIndex.getNumBlocks(); block += BLOCKS_PER_SEGMENT) {
+                        final int firstBlock = block;
+                        final int endBlock = Math.min(block + BLOCKS_PER_SEGMENT, blockIndex.getNumBlocks());
+                        copies.add(executor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws IOException {
+                                copy.copyBlocks(firstBlock, endBlock);
+                                return null;
+                            }
+                        }));
+                    }
+                } else {
+                    copies.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            copyToLocal(metadata, localDir);
+                            return null;
+                        }
+                    }));
+                }
+            }
+            waitFor(copies);
+        } finally {
+            for (final SegmentedCopy copy : segmentedCopies) {
+                copy.close();
+            }
+        }
+
+        final List<Future<Void>> verifications = Lists.newArrayList();
+        for (final SegmentedCopy copy : segmentedCopies) {
+            verifications.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    final InputStream is = new BufferedInputStream(new FileInputStream(copy.targetFile));
+                    try {
+                        verifyChecksum(copy.metadata, is);
+                    } finally {
+                        is.close();
+                    }
+                    return null;
+                }
+            }));
+        }
+        waitFor(verifications);
+    }
+
+    /**
+     * decompresses every file in the archive and checks it against the checksum in the metadata without
+     * writing anything, using the executor if there is one
+     *
+     * @throws IOException if a file does not match its checksum or if there is an IO problem
+     */
+    public void verifyAll() throws IOException {
+        final List<FileMetadata> metadataList = readMetadata();
+        if (executor == null) {
+            for (final FileMetadata metadata : metadataList) {
+                verify(metadata);
+            }
+            return;
+        }
+        final List<Future<Void>> verifications = Lists.newArrayList();
+        for (final FileMetadata metadata : metadataList) {
+            verifications.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    verify(metadata);
+                    return null;
+                }
+            }));
+        }
+        waitFor(verifications);
+    }
+
+    private void verify(FileMetadata file) throws IOException {
+        final FSDataInputStream is = fs.open(new Path(path, file.getArchiveFilename()));
+        try {
+            is.seek(file.getStartOffset());
+            verifyChecksum(file, file.getCompressor().newInputStream(is));
+        } finally {
+            is.close();
+        }
+    }
+
+    private void verifyChecksum(FileMetadata file, InputStream is) throws IOException {
+        final DigestInputStream digestStream = new DigestInputStream(is, ArchiveUtils.getMD5Digest());
+        ArchiveUtils.streamCopy(digestStream, ByteStreams.nullOutputStream(), file.getSize());
+        final String checksum = ArchiveUtils.toHex(digestStream.getMessageDigest().digest());
+        if (!checksum.equals(file.getChecksum())) {
+            throw new IOException("invalid checksum for file " + file.getFilename() + " in archive " + path + ": file checksum = " + checksum + ", checksum in metadata = " + file.getChecksum());
+        }
+    }
+
+    private static void waitFor(List<Future<Void>> futures) throws IOException {
+        try {
+            for (final Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            cancelAll(futures);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while extracting archive");
+        } catch (ExecutionException e) {
+            cancelAll(futures);
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static void cancelAll(List<Future<Void>> futures) {
+        for (final Future<Void> future : futures) {
+            future.cancel(true);
+        }
+    }
+
     /**
      * copy a file from this archive to a local directory
      * 
@@ -180,40 +360,111 @@ public class SquallArchiveReader {
     }
 
     public void tryCopyToLocal(FileMetadata file, File localDir) throws IOException {
-        if (!localDir.exists() && !localDir.mkdirs()) {
+        final File targetFile = getTargetFile(file, localDir);
+        final String fullFilename = file.getFilename();
+        final Path archivePath = new Path(path, file.getArchiveFilename());
+        final SquallArchiveCompressor compressor = file.getCompressor();
+        final FSDataInputStream is = fs.open(archivePath);
+        try {
+            is.seek(file.getStartOffset());
+            final DigestInputStream digestStream = new DigestInputStream(compressor.newInputStream(is), ArchiveUtils.getMD5Digest());
+            final OutputStream os = new BufferedOutputStream(new FileOutputStream(targetFile));
+            ArchiveUtils.streamCopy(digestStream, os, file.getSize());
+            os.close();
+            final String checksum = ArchiveUtils.toHex(digestStream.getMessageDigest().digest());
+            if (!checksum.equals(file.getChecksum())) {
+                throw new IOException("invalid checksum for file " + fullFilename + " in archive " + path + ": file checksum = " + checksum + ", checksum in metadata = " + file.getChecksum());
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    private static File getTargetFile(FileMetadata file, File localDir) throws IOException {
+        // another extraction thread may create the directory concurrently
+        if (!localDir.mkdirs() && !localDir.isDirectory()) {
             throw new IOException("could not create directory " + localDir);
         }
 
         final String fullFilename = file.getFilename();
-        final File targetFile;
         if (fullFilename.contains("/")) {
             final int lastSlash = fullFilename.lastIndexOf('/');
             final String[] parentDirs = fullFilename.substring(0, lastSlash).split("/");
             final String fullParentPath = Files.buildPath(parentDirs);
             final File parentFile = new File(localDir, fullParentPath);
-            if ((!parentFile.exists() && !parentFile.mkdirs()) || (parentFile.exists() && !parentFile.isDirectory())) {
+            if (!parentFile.mkdirs() && !parentFile.isDirectory()) {
                 throw new IOException("unable to create directory " + parentFile.getAbsolutePath());
             }
-            targetFile = new File(parentFile, fullFilename.substring(lastSlash + 1));
+            return new File(parentFile, fullFilename.substring(lastSlash + 1));
         } else {
-            targetFile = new File(localDir, file.getFilename());
+            return new File(localDir, file.getFilename());
         }
+    }
 
-        final Path archivePath = new Path(path, file.getArchiveFilename());
-        final SquallArchiveCompressor compressor = file.getCompressor();
-        final FSDataInputStream is = fs.open(archivePath);
+    private static void tryCopyBlocks(FSDataInputStream is, FileMetadata file, FileChannel channel, int firstBlock, int endBlock) throws IOException {
+        final BlockIndex blockIndex = file.getBlockIndex();
+        is.seek(file.getStartOffset() + blockIndex.getBlockOffset(firstBlock));
+        // closing the blocks ends their inflater, but the caller owns is and closes it
+        final InputStream blocks = new BlockCompressionInputStream(new FilterInputStream(is) {
+            @Override
+            public void close() {
+            }
+        });
         try {
-            is.seek(file.getStartOffset());
-            final DigestInputStream digestStream = new DigestInputStream(compressor.newInputStream(is), ArchiveUtils.getMD5Digest());
-            final OutputStream os = new BufferedOutputStream(new FileOutputStream(targetFile));
-            ArchiveUtils.streamCopy(digestStream, os, file.getSize());
-            os.close();
-            final String checksum = ArchiveUtils.toHex(digestStream.getMessageDigest().digest());
-            if (!checksum.equals(file.getChecksum())) {
-                throw new IOException("invalid checksum for file " + fullFilename + " in archive " + path + ": file checksum = " + checksum + ", checksum in metadata = " + file.getChecksum());
+            final long start = (long) firstBlock * blockIndex.getBlockSize();
+            final long end = Math.min((long) endBlock * blockIndex.getBlockSize(), file.getSize());
+            final byte[] buffer = new byte[blockIndex.getBlockSize()];
+            long position = start;
+            while (position < end) {
+                final int n = (int) Math.min(buffer.length, end - position);
+                ByteStreams.readFully(blocks, buffer, 0, n);
+                final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, n);
+                while (byteBuffer.hasRemaining()) {
+                    position += channel.write(byteBuffer, position);
+                }
             }
         } finally {
-            is.close();
+            blocks.close();
+        }
+    }
+
+    /**
+     * a block compressed file being extracted by several workers, each writing its range of blocks
+     */
+    private final class SegmentedCopy {
+        private final FileMetadata metadata;
+        private final File targetFile;
+        private final RandomAccessFile raf;
+
+        private SegmentedCopy(FileMetadata metadata, File targetFile) throws IOException {
+            this.metadata = metadata;
+            this.targetFile = targetFile;
+            raf = new RandomAccessFile(targetFile, "rw");
+            raf.setLength(metadata.getSize());
+        }
+
+        private void copyBlocks(int firstBlock, int endBlock) throws IOException {
+            int retries = 3;
+            while (true) {
+                final FSDataInputStream is = fs.open(new Path(path, metadata.getArchiveFilename()));
+                try {
+                    tryCopyBlocks(is, metadata, raf.getChannel(), firstBlock, endBlock);
+                    return;
+                } catch (IOException e) {
+                    log.error(e);
+                    if (--retries == 0) throw e;
+                } finally {
+                    is.close();
+                }
+            }
+        }
+
+        private void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                log.error(e);
+            }
         }
     }
 }
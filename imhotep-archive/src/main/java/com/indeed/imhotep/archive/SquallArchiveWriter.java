@@ -18,6 +18,8 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 import com.google.common.io.ByteStreams;
+import com.indeed.imhotep.archive.compression.BlockCompressionOutputStream;
+import com.indeed.imhotep.archive.compression.BlockIndex;
 import com.indeed.imhotep.archive.compression.SquallArchiveCompressor;
 
 import org.apache.hadoop.fs.FSDataOutputStream;
@@ -44,9 +46,12 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
+
 /**
  * @author jsgroth
  */
@@ -57,6 +62,8 @@ public class SquallArchiveWriter {
     @VisibleForTesting
     static final Pattern ARCHIVE_FILENAME_PATTERN = Pattern.compile("^archive(\\d+)\\.bin$");
 
+    private static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
     private final FileSystem fs;
     private final Path path;
 
@@ -64,6 +71,9 @@ public class SquallArchiveWriter {
 
     private final SquallArchiveCompressor defaultCompressor;
 
+    private final ExecutorService executor;
+    private final int segmentSize;
+
     private int archivePathCounter;
 
     /**
@@ -82,12 +92,30 @@ public class SquallArchiveWriter {
     }
 
     public SquallArchiveWriter(FileSystem fs, Path path, boolean create, SquallArchiveCompressor defaultCompressor) throws IOException {
+        this(fs, path, create, defaultCompressor, null);
+    }
+
+    /**
+     * create an archive writer that compresses files on the given executor while appending them to the archive
+     * in order on the calling thread. the archive is identical to the one written without an executor.
+     * the caller remains responsible for shutting down the executor.
+     *
+     * @param executor the pool to compress files on, or null to compress on the calling thread
+     */
+    public SquallArchiveWriter(FileSystem fs, Path path, boolean create, SquallArchiveCompressor defaultCompressor, @Nullable ExecutorService executor) throws IOException {
+        this(fs, path, create, defaultCompressor, executor, DEFAULT_SEGMENT_SIZE);
+    }
+
+    @VisibleForTesting
+    SquallArchiveWriter(FileSystem fs, Path path, boolean create, SquallArchiveCompressor defaultCompressor, @Nullable ExecutorService executor, int segmentSize) throws IOException {
         this.fs = fs;
         this.path = path;
 
         pendingMetadataWrites = Lists.newArrayList();
 
         this.defaultCompressor = defaultCompressor;
+        this.executor = executor;
+        this.segmentSize = segmentSize;
 
         if (create) {
             archivePathCounter = 0;
@@ -184,31 +212,52 @@ public class SquallArchiveWriter {
     private void batchAppend(Iterable<File> files, SquallArchiveCompressor compressor, Path archivePath) throws IOException {
         final FSDataOutputStream os = fs.create(archivePath, false);
         try {
+            final ParallelArchiveAppender appender = newAppender(os, compressor, archivePath.getName());
             for (final File file : files) {
                 if (file.isDirectory()) {
-                    batchAppendDirectory(os, file, Lists.newArrayList(file.getName()), compressor, archivePath.getName());
+                    batchAppendDirectory(os, appender, file, Lists.newArrayList(file.getName()), compressor, archivePath.getName());
                 } else {
-                    internalAppendFile(os, file, Collections.<String>emptyList(), compressor, archivePath.getName());
+                    appendEntry(os, appender, file, Collections.<String>emptyList(), compressor, archivePath.getName());
                 }
             }
+            if (appender != null) {
+                appender.finish();
+            }
             commit();
         } finally {
             os.close();
         }
     }
 
-    private void batchAppendDirectory(FSDataOutputStream os, File directory, List<String> parentDirectories, SquallArchiveCompressor compressor, String archiveFilename) throws IOException {
+    private void batchAppendDirectory(FSDataOutputStream os, @Nullable ParallelArchiveAppender appender, File directory, List<String> parentDirectories, SquallArchiveCompressor compressor, String archiveFilename) throws IOException {
         for (final File file : sorted(directory.listFiles())) {
             if (file.isDirectory()) {
                 final List<String> newParentDirectories = Lists.newArrayList(parentDirectories);
                 newParentDirectories.add(file.getName());
-                batchAppendDirectory(os, file, newParentDirectories, compressor, archiveFilename);
+                batchAppendDirectory(os, appender, file, newParentDirectories, compressor, archiveFilename);
             } else {
-                internalAppendFile(os, file, parentDirectories, compressor, archiveFilename);
+                appendEntry(os, appender, file, parentDirectories, compressor, archiveFilename);
             }
         }
     }
 
+    @Nullable
+    private ParallelArchiveAppender newAppender(FSDataOutputStream os, SquallArchiveCompressor compressor, String archiveFilename) {
+        if (executor == null) {
+            return null;
+        }
+        return new ParallelArchiveAppender(executor, os, compressor, archiveFilename, segmentSize,
+                                           2 * Runtime.getRuntime().availableProcessors(), pendingMetadataWrites);
+    }
+
+    private void appendEntry(FSDataOutputStream os, @Nullable ParallelArchiveAppender appender, File file, List<String> parentDirectories, SquallArchiveCompressor compressor, String archiveFilename) throws IOException {
+        if (appender != null) {
+            appender.append(file, makeFilename(parentDirectories, file.getName().replaceAll("\\s+", "_")));
+        } else {
+            internalAppendFile(os, file, parentDirectories, compressor, archiveFilename);
+        }
+    }
+
     /**
      * recursively append a directory to the archive
      * does not modify metadata.txt until {@link #commit()} is called
@@ -264,7 +313,11 @@ public class SquallArchiveWriter {
 
         final FSDataOutputStream os = fs.create(archivePath, false);
         try {
-            internalAppendFile(os, file, parentDirectories, compressor, archivePath.getName());
+            final ParallelArchiveAppender appender = newAppender(os, compressor, archivePath.getName());
+            appendEntry(os, appender, file, parentDirectories, compressor, archivePath.getName());
+            if (appender != null) {
+                appender.finish();
+            }
         } finally {
             os.close();
         }
@@ -279,17 +332,21 @@ public class SquallArchiveWriter {
 
         final InputStream is = new BufferedInputStream(new FileInputStream(file));
         final String checksum;
+        BlockIndex blockIndex = null;
         try {
             final CompressionOutputStream cos = compressor.newOutputStream(os);
             final DigestOutputStream dos = new DigestOutputStream(cos, ArchiveUtils.getMD5Digest());
             ByteStreams.copy(is, dos);
             checksum = ArchiveUtils.toHex(dos.getMessageDigest().digest());
             cos.finish();
+            if (cos instanceof BlockCompressionOutputStream) {
+                blockIndex = ((BlockCompressionOutputStream) cos).getBlockIndex();
+            }
         } finally {
             is.close();
         }
 
-        pendingMetadataWrites.add(new FileMetadata(filename, size, timestamp, checksum, startOffset, compressor, archiveFilename));
+        pendingMetadataWrites.add(new FileMetadata(filename, size, timestamp, checksum, startOffset, compressor, archiveFilename, blockIndex));
     }
 
     /**
@@ -312,7 +369,12 @@ public class SquallArchiveWriter {
                     w.println(line);
                 }
                 for (final FileMetadata file : pendingMetadataWrites) {
-                    w.println(TAB.join(file.getFilename(), file.getSize(), file.getTimestamp(), file.getChecksum(), file.getStartOffset(), file.getCompressor().getKey(), file.getArchiveFilename()));
+                    final String line = TAB.join(file.getFilename(), file.getSize(), file.getTimestamp(), file.getChecksum(), file.getStartOffset(), file.getCompressor().getKey(), file.getArchiveFilename());
+                    if (file.getBlockIndex() != null) {
+                        w.println(line + "\t" + file.getBlockIndex().format());
+                    } else {
+                        w.println(line);
+                    }
                 }
             } finally {
                 w.close();
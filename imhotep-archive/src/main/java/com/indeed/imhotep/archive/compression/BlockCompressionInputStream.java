@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.archive.compression;
+
+import com.google.common.io.ByteStreams;
+import com.indeed.util.compress.CompressionInputStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the blocks written by {@link BlockCompressionOutputStream}. The underlying stream may be positioned
+ * at the start of any block, which is what makes random access through a {@link BlockIndex} possible.
+ * Only whole blocks are consumed from the underlying stream.
+ */
+public class BlockCompressionInputStream extends CompressionInputStream {
+    private final Inflater inflater = new Inflater();
+    private final byte[] header = new byte[BlockCompressionOutputStream.HEADER_SIZE];
+    private byte[] compressed = new byte[0];
+    private byte[] block = new byte[0];
+    private int blockPos = 0;
+    private int blockLength = 0;
+
+    public BlockCompressionInputStream(InputStream in) throws IOException {
+        super(in);
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (blockPos == blockLength && !readBlock()) {
+            return -1;
+        }
+        final int n = Math.min(len, blockLength - blockPos);
+        System.arraycopy(block, blockPos, bytes, off, n);
+        blockPos += n;
+        return n;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (blockPos == blockLength && !readBlock()) {
+            return -1;
+        }
+        return block[blockPos++] & 0xFF;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (blockPos == blockLength && !readBlock()) {
+                break;
+            }
+            final int k = (int) Math.min(n - skipped, blockLength - blockPos);
+            blockPos += k;
+            skipped += k;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return blockLength - blockPos;
+    }
+
+    private boolean readBlock() throws IOException {
+        final int firstByte = in.read();
+        if (firstByte < 0) {
+            return false;
+        }
+        header[0] = (byte) firstByte;
+        ByteStreams.readFully(in, header, 1, header.length - 1);
+        final int compressedLength = readInt(header, 0);
+        final int uncompressedLength = readInt(header, 4);
+        if (block.length < uncompressedLength) {
+            block = new byte[uncompressedLength];
+        }
+        if (compressedLength == uncompressedLength) {
+            ByteStreams.readFully(in, block, 0, uncompressedLength);
+        } else {
+            if (compressed.length < compressedLength) {
+                compressed = new byte[compressedLength];
+            }
+            ByteStreams.readFully(in, compressed, 0, compressedLength);
+            inflater.reset();
+            inflater.setInput(compressed, 0, compressedLength);
+            try {
+                int inflated = 0;
+                while (inflated < uncompressedLength) {
+                    final int n = inflater.inflate(block, inflated, uncompressedLength - inflated);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new EOFException("block is shorter than its header claims");
+                    }
+                    inflated += n;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt compressed block", e);
+            }
+        }
+        blockPos = 0;
+        blockLength = uncompressedLength;
+        return true;
+    }
+
+    private static int readInt(byte[] buf, int off) {
+        return ((buf[off] & 0xFF) << 24) | ((buf[off + 1] & 0xFF) << 16) | ((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF);
+    }
+
+    @Override
+    public void resetState() throws IOException {
+        inflater.reset();
+        blockPos = 0;
+        blockLength = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.archive.compression;
+
+import com.indeed.util.compress.CompressionOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Splits its input into fixed size blocks and deflates each block independently. Each block is written as
+ * an 8 byte header (compressed length, uncompressed length) followed by the block data. A block that does
+ * not shrink is stored as is, which readers recognize by the two lengths being equal.
+ *
+ * The offsets of the blocks are available from {@link #getBlockIndex()} once {@link #finish()} has been called.
+ */
+public class BlockCompressionOutputStream extends CompressionOutputStream {
+    static final int HEADER_SIZE = 8;
+
+    private final int blockSize;
+    private Deflater deflater;
+    private final byte[] block;
+    private final byte[] compressed;
+    private final byte[] header = new byte[HEADER_SIZE];
+    private int blockLength = 0;
+
+    private long[] offsets = new long[16];
+    private int numBlocks = 0;
+
+    public BlockCompressionOutputStream(OutputStream out, int blockSize) {
+        super(out);
+        this.blockSize = blockSize;
+        block = new byte[blockSize];
+        compressed = new byte[blockSize];
+    }
+
+    @Override
+    public void write(byte[] bytes, int off, int len) throws IOException {
+        while (len > 0) {
+            final int n = Math.min(len, blockSize - blockLength);
+            System.arraycopy(bytes, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == blockSize) {
+                writeBlock();
+            }
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[blockLength++] = (byte) b;
+        if (blockLength == blockSize) {
+            writeBlock();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        }
+        deflater.reset();
+        deflater.setInput(block, 0, blockLength);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished() && compressedLength < blockLength) {
+            compressedLength += deflater.deflate(compressed, compressedLength, blockLength - compressedLength);
+        }
+        final boolean stored = !deflater.finished() || compressedLength >= blockLength;
+        if (stored) {
+            compressedLength = blockLength;
+        }
+        writeInt(header, 0, compressedLength);
+        writeInt(header, 4, blockLength);
+        out.write(header);
+        out.write(stored ? block : compressed, 0, compressedLength);
+
+        if (numBlocks + 1 == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[numBlocks + 1] = offsets[numBlocks] + HEADER_SIZE + compressedLength;
+        numBlocks++;
+        blockLength = 0;
+    }
+
+    private static void writeInt(byte[] buf, int off, int value) {
+        buf[off] = (byte) (value >>> 24);
+        buf[off + 1] = (byte) (value >>> 16);
+        buf[off + 2] = (byte) (value >>> 8);
+        buf[off + 3] = (byte) value;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (blockLength > 0) {
+            writeBlock();
+        }
+        out.flush();
+        // the archive writer finishes but never closes these streams, so release the native deflater here
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+
+    @Override
+    public void resetState() throws IOException {
+        blockLength = 0;
+        numBlocks = 0;
+    }
+
+    public BlockIndex getBlockIndex() {
+        return new BlockIndex(blockSize, Arrays.copyOf(offsets, numBlocks + 1));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.archive.compression;
+
+import java.util.Arrays;
+
+/**
+ * Offset table for a file written with {@link SquallArchiveCompressor#BLOCK_DEFLATE}. Every block except the
+ * last holds exactly {@code blockSize} uncompressed bytes, so the block containing any uncompressed position
+ * can be found by division and read without decompressing the blocks before it.
+ *
+ * Stored in metadata.txt as {@code blockSize:compressedLength,compressedLength,...}
+ */
+public final class BlockIndex {
+    private final int blockSize;
+    /** compressed offset of each block relative to the start of the file, plus the end of the last block */
+    private final long[] offsets;
+
+    public BlockIndex(int blockSize, long[] offsets) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("block size must be positive: " + blockSize);
+        }
+        if (offsets.length == 0 || offsets[0] != 0) {
+            throw new IllegalArgumentException("offsets must start at 0");
+        }
+        this.blockSize = blockSize;
+        this.offsets = offsets;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getNumBlocks() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @return the block holding the given uncompressed position
+     */
+    public int getBlock(long position) {
+        return (int) (position / blockSize);
+    }
+
+    /**
+     * @return the compressed offset of the given block relative to the start of the file, or the compressed
+     * length of the file if block == {@link #getNumBlocks()}
+     */
+    public long getBlockOffset(int block) {
+        return offsets[block];
+    }
+
+    public long getCompressedLength() {
+        return offsets[offsets.length - 1];
+    }
+
+    public String format() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(blockSize).append(':');
+        for (int i = 1; i < offsets.length; ++i) {
+            if (i > 1) {
+                sb.append(',');
+            }
+            sb.append(offsets[i] - offsets[i - 1]);
+        }
+        return sb.toString();
+    }
+
+    public static BlockIndex parse(String s) {
+        final int colon = s.indexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("malformed block index: " + s);
+        }
+        final int blockSize = Integer.parseInt(s.substring(0, colon));
+        final String lengths = s.substring(colon + 1);
+        if (lengths.isEmpty()) {
+            return new BlockIndex(blockSize, new long[]{0});
+        }
+        final String[] split = lengths.split(",");
+        final long[] offsets = new long[split.length + 1];
+        for (int i = 0; i < split.length; ++i) {
+            offsets[i + 1] = offsets[i] + Long.parseLong(split[i]);
+        }
+        return new BlockIndex(blockSize, offsets);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final BlockIndex that = (BlockIndex) o;
+        return blockSize == that.blockSize && Arrays.equals(offsets, that.offsets);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * blockSize + Arrays.hashCode(offsets);
+    }
+
+    @Override
+    public String toString() {
+        return "BlockIndex{" +
+                "blockSize=" + blockSize +
+                ", numBlocks=" + getNumBlocks() +
+                ", compressedLength=" + getCompressedLength() +
+                '}';
+    }
+}
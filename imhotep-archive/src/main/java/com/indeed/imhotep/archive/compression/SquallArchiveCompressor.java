@@ -65,8 +65,24 @@ public enum SquallArchiveCompressor {
             final SnappyCodec codec = new SnappyCodec();
             return codec;
         }
+    },
+    /**
+     * independently deflated blocks, see {@link BlockCompressionOutputStream}. the writer records a
+     * {@link BlockIndex} for each file so that ranges can be read without decompressing the whole file.
+     */
+    BLOCK_DEFLATE("block-deflate") {
+        @Override
+        public CompressionInputStream newInputStream(InputStream is) throws IOException {
+            return new BlockCompressionInputStream(is);
+        }
+        @Override
+        public CompressionOutputStream newOutputStream(OutputStream os) throws IOException {
+            return new BlockCompressionOutputStream(os, DEFAULT_BLOCK_SIZE);
+        }
     };
 
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
     private static final Map<String, SquallArchiveCompressor> lookup;
     static {
         final ImmutableMap.Builder<String, SquallArchiveCompressor> builder = ImmutableMap.builder();
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.archive;
+
+import com.indeed.imhotep.archive.compression.SquallArchiveCompressor;
+import com.indeed.util.io.Files;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures packing, verification and extraction throughput of squall archives with and without a worker pool.
+ *
+ * ARGS: [directory to pack] [threads]. Without a directory a synthetic shard-like directory is generated.
+ */
+public class SquallArchiveBenchmark {
+    public static void main(String[] args) throws IOException {
+        final File tempDir = com.google.common.io.Files.createTempDir();
+        try {
+            final File source = args.length > 0 ? new File(args[0]) : generateSource(new File(tempDir, "source"));
+            final int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+            final long bytes = sizeOf(source);
+            System.out.println("packing " + bytes + " bytes from " + source);
+            final FileSystem fs = new NicerLocalFileSystem();
+            for (final SquallArchiveCompressor compressor : new SquallArchiveCompressor[]{SquallArchiveCompressor.GZIP, SquallArchiveCompressor.BLOCK_DEFLATE}) {
+                for (int i = 0; i < 3; ++i) {
+                    run(fs, tempDir, source, bytes, compressor, 1);
+                    run(fs, tempDir, source, bytes, compressor, threads);
+                }
+            }
+        } finally {
+            Files.delete(tempDir.getAbsolutePath());
+        }
+    }
+
+    private static void run(FileSystem fs, File tempDir, File source, long bytes, SquallArchiveCompressor compressor, int threads) throws IOException {
+        final ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        final Path archive = new Path(new File(tempDir, "archive").getAbsolutePath());
+        final File extracted = new File(tempDir, "extracted");
+        try {
+            fs.mkdirs(archive);
+
+            long elapsed = -System.currentTimeMillis();
+            new SquallArchiveWriter(fs, archive, true, compressor, executor).batchAppendDirectory(source);
+            elapsed += System.currentTimeMillis();
+            final long pack = elapsed;
+
+            final SquallArchiveReader reader = new SquallArchiveReader(fs, archive, executor);
+            elapsed = -System.currentTimeMillis();
+            reader.verifyAll();
+            elapsed += System.currentTimeMillis();
+            final long verify = elapsed;
+
+            elapsed = -System.currentTimeMillis();
+            reader.copyAllToLocal(extracted);
+            elapsed += System.currentTimeMillis();
+            final long extract = elapsed;
+
+            System.out.println(compressor.getKey() + " threads=" + threads +
+                    ": pack=" + throughput(bytes, pack) +
+                    ", verify=" + throughput(bytes, verify) +
+                    ", extract=" + throughput(bytes, extract));
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+            fs.delete(archive, true);
+            Files.delete(extracted.getAbsolutePath());
+        }
+    }
+
+    private static String throughput(long bytes, long millis) {
+        return String.format("%.1fMB/s", bytes / 1024.0 / 1024.0 / Math.max(1, millis) * 1000);
+    }
+
+    private static long sizeOf(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        long size = 0;
+        for (final File child : file.listFiles()) {
+            size += sizeOf(child);
+        }
+        return size;
+    }
+
+    /**
+     * a few large files of small varying integers, like term and doc list files, and many small ones
+     */
+    private static File generateSource(File dir) throws IOException {
+        if (!dir.mkdirs()) throw new IOException("unable to create " + dir);
+        final Random rand = new Random(0);
+        for (int i = 0; i < 200; ++i) {
+            writeRandomFile(new File(dir, "small" + i), rand, rand.nextInt(64 * 1024));
+        }
+        for (int i = 0; i < 8; ++i) {
+            writeRandomFile(new File(dir, "large" + i), rand, 64 * 1024 * 1024);
+        }
+        return dir;
+    }
+
+    private static void writeRandomFile(File file, Random rand, int size) throws IOException {
+        final OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            for (int i = 0; i < size; ++i) {
+                os.write(rand.nextInt(1 + (i % 200)));
+            }
+        } finally {
+            os.close();
+        }
+    }
+}
@@ -35,7 +35,10 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.BLOCK_DEFLATE;
 import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.GZIP;
 import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.NONE;
 import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.SNAPPY;
@@ -52,7 +55,7 @@ public class TestSquallArchive {
         final Path tempDir = new Path(getTempDir());
         fs.mkdirs(tempDir);
         try {
-            for (SquallArchiveCompressor compressor : Arrays.asList(NONE, GZIP, SNAPPY)) {
+            for (SquallArchiveCompressor compressor : Arrays.asList(NONE, GZIP, SNAPPY, BLOCK_DEFLATE)) {
                 final String localTempDir = getTempDir();
                 try {
                     doTheTest(fs, tempDir, new File(localTempDir), compressor);
@@ -243,4 +246,63 @@ public class TestSquallArchive {
         writer.commit();
         return expectedLen;
     }
+
+    @Test
+    public void testParallelMatchesSequential() throws IOException {
+        final FileSystem fs = new NicerLocalFileSystem();
+        final File localTempDir = new File(getTempDir());
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final File sourceDir = new File(localTempDir, "source");
+            final File subDir = new File(sourceDir, "sub");
+            if (!subDir.mkdirs()) throw new IOException();
+            final Random rand = new Random(0);
+            writeFile(new File(sourceDir, "empty"), new byte[0]);
+            for (int i = 0; i < 20; ++i) {
+                final byte[] data = new byte[rand.nextInt(4096)];
+                rand.nextBytes(data);
+                writeFile(new File(i % 2 == 0 ? sourceDir : subDir, "small" + i), data);
+            }
+            // larger than the reader's segment of 64 blocks, half compressible and half random
+            final byte[] large = new byte[9 * 1024 * 1024 + 12345];
+            for (int i = 0; i < large.length; ++i) {
+                large[i] = (byte) (i < large.length / 2 ? i % 13 : rand.nextInt(256));
+            }
+            writeFile(new File(subDir, "large"), large);
+
+            for (final SquallArchiveCompressor compressor : Arrays.asList(NONE, GZIP, BLOCK_DEFLATE)) {
+                final Path sequentialPath = new Path(new File(localTempDir, "sequential-" + compressor.getKey()).getAbsolutePath());
+                final Path parallelPath = new Path(new File(localTempDir, "parallel-" + compressor.getKey()).getAbsolutePath());
+                fs.mkdirs(sequentialPath);
+                fs.mkdirs(parallelPath);
+                new SquallArchiveWriter(fs, sequentialPath, true, compressor).batchAppendDirectory(sourceDir);
+                new SquallArchiveWriter(fs, parallelPath, true, compressor, executor, 256 * 1024).batchAppendDirectory(sourceDir);
+
+                assertTrue(com.google.common.io.Files.equal(new File(sequentialPath.toUri().getPath(), "archive0.bin"),
+                                                            new File(parallelPath.toUri().getPath(), "archive0.bin")));
+                final SquallArchiveReader reader = new SquallArchiveReader(fs, parallelPath, executor);
+                assertEquals(new SquallArchiveReader(fs, sequentialPath).readMetadata(), reader.readMetadata());
+
+                reader.verifyAll();
+                final File extracted = new File(localTempDir, "extracted-" + compressor.getKey());
+                reader.copyAllToLocal(extracted);
+                for (final FileMetadata file : reader.readMetadata()) {
+                    assertTrue(file.getFilename(), com.google.common.io.Files.equal(
+                            new File(sourceDir, file.getFilename()), new File(extracted, file.getFilename())));
+                }
+            }
+        } finally {
+            executor.shutdown();
+            Files.delete(localTempDir.getAbsolutePath());
+        }
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        final OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
 }
@@ -27,6 +27,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Random;
 
+import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.BLOCK_DEFLATE;
 import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.GZIP;
 import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.NONE;
 
@@ -40,6 +41,48 @@ public class TestSquallArchiveCompressor extends TestCase {
     public void testCompressors() throws IOException {
         compressorTestCase(NONE);
         compressorTestCase(GZIP);
+        compressorTestCase(BLOCK_DEFLATE);
+    }
+
+    @Test
+    public void testBlockRandomAccess() throws IOException {
+        final int blockSize = 1000;
+        final byte[] data = new byte[10 * blockSize + 123];
+        final Random rand = new Random(0);
+        for (int i = 0; i < data.length; ++i) {
+            // half compressible and half random so that both stored and deflated blocks are written
+            data[i] = (byte) (i < data.length / 2 ? i % 7 : rand.nextInt(256));
+        }
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        baos.write(new byte[17]);
+        final BlockCompressionOutputStream os = new BlockCompressionOutputStream(baos, blockSize);
+        os.write(data);
+        os.finish();
+        final BlockIndex index = os.getBlockIndex();
+        assertEquals(11, index.getNumBlocks());
+        assertEquals(baos.size() - 17, index.getCompressedLength());
+        assertEquals(index, BlockIndex.parse(index.format()));
+
+        final SeekableByteArrayInputStream bais = new SeekableByteArrayInputStream(baos.toByteArray());
+        for (final int position : new int[]{0, 999, 1000, 5500, 10999, data.length - 1}) {
+            final int block = index.getBlock(position);
+            bais.seek(17 + (int) index.getBlockOffset(block));
+            final CompressionInputStream is = BLOCK_DEFLATE.newInputStream(bais);
+            assertEquals(position - block * blockSize, is.skip(position - block * blockSize));
+            for (int i = position; i < Math.min(data.length, position + 1500); ++i) {
+                assertEquals(data[i] & 0xFF, is.read());
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyBlockIndex() throws IOException {
+        final BlockCompressionOutputStream os = new BlockCompressionOutputStream(new ByteArrayOutputStream(), 1000);
+        os.finish();
+        final BlockIndex index = os.getBlockIndex();
+        assertEquals(0, index.getNumBlocks());
+        assertEquals(0, index.getCompressedLength());
+        assertEquals(index, BlockIndex.parse(index.format()));
     }
 
     private void compressorTestCase(SquallArchiveCompressor compressor) throws IOException {
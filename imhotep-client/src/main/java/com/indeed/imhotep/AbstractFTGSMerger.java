@@ -30,10 +30,11 @@ public abstract class AbstractFTGSMerger implements FTGSIterator {
 
     protected final FTGSIterator[] iterators;
     private final int numIterators;
-    protected final int[] fieldIterators;
-    protected int numFieldIterators;
+    /** the iterators that still have terms in the current field, ordered by their current term */
+    private final TournamentTree fieldIterators;
+    private final long[] termIntVals;
+    private final int[] advancedIterators;
     protected final int[] termIterators;
-    protected final int[] termIteratorIndexes;
     protected int numTermIterators;
     protected int termIteratorsRemaining;
 
@@ -51,10 +52,15 @@ public abstract class AbstractFTGSMerger implements FTGSIterator {
         this.doneCallback = doneCallback;
         numIterators = iterators.size();
         this.iterators = iterators.toArray(new FTGSIterator[numIterators]);
-        fieldIterators = new int[numIterators];
-        numFieldIterators = 0;
+        fieldIterators = new TournamentTree(numIterators) {
+            @Override
+            protected int compare(int a, int b) {
+                return compareTerms(a, b);
+            }
+        };
+        termIntVals = new long[numIterators];
+        advancedIterators = new int[numIterators];
         termIterators = new int[numIterators];
-        termIteratorIndexes = new int[numIterators];
         numTermIterators = 0;
         done = false;
         accumulatedVec = new GSVector(numStats);
@@ -64,8 +70,6 @@ public abstract class AbstractFTGSMerger implements FTGSIterator {
     public final boolean nextField() {
         if (done) return false;
 
-        numFieldIterators = 0;
-
         final FTGSIterator first = iterators[0];
         final boolean firstHasNextField = first.nextField();
         for (int i = 1; i < numIterators; ++i) {
@@ -79,24 +83,86 @@ public abstract class AbstractFTGSMerger implements FTGSIterator {
         }
         fieldName = first.fieldName();
         fieldIsIntType = first.fieldIsIntType();
-        numFieldIterators = 0;
-        if (first.nextTerm()) {
-            fieldIterators[numFieldIterators++] = 0;
-        }
-
-        for (int i = 1; i < numIterators; ++i) {
+        for (int i = 0; i < numIterators; ++i) {
             final FTGSIterator itr = iterators[i];
             if (!itr.fieldName().equals(fieldName) || itr.fieldIsIntType() != fieldIsIntType) {
                 throw new IllegalArgumentException("sub iterator fields do not match");
             }
+            final boolean hasTerm = itr.nextTerm();
+            if (hasTerm && fieldIsIntType) {
+                termIntVals[i] = itr.termIntVal();
+            }
+            fieldIterators.setLive(i, hasTerm);
+        }
+        fieldIterators.init();
+        numTermIterators = 0;
+        return true;
+    }
+
+    @Override
+    public final boolean nextTerm() {
+        // the iterators of the previous term are only advanced now that its groups have been consumed
+        int numAdvancedIterators = 0;
+        for (int i = 0; i < numTermIterators; ++i) {
+            final int index = termIterators[i];
+            final FTGSIterator itr = iterators[index];
             if (itr.nextTerm()) {
-                fieldIterators[numFieldIterators++] = i;
+                if (fieldIsIntType) {
+                    termIntVals[index] = itr.termIntVal();
+                }
+                advancedIterators[numAdvancedIterators++] = index;
             }
         }
+        fieldIterators.addAll(advancedIterators, numAdvancedIterators);
+
         numTermIterators = 0;
+        final int first = fieldIterators.top();
+        if (first < 0) return false;
+
+        int index = first;
+        do {
+            termIterators[numTermIterators++] = index;
+            fieldIterators.remove(index);
+            index = fieldIterators.top();
+        } while (index >= 0 && compareTerms(index, first) == 0);
+
+        if (fieldIsIntType) {
+            termIntVal = termIntVals[first];
+        } else {
+            setStringTerm(first);
+        }
+
+        termIteratorsRemaining = numTermIterators;
+        for (int i = 0; i < termIteratorsRemaining; ++i) {
+            final FTGSIterator itr = iterators[termIterators[i]];
+            if (!itr.nextGroup()) {
+                swap(termIterators, i, --termIteratorsRemaining);
+                --i;
+            }
+        }
+        accumulatedVec.reset();
         return true;
     }
 
+    private int compareTerms(int a, int b) {
+        if (fieldIsIntType) {
+            final long termA = termIntVals[a];
+            final long termB = termIntVals[b];
+            return termA < termB ? -1 : (termA == termB ? 0 : 1);
+        }
+        return compareStringTerms(a, b);
+    }
+
+    /**
+     * compares the current string terms of two sub iterators
+     */
+    protected abstract int compareStringTerms(int a, int b);
+
+    /**
+     * makes the current string term of a sub iterator the merged term
+     */
+    protected abstract void setStringTerm(int index);
+
     @Override
     public final String fieldName() {
         return fieldName;
@@ -149,7 +215,6 @@ public abstract class AbstractFTGSMerger implements FTGSIterator {
             if ((itr.group()&0xFFFFF000) == baseGroup) {
                 if (!accumulatedVec.mergeFromFtgs(itr)) {
                     swap(termIterators, i, --termIteratorsRemaining);
-                    swap(termIteratorIndexes, i, termIteratorsRemaining);
                     --i;
                 }
             }
@@ -19,6 +19,7 @@ import com.google.common.io.Closer;
 import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.indeed.imhotep.io.LimitedBufferedOutputStream;
+import com.indeed.imhotep.io.SpillingStreamBuffer;
 import com.indeed.imhotep.io.TempFileSizeLimitExceededException;
 import com.indeed.imhotep.io.WriteLimitExceededException;
 import com.indeed.util.core.Throwables2;
@@ -26,12 +27,14 @@ import com.indeed.util.core.io.Closeables2;
 import com.indeed.util.core.threads.LogOnUncaughtExceptionHandler;
 import com.indeed.flamdex.query.Term;
 import com.indeed.flamdex.utils.BlockingCopyableIterator;
+import com.indeed.imhotep.api.DocBlockIterator;
 import com.indeed.imhotep.api.DocIterator;
 import com.indeed.imhotep.api.FTGSIterator;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.api.ImhotepSession;
 import com.indeed.imhotep.api.RawFTGSIterator;
-import com.indeed.imhotep.service.DocIteratorMerger;
+import com.indeed.imhotep.service.BlockDocIterator;
+import com.indeed.imhotep.service.DocBlockIteratorMerger;
 import com.indeed.imhotep.service.FTGSOutputStreamWriter;
 
 import it.unimi.dsi.fastutil.longs.Long2LongMap;
@@ -97,6 +100,12 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
                     .build()
     );
 
+    /** memory for buffering the splits of a mergeFTGSSplit, shared evenly between the nodes */
+    private static final long SHUFFLE_BUFFER_BYTES = 64 * 1024 * 1024;
+    private static final long MIN_SHUFFLE_BUFFER_BYTES = 1024 * 1024;
+
+    private static final PeerConnectionPool peerConnections = new PeerConnectionPool();
+
     protected int numStats = 0;
 
     private int numGroups = 2;
@@ -138,29 +147,120 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
 
     @Override
     public long[] getGroupStats(final int stat) {
+        return getGroupStats(stat, GroupStatAggregation.SUM);
+    }
+
+    @Override
+    public long[] getGroupStats(final int stat, final GroupStatAggregation aggregation) {
         executeRuntimeException(groupStatsBuf, new ThrowingFunction<ImhotepSession, long[]>() {
             @Override
             public long[] apply(ImhotepSession session) throws Exception {
-                return session.getGroupStats(stat);
+                return session.getGroupStats(stat, aggregation);
             }
         });
+        return mergeGroupStats(groupStatsBuf, aggregation);
+    }
 
+    @Override
+    public double[] getGroupStatVariances(final int stat) {
+        final double[][] variancesBuf = new double[sessions.length][];
+        executeRuntimeException(variancesBuf, new ThrowingFunction<ImhotepSession, double[]>() {
+            @Override
+            public double[] apply(ImhotepSession session) throws Exception {
+                return session.getGroupStatVariances(stat);
+            }
+        });
         int numGroups = 0;
-        for (int i = 0; i < sessions.length; ++i) {
-            final long[] statsBuf = groupStatsBuf[i];
-            final int statsBufLength = statsBuf.length;
-            numGroups = Math.max(numGroups, statsBufLength);
+        for (final double[] variances : variancesBuf) {
+            numGroups = Math.max(numGroups, variances.length);
+        }
+        // the shards are sampled independently
+        final double[] totalVariances = new double[numGroups];
+        for (final double[] variances : variancesBuf) {
+            for (int group = 1; group < variances.length; ++group) {
+                totalVariances[group] += variances[group];
+            }
+        }
+        return totalVariances;
+    }
+
+    private static long[] mergeGroupStats(long[][] groupStatsBuf, GroupStatAggregation aggregation) {
+        int numGroups = 0;
+        for (final long[] statsBuf : groupStatsBuf) {
+            numGroups = Math.max(numGroups, statsBuf.length);
         }
 
         final long[] totalStats = new long[numGroups];
+        if (aggregation.identity() != 0) {
+            Arrays.fill(totalStats, 1, numGroups, aggregation.identity());
+        }
         for (final long[] stats : groupStatsBuf) {
             for (int group = 1; group < stats.length; ++group) {
-                totalStats[group] += stats[group];
+                totalStats[group] = aggregation.merge(totalStats[group], stats[group]);
             }
         }
         return totalStats;
     }
 
+    /**
+     * sends the whole program to every session at once and merges the results step by step, the way the single
+     * operations merge theirs
+     */
+    @Override
+    public SessionProgram.Results executeProgram(final SessionProgram program) throws ImhotepOutOfMemoryException {
+        final SessionProgram.Results[] results = new SessionProgram.Results[sessions.length];
+        boolean success = false;
+        try {
+            executeMemoryException(results, new ThrowingFunction<ImhotepSession, SessionProgram.Results>() {
+                @Override
+                public SessionProgram.Results apply(ImhotepSession session) throws Exception {
+                    return session.executeProgram(program);
+                }
+            });
+            success = true;
+        } finally {
+            if (!success) {
+                // the steps before the failing one may have pushed or popped stats already
+                try {
+                    getNumStats();
+                } catch (RuntimeException e) {
+                    log.warn("unable to read the number of stats after a failed program", e);
+                }
+            }
+        }
+
+        final Object[] merged = new Object[program.size()];
+        final Integer[] intBuf = new Integer[sessions.length];
+        final long[][] statsBuf = new long[sessions.length][];
+        for (int step = 0; step < merged.length; step++) {
+            switch (program.getResultType(step)) {
+                case NUM_STATS:
+                    for (int i = 0; i < results.length; i++) {
+                        intBuf[i] = results[i].getNumStats(step);
+                    }
+                    numStats = validateNumStats(intBuf);
+                    merged[step] = numStats;
+                    break;
+                case NUM_GROUPS:
+                    for (int i = 0; i < results.length; i++) {
+                        intBuf[i] = results[i].getNumGroups(step);
+                    }
+                    numGroups = Collections.max(Arrays.asList(intBuf));
+                    merged[step] = numGroups;
+                    break;
+                case GROUP_STATS:
+                    for (int i = 0; i < results.length; i++) {
+                        statsBuf[i] = results[i].getGroupStats(step);
+                    }
+                    merged[step] = mergeGroupStats(statsBuf, program.getAggregation(step));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return new SessionProgram.Results(program, merged);
+    }
+
     @Override
     public int regroup(final GroupMultiRemapRule[] rawRules, final boolean errorOnCollisions) throws ImhotepOutOfMemoryException {
         executeMemoryException(integerBuf, new ThrowingFunction<ImhotepSession, Integer>() {
@@ -312,6 +412,19 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
         return numGroups;
     }
 
+    @Override
+    public int metricRegroupND(final int[] stats, final long[] mins, final long[] maxes, final long[] intervalSizes, final boolean noGutters) throws ImhotepOutOfMemoryException {
+        executeMemoryException(integerBuf, new ThrowingFunction<ImhotepSession, Integer>() {
+            @Override
+            public Integer apply(ImhotepSession session) throws Exception {
+                return session.metricRegroupND(stats, mins, maxes, intervalSizes, noGutters);
+            }
+        });
+
+        numGroups = Collections.max(Arrays.asList(integerBuf));
+        return numGroups;
+    }
+
     public int metricFilter(final int stat, final long min, final long max, final boolean negate) throws ImhotepOutOfMemoryException {
         executeMemoryException(integerBuf, new ThrowingFunction<ImhotepSession, Integer>() {
             @Override
@@ -338,6 +451,59 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
         return mergeTermCountLists(termCountListBuf, field, isIntField, k);
     }
 
+    /**
+     * Sessions no longer account for the memory of a sketch once they return it, so each one is merged as soon as it
+     * arrives and dropped, rather than holding the sketches of every shard until all of them are done.
+     */
+    @Override
+    public GroupHyperLogLog approximateDistinctTerms(final String field, final boolean isIntField, final int precision) throws ImhotepOutOfMemoryException {
+        final GroupHyperLogLog[] merged = new GroupHyperLogLog[1];
+        executeMemoryException(nullBuf, new ThrowingFunction<ImhotepSession, Object>() {
+            @Override
+            public Object apply(ImhotepSession session) throws Exception {
+                final GroupHyperLogLog sketch = session.approximateDistinctTerms(field, isIntField, precision);
+                synchronized (merged) {
+                    if (merged[0] == null) {
+                        merged[0] = sketch;
+                    } else if (sketch.getNumGroups() > merged[0].getNumGroups()) {
+                        sketch.merge(merged[0]);
+                        merged[0] = sketch;
+                    } else {
+                        merged[0].merge(sketch);
+                    }
+                }
+                return null;
+            }
+        });
+        return merged[0];
+    }
+
+    /**
+     * merges the sketch of each session as soon as it arrives, like {@link #approximateDistinctTerms}
+     */
+    @Override
+    public GroupQuantileSketch getGroupQuantiles(final int stat, final int compression) throws ImhotepOutOfMemoryException {
+        final GroupQuantileSketch[] merged = new GroupQuantileSketch[1];
+        executeMemoryException(nullBuf, new ThrowingFunction<ImhotepSession, Object>() {
+            @Override
+            public Object apply(ImhotepSession session) throws Exception {
+                final GroupQuantileSketch sketch = session.getGroupQuantiles(stat, compression);
+                synchronized (merged) {
+                    if (merged[0] == null) {
+                        merged[0] = sketch;
+                    } else if (sketch.getNumGroups() > merged[0].getNumGroups()) {
+                        sketch.merge(merged[0]);
+                        merged[0] = sketch;
+                    } else {
+                        merged[0].merge(sketch);
+                    }
+                }
+                return null;
+            }
+        });
+        return merged[0];
+    }
+
     private static List<TermCount> mergeTermCountLists(List<TermCount>[] termCountListBuf, String field, boolean isIntField, int k) {
         final List<TermCount> ret;
         if (isIntField) {
@@ -517,13 +683,17 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
     }
 
     public final DocIterator getDocIterator(String[] intFields, String[] stringFields) throws ImhotepOutOfMemoryException {
+        return new BlockDocIterator(getDocBlockIterator(intFields, stringFields));
+    }
+
+    public final DocBlockIterator getDocBlockIterator(String[] intFields, String[] stringFields) throws ImhotepOutOfMemoryException {
         final Closer closer = Closer.create();
         try {
-            final List<DocIterator> docIterators = Lists.newArrayList();
+            final List<DocBlockIterator> docIterators = Lists.newArrayList();
             for (ImhotepSession session : sessions) {
-                docIterators.add(closer.register(session.getDocIterator(intFields, stringFields)));
+                docIterators.add(closer.register(session.getDocBlockIterator(intFields, stringFields)));
             }
-            return new DocIteratorMerger(docIterators, intFields.length, stringFields.length);
+            return new DocBlockIteratorMerger(docIterators, intFields.length, stringFields.length);
         } catch (Throwable t) {
             Closeables2.closeQuietly(closer, log);
             throw Throwables2.propagate(t, ImhotepOutOfMemoryException.class);
@@ -567,69 +737,61 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
     }
 
     public RawFTGSIterator mergeFTGSSplit(final String[] intFields, final String[] stringFields, final String sessionId, final InetSocketAddress[] nodes, final int splitIndex) {
-        final RawFTGSIterator[] splits = new RawFTGSIterator[nodes.length];
-        try {
-            execute(splits, nodes, new ThrowingFunction<InetSocketAddress, RawFTGSIterator>() {
-                public RawFTGSIterator apply(final InetSocketAddress node) throws Exception {
-                    final ImhotepRemoteSession remoteSession = new ImhotepRemoteSession(node.getHostName(), node.getPort(), sessionId, tempFileSizeBytesLeft);
-                    remoteSession.setNumStats(numStats);
-                    return remoteSession.getFTGSIteratorSplit(intFields, stringFields, splitIndex, nodes.length);
-                }
-            });
-        } catch (Throwable t) {
-            Closeables2.closeAll(log, splits);
-            throw Throwables.propagate(t);
-        }
-        return mergeFTGSSplits(splits);
+        return mergeFTGSSplits(sessionId, nodes, new ThrowingFunction<ImhotepRemoteSession, InputStream>() {
+            public InputStream apply(final ImhotepRemoteSession remoteSession) throws Exception {
+                return remoteSession.getFTGSSplitStream(intFields, stringFields, splitIndex, nodes.length, peerConnections);
+            }
+        });
     }
 
     @Override
     public RawFTGSIterator mergeSubsetFTGSSplit(final Map<String, long[]> intFields, final Map<String, String[]> stringFields, final String sessionId, final InetSocketAddress[] nodes, final int splitIndex) {
-        final RawFTGSIterator[] splits = new RawFTGSIterator[nodes.length];
+        return mergeFTGSSplits(sessionId, nodes, new ThrowingFunction<ImhotepRemoteSession, InputStream>() {
+            public InputStream apply(final ImhotepRemoteSession remoteSession) throws Exception {
+                return remoteSession.getSubsetFTGSSplitStream(intFields, stringFields, splitIndex, nodes.length, peerConnections);
+            }
+        });
+    }
+
+    /**
+     * Streams the split from every node into its own buffer and merges straight out of the buffers. Each buffer is
+     * drained as fast as its node sends, spilling to disk past its share of SHUFFLE_BUFFER_BYTES, so a slow merge
+     * never holds up the nodes.
+     */
+    private RawFTGSIterator mergeFTGSSplits(final String sessionId, final InetSocketAddress[] nodes, final ThrowingFunction<ImhotepRemoteSession, InputStream> getSplit) {
+        final InputStream[] splits = new InputStream[nodes.length];
         try {
-            execute(splits, nodes, new ThrowingFunction<InetSocketAddress, RawFTGSIterator>() {
-                public RawFTGSIterator apply(final InetSocketAddress node) throws Exception {
+            execute(splits, nodes, new ThrowingFunction<InetSocketAddress, InputStream>() {
+                public InputStream apply(final InetSocketAddress node) throws Exception {
                     final ImhotepRemoteSession remoteSession = new ImhotepRemoteSession(node.getHostName(), node.getPort(), sessionId, tempFileSizeBytesLeft);
                     remoteSession.setNumStats(numStats);
-                    return remoteSession.getSubsetFTGSIteratorSplit(intFields, stringFields, splitIndex, nodes.length);
+                    return getSplit.apply(remoteSession);
                 }
             });
         } catch (Throwable t) {
             Closeables2.closeAll(log, splits);
             throw Throwables.propagate(t);
         }
-        return mergeFTGSSplits(splits);
-    }
-
-    private RawFTGSIterator mergeFTGSSplits(RawFTGSIterator[] splits) {
-        final Closer closer = Closer.create();
-        try {
-            final RawFTGSIterator[][] iteratorSplits = new RawFTGSIterator[splits.length][];
-            final int numSplits = Math.max(1, Runtime.getRuntime().availableProcessors()/2);
-            for (int i = 0; i < splits.length; i++) {
-                final FTGSSplitter splitter = closer.register(new FTGSSplitter(splits[i], numSplits, numStats, "mergeFtgsSplit", 981044833, tempFileSizeBytesLeft));
-                iteratorSplits[i] = splitter.getFtgsIterators();
-            }
-            final RawFTGSIterator[] mergers = new RawFTGSIterator[numSplits];
-            for (int j = 0; j < numSplits; j++) {
-                final List<RawFTGSIterator> iterators = Lists.newArrayList();
-                for (int i = 0; i < splits.length; i++) {
-                    iterators.add(iteratorSplits[i][j]);
-                }
-                mergers[j] = closer.register(new RawFTGSMerger(iterators, numStats, null));
-            }
-            final RawFTGSIterator[] iterators = new RawFTGSIterator[numSplits];
-            execute(iterators, mergers, new ThrowingFunction<RawFTGSIterator, RawFTGSIterator>() {
-                public RawFTGSIterator apply(final RawFTGSIterator iterator) throws Exception {
-                    return persist(iterator);
+        final long memoryLimit = Math.max(MIN_SHUFFLE_BUFFER_BYTES, SHUFFLE_BUFFER_BYTES / nodes.length);
+        final List<RawFTGSIterator> iterators = Lists.newArrayListWithCapacity(nodes.length);
+        for (final InputStream split : splits) {
+            final SpillingStreamBuffer buffer = new SpillingStreamBuffer(memoryLimit, tempFileSizeBytesLeft);
+            mergeSplitBufferThreads.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        buffer.fill(split);
+                    } catch (IOException e) {
+                        // the merge gets the same failure from the buffer
+                        log.warn("error reading FTGS split", e);
+                    } finally {
+                        Closeables2.closeQuietly(split, log);
+                    }
                 }
             });
-            return new FTGSInterleaver(iterators);
-//            return new RawFTGSMerger(Arrays.asList(splits), numStats, null);
-        } catch (Throwable t) {
-            Closeables2.closeQuietly(closer, log);
-            throw Throwables.propagate(t);
+            iterators.add(new InputStreamFTGSIterator(buffer.getInputStream(), numStats));
         }
+        return new RawFTGSMerger(iterators, numStats, null);
     }
 
     private RawFTGSIterator persist(final FTGSIterator iterator) throws IOException {
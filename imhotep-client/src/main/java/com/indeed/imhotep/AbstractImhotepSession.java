@@ -54,4 +54,9 @@ public abstract class AbstractImhotepSession implements ImhotepSession {
     public int metricRegroup(int stat, long min, long max, long intervalSize) throws ImhotepOutOfMemoryException {
         return metricRegroup(stat, min, max, intervalSize, false);
     }
+
+    @Override
+    public SessionProgram.Results executeProgram(SessionProgram program) throws ImhotepOutOfMemoryException {
+        return program.execute(this);
+    }
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+/**
+ * A deterministic sample of the blocks of {@link #BLOCK_SIZE} consecutive doc ids of a shard. Whether a block is in the
+ * sample only depends on the seed, the shard id and the block number, so every session opened with the same sample sees
+ * the same documents and the sampled blocks of a shard stay the same when its newer versions append documents. Mixing
+ * in the shard id samples the shards independently of each other, which is what makes summing the variances of the
+ * shards a valid estimate of the variance of the whole sample.
+ */
+public final class DocSample {
+    public static final int BLOCK_SIZE = 4096;
+
+    private final double rate;
+    private final long seed;
+    private final long threshold;
+
+    /**
+     * @param rate the expected fraction of blocks in the sample, in (0, 1]
+     */
+    public DocSample(double rate, long seed) {
+        if (!(rate > 0 && rate <= 1)) {
+            throw new IllegalArgumentException("rate must be in (0, 1], got " + rate);
+        }
+        this.rate = rate;
+        this.seed = seed;
+        // compared against the top 53 bits of the hash, so that a rate of 1 keeps every block
+        threshold = (long) Math.ceil(rate * (1L << 53));
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return the key of a shard for {@link #containsBlock}, which only depends on the shard id and not on its version
+     */
+    public static long shardKey(String shardId) {
+        long h = 0;
+        for (int i = 0; i < shardId.length(); i++) {
+            h = mix(h + shardId.charAt(i));
+        }
+        return h;
+    }
+
+    public boolean containsBlock(long shardKey, int block) {
+        return (mix(mix(seed ^ shardKey) + block * 0x9E3779B97F4A7C15L) >>> 11) < threshold;
+    }
+
+    // the finalizer of SplitMix64
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DocSample)) {
+            return false;
+        }
+        final DocSample other = (DocSample) o;
+        return Double.compare(rate, other.rate) == 0 && seed == other.seed;
+    }
+
+    @Override
+    public int hashCode() {
+        final long bits = Double.doubleToLongBits(rate);
+        return 31 * (int) (bits ^ (bits >>> 32)) + (int) (seed ^ (seed >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "DocSample{rate=" + rate + ", seed=" + seed + '}';
+    }
+}
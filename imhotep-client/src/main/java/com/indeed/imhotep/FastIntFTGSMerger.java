@@ -29,6 +29,10 @@ public final class FastIntFTGSMerger implements FTGSIterator {
     private static final Logger log = Logger.getLogger(FastIntFTGSMerger.class);
 
     protected final FTGSIterator[] iterators;
+    /** the iterators that still have groups in the current field, ordered by their current block of term groups */
+    private final TournamentTree fieldIterators;
+    private final long[] baseTermGroups;
+    private final int[] refillIterators;
     private int numFieldIterators = 0;
 
     private String fieldName;
@@ -46,6 +50,16 @@ public final class FastIntFTGSMerger implements FTGSIterator {
         this.numGroups = numGroups;
         this.doneCallback = doneCallback;
         this.iterators = iterators.toArray(new FTGSIterator[iterators.size()]);
+        baseTermGroups = new long[this.iterators.length];
+        refillIterators = new int[this.iterators.length];
+        fieldIterators = new TournamentTree(this.iterators.length) {
+            @Override
+            protected int compare(int a, int b) {
+                final long baseA = baseTermGroups[a];
+                final long baseB = baseTermGroups[b];
+                return baseA < baseB ? -1 : (baseA == baseB ? 0 : 1);
+            }
+        };
         done = false;
         accumulatedVec = new GSVector(numStats, numGroups);
     }
@@ -66,7 +80,7 @@ public final class FastIntFTGSMerger implements FTGSIterator {
         }
         fieldName = first.fieldName();
         fieldIsIntType = first.fieldIsIntType();
-        numFieldIterators = iterators.length;
+        numFieldIterators = 0;
 
         for (int i = 1; i < iterators.length; ++i) {
             final FTGSIterator itr = iterators[i];
@@ -74,29 +88,29 @@ public final class FastIntFTGSMerger implements FTGSIterator {
                 throw new IllegalArgumentException("sub iterator fields do not match");
             }
         }
-        for (int i = iterators.length-1; i >= 0; i--) {
-            while (true) {
-                if (!iterators[i].nextTerm()) {
-                    numFieldIterators--;
-                    swap(iterators, i, numFieldIterators);
+        for (int i = 0; i < iterators.length; i++) {
+            boolean hasGroup = false;
+            while (iterators[i].nextTerm()) {
+                if (iterators[i].nextGroup()) {
+                    hasGroup = true;
                     break;
                 }
-                if (!iterators[i].nextGroup()) {
-                    continue;
-                }
-                break;
             }
+            if (hasGroup) {
+                baseTermGroups[i] = baseTermGroup(iterators[i]);
+                numFieldIterators++;
+            }
+            fieldIterators.setLive(i, hasGroup);
         }
+        fieldIterators.init();
 
         accumulatedVec.resetNewField();
 
         return true;
     }
 
-    private static void swap(Object[] array, int indexA, int indexB) {
-        final Object a = array[indexA];
-        array[indexA] = array[indexB];
-        array[indexB] = a;
+    private long baseTermGroup(FTGSIterator itr) {
+        return (itr.termIntVal()*numGroups+itr.group())&~0xFFF;
     }
 
     @Override
@@ -110,23 +124,29 @@ public final class FastIntFTGSMerger implements FTGSIterator {
     }
 
     private void refill() {
-        long minBaseTermGroup = Long.MAX_VALUE;
-        for (int i = 0; i < numFieldIterators; i++) {
-            final long baseTermGroup = (iterators[i].termIntVal()*numGroups+iterators[i].group())&~0xFFF;
-            if (baseTermGroup < minBaseTermGroup) {
-                minBaseTermGroup = baseTermGroup;
-            }
-        }
+        final int first = fieldIterators.top();
+        final long minBaseTermGroup = baseTermGroups[first];
+        int numRefillIterators = 0;
+        int index = first;
+        do {
+            refillIterators[numRefillIterators++] = index;
+            fieldIterators.remove(index);
+            index = fieldIterators.top();
+        } while (index >= 0 && baseTermGroups[index] == minBaseTermGroup);
+
         accumulatedVec.reset();
-        for (int i = numFieldIterators-1; i >= 0; i--) {
-            final long baseTermGroup = (iterators[i].termIntVal()*numGroups+iterators[i].group())&~0xFFF;
-            if (baseTermGroup == minBaseTermGroup) {
-                if (!accumulatedVec.mergeFromFtgs(iterators[i])) {
-                    numFieldIterators--;
-                    swap(iterators, i, numFieldIterators);
-                }
+        int numMergedIterators = 0;
+        for (int i = 0; i < numRefillIterators; i++) {
+            final int refillIndex = refillIterators[i];
+            final FTGSIterator itr = iterators[refillIndex];
+            if (accumulatedVec.mergeFromFtgs(itr)) {
+                baseTermGroups[refillIndex] = baseTermGroup(itr);
+                refillIterators[numMergedIterators++] = refillIndex;
+            } else {
+                numFieldIterators--;
             }
         }
+        fieldIterators.addAll(refillIterators, numMergedIterators);
     }
 
     @Override
@@ -298,8 +318,11 @@ public final class FastIntFTGSMerger implements FTGSIterator {
         }
 
         public boolean nextTerm() {
-            while (nextGroup()) {
-                //finish previous term
+            // there is no previous term at the start of a field, and term*numGroups overflows there
+            if (term != Long.MIN_VALUE) {
+                while (nextGroup()) {
+                    //finish previous term
+                }
             }
             if (iteratorIndex < 0 || bitset2[iteratorIndex] == 0) {
                 if (bitset1 == 0) {
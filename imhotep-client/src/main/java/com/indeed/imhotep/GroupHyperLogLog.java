@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import java.util.Arrays;
+
+/**
+ * One HyperLogLog sketch of the distinct terms of a field per group. Each sketch has 2^precision registers of one byte,
+ * stored one group after the other, so sketches built over different shards are merged by taking the larger register.
+ * The standard error of an estimate is about 1.04 / sqrt(2^precision).
+ */
+public final class GroupHyperLogLog {
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 16;
+    /** registers of all groups together, bounded so that the sketches of a session still fit in one response */
+    public static final int MAX_REGISTERS = 1 << 28;
+
+    private final int precision;
+    private final int numGroups;
+    private final byte[] registers;
+
+    public GroupHyperLogLog(int precision, int numGroups) {
+        this(precision, numGroups, new byte[getNumRegisters(precision, numGroups)]);
+    }
+
+    public GroupHyperLogLog(int precision, int numGroups, byte[] registers) {
+        final int numRegisters = getNumRegisters(precision, numGroups);
+        if (registers.length != numRegisters) {
+            throw new IllegalArgumentException("expected " + numRegisters + " registers, got " + registers.length);
+        }
+        this.precision = precision;
+        this.numGroups = numGroups;
+        this.registers = registers;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the precision is out of range or the sketches of this many groups would
+     * have more than {@link #MAX_REGISTERS} registers
+     */
+    public static int getNumRegisters(int precision, int numGroups) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("precision must be between " + MIN_PRECISION + " and " + MAX_PRECISION + ", got " + precision);
+        }
+        if (numGroups < 0) {
+            throw new IllegalArgumentException("numGroups must not be negative, got " + numGroups);
+        }
+        final long numRegisters = memoryUsage(precision, numGroups);
+        if (numRegisters > MAX_REGISTERS) {
+            throw new IllegalArgumentException("too many registers for " + numGroups + " groups at precision " + precision
+                                               + ": " + numRegisters + ", at most " + MAX_REGISTERS + " are supported");
+        }
+        return (int) numRegisters;
+    }
+
+    public static long memoryUsage(int precision, int numGroups) {
+        return (long) numGroups << precision;
+    }
+
+    public static long hash(long term) {
+        return mix(term);
+    }
+
+    public static long hash(String term) {
+        // FNV-1a over the chars, which is too weak on its own for the low bits, so the result is mixed again
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < term.length(); i++) {
+            h = (h ^ term.charAt(i)) * 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    // the 64 bit finalizer of MurmurHash3
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public void add(int group, long hash) {
+        final int index = (group << precision) + (int) (hash >>> (64 - precision));
+        final byte rank = (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+        if (registers[index] < rank) {
+            registers[index] = rank;
+        }
+    }
+
+    /**
+     * merges the sketches of other into these, other may have fewer groups
+     */
+    public void merge(GroupHyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("cannot merge sketches of precision " + other.precision + " into " + precision);
+        }
+        if (other.numGroups > numGroups) {
+            throw new IllegalArgumentException("cannot merge " + other.numGroups + " groups into " + numGroups);
+        }
+        final byte[] otherRegisters = other.registers;
+        for (int i = 0; i < otherRegisters.length; i++) {
+            if (registers[i] < otherRegisters[i]) {
+                registers[i] = otherRegisters[i];
+            }
+        }
+    }
+
+    public long estimate(int group) {
+        final int m = 1 << precision;
+        final int start = group << precision;
+        double sum = 0;
+        int zeros = 0;
+        for (int i = start; i < start + m; i++) {
+            sum += Math.scalb(1.0, -registers[i]);
+            if (registers[i] == 0) {
+                zeros++;
+            }
+        }
+        final double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // linear counting is much more accurate for small cardinalities
+            return Math.round(m * Math.log((double) m / zeros));
+        }
+        return Math.round(estimate);
+    }
+
+    public long[] estimates() {
+        final long[] ret = new long[numGroups];
+        for (int group = 1; group < numGroups; group++) {
+            ret[group] = estimate(group);
+        }
+        return ret;
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    public int getNumGroups() {
+        return numGroups;
+    }
+
+    public byte[] getRegisters() {
+        return registers;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        final GroupHyperLogLog that = (GroupHyperLogLog) o;
+        return precision == that.precision && numGroups == that.numGroups && Arrays.equals(registers, that.registers);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * precision + numGroups) + Arrays.hashCode(registers);
+    }
+}
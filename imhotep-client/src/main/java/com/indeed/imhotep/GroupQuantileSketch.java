@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * One t-digest of the values of a stat per group. Each digest keeps at most 2 * compression + 2 centroids, sized by
+ * the arcsine scale function so that they are smallest near the extreme quantiles, and values added to a group are
+ * buffered and merged into its centroids in sorted batches. Digests built over different shards are merged by merging
+ * their centroids, so the error of a quantile only depends on the compression and not on how the docs were split.
+ */
+public final class GroupQuantileSketch {
+    public static final int MIN_COMPRESSION = 10;
+    public static final int MAX_COMPRESSION = 10000;
+
+    private final int compression;
+    private final int numGroups;
+    private final int maxBuffered;
+
+    private final long[] counts;
+    private final double[] mins;
+    private final double[] maxs;
+    private final double[][] means;
+    private final long[][] weights;
+    private final int[] numCentroids;
+    private final double[][] buffers;
+    private final int[] numBuffered;
+    private long[] unitWeights;
+
+    public GroupQuantileSketch(int compression, int numGroups) {
+        if (compression < MIN_COMPRESSION || compression > MAX_COMPRESSION) {
+            throw new IllegalArgumentException("compression must be between " + MIN_COMPRESSION + " and " + MAX_COMPRESSION + ", got " + compression);
+        }
+        this.compression = compression;
+        this.numGroups = numGroups;
+        maxBuffered = 4 * compression;
+        counts = new long[numGroups];
+        mins = new double[numGroups];
+        maxs = new double[numGroups];
+        means = new double[numGroups][];
+        weights = new long[numGroups][];
+        numCentroids = new int[numGroups];
+        buffers = new double[numGroups][];
+        numBuffered = new int[numGroups];
+    }
+
+    // every second centroid starts more than one unit further along the scale function, which spans compression units
+    private static int maxCentroids(int compression) {
+        return 2 * compression + 2;
+    }
+
+    /**
+     * an upper bound on the memory used by the digest of a group with docCount values, including the bookkeeping that
+     * every group has even without values
+     */
+    public static long memoryUsage(int compression, long docCount) {
+        final long buffered = Math.min(docCount, 4L * compression);
+        final long centroids = Math.min(docCount, maxCentroids(compression));
+        return 64 + 8 * buffered + 2 * 16 * centroids;
+    }
+
+    public void add(int group, double value) {
+        if (counts[group]++ == 0) {
+            mins[group] = value;
+            maxs[group] = value;
+            buffers[group] = new double[16];
+        } else {
+            mins[group] = Math.min(mins[group], value);
+            maxs[group] = Math.max(maxs[group], value);
+        }
+        double[] buffer = buffers[group];
+        if (numBuffered[group] == buffer.length) {
+            if (buffer.length < maxBuffered) {
+                buffer = buffers[group] = Arrays.copyOf(buffer, Math.min(maxBuffered, 2 * buffer.length));
+            } else {
+                flush(group);
+            }
+        }
+        buffer[numBuffered[group]++] = value;
+    }
+
+    /**
+     * merges the digests of other into these, other may have fewer groups
+     */
+    public void merge(GroupQuantileSketch other) {
+        if (other.numGroups > numGroups) {
+            throw new IllegalArgumentException("cannot merge " + other.numGroups + " groups into " + numGroups);
+        }
+        for (int group = 0; group < other.numGroups; group++) {
+            if (other.counts[group] == 0) {
+                continue;
+            }
+            other.flush(group);
+            if (counts[group] == 0) {
+                mins[group] = other.mins[group];
+                maxs[group] = other.maxs[group];
+            } else {
+                flush(group);
+                mins[group] = Math.min(mins[group], other.mins[group]);
+                maxs[group] = Math.max(maxs[group], other.maxs[group]);
+            }
+            counts[group] += other.counts[group];
+            compress(group, other.means[group], other.weights[group], other.numCentroids[group]);
+        }
+    }
+
+    private void flush(int group) {
+        final int n = numBuffered[group];
+        if (n == 0) {
+            return;
+        }
+        final double[] buffer = buffers[group];
+        Arrays.sort(buffer, 0, n);
+        if (unitWeights == null) {
+            unitWeights = new long[maxBuffered];
+            Arrays.fill(unitWeights, 1);
+        }
+        numBuffered[group] = 0;
+        compress(group, buffer, unitWeights, n);
+    }
+
+    /**
+     * merges the sorted centroids given with the sorted centroids of the group, combining neighbours for as long as
+     * they stay within one unit of the scale function
+     */
+    private void compress(int group, double[] otherMeans, long[] otherWeights, int otherCount) {
+        final double[] oldMeans = means[group];
+        final long[] oldWeights = weights[group];
+        final int oldCount = numCentroids[group];
+        long totalWeight = 0;
+        for (int i = 0; i < oldCount; i++) {
+            totalWeight += oldWeights[i];
+        }
+        for (int i = 0; i < otherCount; i++) {
+            totalWeight += otherWeights[i];
+        }
+
+        final double[] newMeans = new double[Math.min(oldCount + otherCount, maxCentroids(compression))];
+        final long[] newWeights = new long[newMeans.length];
+        int count = 0;
+        long weightSoFar = 0;
+        double weightLimit = totalWeight * qForK(kForQ(0) + 1);
+        int i = 0;
+        int j = 0;
+        while (i < oldCount || j < otherCount) {
+            final double mean;
+            final long weight;
+            if (j == otherCount || (i < oldCount && oldMeans[i] <= otherMeans[j])) {
+                mean = oldMeans[i];
+                weight = oldWeights[i++];
+            } else {
+                mean = otherMeans[j];
+                weight = otherWeights[j++];
+            }
+            if (count > 0 && weightSoFar + newWeights[count - 1] + weight <= weightLimit) {
+                final long merged = newWeights[count - 1] + weight;
+                newMeans[count - 1] += (mean - newMeans[count - 1]) * weight / merged;
+                newWeights[count - 1] = merged;
+            } else {
+                if (count > 0) {
+                    weightSoFar += newWeights[count - 1];
+                    weightLimit = totalWeight * qForK(kForQ((double) weightSoFar / totalWeight) + 1);
+                }
+                newMeans[count] = mean;
+                newWeights[count] = weight;
+                count++;
+            }
+        }
+        means[group] = newMeans;
+        weights[group] = newWeights;
+        numCentroids[group] = count;
+    }
+
+    private double kForQ(double q) {
+        return compression * (Math.asin(2 * q - 1) + Math.PI / 2) / Math.PI;
+    }
+
+    private double qForK(double k) {
+        return (Math.sin(Math.min(k, compression) * Math.PI / compression - Math.PI / 2) + 1) / 2;
+    }
+
+    public long count(int group) {
+        return counts[group];
+    }
+
+    /**
+     * @return the estimated value at quantile q of the group, or NaN if the group has no values
+     */
+    public double quantile(int group, double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("quantile must be between 0 and 1, got " + q);
+        }
+        final long count = counts[group];
+        if (count == 0) {
+            return Double.NaN;
+        }
+        flush(group);
+        final double[] groupMeans = means[group];
+        final long[] groupWeights = weights[group];
+        final int n = numCentroids[group];
+        final double index = q * count;
+        if (index <= 0.5) {
+            return mins[group];
+        }
+        if (index >= count - 0.5) {
+            return maxs[group];
+        }
+
+        // every centroid is taken to sit at the middle of the ranks it covers, values in between are interpolated
+        double center = groupWeights[0] / 2.0;
+        if (index < center) {
+            return interpolate(mins[group], groupMeans[0], (index - 0.5) / (center - 0.5));
+        }
+        for (int i = 0; i + 1 < n; i++) {
+            final double nextCenter = center + (groupWeights[i] + groupWeights[i + 1]) / 2.0;
+            if (index < nextCenter) {
+                return interpolate(groupMeans[i], groupMeans[i + 1], (index - center) / (nextCenter - center));
+            }
+            center = nextCenter;
+        }
+        final double lastCenter = count - 0.5;
+        return interpolate(groupMeans[n - 1], maxs[group], (index - center) / (lastCenter - center));
+    }
+
+    private static double interpolate(double from, double to, double fraction) {
+        return from + (to - from) * fraction;
+    }
+
+    /**
+     * @return the estimated value at quantile q of every group, NaN for the groups without values
+     */
+    public double[] quantiles(double q) {
+        final double[] ret = new double[numGroups];
+        for (int group = 0; group < numGroups; group++) {
+            ret[group] = quantile(group, q);
+        }
+        return ret;
+    }
+
+    public int getCompression() {
+        return compression;
+    }
+
+    public int getNumGroups() {
+        return numGroups;
+    }
+
+    public byte[] toBytes() {
+        int size = 8;
+        for (int group = 0; group < numGroups; group++) {
+            flush(group);
+            size += 8;
+            if (counts[group] > 0) {
+                size += 20 + 16 * numCentroids[group];
+            }
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(compression);
+        buffer.putInt(numGroups);
+        for (int group = 0; group < numGroups; group++) {
+            buffer.putLong(counts[group]);
+            if (counts[group] > 0) {
+                buffer.putDouble(mins[group]);
+                buffer.putDouble(maxs[group]);
+                buffer.putInt(numCentroids[group]);
+                for (int i = 0; i < numCentroids[group]; i++) {
+                    buffer.putDouble(means[group][i]);
+                    buffer.putLong(weights[group][i]);
+                }
+            }
+        }
+        return buffer.array();
+    }
+
+    public static GroupQuantileSketch fromBytes(byte[] bytes) {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        final GroupQuantileSketch ret = new GroupQuantileSketch(buffer.getInt(), buffer.getInt());
+        for (int group = 0; group < ret.numGroups; group++) {
+            ret.counts[group] = buffer.getLong();
+            if (ret.counts[group] > 0) {
+                ret.mins[group] = buffer.getDouble();
+                ret.maxs[group] = buffer.getDouble();
+                final int n = buffer.getInt();
+                ret.numCentroids[group] = n;
+                ret.means[group] = new double[n];
+                ret.weights[group] = new long[n];
+                for (int i = 0; i < n; i++) {
+                    ret.means[group][i] = buffer.getDouble();
+                    ret.weights[group][i] = buffer.getLong();
+                }
+            }
+        }
+        return ret;
+    }
+}
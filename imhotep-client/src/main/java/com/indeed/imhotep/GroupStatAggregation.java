@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+/**
+ * How the values of a stat are combined into one value per group. Every kind is associative, so the results of
+ * different shards are combined with {@link #merge} starting from {@link #identity}, which is also what groups without
+ * documents get.
+ */
+public enum GroupStatAggregation {
+    SUM {
+        @Override
+        public long identity() {
+            return 0;
+        }
+
+        @Override
+        public long merge(long a, long b) {
+            return a + b;
+        }
+    },
+    MIN {
+        @Override
+        public long identity() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public long merge(long a, long b) {
+            return Math.min(a, b);
+        }
+    },
+    MAX {
+        @Override
+        public long identity() {
+            return Long.MIN_VALUE;
+        }
+
+        @Override
+        public long merge(long a, long b) {
+            return Math.max(a, b);
+        }
+    },
+    /** the number of documents where the stat is not 0 */
+    COUNT_NONZERO {
+        @Override
+        public long identity() {
+            return 0;
+        }
+
+        @Override
+        public long merge(long a, long b) {
+            return a + b;
+        }
+    };
+
+    public abstract long identity();
+
+    public abstract long merge(long a, long b);
+}
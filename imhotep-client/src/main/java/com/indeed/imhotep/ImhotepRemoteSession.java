@@ -21,6 +21,7 @@ import com.google.common.io.ByteStreams;
 import com.google.common.primitives.Doubles;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
+import com.indeed.imhotep.api.DocBlockIterator;
 import com.indeed.imhotep.api.DocIterator;
 import com.indeed.imhotep.api.FTGSIterator;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
@@ -42,9 +43,11 @@ import com.indeed.imhotep.protobuf.QueryRemapMessage;
 import com.indeed.imhotep.protobuf.RegroupConditionMessage;
 import com.indeed.imhotep.protobuf.ShardInfoMessage;
 import com.indeed.imhotep.protobuf.StringFieldAndTerms;
+import com.indeed.imhotep.service.InputStreamDocBlockIterator;
 import com.indeed.imhotep.service.InputStreamDocIterator;
 
 import com.indeed.util.core.Throwables2;
+import com.indeed.util.core.io.Closeables2;
 import org.apache.log4j.Logger;
 
 import javax.annotation.Nullable;
@@ -79,7 +82,7 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
 
     private static final int DEFAULT_SOCKET_TIMEOUT = (int)TimeUnit.MINUTES.toMillis(30);
 
-    private static final int CURRENT_CLIENT_VERSION = 2; // id to be incremented as changes to the client are done
+    private static final int CURRENT_CLIENT_VERSION = 3; // id to be incremented as changes to the client are done
 
     private final String host;
     private final int port;
@@ -152,13 +155,23 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
     public static ImhotepRemoteSession openSession(final String host, final int port, final String dataset, final List<String> shards,
                                                    final int mergeThreadLimit, final String username,
                                                    final boolean optimizeGroupZeroLookups, final int socketTimeout, @Nullable String sessionId, final long tempFileSizeLimit, @Nullable final AtomicLong tempFileSizeBytesLeft) throws ImhotepOutOfMemoryException, IOException {
+        return openSession(host, port, dataset, shards, mergeThreadLimit, username, optimizeGroupZeroLookups, socketTimeout, sessionId, tempFileSizeLimit, tempFileSizeBytesLeft, null);
+    }
+
+    /**
+     * @param docSample if not null, the session only sees the documents in the blocks of this sample
+     */
+    public static ImhotepRemoteSession openSession(final String host, final int port, final String dataset, final List<String> shards,
+                                                   final int mergeThreadLimit, final String username,
+                                                   final boolean optimizeGroupZeroLookups, final int socketTimeout, @Nullable String sessionId, final long tempFileSizeLimit, @Nullable final AtomicLong tempFileSizeBytesLeft,
+                                                   @Nullable final DocSample docSample) throws ImhotepOutOfMemoryException, IOException {
         final Socket socket = newSocket(host, port, socketTimeout);
         final OutputStream os = Streams.newBufferedOutputStream(socket.getOutputStream());
         final InputStream is = Streams.newBufferedInputStream(socket.getInputStream());
 
         try {
             log.trace("sending open request to "+host+":"+port+" for shards "+shards);
-            final ImhotepRequest openSessionRequest = getBuilderForType(ImhotepRequest.RequestType.OPEN_SESSION)
+            final ImhotepRequest.Builder openSessionRequestBuilder = getBuilderForType(ImhotepRequest.RequestType.OPEN_SESSION)
                     .setUsername(username)
                     .setDataset(dataset)
                     .setMergeThreadLimit(mergeThreadLimit)
@@ -166,8 +179,11 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
                     .setOptimizeGroupZeroLookups(optimizeGroupZeroLookups)
                     .setClientVersion(CURRENT_CLIENT_VERSION)
                     .setSessionId(sessionId == null ? "" : sessionId)
-                    .setTempFileSizeLimit(tempFileSizeLimit)
-                    .build();
+                    .setTempFileSizeLimit(tempFileSizeLimit);
+            if (docSample != null) {
+                openSessionRequestBuilder.setSampleRate(docSample.getRate()).setSampleSeed(docSample.getSeed());
+            }
+            final ImhotepRequest openSessionRequest = openSessionRequestBuilder.build();
             try {
                 ImhotepProtobufShipping.sendProtobuf(openSessionRequest, os);
     
@@ -212,9 +228,15 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
 
     @Override
     public long[] getGroupStats(int stat) {
+        return getGroupStats(stat, GroupStatAggregation.SUM);
+    }
+
+    @Override
+    public long[] getGroupStats(int stat, GroupStatAggregation aggregation) {
         final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.GET_GROUP_STATS)
                 .setSessionId(sessionId)
                 .setStat(stat)
+                .setAggregation(ImhotepClientMarshaller.marshal(aggregation))
                 .build();
         final ImhotepResponse response;
         try {
@@ -222,6 +244,11 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        // a daemon that predates aggregations ignores the field and sums, which must not be merged as something else
+        if (aggregation != GroupStatAggregation.SUM
+                && (!response.hasAggregation() || response.getAggregation() != request.getAggregation())) {
+            throw new UnsupportedOperationException("daemon " + host + ":" + port + " does not support " + aggregation + " group stats");
+        }
 
         final List<Long> groupStats = response.getGroupStatList();
         final long[] ret = new long[groupStats.size()];
@@ -231,6 +258,27 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
         return ret;
     }
 
+    @Override
+    public double[] getGroupStatVariances(int stat) {
+        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.GET_GROUP_STAT_VARIANCES)
+                .setSessionId(sessionId)
+                .setStat(stat)
+                .build();
+        final ImhotepResponse response;
+        try {
+            response = sendRequest(request, host, port, socketTimeout);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        final List<Double> variances = response.getGroupStatVariancesList();
+        final double[] ret = new double[variances.size()];
+        for (int i = 0; i < ret.length; ++i) {
+            ret[i] = variances.get(i);
+        }
+        return ret;
+    }
+
     @Override
     public FTGSIterator getFTGSIterator(String[] intFields, String[] stringFields) {
         final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.GET_FTGS_ITERATOR)
@@ -289,20 +337,52 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
         }
     }
 
+    @Override
+    public DocBlockIterator getDocBlockIterator(final String[] intFields, final String[] stringFields) throws ImhotepOutOfMemoryException {
+        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.GET_DOC_BLOCK_ITERATOR)
+                .setSessionId(sessionId)
+                .addAllIntFields(Arrays.asList(intFields))
+                .addAllStringFields(Arrays.asList(stringFields))
+                .build();
+        try {
+            final Socket socket = newSocket(host, port, socketTimeout);
+            final InputStream is = Streams.newBufferedInputStream(socket.getInputStream());
+            final OutputStream os = Streams.newBufferedOutputStream(socket.getOutputStream());
+            try {
+                sendRequest(request, is, os, host, port);
+            } catch (IOException e) {
+                closeSocket(socket, is, os);
+                throw e;
+            }
+            return new InputStreamDocBlockIterator(is, intFields.length, stringFields.length);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
     public RawFTGSIterator[] getFTGSIteratorSplits(final String[] intFields, final String[] stringFields) {
         throw new UnsupportedOperationException();
     }
 
     public RawFTGSIterator getFTGSIteratorSplit(final String[] intFields, final String[] stringFields, final int splitIndex, final int numSplits) {
-        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.GET_FTGS_SPLIT)
+        return sendGetFTGSIteratorSplit(newFTGSSplitRequest(intFields, stringFields, splitIndex, numSplits).build());
+    }
+
+    /**
+     * Like {@link #getFTGSIteratorSplit} but over a pooled connection, returning the raw FTGS stream. The stream must
+     * be closed, which returns the connection to the pool if it was read to the end.
+     */
+    InputStream getFTGSSplitStream(final String[] intFields, final String[] stringFields, final int splitIndex, final int numSplits, final PeerConnectionPool peers) throws IOException {
+        return sendPooledFTGSSplitRequest(newFTGSSplitRequest(intFields, stringFields, splitIndex, numSplits), peers);
+    }
+
+    private ImhotepRequest.Builder newFTGSSplitRequest(final String[] intFields, final String[] stringFields, final int splitIndex, final int numSplits) {
+        return getBuilderForType(ImhotepRequest.RequestType.GET_FTGS_SPLIT)
                 .setSessionId(sessionId)
                 .addAllIntFields(Arrays.asList(intFields))
                 .addAllStringFields(Arrays.asList(stringFields))
                 .setSplitIndex(splitIndex)
-                .setNumSplits(numSplits)
-                .build();
-
-        return sendGetFTGSIteratorSplit(request);
+                .setNumSplits(numSplits);
     }
 
     @Override
@@ -312,12 +392,20 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
 
     @Override
     public RawFTGSIterator getSubsetFTGSIteratorSplit(Map<String, long[]> intFields, Map<String, String[]> stringFields, int splitIndex, int numSplits) {
+        return sendGetFTGSIteratorSplit(newSubsetFTGSSplitRequest(intFields, stringFields, splitIndex, numSplits).build());
+    }
+
+    InputStream getSubsetFTGSSplitStream(Map<String, long[]> intFields, Map<String, String[]> stringFields, int splitIndex, int numSplits, PeerConnectionPool peers) throws IOException {
+        return sendPooledFTGSSplitRequest(newSubsetFTGSSplitRequest(intFields, stringFields, splitIndex, numSplits), peers);
+    }
+
+    private ImhotepRequest.Builder newSubsetFTGSSplitRequest(Map<String, long[]> intFields, Map<String, String[]> stringFields, int splitIndex, int numSplits) {
         final ImhotepRequest.Builder requestBuilder = getBuilderForType(ImhotepRequest.RequestType.GET_SUBSET_FTGS_SPLIT)
                 .setSessionId(sessionId)
                 .setSplitIndex(splitIndex)
                 .setNumSplits(numSplits);
         addSubsetFieldsAndTermsToBuilder(intFields, stringFields, requestBuilder);
-        return sendGetFTGSIteratorSplit(requestBuilder.build());
+        return requestBuilder;
     }
 
     private RawFTGSIterator sendGetFTGSIteratorSplit(ImhotepRequest request) {
@@ -337,6 +425,41 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
         }
     }
 
+    private InputStream sendPooledFTGSSplitRequest(ImhotepRequest.Builder requestBuilder, PeerConnectionPool peers) throws IOException {
+        final ImhotepRequest request = requestBuilder.setKeepAlive(true).setCompressResponse(true).build();
+        PeerConnectionPool.Connection connection = peers.borrow(host, port, socketTimeout);
+        while (true) {
+            InputStream in = null;
+            final ImhotepResponse response;
+            try {
+                ImhotepProtobufShipping.sendProtobuf(request, connection.getOutputStream());
+                in = peers.openResponse(connection);
+                response = ImhotepProtobufShipping.readResponse(in);
+            } catch (IOException e) {
+                if (in != null) {
+                    Closeables2.closeQuietly(in, log);
+                } else {
+                    connection.close();
+                }
+                if (e instanceof SocketTimeoutException) {
+                    throw buildExceptionAfterSocketTimeout((SocketTimeoutException)e, host, port);
+                }
+                if (connection.isReused()) {
+                    // the daemon may have dropped the idle connection in the meantime
+                    log.debug("pooled connection to " + host + ":" + port + " failed, reconnecting", e);
+                    connection = peers.connect(host, port, socketTimeout);
+                    continue;
+                }
+                throw e;
+            }
+            if (response.getResponseCode() == ImhotepResponse.ResponseCode.OTHER_ERROR) {
+                Closeables2.closeQuietly(in, log);
+                throw buildExceptionFromResponse(response, host, port);
+            }
+            return in;
+        }
+    }
+
     public RawFTGSIterator mergeFTGSSplit(final String[] intFields, final String[] stringFields, final String sessionId, final InetSocketAddress[] nodes, final int splitIndex) {
         final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.MERGE_FTGS_SPLIT)
                 .setSessionId(sessionId)
@@ -608,6 +731,25 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
         }
     }
 
+    @Override
+    public int metricRegroupND(int[] stats, long[] mins, long[] maxes, long[] intervalSizes, boolean noGutters) throws ImhotepOutOfMemoryException {
+        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.METRIC_REGROUP_ND)
+                .setSessionId(sessionId)
+                .addAllNdStats(Ints.asList(stats))
+                .addAllNdMins(Longs.asList(mins))
+                .addAllNdMaxes(Longs.asList(maxes))
+                .addAllNdIntervalSizes(Longs.asList(intervalSizes))
+                .setNoGutters(noGutters)
+                .build();
+
+        try {
+            final ImhotepResponse response = sendRequestWithMemoryException(request, host, port, socketTimeout);
+            return response.getNumGroups();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public int metricFilter(int stat, long min, long max, boolean negate) throws ImhotepOutOfMemoryException {
         final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.METRIC_FILTER)
                 .setSessionId(sessionId)
@@ -641,6 +783,40 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
         }
     }
 
+    @Override
+    public GroupHyperLogLog approximateDistinctTerms(String field, boolean isIntField, int precision) throws ImhotepOutOfMemoryException {
+        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.APPROXIMATE_DISTINCT_TERMS)
+                .setSessionId(sessionId)
+                .setField(field)
+                .setIsIntField(isIntField)
+                .setPrecision(precision)
+                .build();
+
+        try {
+            final ImhotepResponse response = sendRequestWithMemoryException(request, host, port, socketTimeout);
+            final byte[] registers = response.getDistinctTermSketches().toByteArray();
+            return new GroupHyperLogLog(precision, registers.length >> precision, registers);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public GroupQuantileSketch getGroupQuantiles(int stat, int compression) throws ImhotepOutOfMemoryException {
+        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.GET_GROUP_QUANTILES)
+                .setSessionId(sessionId)
+                .setStat(stat)
+                .setCompression(compression)
+                .build();
+
+        try {
+            final ImhotepResponse response = sendRequestWithMemoryException(request, host, port, socketTimeout);
+            return GroupQuantileSketch.fromBytes(response.getGroupQuantileSketches().toByteArray());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public int pushStat(String statName) throws ImhotepOutOfMemoryException {
         final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.PUSH_STAT)
@@ -687,6 +863,44 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
         return numStats;
     }
 
+    @Override
+    public SessionProgram.Results executeProgram(SessionProgram program) throws ImhotepOutOfMemoryException {
+        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.EXECUTE_PROGRAM)
+                .setSessionId(sessionId)
+                .addAllProgram(program.toProto())
+                .build();
+
+        boolean success = false;
+        try {
+            final ImhotepResponse response = sendRequestWithMemoryException(request, host, port, socketTimeout);
+            final SessionProgram.Results results = SessionProgram.Results.fromProto(program, response.getProgramResultsList());
+            numStats = results.getFinalNumStats(numStats);
+            success = true;
+            return results;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (!success) {
+                // the steps before the failing one may have pushed or popped stats already
+                refreshNumStats();
+            }
+        }
+    }
+
+    private void refreshNumStats() {
+        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.GET_NUM_STATS)
+                .setSessionId(sessionId)
+                .build();
+        try {
+            final ImhotepResponse response = sendRequest(request, host, port, socketTimeout);
+            numStats = response.getNumStats();
+        } catch (IOException e) {
+            log.warn("unable to read the number of stats of session " + sessionId, e);
+        } catch (RuntimeException e) {
+            log.warn("unable to read the number of stats of session " + sessionId, e);
+        }
+    }
+
     @Override
     public int getNumGroups() {
         final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.GET_NUM_GROUPS)
@@ -807,6 +1021,56 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
         }
     }
 
+    /**
+     * Checkpoints the groups, stats and dynamic metrics of this session on the daemon, which keeps the checkpoint
+     * until it is released or expires.
+     */
+    public void checkpoint(String checkpointId) throws ImhotepOutOfMemoryException {
+        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.CHECKPOINT_SESSION)
+                .setSessionId(sessionId)
+                .setCheckpointId(checkpointId)
+                .build();
+
+        try {
+            sendRequestWithMemoryException(request, host, port, socketTimeout);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Opens a new session on the same daemon and shards, starting from a checkpoint taken by {@link #checkpoint}.
+     */
+    public ImhotepRemoteSession fork(String checkpointId, String newSessionId) throws ImhotepOutOfMemoryException {
+        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.FORK_SESSION)
+                .setCheckpointId(checkpointId)
+                .setSessionId(newSessionId)
+                .setUsername(getUsername())
+                .setClientVersion(CURRENT_CLIENT_VERSION)
+                .build();
+
+        try {
+            final ImhotepResponse response = sendRequestWithMemoryException(request, host, port, socketTimeout);
+            final ImhotepRemoteSession session = new ImhotepRemoteSession(host, port, newSessionId, tempFileSizeBytesLeft, socketTimeout);
+            session.setNumStats(response.getNumStats());
+            return session;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void releaseCheckpoint(String checkpointId) {
+        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.RELEASE_CHECKPOINT)
+                .setCheckpointId(checkpointId)
+                .build();
+
+        try {
+            sendRequest(request, host, port, socketTimeout);
+        } catch (IOException e) {
+            log.error("error releasing checkpoint", e);
+        }
+    }
+
     public String getHost() {
         return host;
     }
@@ -943,7 +1207,7 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
         return newSocket(host, port, DEFAULT_SOCKET_TIMEOUT);
     }
 
-    private static Socket newSocket(String host, int port, int timeout) throws IOException {
+    static Socket newSocket(String host, int port, int timeout) throws IOException {
         final Socket socket = new Socket(host, port);
         socket.setReceiveBufferSize(65536);
         socket.setSoTimeout(timeout >= 0 ? timeout : DEFAULT_SOCKET_TIMEOUT);
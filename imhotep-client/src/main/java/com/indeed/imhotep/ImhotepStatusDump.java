@@ -14,10 +14,12 @@
  package com.indeed.imhotep;
 
 import com.indeed.imhotep.protobuf.MetricDumpMessage;
+import com.indeed.imhotep.protobuf.PrewarmDumpMessage;
 import com.indeed.imhotep.protobuf.SessionDumpMessage;
 import com.indeed.imhotep.protobuf.ShardDumpMessage;
 import com.indeed.imhotep.protobuf.StatusDumpMessage;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -29,12 +31,18 @@ public class ImhotepStatusDump {
     public final long totalMemory;
     public final List<SessionDump> openSessions;
     public final List<ShardDump> shards;
+    public final @Nullable PrewarmDump prewarm;
 
     public ImhotepStatusDump(long usedMemory, long totalMemory, List<SessionDump> openSessions, List<ShardDump> shards) {
+        this(usedMemory, totalMemory, openSessions, shards, null);
+    }
+
+    public ImhotepStatusDump(long usedMemory, long totalMemory, List<SessionDump> openSessions, List<ShardDump> shards, @Nullable PrewarmDump prewarm) {
         this.usedMemory = usedMemory;
         this.totalMemory = totalMemory;
         this.openSessions = openSessions;
         this.shards = shards;
+        this.prewarm = prewarm;
     }
 
     public long getUsedMemory() {
@@ -53,6 +61,10 @@ public class ImhotepStatusDump {
         return shards;
     }
 
+    public @Nullable PrewarmDump getPrewarm() {
+        return prewarm;
+    }
+
     public StatusDumpMessage toProto() {
         final StatusDumpMessage.Builder builder = StatusDumpMessage.newBuilder()
                 .setUsedMemory(usedMemory)
@@ -66,6 +78,10 @@ public class ImhotepStatusDump {
             builder.addLoadedShard(shardDump.toProto());
         }
 
+        if (prewarm != null) {
+            builder.setPrewarm(prewarm.toProto());
+        }
+
         return builder.build();
     }
 
@@ -80,7 +96,8 @@ public class ImhotepStatusDump {
         for (final ShardDumpMessage shardDump : protoDump.getLoadedShardList()) {
             shards.add(ShardDump.fromProto(shardDump));
         }
-        return new ImhotepStatusDump(usedMemory, totalMemory, openSessions, shards);
+        final PrewarmDump prewarm = protoDump.hasPrewarm() ? PrewarmDump.fromProto(protoDump.getPrewarm()) : null;
+        return new ImhotepStatusDump(usedMemory, totalMemory, openSessions, shards, prewarm);
     }
 
     public static class SessionDump {
@@ -237,4 +254,48 @@ public class ImhotepStatusDump {
             return new ShardDump(protoDump.getShardId(), protoDump.getDataset(), protoDump.getNumDocs(), loadedMetrics);
         }
     }
+
+    public static class PrewarmDump {
+        public final int pendingShards;
+        public final int warmedShards;
+        public final long warmedMetrics;
+        public final long warmedBytes;
+
+        public PrewarmDump(int pendingShards, int warmedShards, long warmedMetrics, long warmedBytes) {
+            this.pendingShards = pendingShards;
+            this.warmedShards = warmedShards;
+            this.warmedMetrics = warmedMetrics;
+            this.warmedBytes = warmedBytes;
+        }
+
+        public int getPendingShards() {
+            return pendingShards;
+        }
+
+        public int getWarmedShards() {
+            return warmedShards;
+        }
+
+        public long getWarmedMetrics() {
+            return warmedMetrics;
+        }
+
+        public long getWarmedBytes() {
+            return warmedBytes;
+        }
+
+        public PrewarmDumpMessage toProto() {
+            return PrewarmDumpMessage.newBuilder()
+                    .setPendingShards(pendingShards)
+                    .setWarmedShards(warmedShards)
+                    .setWarmedMetrics(warmedMetrics)
+                    .setWarmedBytes(warmedBytes)
+                    .build();
+        }
+
+        public static PrewarmDump fromProto(PrewarmDumpMessage protoDump) {
+            return new PrewarmDump(protoDump.getPendingShards(), protoDump.getWarmedShards(),
+                    protoDump.getWarmedMetrics(), protoDump.getWarmedBytes());
+        }
+    }
 }
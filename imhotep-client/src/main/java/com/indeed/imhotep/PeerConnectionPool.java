@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+import com.indeed.imhotep.io.Streams;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Daemon connections kept open between split requests, so that a shuffle between the same daemons doesn't pay for a
+ * new connection per split. Responses on these connections are deflated, and a connection only goes back to the pool
+ * once its response has been read to the end. Connections idle for too long are closed whenever one is borrowed or
+ * released, whatever their peer.
+ */
+final class PeerConnectionPool {
+    private static final Logger log = Logger.getLogger(PeerConnectionPool.class);
+
+    /** well under the daemon's read timeout, after which it drops the connection */
+    private static final long MAX_IDLE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final int MAX_IDLE_PER_PEER = 8;
+
+    private final long maxIdleMillis;
+    private final Map<String, ArrayDeque<Connection>> idleConnections = Maps.newHashMap();
+
+    PeerConnectionPool() {
+        this(MAX_IDLE_MILLIS);
+    }
+
+    @VisibleForTesting
+    PeerConnectionPool(long maxIdleMillis) {
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    /**
+     * Returns an idle connection to host:port if there is one, or a new one otherwise.
+     */
+    Connection borrow(String host, int port, int timeout) throws IOException {
+        final String key = host + ":" + port;
+        synchronized (this) {
+            closeExpired(System.currentTimeMillis());
+            final ArrayDeque<Connection> idle = idleConnections.get(key);
+            if (idle != null) {
+                final Connection connection = idle.pollLast();
+                if (idle.isEmpty()) {
+                    idleConnections.remove(key);
+                }
+                connection.socket.setSoTimeout(timeout);
+                connection.reused = true;
+                return connection;
+            }
+        }
+        return connect(host, port, timeout);
+    }
+
+    Connection connect(String host, int port, int timeout) throws IOException {
+        return new Connection(host + ":" + port, ImhotepRemoteSession.newSocket(host, port, timeout));
+    }
+
+    /**
+     * Wraps the deflated response on connection. Closing the returned stream hands the connection back to the pool if
+     * the whole response was read, and closes it otherwise.
+     */
+    InputStream openResponse(final Connection connection) {
+        final Inflater inflater = new Inflater();
+        return new InflaterInputStream(connection.is, inflater, 65536) {
+            private boolean closed = false;
+
+            @Override
+            public void close() {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                final boolean complete = inflater.finished() && inflater.getRemaining() == 0;
+                inflater.end();
+                if (complete) {
+                    release(connection);
+                } else {
+                    connection.close();
+                }
+            }
+        };
+    }
+
+    private synchronized void release(Connection connection) {
+        final long now = System.currentTimeMillis();
+        closeExpired(now);
+        ArrayDeque<Connection> idle = idleConnections.get(connection.key);
+        if (idle == null) {
+            idle = new ArrayDeque<Connection>();
+            idleConnections.put(connection.key, idle);
+        }
+        if (idle.size() >= MAX_IDLE_PER_PEER) {
+            connection.close();
+            return;
+        }
+        connection.idleSince = now;
+        idle.addLast(connection);
+    }
+
+    /**
+     * closes the connections of every peer that have been idle for too long, the oldest of a peer come first
+     */
+    private void closeExpired(long now) {
+        final Iterator<ArrayDeque<Connection>> it = idleConnections.values().iterator();
+        while (it.hasNext()) {
+            final ArrayDeque<Connection> idle = it.next();
+            while (!idle.isEmpty() && now - idle.peekFirst().idleSince >= maxIdleMillis) {
+                idle.pollFirst().close();
+            }
+            if (idle.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    @VisibleForTesting
+    synchronized int getNumIdleConnections() {
+        int ret = 0;
+        for (final ArrayDeque<Connection> idle : idleConnections.values()) {
+            ret += idle.size();
+        }
+        return ret;
+    }
+
+    static final class Connection {
+        private final String key;
+        private final Socket socket;
+        private final InputStream is;
+        private final OutputStream os;
+        private long idleSince;
+        private boolean reused = false;
+
+        private Connection(String key, Socket socket) throws IOException {
+            this.key = key;
+            this.socket = socket;
+            is = Streams.newBufferedInputStream(socket.getInputStream());
+            os = Streams.newBufferedOutputStream(socket.getOutputStream());
+        }
+
+        OutputStream getOutputStream() {
+            return os;
+        }
+
+        /**
+         * true if the connection served an earlier request, in which case the daemon may have dropped it since
+         */
+        boolean isReused() {
+            return reused;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.warn("error closing connection to " + key, e);
+            }
+        }
+    }
+}
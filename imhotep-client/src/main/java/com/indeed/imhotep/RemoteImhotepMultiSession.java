@@ -16,6 +16,7 @@
 import com.google.common.base.Throwables;
 import com.indeed.util.core.Pair;
 import com.indeed.imhotep.api.FTGSIterator;
+import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.api.ImhotepSession;
 import com.indeed.imhotep.api.RawFTGSIterator;
 import com.indeed.util.core.Throwables2;
@@ -25,6 +26,7 @@ import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -132,6 +134,77 @@ public class RemoteImhotepMultiSession extends AbstractImhotepMultiSession {
         return mergers;
     }
 
+    /**
+     * Checkpoints every remote session under a new id, from which sessions starting at the current groups, stats and
+     * dynamic metrics can be forked with {@link #fork} until the checkpoint is released or expires on the daemons.
+     *
+     * @return the id of the checkpoint
+     */
+    public String checkpoint() throws ImhotepOutOfMemoryException {
+        final String checkpointId = UUID.randomUUID().toString();
+        executeMemoryException(new Object[sessions.length], new ThrowingFunction<ImhotepSession, Object>() {
+            @Override
+            public Object apply(ImhotepSession session) throws Exception {
+                ((ImhotepRemoteSession) session).checkpoint(checkpointId);
+                return null;
+            }
+        });
+        return checkpointId;
+    }
+
+    /**
+     * @return a new session on the same shards, starting from the given checkpoint of this session
+     */
+    public RemoteImhotepMultiSession fork(final String checkpointId) throws ImhotepOutOfMemoryException {
+        final String newSessionId = UUID.randomUUID().toString();
+        // not through execute(), which closes this session if any daemon fails
+        final List<Future<ImhotepRemoteSession>> futures = new ArrayList<Future<ImhotepRemoteSession>>(sessions.length);
+        for (final ImhotepSession session : sessions) {
+            futures.add(executor.submit(new Callable<ImhotepRemoteSession>() {
+                @Override
+                public ImhotepRemoteSession call() throws Exception {
+                    return ((ImhotepRemoteSession) session).fork(checkpointId, newSessionId);
+                }
+            }));
+        }
+        final ImhotepRemoteSession[] forks = new ImhotepRemoteSession[sessions.length];
+        Throwable t = null;
+        for (int i = 0; i < futures.size(); ++i) {
+            try {
+                forks[i] = futures.get(i).get();
+            } catch (ExecutionException e) {
+                t = e.getCause();
+            } catch (Throwable t2) {
+                t = t2;
+            }
+        }
+        if (t != null) {
+            for (final ImhotepRemoteSession fork : forks) {
+                if (fork != null) {
+                    fork.close();
+                }
+            }
+            if (t instanceof ImhotepOutOfMemoryException) {
+                throw new ImhotepOutOfMemoryException(t);
+            }
+            throw Throwables.propagate(t);
+        }
+        final RemoteImhotepMultiSession ret = new RemoteImhotepMultiSession(forks, newSessionId, nodes, localTempFileSizeLimit,
+                localTempFileSizeLimit > 0 ? new AtomicLong(localTempFileSizeLimit) : null);
+        ret.getNumStats();
+        return ret;
+    }
+
+    public void releaseCheckpoint(final String checkpointId) {
+        executeRuntimeException(new Object[sessions.length], new ThrowingFunction<ImhotepSession, Object>() {
+            @Override
+            public Object apply(ImhotepSession session) throws Exception {
+                ((ImhotepRemoteSession) session).releaseCheckpoint(checkpointId);
+                return null;
+            }
+        });
+    }
+
     @Override
     protected void postClose() {
         if (shutDownExecutorOnClose) {
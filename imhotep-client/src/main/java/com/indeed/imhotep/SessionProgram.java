@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
+import com.indeed.imhotep.api.ImhotepSession;
+import com.indeed.imhotep.marshal.ImhotepClientMarshaller;
+import com.indeed.imhotep.marshal.ImhotepDaemonMarshaller;
+import com.indeed.imhotep.protobuf.ImhotepRequest;
+import com.indeed.imhotep.protobuf.ImhotepResponse;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An ordered list of session operations that is executed back to back with {@link ImhotepSession#executeProgram},
+ * so that a remote session needs one round trip for the whole list instead of one per operation. Execution stops at
+ * the first operation that fails, and the results of the operations that have one come back together.
+ */
+public final class SessionProgram {
+    enum ResultType {
+        NONE,
+        NUM_STATS,
+        NUM_GROUPS,
+        GROUP_STATS
+    }
+
+    private abstract static class Operation {
+        final ResultType resultType;
+        final ImhotepRequest request;
+
+        Operation(ResultType resultType, ImhotepRequest.Builder request) {
+            this.resultType = resultType;
+            this.request = request.build();
+        }
+
+        abstract Object apply(ImhotepSession session) throws ImhotepOutOfMemoryException;
+    }
+
+    private static final class GroupStatsOperation extends Operation {
+        final int stat;
+        final GroupStatAggregation aggregation;
+
+        GroupStatsOperation(int stat, GroupStatAggregation aggregation) {
+            super(ResultType.GROUP_STATS, newRequest(ImhotepRequest.RequestType.GET_GROUP_STATS)
+                    .setStat(stat)
+                    .setAggregation(ImhotepClientMarshaller.marshal(aggregation)));
+            this.stat = stat;
+            this.aggregation = aggregation;
+        }
+
+        @Override
+        Object apply(ImhotepSession session) {
+            return session.getGroupStats(stat, aggregation);
+        }
+    }
+
+    private final List<Operation> operations = Lists.newArrayList();
+
+    private static ImhotepRequest.Builder newRequest(ImhotepRequest.RequestType requestType) {
+        return ImhotepRequest.newBuilder().setRequestType(requestType);
+    }
+
+    private SessionProgram add(Operation operation) {
+        operations.add(operation);
+        return this;
+    }
+
+    public SessionProgram pushStat(final String statName) {
+        return add(new Operation(ResultType.NUM_STATS, newRequest(ImhotepRequest.RequestType.PUSH_STAT).setMetric(statName)) {
+            @Override
+            Object apply(ImhotepSession session) throws ImhotepOutOfMemoryException {
+                return session.pushStat(statName);
+            }
+        });
+    }
+
+    public SessionProgram popStat() {
+        return add(new Operation(ResultType.NUM_STATS, newRequest(ImhotepRequest.RequestType.POP_STAT)) {
+            @Override
+            Object apply(ImhotepSession session) {
+                return session.popStat();
+            }
+        });
+    }
+
+    public SessionProgram regroup(final GroupRemapRule[] rules) {
+        return add(new Operation(ResultType.NUM_GROUPS, newRequest(ImhotepRequest.RequestType.REGROUP)
+                .addAllRemapRules(ImhotepClientMarshaller.marshal(rules))) {
+            @Override
+            Object apply(ImhotepSession session) throws ImhotepOutOfMemoryException {
+                return session.regroup(rules);
+            }
+        });
+    }
+
+    public SessionProgram regroup(final GroupMultiRemapRule[] rules, final boolean errorOnCollisions) {
+        return add(new Operation(ResultType.NUM_GROUPS, newRequest(ImhotepRequest.RequestType.MULTISPLIT_REGROUP)
+                .addAllMultisplitRemapRule(ImhotepClientMarshaller.marshal(rules))
+                .setErrorOnCollisions(errorOnCollisions)) {
+            @Override
+            Object apply(ImhotepSession session) throws ImhotepOutOfMemoryException {
+                return session.regroup(rules, errorOnCollisions);
+            }
+        });
+    }
+
+    public SessionProgram regroup(final QueryRemapRule rule) {
+        return add(new Operation(ResultType.NUM_GROUPS, newRequest(ImhotepRequest.RequestType.QUERY_REGROUP)
+                .setQueryRemapRule(ImhotepClientMarshaller.marshal(rule))) {
+            @Override
+            Object apply(ImhotepSession session) throws ImhotepOutOfMemoryException {
+                return session.regroup(rule);
+            }
+        });
+    }
+
+    public SessionProgram intOrRegroup(final String field, final long[] terms, final int targetGroup, final int negativeGroup, final int positiveGroup) {
+        return add(new Operation(ResultType.NONE, newRequest(ImhotepRequest.RequestType.INT_OR_REGROUP)
+                .setField(field)
+                .addAllIntTerm(Longs.asList(terms))
+                .setTargetGroup(targetGroup)
+                .setNegativeGroup(negativeGroup)
+                .setPositiveGroup(positiveGroup)) {
+            @Override
+            Object apply(ImhotepSession session) throws ImhotepOutOfMemoryException {
+                session.intOrRegroup(field, terms, targetGroup, negativeGroup, positiveGroup);
+                return null;
+            }
+        });
+    }
+
+    public SessionProgram stringOrRegroup(final String field, final String[] terms, final int targetGroup, final int negativeGroup, final int positiveGroup) {
+        return add(new Operation(ResultType.NONE, newRequest(ImhotepRequest.RequestType.STRING_OR_REGROUP)
+                .setField(field)
+                .addAllStringTerm(Arrays.asList(terms))
+                .setTargetGroup(targetGroup)
+                .setNegativeGroup(negativeGroup)
+                .setPositiveGroup(positiveGroup)) {
+            @Override
+            Object apply(ImhotepSession session) throws ImhotepOutOfMemoryException {
+                session.stringOrRegroup(field, terms, targetGroup, negativeGroup, positiveGroup);
+                return null;
+            }
+        });
+    }
+
+    public SessionProgram metricRegroup(final int stat, final long min, final long max, final long intervalSize, final boolean noGutters) {
+        return add(new Operation(ResultType.NUM_GROUPS, newRequest(ImhotepRequest.RequestType.METRIC_REGROUP)
+                .setXStat(stat)
+                .setXMin(min)
+                .setXMax(max)
+                .setXIntervalSize(intervalSize)
+                .setNoGutters(noGutters)) {
+            @Override
+            Object apply(ImhotepSession session) throws ImhotepOutOfMemoryException {
+                return session.metricRegroup(stat, min, max, intervalSize, noGutters);
+            }
+        });
+    }
+
+    public SessionProgram metricRegroupND(final int[] stats, final long[] mins, final long[] maxes, final long[] intervalSizes, final boolean noGutters) {
+        return add(new Operation(ResultType.NUM_GROUPS, newRequest(ImhotepRequest.RequestType.METRIC_REGROUP_ND)
+                .addAllNdStats(Ints.asList(stats))
+                .addAllNdMins(Longs.asList(mins))
+                .addAllNdMaxes(Longs.asList(maxes))
+                .addAllNdIntervalSizes(Longs.asList(intervalSizes))
+                .setNoGutters(noGutters)) {
+            @Override
+            Object apply(ImhotepSession session) throws ImhotepOutOfMemoryException {
+                return session.metricRegroupND(stats, mins, maxes, intervalSizes, noGutters);
+            }
+        });
+    }
+
+    public SessionProgram metricFilter(final int stat, final long min, final long max, final boolean negate) {
+        return add(new Operation(ResultType.NUM_GROUPS, newRequest(ImhotepRequest.RequestType.METRIC_FILTER)
+                .setXStat(stat)
+                .setXMin(min)
+                .setXMax(max)
+                .setNegate(negate)) {
+            @Override
+            Object apply(ImhotepSession session) throws ImhotepOutOfMemoryException {
+                return session.metricFilter(stat, min, max, negate);
+            }
+        });
+    }
+
+    public SessionProgram resetGroups() {
+        return add(new Operation(ResultType.NONE, newRequest(ImhotepRequest.RequestType.RESET_GROUPS)) {
+            @Override
+            Object apply(ImhotepSession session) throws ImhotepOutOfMemoryException {
+                session.resetGroups();
+                return null;
+            }
+        });
+    }
+
+    public SessionProgram getNumGroups() {
+        return add(new Operation(ResultType.NUM_GROUPS, newRequest(ImhotepRequest.RequestType.GET_NUM_GROUPS)) {
+            @Override
+            Object apply(ImhotepSession session) {
+                return session.getNumGroups();
+            }
+        });
+    }
+
+    public SessionProgram getGroupStats(int stat) {
+        return getGroupStats(stat, GroupStatAggregation.SUM);
+    }
+
+    public SessionProgram getGroupStats(int stat, GroupStatAggregation aggregation) {
+        return add(new GroupStatsOperation(stat, aggregation));
+    }
+
+    public int size() {
+        return operations.size();
+    }
+
+    ResultType getResultType(int step) {
+        return operations.get(step).resultType;
+    }
+
+    GroupStatAggregation getAggregation(int step) {
+        return ((GroupStatsOperation) operations.get(step)).aggregation;
+    }
+
+    /**
+     * runs the operations one after the other on the session, an exception stops the program
+     */
+    Results execute(ImhotepSession session) throws ImhotepOutOfMemoryException {
+        final Object[] results = new Object[operations.size()];
+        for (int step = 0; step < results.length; step++) {
+            results[step] = operations.get(step).apply(session);
+        }
+        return new Results(this, results);
+    }
+
+    /**
+     * @return one request per operation, without a session id
+     */
+    public List<ImhotepRequest> toProto() {
+        final List<ImhotepRequest> ret = Lists.newArrayListWithCapacity(operations.size());
+        for (final Operation operation : operations) {
+            ret.add(operation.request);
+        }
+        return ret;
+    }
+
+    /**
+     * @return the requests of the operations that change the session, in order, which is all later operations depend
+     * on: two sessions of the same shards that went through the same state changes return the same results
+     */
+    public List<ImhotepRequest> getStateChanges() {
+        final List<ImhotepRequest> ret = Lists.newArrayList();
+        for (final Operation operation : operations) {
+            switch (operation.request.getRequestType()) {
+                case GET_NUM_GROUPS:
+                case GET_GROUP_STATS:
+                    break;
+                default:
+                    ret.add(operation.request);
+            }
+        }
+        return ret;
+    }
+
+    public static SessionProgram fromProto(List<ImhotepRequest> protoProgram) {
+        final SessionProgram ret = new SessionProgram();
+        for (final ImhotepRequest request : protoProgram) {
+            switch (request.getRequestType()) {
+                case PUSH_STAT:
+                    ret.pushStat(request.getMetric());
+                    break;
+                case POP_STAT:
+                    ret.popStat();
+                    break;
+                case REGROUP:
+                    ret.regroup(ImhotepDaemonMarshaller.marshalGroupRemapMessageList(request.getRemapRulesList()));
+                    break;
+                case MULTISPLIT_REGROUP:
+                    ret.regroup(ImhotepDaemonMarshaller.marshalGroupMultiRemapMessageList(request.getMultisplitRemapRuleList()),
+                            request.getErrorOnCollisions());
+                    break;
+                case QUERY_REGROUP:
+                    ret.regroup(ImhotepDaemonMarshaller.marshal(request.getQueryRemapRule()));
+                    break;
+                case INT_OR_REGROUP:
+                    ret.intOrRegroup(request.getField(), Longs.toArray(request.getIntTermList()),
+                            request.getTargetGroup(), request.getNegativeGroup(), request.getPositiveGroup());
+                    break;
+                case STRING_OR_REGROUP:
+                    ret.stringOrRegroup(request.getField(), request.getStringTermList().toArray(new String[request.getStringTermCount()]),
+                            request.getTargetGroup(), request.getNegativeGroup(), request.getPositiveGroup());
+                    break;
+                case METRIC_REGROUP:
+                    ret.metricRegroup(request.getXStat(), request.getXMin(), request.getXMax(), request.getXIntervalSize(), request.getNoGutters());
+                    break;
+                case METRIC_REGROUP_ND:
+                    ret.metricRegroupND(Ints.toArray(request.getNdStatsList()), Longs.toArray(request.getNdMinsList()),
+                            Longs.toArray(request.getNdMaxesList()), Longs.toArray(request.getNdIntervalSizesList()),
+                            request.getNoGutters());
+                    break;
+                case METRIC_FILTER:
+                    ret.metricFilter(request.getXStat(), request.getXMin(), request.getXMax(), request.getNegate());
+                    break;
+                case RESET_GROUPS:
+                    ret.resetGroups();
+                    break;
+                case GET_NUM_GROUPS:
+                    ret.getNumGroups();
+                    break;
+                case GET_GROUP_STATS:
+                    ret.getGroupStats(request.getStat(), ImhotepDaemonMarshaller.marshal(request.getAggregation()));
+                    break;
+                default:
+                    throw new IllegalArgumentException("request type " + request.getRequestType() + " cannot be part of a program");
+            }
+        }
+        return ret;
+    }
+
+    public static final class Results {
+        private final SessionProgram program;
+        private final Object[] results;
+
+        Results(SessionProgram program, Object[] results) {
+            this.program = program;
+            this.results = results;
+        }
+
+        private Object get(int step, ResultType resultType) {
+            if (program.getResultType(step) != resultType) {
+                throw new IllegalArgumentException("step " + step + " returns " + program.getResultType(step) + ", not " + resultType);
+            }
+            return results[step];
+        }
+
+        public int getNumStats(int step) {
+            return (Integer) get(step, ResultType.NUM_STATS);
+        }
+
+        public int getNumGroups(int step) {
+            return (Integer) get(step, ResultType.NUM_GROUPS);
+        }
+
+        public long[] getGroupStats(int step) {
+            return (long[]) get(step, ResultType.GROUP_STATS);
+        }
+
+        /**
+         * @return the number of stats after the last step that pushed or popped one, or numStatsBefore if none did
+         */
+        public int getFinalNumStats(int numStatsBefore) {
+            for (int step = results.length - 1; step >= 0; step--) {
+                if (program.getResultType(step) == ResultType.NUM_STATS) {
+                    return (Integer) results[step];
+                }
+            }
+            return numStatsBefore;
+        }
+
+        /**
+         * @return a rough estimate of the memory the results occupy
+         */
+        public long memoryUsed() {
+            long ret = 16L * results.length;
+            for (final Object result : results) {
+                if (result instanceof long[]) {
+                    ret += 8L * ((long[]) result).length;
+                }
+            }
+            return ret;
+        }
+
+        public List<ImhotepResponse> toProto() {
+            final List<ImhotepResponse> ret = Lists.newArrayListWithCapacity(results.length);
+            for (int step = 0; step < results.length; step++) {
+                final ImhotepResponse.Builder builder = ImhotepResponse.newBuilder();
+                switch (program.getResultType(step)) {
+                    case NUM_STATS:
+                        builder.setNumStats((Integer) results[step]);
+                        break;
+                    case NUM_GROUPS:
+                        builder.setNumGroups((Integer) results[step]);
+                        break;
+                    case GROUP_STATS:
+                        builder.addAllGroupStat(Longs.asList((long[]) results[step]));
+                        break;
+                    default:
+                        break;
+                }
+                ret.add(builder.build());
+            }
+            return ret;
+        }
+
+        public static Results fromProto(SessionProgram program, List<ImhotepResponse> protoResults) {
+            if (protoResults.size() != program.size()) {
+                throw new IllegalArgumentException("expected " + program.size() + " results, got " + protoResults.size());
+            }
+            final Object[] results = new Object[protoResults.size()];
+            for (int step = 0; step < results.length; step++) {
+                final ImhotepResponse response = protoResults.get(step);
+                switch (program.getResultType(step)) {
+                    case NUM_STATS:
+                        results[step] = response.getNumStats();
+                        break;
+                    case NUM_GROUPS:
+                        results[step] = response.getNumGroups();
+                        break;
+                    case GROUP_STATS:
+                        results[step] = Longs.toArray(response.getGroupStatList());
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return new Results(program, results);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+/**
+ * A tournament tree over the indexes of k sources that keeps the source with the smallest current value at the top in
+ * O(log k) comparisons per change rather than the O(k) of scanning every source. Sources that are not live lose to
+ * every live source. Unlike a loser tree any source can be updated, not only the current winner, so several sources
+ * can be taken out of the tournament while their current value is consumed and put back afterwards.
+ */
+abstract class TournamentTree {
+    private final int size;
+    /** winners[size + i] is source i, winners[n] is the winner between winners[2n] and winners[2n + 1] */
+    private final int[] winners;
+    private final boolean[] live;
+
+    TournamentTree(int size) {
+        this.size = size;
+        winners = new int[2 * Math.max(size, 1)];
+        live = new boolean[size];
+        for (int i = 0; i < size; ++i) {
+            winners[size + i] = i;
+        }
+    }
+
+    /**
+     * compares the current values of two live sources
+     */
+    protected abstract int compare(int a, int b);
+
+    /**
+     * rebuilds the whole tree after the liveness or values of many sources changed
+     */
+    final void init() {
+        for (int node = size - 1; node > 0; --node) {
+            winners[node] = winner(winners[2 * node], winners[2 * node + 1]);
+        }
+    }
+
+    final void setLive(int source, boolean isLive) {
+        live[source] = isLive;
+    }
+
+    /**
+     * @return the live source with the smallest value, or -1 if no source is live
+     */
+    final int top() {
+        if (size == 0) {
+            return -1;
+        }
+        final int top = winners[1];
+        return live[top] ? top : -1;
+    }
+
+    /**
+     * puts a source back into the tournament
+     */
+    final void add(int source) {
+        live[source] = true;
+        for (int node = (size + source) >>> 1; node > 0; node >>>= 1) {
+            final int previous = winners[node];
+            winners[node] = winner(winners[2 * node], winners[2 * node + 1]);
+            // no other source changed, so the matches above are decided as before
+            if (winners[node] == previous && previous != source) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * puts many sources back into the tournament at once, rebuilding the tree if that is cheaper than replaying each
+     */
+    final void addAll(int[] sources, int count) {
+        if (count * (32 - Integer.numberOfLeadingZeros(size)) > size) {
+            for (int i = 0; i < count; ++i) {
+                live[sources[i]] = true;
+            }
+            init();
+        } else {
+            for (int i = 0; i < count; ++i) {
+                add(sources[i]);
+            }
+        }
+    }
+
+    /**
+     * takes a source out of the tournament
+     */
+    final void remove(int source) {
+        live[source] = false;
+        update(source);
+    }
+
+    /**
+     * replays the matches of a source after its value changed
+     */
+    final void update(int source) {
+        for (int node = (size + source) >>> 1; node > 0; node >>>= 1) {
+            winners[node] = winner(winners[2 * node], winners[2 * node + 1]);
+        }
+    }
+
+    private int winner(int a, int b) {
+        if (!live[b]) {
+            return live[a] || a < b ? a : b;
+        }
+        if (!live[a]) {
+            return b;
+        }
+        final int c = compare(a, b);
+        return c < 0 || (c == 0 && a < b) ? a : b;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.api;
+
+import java.io.Closeable;
+
+/**
+ * Iterates over the documents in non-zero groups a block at a time, with the values of each requested field in a
+ * column of its own. The arrays of a block are only valid until the next call to {@link #nextBlock} and may be longer
+ * than the block.
+ */
+public interface DocBlockIterator extends Closeable {
+    /**
+     * @return false once there are no more documents, blocks are never empty
+     */
+    public boolean nextBlock();
+    public int getNumDocs();
+    public int[] getGroups();
+    public long[] getInts(int index);
+    public String[] getStrings(int index);
+}
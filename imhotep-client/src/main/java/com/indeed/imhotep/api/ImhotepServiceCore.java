@@ -14,14 +14,20 @@
  package com.indeed.imhotep.api;
 
 import com.indeed.imhotep.DatasetInfo;
+import com.indeed.imhotep.GroupHyperLogLog;
 import com.indeed.imhotep.GroupMultiRemapRule;
+import com.indeed.imhotep.GroupQuantileSketch;
 import com.indeed.imhotep.GroupRemapRule;
+import com.indeed.imhotep.GroupStatAggregation;
 import com.indeed.imhotep.ImhotepStatusDump;
 import com.indeed.imhotep.QueryRemapRule;
 import com.indeed.imhotep.RegroupCondition;
+import com.indeed.imhotep.DocSample;
+import com.indeed.imhotep.SessionProgram;
 import com.indeed.imhotep.ShardInfo;
 import com.indeed.imhotep.TermCount;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
@@ -47,10 +53,15 @@ public interface ImhotepServiceCore {
     void handleRegexRegroup(String sessionId, String field, String regex, int targetGroup, int negativeGroup, int positiveGroup) throws ImhotepOutOfMemoryException;
     int handleMetricRegroup(String sessionId, int stat, long min, long max, long intervalSize, boolean noGutters) throws ImhotepOutOfMemoryException;
     int handleMetricRegroup2D(String sessionId, int xStat, long xMin, long xMax, long xIntervalSize, int yStat, long yMin, long yMax, long yIntervalSize) throws ImhotepOutOfMemoryException;
+    int handleMetricRegroupND(String sessionId, int[] stats, long[] mins, long[] maxes, long[] intervalSizes, boolean noGutters) throws ImhotepOutOfMemoryException;
     int handleMetricFilter(String sessionId, int stat, long min, long max, boolean negate) throws ImhotepOutOfMemoryException;
     List<TermCount> handleApproximateTopTerms(String sessionId, String field, boolean isIntField, int k);
+    GroupHyperLogLog handleApproximateDistinctTerms(String sessionId, String field, boolean isIntField, int precision) throws ImhotepOutOfMemoryException;
+    GroupQuantileSketch handleGetGroupQuantiles(String sessionId, int stat, int compression) throws ImhotepOutOfMemoryException;
     int handlePushStat(String sessionId, String metric) throws ImhotepOutOfMemoryException;
     int handlePopStat(String sessionId);
+    int handleGetNumStats(String sessionId);
+    SessionProgram.Results handleExecuteProgram(String sessionId, SessionProgram program) throws ImhotepOutOfMemoryException;
     void handleGetFTGSIterator(String sessionId, String[] intFields, String[] stringFields, OutputStream os) throws IOException;
     void handleGetSubsetFTGSIterator(String sessionId, Map<String, long[]> intFields, Map<String, String[]> stringFields, OutputStream os) throws IOException;
     void handleGetFTGSIteratorSplit(String sessionId, String[] intFields, String[] stringFields, OutputStream os, int splitIndex, int numSplits) throws IOException;
@@ -58,8 +69,11 @@ public interface ImhotepServiceCore {
     void handleMergeFTGSIteratorSplit(String sessionId, String[] intFields, String[] stringFields, OutputStream os, InetSocketAddress[] nodes, int splitIndex) throws IOException;
     void handleMergeSubsetFTGSIteratorSplit(String sessionId, Map<String, long[]> intFields, Map<String, String[]> stringFields, OutputStream os, InetSocketAddress[] nodes, int splitIndex) throws IOException;
     void handleGetDocIterator(String sessionId, String[] intFields, String[] stringFields, OutputStream os) throws ImhotepOutOfMemoryException, IOException;
+    void handleGetDocBlockIterator(String sessionId, String[] intFields, String[] stringFields, OutputStream os) throws ImhotepOutOfMemoryException, IOException;
     long handleGetTotalDocFreq(String sessionId, String[] intFields, String[] stringFields);
     long[] handleGetGroupStats(String sessionId, int stat);
+    double[] handleGetGroupStatVariances(String sessionId, int stat);
+    long[] handleGetGroupStats(String sessionId, int stat, GroupStatAggregation aggregation);
     List<String> getShardIdsForSession(String sessionId);
     boolean sessionIsValid(String sessionId);
     void handleCloseSession(String sessionId);
@@ -72,8 +86,13 @@ public interface ImhotepServiceCore {
     void handleResetGroups(String sessionId) throws ImhotepOutOfMemoryException;
     int handleGetNumGroups(String sessionId);
 
-    // open session methods return session id
-    String handleOpenSession(String dataset, List<String> shardRequestList, String username, String ipAddress, int clientVersion, int mergeThreadLimit, boolean optimizeGroupZeroLookups, String sessionId, AtomicLong tempFileSizeBytesLeft) throws ImhotepOutOfMemoryException;
+    // open session methods return session id, sessions opened with a doc sample only see the documents of its blocks
+    String handleOpenSession(String dataset, List<String> shardRequestList, String username, String ipAddress, int clientVersion, int mergeThreadLimit, boolean optimizeGroupZeroLookups, String sessionId, AtomicLong tempFileSizeBytesLeft, @Nullable DocSample docSample) throws ImhotepOutOfMemoryException;
+
+    // checkpoint methods, forked sessions get the given session id and the number of stats is returned
+    void handleCheckpointSession(String sessionId, String checkpointId) throws ImhotepOutOfMemoryException;
+    int handleForkSession(String checkpointId, String sessionId, String username, String ipAddress, int clientVersion, int mergeThreadLimit) throws ImhotepOutOfMemoryException;
+    void handleReleaseCheckpoint(String checkpointId);
 
     // non-session-based methods
     @Deprecated List<ShardInfo> handleGetShardList();
@@ -13,9 +13,13 @@
  */
  package com.indeed.imhotep.api;
 
+import com.indeed.imhotep.GroupHyperLogLog;
 import com.indeed.imhotep.GroupMultiRemapRule;
+import com.indeed.imhotep.GroupQuantileSketch;
 import com.indeed.imhotep.GroupRemapRule;
+import com.indeed.imhotep.GroupStatAggregation;
 import com.indeed.imhotep.QueryRemapRule;
+import com.indeed.imhotep.SessionProgram;
 import com.indeed.imhotep.RegroupCondition;
 import com.indeed.imhotep.TermCount;
 
@@ -45,6 +49,40 @@ public interface ImhotepSession extends Closeable {
      */
     long[] getGroupStats(int stat);
 
+    /**
+     * get the current value of a given metric for each group, combined as the aggregation says
+     * Groups without documents get {@link GroupStatAggregation#identity()}, and as with sums the returned array can be
+     * shorter than the total number of groups.
+     * @param stat the index of the metric
+     * @param aggregation how the values of the documents of a group are combined
+     * @return an array with the aggregated metric values, indexed by group
+     */
+    long[] getGroupStats(int stat, GroupStatAggregation aggregation);
+
+    /**
+     * get the estimated variance of the sum of a given metric for each group, which is 0 unless the session was opened
+     * on a {@link com.indeed.imhotep.DocSample} and {@link #getGroupStats(int)} had to scale up the sums of the sampled
+     * documents. Its square root is the standard error of the sums. Shards are sampled independently, so the
+     * variances of the shards are summed.
+     * @param stat the index of the metric
+     * @return an array with the variances, indexed by group, as long as the one returned by {@link #getGroupStats(int)}
+     */
+    double[] getGroupStatVariances(int stat);
+
+    /**
+     * summarize the distribution of a given metric in each group, so that percentiles can be read without regrouping
+     * on the metric first
+     * Every shard builds one t-digest per group in a single pass over its documents and only the digests are merged
+     * and sent back.
+     * @param stat the index of the metric
+     * @param compression the accuracy of the digests, between 10 and 10000, each digest keeps about twice as many
+     *                    centroids
+     * @return the digests of every group, {@link GroupQuantileSketch#quantile} gives a percentile of a group
+     * @throws ImhotepOutOfMemoryException if performing this operation would cause imhotep to run out of memory
+     * @throws IllegalStateException if the session is restricted to a {@link com.indeed.imhotep.DocSample}
+     */
+    GroupQuantileSketch getGroupQuantiles(int stat, int compression) throws ImhotepOutOfMemoryException;
+
     /**
      * get an iterator over all (field, term, group, stat) tuples for the given fields
      * @param intFields list of int fields
@@ -59,6 +97,14 @@ public interface ImhotepSession extends Closeable {
 
     DocIterator getDocIterator(String[] intFields, String[] stringFields) throws ImhotepOutOfMemoryException;
 
+    /**
+     * like {@link #getDocIterator} but a block of documents at a time, which is much cheaper for large exports
+     * @param intFields list of int fields
+     * @param stringFields list of string fields
+     * @return an iterator over the documents in non-zero groups
+     */
+    DocBlockIterator getDocBlockIterator(String[] intFields, String[] stringFields) throws ImhotepOutOfMemoryException;
+
     RawFTGSIterator[] getFTGSIteratorSplits(String[] intFields, String[] stringFields);
 
     /**
@@ -243,6 +289,23 @@ public interface ImhotepSession extends Closeable {
     int metricRegroup2D(int xStat, long xMin, long xMax, long xIntervalSize,
                         int yStat, long yMin, long yMax, long yIntervalSize) throws ImhotepOutOfMemoryException;
 
+    /**
+     * metricRegroup over several stats at once, in a single pass over the documents. Each group is split into one group
+     * per combination of the buckets of the stats, each stat bucketed like metricRegroup does, and the buckets of the
+     * first stat vary fastest. With one stat, this is the same as metricRegroup.
+     * @param stats the indexes of the metrics, one per dimension
+     * @param mins the inclusive lower bound of the buckets of each dimension
+     * @param maxes the exclusive upper bound of the buckets of each dimension
+     * @param intervalSizes the width of the buckets of each dimension
+     * @param noGutters if true, documents outside of [min, max) in any dimension are moved to group 0 instead of
+     *                  gutter buckets
+     * @return the number of groups
+     * @throws IllegalArgumentException if the arrays do not have the same length or there would be more than
+     *                                  Integer.MAX_VALUE groups
+     * @throws ImhotepOutOfMemoryException if performing this operation would cause imhotep to go out of memory
+     */
+    int metricRegroupND(int[] stats, long[] mins, long[] maxes, long[] intervalSizes, boolean noGutters) throws ImhotepOutOfMemoryException;
+
     int metricFilter(int stat, long min, long max, boolean negate) throws ImhotepOutOfMemoryException;
 
     /**
@@ -260,6 +323,21 @@ public interface ImhotepSession extends Closeable {
      */
     List<TermCount> approximateTopTerms(String field, boolean isIntField, int k);
 
+    /**
+     * Estimate the number of distinct terms of a field in each group without iterating over the terms on the client.
+     *
+     * Every shard builds one HyperLogLog sketch per group and only the sketches are merged and sent back, so the
+     * response is numGroups * 2^precision bytes however many terms the field has.
+     *
+     * @param field the field to count the distinct terms of
+     * @param isIntField whether or not the field is an int field
+     * @param precision log2 of the number of registers per sketch, between 4 and 16
+     * @return the sketches of every group, {@link GroupHyperLogLog#estimate} gives the count of a group
+     * @throws ImhotepOutOfMemoryException if performing this operation would cause imhotep to run out of memory
+     * @throws IllegalStateException if the session is restricted to a {@link com.indeed.imhotep.DocSample}
+     */
+    GroupHyperLogLog approximateDistinctTerms(String field, boolean isIntField, int precision) throws ImhotepOutOfMemoryException;
+
     /**
      * push the metric specified by statName
      * @param statName the metric to push
@@ -287,6 +365,16 @@ public interface ImhotepSession extends Closeable {
      */
     int getNumStats();
 
+    /**
+     * execute the operations of the program back to back, in a single round trip to each daemon
+     * Execution stops at the first operation that fails, and that failure is thrown as if the operation had been
+     * called on its own.
+     * @param program the operations to execute
+     * @return the results of the operations, indexed by their position in the program
+     * @throws ImhotepOutOfMemoryException if one of the operations would cause imhotep to run out of memory
+     */
+    SessionProgram.Results executeProgram(SessionProgram program) throws ImhotepOutOfMemoryException;
+
     /**
      * @return number of groups including zero group (maxGroup+1)
      */
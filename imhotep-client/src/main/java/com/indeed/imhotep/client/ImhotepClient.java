@@ -23,6 +23,7 @@ import com.google.common.collect.Sets;
 import com.google.common.primitives.Longs;
 import com.indeed.util.core.Pair;
 import com.indeed.imhotep.DatasetInfo;
+import com.indeed.imhotep.DocSample;
 import com.indeed.imhotep.RemoteImhotepMultiSession;
 import com.indeed.imhotep.ImhotepRemoteSession;
 import com.indeed.imhotep.ImhotepStatusDump;
@@ -281,6 +282,7 @@ public class ImhotepClient implements Closeable {
         private int socketTimeout = -1;
         private long localTempFileSizeLimit = -1;
         private long daemonTempFileSizeLimit = -1;
+        private DocSample docSample = null;
 
         private List<ShardIdWithVersion> chosenShards = null;
         private List<String> shardsOverride = null;
@@ -327,6 +329,16 @@ public class ImhotepClient implements Closeable {
             return this;
         }
 
+        /**
+         * Restricts the session to a deterministic sample of the blocks of {@link DocSample#BLOCK_SIZE} documents of
+         * every shard. Group stats and FTGS stats are scaled up to estimates over every document, whose variances
+         * come from {@link ImhotepSession#getGroupStatVariances}.
+         */
+        public SessionBuilder docSample(double rate, long seed) {
+            this.docSample = new DocSample(rate, seed);
+            return this;
+        }
+
         public SessionBuilder shardsOverride(List<String> requiredShards) {
             this.shardsOverride = Lists.newArrayList(requiredShards);
             return this;
@@ -381,7 +393,7 @@ public class ImhotepClient implements Closeable {
             }
             List<String> chosenShardIDs = shardsOverride != null ? shardsOverride : ShardIdWithVersion.keepShardIds(getChosenShards());
             return getSessionForShards(dataset, chosenShardIDs, requestedMetrics, mergeThreadLimit, username,
-                    optimizeGroupZeroLookups, socketTimeout, localTempFileSizeLimit, daemonTempFileSizeLimit);
+                    optimizeGroupZeroLookups, socketTimeout, localTempFileSizeLimit, daemonTempFileSizeLimit, docSample);
         }
 
     }
@@ -463,13 +475,14 @@ public class ImhotepClient implements Closeable {
                                      final int mergeThreadLimit, final int priority, final String username,
                                      final boolean optimizeGroupZeroLookups, final int socketTimeout) {
 
-        return getSessionForShards(dataset, requestedShards, requestedMetrics, mergeThreadLimit, username, optimizeGroupZeroLookups, socketTimeout, -1, -1);
+        return getSessionForShards(dataset, requestedShards, requestedMetrics, mergeThreadLimit, username, optimizeGroupZeroLookups, socketTimeout, -1, -1, null);
     }
 
     private ImhotepSession getSessionForShards(final String dataset, final Collection<String> requestedShards, final Collection<String> requestedMetrics,
                                                final int mergeThreadLimit, final String username,
                                                final boolean optimizeGroupZeroLookups, final int socketTimeout,
-                                               long localTempFileSizeLimit, long daemonTempFileSizeLimit) {
+                                               long localTempFileSizeLimit, long daemonTempFileSizeLimit,
+                                               @Nullable DocSample docSample) {
 
         if(requestedShards == null || requestedShards.size() == 0) {
             throw new IllegalArgumentException("No shards");
@@ -478,7 +491,7 @@ public class ImhotepClient implements Closeable {
         final AtomicLong localTempFileSizeBytesLeft = localTempFileSizeLimit > 0 ? new AtomicLong(localTempFileSizeLimit) : null;
         while (retries > 0) {
             final String sessionId = UUID.randomUUID().toString();
-            final ImhotepRemoteSession[] remoteSessions = internalGetSession(dataset, requestedShards, requestedMetrics, mergeThreadLimit, username, optimizeGroupZeroLookups, socketTimeout, sessionId, daemonTempFileSizeLimit, localTempFileSizeBytesLeft);
+            final ImhotepRemoteSession[] remoteSessions = internalGetSession(dataset, requestedShards, requestedMetrics, mergeThreadLimit, username, optimizeGroupZeroLookups, socketTimeout, sessionId, daemonTempFileSizeLimit, localTempFileSizeBytesLeft, docSample);
             if (remoteSessions == null) {
                 --retries;
                 if (retries > 0) {
@@ -621,7 +634,8 @@ public class ImhotepClient implements Closeable {
 
     // returns null on error
     private ImhotepRemoteSession[] internalGetSession(final String dataset, Collection<String> requestedShards, Collection<String> requestedMetrics, final int mergeThreadLimit,
-                                                      final String username, final boolean optimizeGroupZeroLookups, final int socketTimeout, @Nullable final String sessionId, final long tempFileSizeLimit, @Nullable final AtomicLong tempFileSizeBytesLeft) {
+                                                      final String username, final boolean optimizeGroupZeroLookups, final int socketTimeout, @Nullable final String sessionId, final long tempFileSizeLimit, @Nullable final AtomicLong tempFileSizeBytesLeft,
+                                                      @Nullable final DocSample docSample) {
 
         final Map<Host, List<String>> shardRequestMap = buildShardRequestMap(dataset, requestedShards, requestedMetrics);
 
@@ -640,7 +654,7 @@ public class ImhotepClient implements Closeable {
                 futures.add(executor.submit(new Callable<ImhotepRemoteSession>() {
                     @Override
                     public ImhotepRemoteSession call() throws Exception {
-                        return ImhotepRemoteSession.openSession(host.hostname, host.port, dataset, shardList, mergeThreadLimit, username, optimizeGroupZeroLookups, socketTimeout, sessionId, tempFileSizeLimit, tempFileSizeBytesLeft);
+                        return ImhotepRemoteSession.openSession(host.hostname, host.port, dataset, shardList, mergeThreadLimit, username, optimizeGroupZeroLookups, socketTimeout, sessionId, tempFileSizeLimit, tempFileSizeBytesLeft, docSample);
                     }
                 }));
             }
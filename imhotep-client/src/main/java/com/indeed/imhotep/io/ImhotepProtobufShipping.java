@@ -14,6 +14,7 @@
  package com.indeed.imhotep.io;
 
 import com.google.common.io.ByteStreams;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.Message;
 import com.indeed.imhotep.frontend.protobuf.ImhotepFrontendRequest;
 import com.indeed.imhotep.frontend.protobuf.ImhotepFrontendResponse;
@@ -52,8 +53,14 @@ public final class ImhotepProtobufShipping {
         return GroupRemapMessage.parseFrom(readPayloadStream(is));
     }
 
+    /**
+     * responses may exceed protobuf's default 64MB message size limit, such as the distinct term sketches of many
+     * groups, so they are only bounded by the length prefix
+     */
     public static ImhotepResponse readResponse(InputStream is) throws IOException {
-        return ImhotepResponse.parseFrom(readPayloadStream(is));
+        final CodedInputStream in = CodedInputStream.newInstance(readPayloadStream(is));
+        in.setSizeLimit(Integer.MAX_VALUE);
+        return ImhotepResponse.parseFrom(in);
     }
 
     public static ImhotepFrontendRequest readFrontendRequest(InputStream is) throws IOException {
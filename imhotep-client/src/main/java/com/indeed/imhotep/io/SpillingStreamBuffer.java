@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.io;
+
+import com.google.common.io.ByteStreams;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decouples a producer stream from its consumer: {@link #fill} copies the producer into memory as fast as it can
+ * deliver, and once more than memoryLimit bytes are waiting the rest goes to a temp file, so a slow consumer never
+ * stalls the producer. The consumer reads through {@link #getInputStream} and blocks until data arrives.
+ */
+public final class SpillingStreamBuffer implements Closeable {
+    private static final Logger log = Logger.getLogger(SpillingStreamBuffer.class);
+
+    private static final int CHUNK_SIZE = 65536;
+
+    private final long memoryLimit;
+    @Nullable
+    private final AtomicLong tempFileSizeBytesLeft;
+
+    private final Object lock = new Object();
+
+    /** chunks not read yet, all of which come before any spilled bytes */
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+    private long memoryUsed = 0;
+    private File spillFile;
+    private long spilledBytes = 0;
+    private boolean done = false;
+    private IOException failure;
+    private boolean closed = false;
+
+    // only touched by the thread running fill()
+    private OutputStream spillOut;
+
+    private final InputStream inputStream = new BufferInputStream();
+
+    public SpillingStreamBuffer(long memoryLimit, @Nullable AtomicLong tempFileSizeBytesLeft) {
+        this.memoryLimit = memoryLimit;
+        this.tempFileSizeBytesLeft = tempFileSizeBytesLeft;
+    }
+
+    /**
+     * Copies in to the end of the stream. Failures are rethrown here and also handed to the reader.
+     */
+    public void fill(InputStream in) throws IOException {
+        try {
+            while (true) {
+                byte[] chunk = new byte[CHUNK_SIZE];
+                final int n = ByteStreams.read(in, chunk, 0, CHUNK_SIZE);
+                if (n > 0) {
+                    if (n < CHUNK_SIZE) {
+                        chunk = Arrays.copyOf(chunk, n);
+                    }
+                    append(chunk);
+                }
+                if (n < CHUNK_SIZE) {
+                    break;
+                }
+            }
+            finish(null);
+        } catch (IOException e) {
+            finish(e);
+            throw e;
+        } finally {
+            if (spillOut != null) {
+                spillOut.close();
+            }
+        }
+    }
+
+    private void append(byte[] chunk) throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                throw new IOException("buffer closed by reader");
+            }
+            if (spillFile == null && memoryUsed + chunk.length <= memoryLimit) {
+                chunks.add(chunk);
+                memoryUsed += chunk.length;
+                lock.notifyAll();
+                return;
+            }
+        }
+        if (spillOut == null) {
+            final File file = File.createTempFile("ftgsShuffle", ".tmp");
+            spillOut = new LimitedBufferedOutputStream(new FileOutputStream(file), tempFileSizeBytesLeft, CHUNK_SIZE);
+            synchronized (lock) {
+                spillFile = file;
+                if (closed) {
+                    file.delete();
+                    throw new IOException("buffer closed by reader");
+                }
+            }
+        }
+        spillOut.write(chunk);
+        spillOut.flush();
+        synchronized (lock) {
+            spilledBytes += chunk.length;
+            lock.notifyAll();
+        }
+    }
+
+    private void finish(@Nullable IOException e) {
+        synchronized (lock) {
+            done = true;
+            failure = e;
+            lock.notifyAll();
+        }
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    /**
+     * Discards everything buffered, after which fill() fails at its next chunk.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            chunks.clear();
+            memoryUsed = 0;
+            if (spillFile != null && !spillFile.delete()) {
+                log.warn("unable to delete " + spillFile);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private final class BufferInputStream extends InputStream {
+        private byte[] current;
+        private int currentPtr = 0;
+        private RandomAccessFile spillIn;
+        private long spillPtr = 0;
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (current != null && currentPtr < current.length) {
+                return readCurrent(b, off, len);
+            }
+            final long spillAvailable;
+            synchronized (lock) {
+                while (true) {
+                    if (closed) {
+                        throw new IOException("buffer closed");
+                    }
+                    if (!chunks.isEmpty()) {
+                        current = chunks.poll();
+                        currentPtr = 0;
+                        memoryUsed -= current.length;
+                        spillAvailable = 0;
+                        break;
+                    }
+                    if (spillPtr < spilledBytes) {
+                        current = null;
+                        spillAvailable = spilledBytes - spillPtr;
+                        if (spillIn == null) {
+                            spillIn = new RandomAccessFile(spillFile, "r");
+                        }
+                        break;
+                    }
+                    if (done) {
+                        if (failure instanceof WriteLimitExceededException) {
+                            throw new TempFileSizeLimitExceededException(failure);
+                        }
+                        if (failure != null) {
+                            throw new IOException(failure);
+                        }
+                        return -1;
+                    }
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+            }
+            if (current != null) {
+                return readCurrent(b, off, len);
+            }
+            spillIn.seek(spillPtr);
+            final int n = spillIn.read(b, off, (int)Math.min(len, spillAvailable));
+            if (n < 0) {
+                throw new IOException("unexpected end of " + spillFile);
+            }
+            spillPtr += n;
+            return n;
+        }
+
+        private int readCurrent(byte[] b, int off, int len) {
+            final int n = Math.min(len, current.length - currentPtr);
+            System.arraycopy(current, currentPtr, b, off, n);
+            currentPtr += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (spillIn != null) {
+                    spillIn.close();
+                }
+            } finally {
+                SpillingStreamBuffer.this.close();
+            }
+        }
+    }
+}
@@ -20,6 +20,7 @@ import com.indeed.flamdex.query.Query;
 import com.indeed.flamdex.query.Term;
 import com.indeed.imhotep.GroupMultiRemapRule;
 import com.indeed.imhotep.GroupRemapRule;
+import com.indeed.imhotep.GroupStatAggregation;
 import com.indeed.imhotep.QueryRemapRule;
 import com.indeed.imhotep.RegroupCondition;
 import com.indeed.imhotep.TermCount;
@@ -29,6 +30,7 @@ import com.indeed.imhotep.protobuf.Operator;
 import com.indeed.imhotep.protobuf.QueryMessage;
 import com.indeed.imhotep.protobuf.QueryRemapMessage;
 import com.indeed.imhotep.protobuf.RegroupConditionMessage;
+import com.indeed.imhotep.protobuf.StatAggregation;
 import com.indeed.imhotep.protobuf.TermCountMessage;
 import com.indeed.imhotep.protobuf.TermMessage;
 
@@ -46,6 +48,13 @@ public final class ImhotepClientMarshaller {
             .put(BooleanOp.NOT, Operator.NOT)
             .build();
 
+    private static final Map<GroupStatAggregation, StatAggregation> aggregationMap = ImmutableMap.<GroupStatAggregation, StatAggregation>builder()
+            .put(GroupStatAggregation.SUM, StatAggregation.SUM)
+            .put(GroupStatAggregation.MIN, StatAggregation.MIN)
+            .put(GroupStatAggregation.MAX, StatAggregation.MAX)
+            .put(GroupStatAggregation.COUNT_NONZERO, StatAggregation.COUNT_NONZERO)
+            .build();
+
     private ImhotepClientMarshaller() {}
 
     public static RegroupConditionMessage marshal(final RegroupCondition condition) {
@@ -141,6 +150,10 @@ public final class ImhotepClientMarshaller {
         return ret;
     }
 
+    public static StatAggregation marshal(final GroupStatAggregation aggregation) {
+        return aggregationMap.get(aggregation);
+    }
+
     public static List<RegroupConditionMessage> marshal(RegroupCondition[] conditions) {
         final List<RegroupConditionMessage> ret = Lists.newArrayList();
         for (final RegroupCondition condition : conditions) {
@@ -20,6 +20,7 @@ import com.indeed.flamdex.query.Query;
 import com.indeed.flamdex.query.Term;
 import com.indeed.imhotep.GroupMultiRemapRule;
 import com.indeed.imhotep.GroupRemapRule;
+import com.indeed.imhotep.GroupStatAggregation;
 import com.indeed.imhotep.QueryRemapRule;
 import com.indeed.imhotep.RegroupCondition;
 import com.indeed.imhotep.TermCount;
@@ -29,6 +30,7 @@ import com.indeed.imhotep.protobuf.Operator;
 import com.indeed.imhotep.protobuf.QueryMessage;
 import com.indeed.imhotep.protobuf.QueryRemapMessage;
 import com.indeed.imhotep.protobuf.RegroupConditionMessage;
+import com.indeed.imhotep.protobuf.StatAggregation;
 import com.indeed.imhotep.protobuf.TermCountMessage;
 import com.indeed.imhotep.protobuf.TermMessage;
 
@@ -46,6 +48,13 @@ public final class ImhotepDaemonMarshaller {
             .put(Operator.NOT, BooleanOp.NOT)
             .build();
 
+    private static final Map<StatAggregation, GroupStatAggregation> aggregationMap = ImmutableMap.<StatAggregation, GroupStatAggregation>builder()
+            .put(StatAggregation.SUM, GroupStatAggregation.SUM)
+            .put(StatAggregation.MIN, GroupStatAggregation.MIN)
+            .put(StatAggregation.MAX, GroupStatAggregation.MAX)
+            .put(StatAggregation.COUNT_NONZERO, GroupStatAggregation.COUNT_NONZERO)
+            .build();
+
     private ImhotepDaemonMarshaller() {}
 
     public static Term marshal(final TermMessage protoTerm) {
@@ -132,6 +141,10 @@ public final class ImhotepDaemonMarshaller {
         return ret;
     }
 
+    public static GroupStatAggregation marshal(final StatAggregation protoAggregation) {
+        return aggregationMap.get(protoAggregation);
+    }
+
     public static List<TermCountMessage> marshalTermCountList(final List<TermCount> termCountList) {
         final List<TermCountMessage> ret = Lists.newArrayListWithCapacity(termCountList.size());
         for (final TermCount termCount : termCountList) {
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.indeed.imhotep.api.DocBlockIterator;
+import com.indeed.imhotep.api.DocIterator;
+
+import java.io.IOException;
+
+/**
+ * a {@link DocIterator} over the documents of a {@link DocBlockIterator}
+ */
+public final class BlockDocIterator implements DocIterator {
+    private final DocBlockIterator blocks;
+
+    private int numDocs = 0;
+    private int index = 0;
+
+    public BlockDocIterator(DocBlockIterator blocks) {
+        this.blocks = blocks;
+    }
+
+    public boolean next() {
+        if (++index < numDocs) {
+            return true;
+        }
+        if (!blocks.nextBlock()) {
+            numDocs = 0;
+            return false;
+        }
+        numDocs = blocks.getNumDocs();
+        index = 0;
+        return true;
+    }
+
+    public int getGroup() {
+        return blocks.getGroups()[index];
+    }
+
+    public long getInt(final int index) {
+        return blocks.getInts(index)[this.index];
+    }
+
+    public String getString(final int index) {
+        return blocks.getStrings(index)[this.index];
+    }
+
+    public void close() throws IOException {
+        blocks.close();
+    }
+}
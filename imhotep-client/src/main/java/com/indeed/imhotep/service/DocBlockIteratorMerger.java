@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.google.common.base.Throwables;
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.imhotep.api.DocBlockIterator;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Interleaves the blocks of several {@link DocBlockIterator}s, reading each of them on a thread of its own so that
+ * the shards are decoded in parallel. Blocks are passed along whole rather than one document at a time.
+ */
+public final class DocBlockIteratorMerger implements DocBlockIterator {
+    private static final Logger log = Logger.getLogger(DocBlockIteratorMerger.class);
+
+    private static final Block END = new Block(0, new int[0], new long[0][], new String[0][]);
+
+    private final List<DocBlockIterator> iterators;
+    private final BlockingQueue<Block> queue;
+    private final ExecutorService executorService;
+
+    private int numRunning;
+    private volatile boolean closed = false;
+    private volatile Throwable error = null;
+    private Block current = null;
+    private boolean done = false;
+
+    private static final class Block {
+        final int numDocs;
+        final int[] groups;
+        final long[][] intValues;
+        final String[][] stringValues;
+
+        Block(int numDocs, int[] groups, long[][] intValues, String[][] stringValues) {
+            this.numDocs = numDocs;
+            this.groups = groups;
+            this.intValues = intValues;
+            this.stringValues = stringValues;
+        }
+    }
+
+    public DocBlockIteratorMerger(List<DocBlockIterator> iterators, final int numIntFields, final int numStringFields) {
+        this.iterators = iterators;
+        numRunning = iterators.size();
+        if (iterators.isEmpty()) {
+            queue = null;
+            executorService = null;
+            return;
+        }
+        queue = new ArrayBlockingQueue<Block>(2 * iterators.size());
+        executorService = Executors.newFixedThreadPool(iterators.size());
+        for (final DocBlockIterator iterator : iterators) {
+            executorService.submit(new Runnable() {
+                public void run() {
+                    try {
+                        while (iterator.nextBlock()) {
+                            final int numDocs = iterator.getNumDocs();
+                            final long[][] intValues = new long[numIntFields][];
+                            for (int i = 0; i < numIntFields; i++) {
+                                intValues[i] = Arrays.copyOf(iterator.getInts(i), numDocs);
+                            }
+                            final String[][] stringValues = new String[numStringFields][];
+                            for (int i = 0; i < numStringFields; i++) {
+                                stringValues[i] = Arrays.copyOf(iterator.getStrings(i), numDocs);
+                            }
+                            queue.put(new Block(numDocs, Arrays.copyOf(iterator.getGroups(), numDocs), intValues, stringValues));
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Throwable t) {
+                        if (closed) {
+                            // the iterator was closed underneath us
+                            return;
+                        }
+                        log.error("error", t);
+                        error = t;
+                    }
+                    try {
+                        queue.put(END);
+                    } catch (InterruptedException e) {
+                        // closed
+                    }
+                }
+            });
+        }
+        executorService.shutdown();
+    }
+
+    public boolean nextBlock() {
+        if (done) {
+            return false;
+        }
+        try {
+            while (numRunning > 0) {
+                final Block block = queue.take();
+                if (error != null) {
+                    done = true;
+                    throw Throwables.propagate(error);
+                }
+                if (block != END) {
+                    current = block;
+                    return true;
+                }
+                numRunning--;
+            }
+        } catch (InterruptedException e) {
+            throw Throwables.propagate(e);
+        }
+        done = true;
+        return false;
+    }
+
+    public int getNumDocs() {
+        return current.numDocs;
+    }
+
+    public int[] getGroups() {
+        return current.groups;
+    }
+
+    public long[] getInts(final int index) {
+        return current.intValues[index];
+    }
+
+    public String[] getStrings(final int index) {
+        return current.stringValues[index];
+    }
+
+    /**
+     * Closes the underlying iterators first, which unblocks readers waiting on a socket, and only then stops the
+     * threads reading them.
+     */
+    public synchronized void close() {
+        closed = true;
+        try {
+            Closeables2.closeAll(iterators, log);
+        } finally {
+            if (executorService != null) {
+                executorService.shutdownNow();
+            }
+        }
+    }
+}
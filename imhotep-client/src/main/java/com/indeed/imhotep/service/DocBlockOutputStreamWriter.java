@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.google.common.base.Charsets;
+import com.indeed.imhotep.api.DocBlockIterator;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the blocks of a {@link DocBlockIterator} in the format read by {@link InputStreamDocBlockIterator}.
+ *
+ * Every block is an int with its number of documents, 0 for the end of the stream, followed by the uncompressed and
+ * the compressed length of its deflated columns. The groups come first, then each int column as zigzag deltas from
+ * the previous document and each string column with repeated values written as a single byte, all as variable length
+ * integers. Blocks do not depend on each other.
+ */
+public final class DocBlockOutputStreamWriter {
+
+    private final int numIntFields;
+    private final int numStringFields;
+    private final DataOutputStream out;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    private byte[] columns = new byte[65536];
+    private int columnsLength;
+    private byte[] compressed = new byte[65536];
+
+    private DocBlockOutputStreamWriter(int numIntFields, int numStringFields, OutputStream os) {
+        this.numIntFields = numIntFields;
+        this.numStringFields = numStringFields;
+        out = new DataOutputStream(os);
+    }
+
+    public static void write(DocBlockIterator iterator, int numIntFields, int numStringFields, OutputStream os) throws IOException {
+        final DocBlockOutputStreamWriter writer = new DocBlockOutputStreamWriter(numIntFields, numStringFields, os);
+        try {
+            while (iterator.nextBlock()) {
+                writer.writeBlock(iterator);
+            }
+            writer.out.writeInt(0);
+            writer.out.flush();
+        } finally {
+            writer.deflater.end();
+        }
+    }
+
+    private void writeBlock(DocBlockIterator iterator) throws IOException {
+        final int numDocs = iterator.getNumDocs();
+        columnsLength = 0;
+        final int[] groups = iterator.getGroups();
+        for (int i = 0; i < numDocs; i++) {
+            writeVLong(groups[i]);
+        }
+        for (int field = 0; field < numIntFields; field++) {
+            final long[] values = iterator.getInts(field);
+            long previous = 0;
+            for (int i = 0; i < numDocs; i++) {
+                final long delta = values[i] - previous;
+                writeVLong((delta << 1) ^ (delta >> 63));
+                previous = values[i];
+            }
+        }
+        for (int field = 0; field < numStringFields; field++) {
+            final String[] values = iterator.getStrings(field);
+            String previous = null;
+            for (int i = 0; i < numDocs; i++) {
+                if (values[i].equals(previous)) {
+                    writeVLong(0);
+                } else {
+                    final byte[] bytes = values[i].getBytes(Charsets.UTF_8);
+                    writeVLong(bytes.length + 1);
+                    ensureCapacity(bytes.length);
+                    System.arraycopy(bytes, 0, columns, columnsLength, bytes.length);
+                    columnsLength += bytes.length;
+                    previous = values[i];
+                }
+            }
+        }
+
+        deflater.reset();
+        deflater.setInput(columns, 0, columnsLength);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+
+        out.writeInt(numDocs);
+        out.writeInt(columnsLength);
+        out.writeInt(compressedLength);
+        out.write(compressed, 0, compressedLength);
+    }
+
+    private void writeVLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            columns[columnsLength++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        columns[columnsLength++] = (byte) value;
+    }
+
+    private void ensureCapacity(int length) {
+        if (columnsLength + length > columns.length) {
+            columns = Arrays.copyOf(columns, Math.max(columns.length * 2, columnsLength + length));
+        }
+    }
+}
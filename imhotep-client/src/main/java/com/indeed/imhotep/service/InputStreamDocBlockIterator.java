@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.indeed.imhotep.api.DocBlockIterator;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the blocks written by {@link DocBlockOutputStreamWriter}.
+ */
+public final class InputStreamDocBlockIterator implements DocBlockIterator {
+
+    private final DataInputStream in;
+    private final Inflater inflater = new Inflater();
+
+    private boolean done = false;
+    private int numDocs = 0;
+    private int[] groups = new int[0];
+    private final long[][] intValues;
+    private final String[][] stringValues;
+
+    private byte[] compressed = new byte[0];
+    private byte[] columns = new byte[0];
+    private int position;
+
+    public InputStreamDocBlockIterator(InputStream in, int numIntFields, int numStringFields) {
+        this.in = new DataInputStream(in);
+        intValues = new long[numIntFields][0];
+        stringValues = new String[numStringFields][0];
+    }
+
+    public boolean nextBlock() {
+        if (done) {
+            return false;
+        }
+        try {
+            numDocs = in.readInt();
+            if (numDocs == 0) {
+                done = true;
+                return false;
+            }
+            readColumns();
+            if (groups.length < numDocs) {
+                groups = new int[numDocs];
+            }
+            for (int i = 0; i < numDocs; i++) {
+                groups[i] = (int) readVLong();
+            }
+            for (int field = 0; field < intValues.length; field++) {
+                if (intValues[field].length < numDocs) {
+                    intValues[field] = new long[numDocs];
+                }
+                final long[] values = intValues[field];
+                long previous = 0;
+                for (int i = 0; i < numDocs; i++) {
+                    final long zigZag = readVLong();
+                    previous += (zigZag >>> 1) ^ -(zigZag & 1);
+                    values[i] = previous;
+                }
+            }
+            for (int field = 0; field < stringValues.length; field++) {
+                if (stringValues[field].length < numDocs) {
+                    stringValues[field] = new String[numDocs];
+                }
+                final String[] values = stringValues[field];
+                String previous = null;
+                for (int i = 0; i < numDocs; i++) {
+                    final int length = (int) readVLong();
+                    if (length != 0) {
+                        previous = new String(columns, position, length - 1, Charsets.UTF_8);
+                        position += length - 1;
+                    }
+                    values[i] = previous;
+                }
+            }
+            if (position != columns.length) {
+                throw new IOException("corrupt doc block");
+            }
+            return true;
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private void readColumns() throws IOException {
+        final int length = in.readInt();
+        final int compressedLength = in.readInt();
+        if (compressed.length < compressedLength) {
+            compressed = new byte[compressedLength];
+        }
+        in.readFully(compressed, 0, compressedLength);
+        if (columns.length != length) {
+            columns = new byte[length];
+        }
+        inflater.reset();
+        inflater.setInput(compressed, 0, compressedLength);
+        try {
+            int inflated = 0;
+            while (!inflater.finished()) {
+                final int n = inflater.inflate(columns, inflated, length - inflated);
+                if (n == 0 && (inflater.needsInput() || inflated == length)) {
+                    throw new IOException("corrupt doc block");
+                }
+                inflated += n;
+            }
+            if (inflated != length) {
+                throw new IOException("corrupt doc block");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        position = 0;
+    }
+
+    private long readVLong() throws IOException {
+        long ret = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position == columns.length) {
+                throw new IOException("corrupt doc block");
+            }
+            final byte b = columns[position++];
+            ret |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return ret;
+            }
+        }
+        throw new IOException("corrupt doc block");
+    }
+
+    public int getNumDocs() {
+        return numDocs;
+    }
+
+    public int[] getGroups() {
+        return groups;
+    }
+
+    public long[] getInts(final int index) {
+        return intValues[index];
+    }
+
+    public String[] getStrings(final int index) {
+        return stringValues[index];
+    }
+
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+}
@@ -26,9 +26,13 @@ import com.indeed.flamdex.api.StringValueLookup;
 import com.indeed.flamdex.fieldcache.FieldCacher;
 import com.indeed.flamdex.fieldcache.UnsortedIntTermDocIterator;
 import com.indeed.flamdex.fieldcache.UnsortedIntTermDocIteratorImpl;
+import com.indeed.flamdex.fieldcache.ZoneMap;
+import com.indeed.flamdex.fieldcache.ZoneMapReader;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * @author jsgroth
@@ -37,12 +41,13 @@ import java.util.Map;
  *
  * at the moment of this comment's writing, {@link FlamdexReader#getMetric} and {@link FlamdexReader#memoryRequired} are implemented here
  */
-public abstract class AbstractFlamdexReader implements FlamdexReader {
+public abstract class AbstractFlamdexReader implements FlamdexReader, ZoneMapReader {
     protected final String directory;
     protected final int numDocs;
     private final boolean useMMapMetrics;
 
     private final Map<String, FieldCacher> intFieldCachers;
+    private final ConcurrentMap<String, ZoneMap> zoneMaps = Maps.newConcurrentMap();
 
     protected AbstractFlamdexReader(String directory, int numDocs) {
         this(directory, numDocs, System.getProperty("flamdex.mmap.fieldcache") != null);
@@ -62,8 +67,25 @@ public abstract class AbstractFlamdexReader implements FlamdexReader {
         return UnsortedIntTermDocIteratorImpl.create(this, field);
     }
 
+    /**
+     * returns the cacher of a metric whose mmap cache file was written along with the index, or null if there is none
+     */
+    protected FieldCacher getPrecomputedMetricCacher(String metric) {
+        return null;
+    }
+
     @Override
     public final IntValueLookup getMetric(String metric) throws FlamdexOutOfMemoryException {
+        final FieldCacher precomputedCacher = getPrecomputedMetricCacher(metric);
+        if (precomputedCacher != null) {
+            try {
+                return precomputedCacher.openMMapFieldCache(metric, directory, numDocs);
+            } catch (FileNotFoundException e) {
+                // the cache file has gone missing, uninvert the field as usual
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
         final FieldCacher fieldCacher = getMetricCacher(metric);
         final UnsortedIntTermDocIterator iterator = createUnsortedIntTermDocIterator(metric);
         try {
@@ -94,12 +116,23 @@ public abstract class AbstractFlamdexReader implements FlamdexReader {
 
     @Override
     public final long memoryRequired(String metric) {
-        if (useMMapMetrics) return 0;
+        if (useMMapMetrics || getPrecomputedMetricCacher(metric) != null) return 0;
 
         final FieldCacher fieldCacher = getMetricCacher(metric);
         return fieldCacher.memoryRequired(numDocs);
     }
 
+    @Override
+    public ZoneMap getZoneMap(String field, IntValueLookup lookup) {
+        final ZoneMap zoneMap = zoneMaps.get(field);
+        if (zoneMap != null) {
+            return zoneMap;
+        }
+        final ZoneMap newZoneMap = ZoneMap.readOrBuild(directory, field, lookup, numDocs);
+        final ZoneMap existing = zoneMaps.putIfAbsent(field, newZoneMap);
+        return existing != null ? existing : newZoneMap;
+    }
+
     private FieldCacher getMetricCacher(String metric) {
         synchronized (intFieldCachers) {
             if (!intFieldCachers.containsKey(metric)) {
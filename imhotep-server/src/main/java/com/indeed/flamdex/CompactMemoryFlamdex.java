@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.indeed.flamdex.writer.FlamdexDocWriter;
+import com.indeed.flamdex.writer.FlamdexDocument;
+import com.indeed.flamdex.writer.FlamdexDocumentBuilder;
+import com.indeed.util.core.sort.Quicksortable;
+import com.indeed.util.core.sort.Quicksortables;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An indexing buffer that serializes to exactly what {@link MemoryFlamdex#write(DataOutput)} would for the same
+ * documents, so its output can be read back with {@link MemoryFlamdex#readFields} or {@link MemoryFlamdex#streamer}.
+ *
+ * Instead of a sorted map of term to doc list per field, each field appends (term, doc) pairs to growable primitive
+ * arrays which are only sorted when the buffer is written. Field names and string terms are interned, so adding a
+ * document allocates nothing but amortized array growth and an entry for each previously unseen string term. This
+ * makes the buffer several times smaller than a {@link MemoryFlamdex} holding the same postings and keeps nearly all
+ * of it out of the young generation. Documents can be added from a reusable {@link FlamdexDocumentBuilder} to avoid
+ * creating a {@link FlamdexDocument} for each of them.
+ */
+public final class CompactMemoryFlamdex implements FlamdexDocWriter {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final long FIELD_USAGE = 128;
+    private static final long STRING_TERM_USAGE = 8 + 4 + 12 + 4 + 4 + 4 + 24;
+
+    private final Map<String, IntPostings> intFields = Maps.newHashMap();
+    private final Map<String, StringPostings> stringFields = Maps.newHashMap();
+    private final CharsetEncoder encoder;
+
+    private int numDocs;
+    private long memoryUsageEstimate = 0;
+
+    public CompactMemoryFlamdex() {
+        this(false);
+    }
+
+    public CompactMemoryFlamdex(final boolean replaceMalformedInput) {
+        if (replaceMalformedInput) {
+            encoder = Charsets.UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        } else {
+            encoder = Charsets.UTF_8.newEncoder();
+        }
+    }
+
+    public int getNumDocs() {
+        return numDocs;
+    }
+
+    public long getMemoryUsageEstimate() {
+        return memoryUsageEstimate;
+    }
+
+    @Override
+    public void addDocument(FlamdexDocument doc) {
+        for (final Map.Entry<String, LongList> e : doc.getIntFields().entrySet()) {
+            final IntPostings postings = getIntPostings(e.getKey());
+            final LongList terms = e.getValue();
+            for (int i = 0; i < terms.size(); ++i) {
+                postings.add(terms.getLong(i), numDocs);
+            }
+        }
+        for (final Map.Entry<String, List<String>> e : doc.getStringFields().entrySet()) {
+            final StringPostings postings = getStringPostings(e.getKey());
+            for (final String term : e.getValue()) {
+                postings.add(term, numDocs);
+            }
+        }
+        ++numDocs;
+    }
+
+    /**
+     * adds the current contents of the builder as a document, after which the builder may be cleared and reused
+     */
+    public void addDocument(FlamdexDocumentBuilder doc) {
+        for (int i = 0; i < doc.getNumIntFields(); ++i) {
+            final IntPostings postings = getIntPostings(doc.getIntField(i));
+            final LongList terms = doc.getIntTerms(i);
+            for (int j = 0; j < terms.size(); ++j) {
+                postings.add(terms.getLong(j), numDocs);
+            }
+        }
+        for (int i = 0; i < doc.getNumStringFields(); ++i) {
+            final StringPostings postings = getStringPostings(doc.getStringField(i));
+            final List<String> terms = doc.getStringTerms(i);
+            for (int j = 0; j < terms.size(); ++j) {
+                postings.add(terms.get(j), numDocs);
+            }
+        }
+        ++numDocs;
+    }
+
+    private IntPostings getIntPostings(String field) {
+        IntPostings postings = intFields.get(field);
+        if (postings == null) {
+            intFields.put(field, postings = new IntPostings());
+            memoryUsageEstimate += FIELD_USAGE + 2 * field.length() + 12 * INITIAL_CAPACITY;
+        }
+        return postings;
+    }
+
+    private StringPostings getStringPostings(String field) {
+        StringPostings postings = stringFields.get(field);
+        if (postings == null) {
+            stringFields.put(field, postings = new StringPostings());
+            memoryUsageEstimate += FIELD_USAGE + 2 * field.length() + 12 * INITIAL_CAPACITY;
+        }
+        return postings;
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    /**
+     * writes the buffer in the format of {@link MemoryFlamdex#write(DataOutput)}, after which more documents may
+     * still be added
+     */
+    public void write(DataOutput out) throws IOException {
+        final List<String> sortedIntFields = Lists.newArrayList(intFields.keySet());
+        Collections.sort(sortedIntFields);
+        final List<String> sortedStringFields = Lists.newArrayList(stringFields.keySet());
+        Collections.sort(sortedStringFields);
+
+        out.writeInt(numDocs);
+        out.writeInt(sortedIntFields.size());
+        for (final String intField : sortedIntFields) {
+            MemoryFlamdex.writeString(out, intField);
+        }
+        out.writeInt(sortedStringFields.size());
+        for (final String stringField : sortedStringFields) {
+            MemoryFlamdex.writeString(out, stringField);
+        }
+
+        for (final String intField : sortedIntFields) {
+            intFields.get(intField).write(out);
+        }
+        for (final String stringField : sortedStringFields) {
+            stringFields.get(stringField).write(out, encoder);
+        }
+    }
+
+    private final class IntPostings {
+        private long[] terms = new long[INITIAL_CAPACITY];
+        private int[] docs = new int[INITIAL_CAPACITY];
+        private int size = 0;
+        private boolean sorted = true;
+
+        void add(long term, int doc) {
+            if (size == terms.length) {
+                final int capacity = terms.length + (terms.length >> 1);
+                memoryUsageEstimate += 12L * (capacity - terms.length);
+                terms = Arrays.copyOf(terms, capacity);
+                docs = Arrays.copyOf(docs, capacity);
+            }
+            if (sorted && size > 0 && (term < terms[size - 1] || (term == terms[size - 1] && doc < docs[size - 1]))) {
+                sorted = false;
+            }
+            terms[size] = term;
+            docs[size] = doc;
+            ++size;
+        }
+
+        void sort() {
+            if (sorted) return;
+            Quicksortables.sort(new Quicksortable() {
+                @Override
+                public void swap(int i, int j) {
+                    Quicksortables.swap(terms, i, j);
+                    Quicksortables.swap(docs, i, j);
+                }
+
+                @Override
+                public int compare(int a, int b) {
+                    if (terms[a] != terms[b]) return terms[a] < terms[b] ? -1 : 1;
+                    return docs[a] < docs[b] ? -1 : docs[a] == docs[b] ? 0 : 1;
+                }
+            }, size);
+            sorted = true;
+        }
+
+        void write(DataOutput out) throws IOException {
+            sort();
+
+            long numTerms = 0;
+            for (int i = 0; i < size; ++i) {
+                if (i == 0 || terms[i] != terms[i - 1]) ++numTerms;
+            }
+            MemoryFlamdex.writeVLong(numTerms, out);
+
+            long lastTerm = 0;
+            int start = 0;
+            while (start < size) {
+                final long term = terms[start];
+                int end = start;
+                int docFreq = 0;
+                while (end < size && terms[end] == term) {
+                    // a term repeated within a document is only indexed once
+                    if (end == start || docs[end] != docs[end - 1]) ++docFreq;
+                    ++end;
+                }
+
+                MemoryFlamdex.writeVLong(term - lastTerm, out);
+                lastTerm = term;
+                MemoryFlamdex.writeVLong(docFreq, out);
+                writeDocs(docs, start, end, out);
+                start = end;
+            }
+        }
+    }
+
+    private final class StringPostings {
+        private final Object2IntOpenHashMap<String> termIds = new Object2IntOpenHashMap<String>();
+        private String[] termsById = new String[INITIAL_CAPACITY];
+        private int numTerms = 0;
+        /** true while term ids are in term order */
+        private boolean termIdsSorted = true;
+
+        private int[] termIdsByPosting = new int[INITIAL_CAPACITY];
+        private int[] docs = new int[INITIAL_CAPACITY];
+        private int size = 0;
+        private boolean sorted = true;
+
+        StringPostings() {
+            termIds.defaultReturnValue(-1);
+        }
+
+        void add(String term, int doc) {
+            int termId = termIds.getInt(term);
+            if (termId < 0) {
+                if (numTerms == termsById.length) {
+                    memoryUsageEstimate += 4L * (termsById.length >> 1);
+                    termsById = Arrays.copyOf(termsById, termsById.length + (termsById.length >> 1));
+                }
+                if (numTerms > 0 && term.compareTo(termsById[numTerms - 1]) < 0) {
+                    termIdsSorted = false;
+                }
+                termId = numTerms++;
+                termIds.put(term, termId);
+                termsById[termId] = term;
+                memoryUsageEstimate += STRING_TERM_USAGE + 2 * term.length();
+            }
+
+            if (size == docs.length) {
+                final int capacity = docs.length + (docs.length >> 1);
+                memoryUsageEstimate += 8L * (capacity - docs.length);
+                termIdsByPosting = Arrays.copyOf(termIdsByPosting, capacity);
+                docs = Arrays.copyOf(docs, capacity);
+            }
+            if (sorted && size > 0 && (termId < termIdsByPosting[size - 1] || (termId == termIdsByPosting[size - 1] && doc < docs[size - 1]))) {
+                sorted = false;
+            }
+            termIdsByPosting[size] = termId;
+            docs[size] = doc;
+            ++size;
+        }
+
+        /**
+         * renumbers the terms in term order, so that sorting postings by term id sorts them by term
+         */
+        private void sortTermIds() {
+            if (termIdsSorted) return;
+            final int[] order = new int[numTerms];
+            for (int i = 0; i < numTerms; ++i) {
+                order[i] = i;
+            }
+            Quicksortables.sort(new Quicksortable() {
+                @Override
+                public void swap(int i, int j) {
+                    Quicksortables.swap(order, i, j);
+                }
+
+                @Override
+                public int compare(int a, int b) {
+                    return termsById[order[a]].compareTo(termsById[order[b]]);
+                }
+            }, numTerms);
+
+            final int[] newIds = new int[numTerms];
+            final String[] sortedTerms = new String[termsById.length];
+            for (int i = 0; i < numTerms; ++i) {
+                newIds[order[i]] = i;
+                sortedTerms[i] = termsById[order[i]];
+                termIds.put(sortedTerms[i], i);
+            }
+            termsById = sortedTerms;
+            for (int i = 0; i < size; ++i) {
+                termIdsByPosting[i] = newIds[termIdsByPosting[i]];
+            }
+            termIdsSorted = true;
+            sorted = false;
+        }
+
+        void sort() {
+            sortTermIds();
+            if (sorted) return;
+            Quicksortables.sort(new Quicksortable() {
+                @Override
+                public void swap(int i, int j) {
+                    Quicksortables.swap(termIdsByPosting, i, j);
+                    Quicksortables.swap(docs, i, j);
+                }
+
+                @Override
+                public int compare(int a, int b) {
+                    if (termIdsByPosting[a] != termIdsByPosting[b]) return termIdsByPosting[a] < termIdsByPosting[b] ? -1 : 1;
+                    return docs[a] < docs[b] ? -1 : docs[a] == docs[b] ? 0 : 1;
+                }
+            }, size);
+            sorted = true;
+        }
+
+        void write(DataOutput out, CharsetEncoder encoder) throws IOException {
+            sort();
+
+            // every interned term has at least one posting
+            MemoryFlamdex.writeVLong(numTerms, out);
+
+            byte[] lastTermBytes = new byte[0];
+            int lastTermLength = 0;
+            int start = 0;
+            while (start < size) {
+                final int termId = termIdsByPosting[start];
+                int end = start;
+                int docFreq = 0;
+                while (end < size && termIdsByPosting[end] == termId) {
+                    if (end == start || docs[end] != docs[end - 1]) ++docFreq;
+                    ++end;
+                }
+
+                final ByteBuffer encoded = encoder.encode(CharBuffer.wrap(termsById[termId]));
+                final byte[] termBytes = encoded.array();
+                final int termLength = encoded.limit();
+                final int prefixLen = MemoryFlamdex.getPrefixLen(lastTermBytes, termBytes, lastTermLength);
+                final int newLen = termLength - prefixLen;
+                MemoryFlamdex.writeVLong(prefixLen, out);
+                MemoryFlamdex.writeVLong(newLen, out);
+                out.write(termBytes, prefixLen, newLen);
+                lastTermBytes = termBytes;
+                lastTermLength = termLength;
+
+                MemoryFlamdex.writeVLong(docFreq, out);
+                writeDocs(docs, start, end, out);
+                start = end;
+            }
+        }
+    }
+
+    private static void writeDocs(int[] docs, int start, int end, DataOutput out) throws IOException {
+        int lastDoc = 0;
+        for (int i = start; i < end; ++i) {
+            if (i > start && docs[i] == docs[i - 1]) continue;
+            MemoryFlamdex.writeVLong(docs[i] - lastDoc, out);
+            lastDoc = docs[i];
+        }
+    }
+}
@@ -787,7 +787,7 @@ public final class MemoryFlamdex implements FlamdexReader, FlamdexWriter, Flamde
         return ret;
     }
 
-    private static int getPrefixLen(byte[] a, byte[] b, int n) {
+    static int getPrefixLen(byte[] a, byte[] b, int n) {
         for (int i = 0; i < n; ++i) {
             if (a[i] != b[i]) return i;
         }
@@ -952,7 +952,7 @@ public final class MemoryFlamdex implements FlamdexReader, FlamdexWriter, Flamde
         return DECODER.get().decode(ByteBuffer.wrap(bytes)).toString();
     }
 
-    private static void writeString(DataOutput out, String s) throws IOException {
+    static void writeString(DataOutput out, String s) throws IOException {
         final ByteBuffer encoded = ENCODER.get().encode(CharBuffer.wrap(s));
         final int len = encoded.limit();
         writeVLong(len, out);
@@ -963,7 +963,7 @@ public final class MemoryFlamdex implements FlamdexReader, FlamdexWriter, Flamde
      * the following methods were forked from org.apache.hadoop.io.WritableUtils
      */
 
-    private static void writeVLong(long i, DataOutput out) throws IOException {
+    static void writeVLong(long i, DataOutput out) throws IOException {
         if (i >= -112 && i <= 127) {
             out.write((int)(i & 0xFF));
             return;
@@ -0,0 +1,775 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.datastruct;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of doc ids that picks a representation for every chunk of 65536 consecutive ids: a sorted array
+ * for sparse chunks, a bitmap for dense ones and a list of runs for chunks made of long stretches of ids. Its size
+ * follows the number of ids in it rather than the number of documents in the shard, unlike a {@link FastBitSet}.
+ *
+ * Build one from increasing doc ids with a {@link Builder}.
+ */
+public final class CompressedBitSet {
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int BITMAP_WORDS = CHUNK_SIZE >> 6;
+    /** beyond this many ids an array container is larger than a bitmap */
+    private static final int MAX_ARRAY_SIZE = 4096;
+    /** two arrays are intersected by galloping through the larger one when it is at least this many times larger */
+    private static final int GALLOP_RATIO = 16;
+
+    private final int size;
+    private final int[] keys;
+    private final Container[] containers;
+
+    private CompressedBitSet(int size, int[] keys, Container[] containers) {
+        this.size = size;
+        this.keys = keys;
+        this.containers = containers;
+    }
+
+    public static CompressedBitSet empty(int size) {
+        return new CompressedBitSet(size, new int[0], new Container[0]);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean get(final int i) {
+        final int index = Arrays.binarySearch(keys, i >>> CHUNK_BITS);
+        return index >= 0 && containers[index].contains(i & CHUNK_MASK);
+    }
+
+    public int cardinality() {
+        int count = 0;
+        for (final Container container : containers) {
+            count += container.cardinality();
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return containers.length == 0;
+    }
+
+    public long memoryUsage() {
+        long bytes = 4L * keys.length + 8L * containers.length;
+        for (final Container container : containers) {
+            bytes += container.memoryUsage();
+        }
+        return bytes;
+    }
+
+    public CompressedBitSet and(final CompressedBitSet other) {
+        final int n = Math.min(keys.length, other.keys.length);
+        final int[] newKeys = new int[n];
+        final Container[] newContainers = new Container[n];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < keys.length && j < other.keys.length) {
+            if (keys[i] < other.keys[j]) {
+                ++i;
+            } else if (keys[i] > other.keys[j]) {
+                ++j;
+            } else {
+                final Container container = containers[i].and(other.containers[j]);
+                if (container != null) {
+                    newKeys[count] = keys[i];
+                    newContainers[count++] = container;
+                }
+                ++i;
+                ++j;
+            }
+        }
+        return new CompressedBitSet(size, Arrays.copyOf(newKeys, count), Arrays.copyOf(newContainers, count));
+    }
+
+    public CompressedBitSet or(final CompressedBitSet other) {
+        final int n = keys.length + other.keys.length;
+        final int[] newKeys = new int[n];
+        final Container[] newContainers = new Container[n];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < keys.length || j < other.keys.length) {
+            if (j == other.keys.length || (i < keys.length && keys[i] < other.keys[j])) {
+                newKeys[count] = keys[i];
+                newContainers[count++] = containers[i++];
+            } else if (i == keys.length || keys[i] > other.keys[j]) {
+                newKeys[count] = other.keys[j];
+                newContainers[count++] = other.containers[j++];
+            } else {
+                newKeys[count] = keys[i];
+                newContainers[count++] = containers[i++].or(other.containers[j++]);
+            }
+        }
+        return new CompressedBitSet(Math.max(size, other.size), Arrays.copyOf(newKeys, count), Arrays.copyOf(newContainers, count));
+    }
+
+    /**
+     * @return the ids of this set that are not in other
+     */
+    public CompressedBitSet andNot(final CompressedBitSet other) {
+        final int[] newKeys = new int[keys.length];
+        final Container[] newContainers = new Container[keys.length];
+        int count = 0;
+        int j = 0;
+        for (int i = 0; i < keys.length; ++i) {
+            while (j < other.keys.length && other.keys[j] < keys[i]) {
+                ++j;
+            }
+            final Container container = j < other.keys.length && other.keys[j] == keys[i] ? containers[i].andNot(other.containers[j]) : containers[i];
+            if (container != null) {
+                newKeys[count] = keys[i];
+                newContainers[count++] = container;
+            }
+        }
+        return new CompressedBitSet(size, Arrays.copyOf(newKeys, count), Arrays.copyOf(newContainers, count));
+    }
+
+    /**
+     * @return every id in [0, size) that is not in this set
+     */
+    public CompressedBitSet not() {
+        final int numChunks = (size + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+        final int[] newKeys = new int[numChunks];
+        final Container[] newContainers = new Container[numChunks];
+        int count = 0;
+        int index = 0;
+        for (int key = 0; key < numChunks; ++key) {
+            final int chunkLength = Math.min(CHUNK_SIZE, size - (key << CHUNK_BITS));
+            final Container container;
+            if (index < keys.length && keys[index] == key) {
+                container = containers[index++].not(chunkLength);
+            } else {
+                container = RunContainer.range(chunkLength);
+            }
+            if (container != null) {
+                newKeys[count] = key;
+                newContainers[count++] = container;
+            }
+        }
+        return new CompressedBitSet(size, Arrays.copyOf(newKeys, count), Arrays.copyOf(newContainers, count));
+    }
+
+    /**
+     * clears every bit of bitSet that is not in this set
+     */
+    public void andInto(final FastBitSet bitSet) {
+        final long[] words = new long[BITMAP_WORDS];
+        int index = 0;
+        final int numChunks = (bitSet.size() + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+        for (int key = 0; key < numChunks; ++key) {
+            final int base = key << CHUNK_BITS;
+            final int end = (int) Math.min((long) bitSet.size(), (long) base + CHUNK_SIZE);
+            if (index < keys.length && keys[index] == key) {
+                containers[index++].fillBitmap(words);
+                final int baseWord = base >>> 6;
+                final int numWords = (end - base + 63) >>> 6;
+                for (int w = 0; w < numWords; ++w) {
+                    bitSet.andWord(baseWord + w, words[w]);
+                }
+            } else {
+                bitSet.clearRange(base, end);
+            }
+        }
+    }
+
+    /**
+     * sets every bit of bitSet that is in this set
+     */
+    public void orInto(final FastBitSet bitSet) {
+        for (int i = 0; i < keys.length && keys[i] << CHUNK_BITS < bitSet.size(); ++i) {
+            containers[i].orInto(bitSet, keys[i] << CHUNK_BITS);
+        }
+    }
+
+    /**
+     * clears every bit of bitSet that is in this set
+     */
+    public void andNotInto(final FastBitSet bitSet) {
+        final long[] words = new long[BITMAP_WORDS];
+        for (int i = 0; i < keys.length && keys[i] << CHUNK_BITS < bitSet.size(); ++i) {
+            final int base = keys[i] << CHUNK_BITS;
+            containers[i].fillBitmap(words);
+            final int baseWord = base >>> 6;
+            final int numWords = (Math.min(bitSet.size() - base, CHUNK_SIZE) + 63) >>> 6;
+            for (int w = 0; w < numWords; ++w) {
+                bitSet.andWord(baseWord + w, ~words[w]);
+            }
+        }
+    }
+
+    public IntIterator iterator() {
+        return new IntIterator();
+    }
+
+    public final class IntIterator {
+        private int index = 0;
+        private int next = 0;
+        private int value = -1;
+
+        public boolean next() {
+            while (index < keys.length) {
+                final int low = next < CHUNK_SIZE ? containers[index].nextValue(next) : -1;
+                if (low >= 0) {
+                    value = (keys[index] << CHUNK_BITS) | low;
+                    next = low + 1;
+                    return true;
+                }
+                ++index;
+                next = 0;
+            }
+            return false;
+        }
+
+        public int getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * Builds a set from doc ids added in increasing order. Adding the last added id again does nothing.
+     */
+    public static final class Builder {
+        private final int size;
+        private int[] keys = new int[4];
+        private Container[] containers = new Container[4];
+        private int numContainers = 0;
+
+        private int currentKey = -1;
+        private final char[] array = new char[MAX_ARRAY_SIZE];
+        private int arraySize = 0;
+        private long[] bitmap = null;
+        private int last = -1;
+
+        public Builder(int size) {
+            this.size = size;
+        }
+
+        public void add(final int doc) {
+            if (doc <= last) {
+                if (doc == last) {
+                    return;
+                }
+                throw new IllegalArgumentException("doc ids must be added in increasing order: " + doc + " after " + last);
+            }
+            last = doc;
+            final int key = doc >>> CHUNK_BITS;
+            if (key != currentKey) {
+                finishChunk();
+                currentKey = key;
+            }
+            final int low = doc & CHUNK_MASK;
+            if (bitmap != null) {
+                bitmap[low >>> 6] |= 1L << low;
+            } else if (arraySize < MAX_ARRAY_SIZE) {
+                array[arraySize++] = (char) low;
+            } else {
+                bitmap = new long[BITMAP_WORDS];
+                for (int i = 0; i < arraySize; ++i) {
+                    bitmap[array[i] >>> 6] |= 1L << array[i];
+                }
+                bitmap[low >>> 6] |= 1L << low;
+            }
+        }
+
+        private void finishChunk() {
+            final Container container;
+            if (bitmap != null) {
+                container = Container.fromBitmap(bitmap);
+            } else if (arraySize > 0) {
+                container = Container.fromArray(Arrays.copyOf(array, arraySize));
+            } else {
+                container = null;
+            }
+            if (container != null) {
+                if (numContainers == keys.length) {
+                    keys = Arrays.copyOf(keys, 2 * numContainers);
+                    containers = Arrays.copyOf(containers, 2 * numContainers);
+                }
+                keys[numContainers] = currentKey;
+                containers[numContainers++] = container;
+            }
+            arraySize = 0;
+            bitmap = null;
+        }
+
+        public CompressedBitSet build() {
+            finishChunk();
+            currentKey = -1;
+            return new CompressedBitSet(size, Arrays.copyOf(keys, numContainers), Arrays.copyOf(containers, numContainers));
+        }
+    }
+
+    private abstract static class Container {
+        abstract int cardinality();
+
+        abstract boolean contains(int low);
+
+        /**
+         * @return the smallest value at or after low, which is less than the chunk size, or -1 if there is none
+         */
+        abstract int nextValue(int low);
+
+        abstract long memoryUsage();
+
+        /**
+         * overwrites words with the bitmap of this container
+         */
+        abstract void fillBitmap(long[] words);
+
+        abstract void orInto(FastBitSet bitSet, int base);
+
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) {
+                return ((ArrayContainer) other).and(this);
+            }
+            final long[] words = new long[BITMAP_WORDS];
+            final long[] otherWords = new long[BITMAP_WORDS];
+            fillBitmap(words);
+            other.fillBitmap(otherWords);
+            for (int i = 0; i < BITMAP_WORDS; ++i) {
+                words[i] &= otherWords[i];
+            }
+            return fromBitmap(words);
+        }
+
+        Container or(Container other) {
+            final long[] words = new long[BITMAP_WORDS];
+            final long[] otherWords = new long[BITMAP_WORDS];
+            fillBitmap(words);
+            other.fillBitmap(otherWords);
+            for (int i = 0; i < BITMAP_WORDS; ++i) {
+                words[i] |= otherWords[i];
+            }
+            return fromBitmap(words);
+        }
+
+        /**
+         * @return the values of this container that are not in other, or null if there are none
+         */
+        Container andNot(Container other) {
+            final long[] words = new long[BITMAP_WORDS];
+            final long[] otherWords = new long[BITMAP_WORDS];
+            fillBitmap(words);
+            other.fillBitmap(otherWords);
+            for (int i = 0; i < BITMAP_WORDS; ++i) {
+                words[i] &= ~otherWords[i];
+            }
+            return fromBitmap(words);
+        }
+
+        /**
+         * @return the values in [0, chunkLength) that are not in this container, or null if there are none
+         */
+        Container not(int chunkLength) {
+            final long[] words = new long[BITMAP_WORDS];
+            fillBitmap(words);
+            for (int i = 0; i < BITMAP_WORDS; ++i) {
+                words[i] = ~words[i];
+            }
+            clearFrom(words, chunkLength);
+            return fromBitmap(words);
+        }
+
+        /**
+         * picks the smallest representation of the values in a sorted array, or returns null if it is empty
+         */
+        static Container fromArray(char[] values) {
+            if (values.length == 0) {
+                return null;
+            }
+            int numRuns = 1;
+            for (int i = 1; i < values.length; ++i) {
+                if (values[i] != values[i - 1] + 1) {
+                    ++numRuns;
+                }
+            }
+            if (4 * numRuns < 2 * values.length) {
+                final char[] runs = new char[2 * numRuns];
+                int run = 0;
+                runs[0] = values[0];
+                for (int i = 1; i < values.length; ++i) {
+                    if (values[i] != values[i - 1] + 1) {
+                        runs[2 * run + 1] = (char) (values[i - 1] - runs[2 * run]);
+                        ++run;
+                        runs[2 * run] = values[i];
+                    }
+                }
+                runs[2 * run + 1] = (char) (values[values.length - 1] - runs[2 * run]);
+                return new RunContainer(runs);
+            }
+            return new ArrayContainer(values);
+        }
+
+        /**
+         * picks the smallest representation of the values in a bitmap, or returns null if it is empty
+         */
+        static Container fromBitmap(long[] words) {
+            int cardinality = 0;
+            int numRuns = 0;
+            long carry = 0;
+            for (final long word : words) {
+                cardinality += Long.bitCount(word);
+                // a run starts at every set bit whose previous bit is clear
+                numRuns += Long.bitCount(word & ~((word << 1) | carry));
+                carry = word >>> 63;
+            }
+            if (cardinality == 0) {
+                return null;
+            }
+            final long runBytes = 4L * numRuns;
+            final long arrayBytes = cardinality <= MAX_ARRAY_SIZE ? 2L * cardinality : Long.MAX_VALUE;
+            final long bitmapBytes = 8L * BITMAP_WORDS;
+            if (runBytes < arrayBytes && runBytes < bitmapBytes) {
+                final char[] runs = new char[2 * numRuns];
+                int run = 0;
+                int start = -1;
+                for (int low = 0; low <= CHUNK_SIZE; ++low) {
+                    final boolean set = low < CHUNK_SIZE && (words[low >>> 6] & (1L << low)) != 0;
+                    if (set && start < 0) {
+                        start = low;
+                    } else if (!set && start >= 0) {
+                        runs[2 * run] = (char) start;
+                        runs[2 * run + 1] = (char) (low - 1 - start);
+                        ++run;
+                        start = -1;
+                    }
+                }
+                return new RunContainer(runs);
+            } else if (arrayBytes < bitmapBytes) {
+                final char[] values = new char[cardinality];
+                int count = 0;
+                for (int w = 0; w < BITMAP_WORDS; ++w) {
+                    long word = words[w];
+                    while (word != 0) {
+                        values[count++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+                return new ArrayContainer(values);
+            }
+            return new BitmapContainer(words.clone(), cardinality);
+        }
+    }
+
+    private static void clearFrom(long[] words, int low) {
+        if (low >= CHUNK_SIZE) {
+            return;
+        }
+        final int word = low >>> 6;
+        words[word] &= ~(-1L << low);
+        Arrays.fill(words, word + 1, words.length, 0L);
+    }
+
+    private static final class ArrayContainer extends Container {
+        private final char[] values;
+
+        private ArrayContainer(char[] values) {
+            this.values = values;
+        }
+
+        @Override
+        int cardinality() {
+            return values.length;
+        }
+
+        @Override
+        boolean contains(int low) {
+            return Arrays.binarySearch(values, (char) low) >= 0;
+        }
+
+        @Override
+        int nextValue(int low) {
+            int index = Arrays.binarySearch(values, (char) low);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return index < values.length ? values[index] : -1;
+        }
+
+        @Override
+        long memoryUsage() {
+            return 2L * values.length + 16;
+        }
+
+        @Override
+        void fillBitmap(long[] words) {
+            Arrays.fill(words, 0L);
+            for (final char value : values) {
+                words[value >>> 6] |= 1L << value;
+            }
+        }
+
+        @Override
+        void orInto(FastBitSet bitSet, int base) {
+            for (final char value : values) {
+                bitSet.set(base + value);
+            }
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) {
+                final char[] otherValues = ((ArrayContainer) other).values;
+                if (values.length * GALLOP_RATIO <= otherValues.length) {
+                    return fromArray(gallopingIntersect(values, otherValues));
+                } else if (otherValues.length * GALLOP_RATIO <= values.length) {
+                    return fromArray(gallopingIntersect(otherValues, values));
+                }
+                return fromArray(mergeIntersect(values, otherValues));
+            }
+            final char[] result = new char[values.length];
+            int count = 0;
+            for (final char value : values) {
+                if (other.contains(value)) {
+                    result[count++] = value;
+                }
+            }
+            return fromArray(Arrays.copyOf(result, count));
+        }
+
+        @Override
+        Container andNot(Container other) {
+            final char[] result = new char[values.length];
+            int count = 0;
+            for (final char value : values) {
+                if (!other.contains(value)) {
+                    result[count++] = value;
+                }
+            }
+            return fromArray(Arrays.copyOf(result, count));
+        }
+
+        @Override
+        Container or(Container other) {
+            if (other instanceof ArrayContainer && values.length + ((ArrayContainer) other).values.length <= MAX_ARRAY_SIZE) {
+                final char[] otherValues = ((ArrayContainer) other).values;
+                final char[] result = new char[values.length + otherValues.length];
+                int count = 0;
+                int i = 0;
+                int j = 0;
+                while (i < values.length || j < otherValues.length) {
+                    if (j == otherValues.length || (i < values.length && values[i] < otherValues[j])) {
+                        result[count++] = values[i++];
+                    } else if (i == values.length || values[i] > otherValues[j]) {
+                        result[count++] = otherValues[j++];
+                    } else {
+                        result[count++] = values[i++];
+                        ++j;
+                    }
+                }
+                return fromArray(Arrays.copyOf(result, count));
+            }
+            return super.or(other);
+        }
+
+        private static char[] mergeIntersect(char[] a, char[] b) {
+            final char[] result = new char[Math.min(a.length, b.length)];
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < a.length && j < b.length) {
+                if (a[i] < b[j]) {
+                    ++i;
+                } else if (a[i] > b[j]) {
+                    ++j;
+                } else {
+                    result[count++] = a[i];
+                    ++i;
+                    ++j;
+                }
+            }
+            return Arrays.copyOf(result, count);
+        }
+
+        /**
+         * intersects a small array with a much larger one by searching for each value of the small array with
+         * exponentially growing steps from the position of the previous one
+         */
+        private static char[] gallopingIntersect(char[] small, char[] large) {
+            final char[] result = new char[small.length];
+            int count = 0;
+            int lo = 0;
+            for (final char value : small) {
+                int step = 1;
+                int hi = lo;
+                while (hi < large.length && large[hi] < value) {
+                    lo = hi + 1;
+                    hi += step;
+                    step <<= 1;
+                }
+                hi = Math.min(hi, large.length - 1);
+                final int index = lo <= hi ? Arrays.binarySearch(large, lo, hi + 1, value) : -lo - 1;
+                if (index >= 0) {
+                    result[count++] = value;
+                    lo = index + 1;
+                } else {
+                    lo = -index - 1;
+                }
+                if (lo >= large.length) {
+                    break;
+                }
+            }
+            return Arrays.copyOf(result, count);
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        private final long[] words;
+        private final int cardinality;
+
+        private BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(int low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        int nextValue(int low) {
+            int w = low >>> 6;
+            long word = words[w] & (-1L << low);
+            while (word == 0) {
+                if (++w == BITMAP_WORDS) {
+                    return -1;
+                }
+                word = words[w];
+            }
+            return (w << 6) + Long.numberOfTrailingZeros(word);
+        }
+
+        @Override
+        long memoryUsage() {
+            return 8L * words.length + 24;
+        }
+
+        @Override
+        void fillBitmap(long[] dest) {
+            System.arraycopy(words, 0, dest, 0, BITMAP_WORDS);
+        }
+
+        @Override
+        void orInto(FastBitSet bitSet, int base) {
+            final int baseWord = base >>> 6;
+            final int numWords = (Math.min(bitSet.size() - base, CHUNK_SIZE) + 63) >>> 6;
+            for (int w = 0; w < numWords; ++w) {
+                bitSet.orWord(baseWord + w, words[w]);
+            }
+        }
+    }
+
+    /**
+     * runs are stored as (start, length - 1) pairs in increasing order
+     */
+    private static final class RunContainer extends Container {
+        private final char[] runs;
+        private final int cardinality;
+
+        private RunContainer(char[] runs) {
+            this.runs = runs;
+            int count = 0;
+            for (int i = 1; i < runs.length; i += 2) {
+                count += runs[i] + 1;
+            }
+            cardinality = count;
+        }
+
+        static RunContainer range(int length) {
+            return new RunContainer(new char[] { 0, (char) (length - 1) });
+        }
+
+        /**
+         * @return the index of the last run starting at or before low, or -1 if there is none
+         */
+        private int findRun(int low) {
+            int lo = 0;
+            int hi = runs.length / 2 - 1;
+            while (lo <= hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (runs[2 * mid] <= low) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return hi;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(int low) {
+            final int run = findRun(low);
+            return run >= 0 && low <= runs[2 * run] + runs[2 * run + 1];
+        }
+
+        @Override
+        int nextValue(int low) {
+            final int run = findRun(low);
+            if (run >= 0 && low <= runs[2 * run] + runs[2 * run + 1]) {
+                return low;
+            }
+            return 2 * (run + 1) < runs.length ? runs[2 * (run + 1)] : -1;
+        }
+
+        @Override
+        long memoryUsage() {
+            return 2L * runs.length + 24;
+        }
+
+        @Override
+        void fillBitmap(long[] words) {
+            Arrays.fill(words, 0L);
+            for (int i = 0; i < runs.length; i += 2) {
+                final int start = runs[i];
+                final int end = start + runs[i + 1] + 1;
+                final int startWord = start >>> 6;
+                final int endWord = (end - 1) >>> 6;
+                if (startWord == endWord) {
+                    words[startWord] |= (-1L << start) & (-1L >>> (63 - ((end - 1) & 63)));
+                } else {
+                    words[startWord] |= -1L << start;
+                    Arrays.fill(words, startWord + 1, endWord, -1L);
+                    words[endWord] |= -1L >>> (63 - ((end - 1) & 63));
+                }
+            }
+        }
+
+        @Override
+        void orInto(FastBitSet bitSet, int base) {
+            for (int i = 0; i < runs.length; i += 2) {
+                final int start = base + runs[i];
+                bitSet.setRange(start, Math.min(bitSet.size(), start + runs[i + 1] + 1));
+            }
+        }
+    }
+}
@@ -113,6 +113,14 @@ public final class FastBitSet {
             bits[i] ^= other.bits[i];
     }
 
+    final void andWord(final int index, final long word) {
+        bits[index] &= word;
+    }
+
+    final void orWord(final int index, final long word) {
+        bits[index] |= word;
+    }
+
     public final int cardinality() {
         if (size == 0) return 0;
         int count = 0;
@@ -20,5 +20,12 @@ import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
  */
 public interface FastBitSetPooler {
     FastBitSet create(int size) throws FlamdexOutOfMemoryException;
+
+    /**
+     * accounts for memory held by anything other than a FastBitSet from {@link #create}, such as a
+     * {@link CompressedBitSet}, which must be given back with {@link #release}
+     */
+    void claim(long bytes) throws FlamdexOutOfMemoryException;
+
     void release(long bytes);
 }
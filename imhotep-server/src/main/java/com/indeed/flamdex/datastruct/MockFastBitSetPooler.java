@@ -24,6 +24,10 @@ public class MockFastBitSetPooler implements FastBitSetPooler {
         return new FastBitSet(size);
     }
 
+    @Override
+    public void claim(long bytes) throws FlamdexOutOfMemoryException {
+    }
+
     @Override
     public void release(long bytes) {
     }
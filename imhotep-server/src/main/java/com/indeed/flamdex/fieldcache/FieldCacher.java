@@ -13,7 +13,6 @@
  */
  package com.indeed.flamdex.fieldcache;
 
-import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.io.Closer;
 import com.google.common.io.CountingOutputStream;
@@ -75,6 +74,10 @@ public enum FieldCacher {
             return new MMapLongArrayIntValueLookup(buffer, numDocs);
         }
         @Override
+        IntValueLookup openMMapFieldCache(File cacheFile, int numDocs) throws IOException {
+            return new MMapLongArrayIntValueLookup(new MMapBuffer(cacheFile, FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN), numDocs);
+        }
+        @Override
         public String getMMapFileName(String field) {
             return "fld-" + field + ".longcache";
         }
@@ -105,6 +108,10 @@ public enum FieldCacher {
             return new MMapIntArrayIntValueLookup(buffer, numDocs);
         }
         @Override
+        IntValueLookup openMMapFieldCache(File cacheFile, int numDocs) throws IOException {
+            return new MMapIntArrayIntValueLookup(new MMapBuffer(cacheFile, FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN), numDocs);
+        }
+        @Override
         public String getMMapFileName(String field) {
             return "fld-" + field + ".intcache";
         }
@@ -135,6 +142,10 @@ public enum FieldCacher {
             return new MMapCharArrayIntValueLookup(buffer, numDocs);
         }
         @Override
+        IntValueLookup openMMapFieldCache(File cacheFile, int numDocs) throws IOException {
+            return new MMapCharArrayIntValueLookup(new MMapBuffer(cacheFile, FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN), numDocs);
+        }
+        @Override
         public String getMMapFileName(String field) {
             return "fld-" + field + ".charcache";
         }
@@ -165,6 +176,10 @@ public enum FieldCacher {
             return new MMapShortArrayIntValueLookup(buffer, numDocs);
         }
         @Override
+        IntValueLookup openMMapFieldCache(File cacheFile, int numDocs) throws IOException {
+            return new MMapShortArrayIntValueLookup(new MMapBuffer(cacheFile, FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN), numDocs);
+        }
+        @Override
         public String getMMapFileName(String field) {
             return "fld-" + field + ".shortcache";
         }
@@ -195,6 +210,10 @@ public enum FieldCacher {
             return new MMapByteArrayIntValueLookup(buffer, numDocs);
         }
         @Override
+        IntValueLookup openMMapFieldCache(File cacheFile, int numDocs) throws IOException {
+            return new MMapByteArrayIntValueLookup(new MMapBuffer(cacheFile, FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN), numDocs);
+        }
+        @Override
         public String getMMapFileName(String field) {
             return "fld-" + field + ".bytecache";
         }
@@ -225,6 +244,10 @@ public enum FieldCacher {
             return new MMapSignedByteArrayIntValueLookup(buffer, numDocs);
         }
         @Override
+        IntValueLookup openMMapFieldCache(File cacheFile, int numDocs) throws IOException {
+            return new MMapSignedByteArrayIntValueLookup(new MMapBuffer(cacheFile, FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN), numDocs);
+        }
+        @Override
         public String getMMapFileName(String field) {
             return "fld-" + field + ".sbytecache";
         }
@@ -255,6 +278,10 @@ public enum FieldCacher {
             return new MMapBitSetIntValueLookup(bitSet);
         }
         @Override
+        IntValueLookup openMMapFieldCache(File cacheFile, int numDocs) throws IOException {
+            return new MMapBitSetIntValueLookup(cacheFile, numDocs);
+        }
+        @Override
         public String getMMapFileName(String field) {
             return "fld-" + field + ".bitsetcache";
         }
@@ -338,8 +365,16 @@ public enum FieldCacher {
 
     public abstract IntValueLookup newMMapFieldCache(UnsortedIntTermDocIterator iterator, int numDocs, String field, String directory) throws IOException;
 
-    @VisibleForTesting
-    abstract String getMMapFileName(String field);
+    /**
+     * maps a cache file that was written ahead of time, throwing {@link FileNotFoundException} if the field has none
+     */
+    public final IntValueLookup openMMapFieldCache(String field, String directory, int numDocs) throws IOException {
+        return openMMapFieldCache(new File(directory, getMMapFileName(field)), numDocs);
+    }
+
+    abstract IntValueLookup openMMapFieldCache(File cacheFile, int numDocs) throws IOException;
+
+    public abstract String getMMapFileName(String field);
 
     public static FieldCacher getCacherForField(String field, FlamdexReader r) {
         final long[] minMaxTerm = FlamdexUtils.getMinMaxTerm(field, r);
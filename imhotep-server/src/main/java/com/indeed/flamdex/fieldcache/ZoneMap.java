@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.api.IntValueLookup;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * The minimum and maximum metric value of an int field in each block of {@link #BLOCK_SIZE} consecutive documents.
+ *
+ * Range filters and regroups use it to decide a whole block without looking up its values, which prunes most of a
+ * shard whose documents are ordered by the field, such as a time sorted shard filtered on unixtime.
+ */
+public final class ZoneMap {
+    private static final Logger log = Logger.getLogger(ZoneMap.class);
+
+    public static final int BLOCK_SIZE = 4096;
+
+    private final int numDocs;
+    private final long[] mins;
+    private final long[] maxes;
+
+    private ZoneMap(int numDocs, long[] mins, long[] maxes) {
+        this.numDocs = numDocs;
+        this.mins = mins;
+        this.maxes = maxes;
+    }
+
+    public static String getFileName(String field) {
+        return "fld-" + field + ".zonemap";
+    }
+
+    public static long memoryRequired(int numDocs) {
+        return 16L * getNumBlocks(numDocs);
+    }
+
+    private static int getNumBlocks(int numDocs) {
+        return (numDocs + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    public static ZoneMap build(IntValueLookup lookup, int numDocs) {
+        final int numBlocks = getNumBlocks(numDocs);
+        final long[] mins = new long[numBlocks];
+        final long[] maxes = new long[numBlocks];
+        final int[] docIds = new int[BLOCK_SIZE];
+        final long[] values = new long[BLOCK_SIZE];
+        for (int block = 0; block < numBlocks; ++block) {
+            final int start = block * BLOCK_SIZE;
+            final int n = Math.min(BLOCK_SIZE, numDocs - start);
+            for (int i = 0; i < n; ++i) {
+                docIds[i] = start + i;
+            }
+            lookup.lookup(docIds, values, n);
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < n; ++i) {
+                min = Math.min(min, values[i]);
+                max = Math.max(max, values[i]);
+            }
+            mins[block] = min;
+            maxes[block] = max;
+        }
+        return new ZoneMap(numDocs, mins, maxes);
+    }
+
+    /**
+     * @throws FileNotFoundException if there is no zone map for this many documents in the file
+     */
+    public static ZoneMap read(File file, int numDocs) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != numDocs) {
+                throw new FileNotFoundException(file + " is stale");
+            }
+            final int numBlocks = getNumBlocks(numDocs);
+            final long[] mins = new long[numBlocks];
+            final long[] maxes = new long[numBlocks];
+            for (int block = 0; block < numBlocks; ++block) {
+                mins[block] = in.readLong();
+                maxes[block] = in.readLong();
+            }
+            return new ZoneMap(numDocs, mins, maxes);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void write(File file) throws IOException {
+        final File tmp = new File(file.getParentFile(), file.getName() + "." + UUID.randomUUID());
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(numDocs);
+                for (int block = 0; block < mins.length; ++block) {
+                    out.writeLong(mins[block]);
+                    out.writeLong(maxes[block]);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("unable to rename " + tmp + " to " + file);
+            }
+        } finally {
+            if (tmp.exists() && !tmp.delete()) {
+                log.error("unable to delete file " + tmp);
+            }
+        }
+    }
+
+    /**
+     * Returns the zone map written along with the index in the directory, or builds it from the lookup if there is
+     * none. Building it does not write it out, the shard directory may be read only or shared with other readers.
+     */
+    public static ZoneMap readOrBuild(@Nullable String directory, String field, IntValueLookup lookup, int numDocs) {
+        if (directory != null) {
+            final File file = new File(directory, getFileName(field));
+            try {
+                return read(file, numDocs);
+            } catch (FileNotFoundException e) {
+                // not written with the index
+            } catch (IOException e) {
+                log.warn("unable to read zone map " + file + ", building it", e);
+            }
+        }
+        return build(lookup, numDocs);
+    }
+
+    /**
+     * Returns the zone map of an int field kept in memory by the reader, or null if the reader does not keep zone maps.
+     */
+    @Nullable
+    public static ZoneMap get(FlamdexReader reader, String field, IntValueLookup lookup) {
+        if (reader instanceof ZoneMapReader) {
+            return ((ZoneMapReader) reader).getZoneMap(field, lookup);
+        }
+        return null;
+    }
+
+    public int getNumBlocks() {
+        return mins.length;
+    }
+
+    public long getMin(int block) {
+        return mins[block];
+    }
+
+    public long getMax(int block) {
+        return maxes[block];
+    }
+
+    public long memoryUsed() {
+        return 16L * mins.length;
+    }
+}
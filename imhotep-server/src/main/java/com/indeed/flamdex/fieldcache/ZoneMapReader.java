@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.indeed.flamdex.api.IntValueLookup;
+
+import javax.annotation.Nullable;
+
+/**
+ * A flamdex reader that keeps the {@link ZoneMap}s of its int fields in memory for as long as it is open.
+ */
+public interface ZoneMapReader {
+    /**
+     * @param lookup the field's metric, used to build the zone map if it is not in memory or on disk yet
+     * @return the zone map of the int field, or null if there is none
+     */
+    @Nullable
+    ZoneMap getZoneMap(String field, IntValueLookup lookup);
+}
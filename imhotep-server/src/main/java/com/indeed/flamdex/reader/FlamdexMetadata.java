@@ -23,6 +23,7 @@ import org.yaml.snakeyaml.JavaBeanLoader;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
 /**
@@ -33,6 +34,10 @@ public class FlamdexMetadata {
     public List<String> intFields;
     public List<String> stringFields;
     public int formatVersion;
+    /** int field to the name of the FieldCacher whose mmap cache file was written with the index, null if none were */
+    public Map<String, String> metricCaches;
+    /** the key documents are ordered by, see {@link com.indeed.flamdex.utils.FlamdexSort#getOldDocIdToNewDocId}, null if unordered */
+    public List<String> sortKey;
 
     public FlamdexMetadata() {
     }
@@ -76,6 +81,22 @@ public class FlamdexMetadata {
         this.formatVersion = formatVersion;
     }
 
+    public Map<String, String> getMetricCaches() {
+        return metricCaches;
+    }
+
+    public void setMetricCaches(final Map<String, String> metricCaches) {
+        this.metricCaches = metricCaches;
+    }
+
+    public List<String> getSortKey() {
+        return sortKey;
+    }
+
+    public void setSortKey(final List<String> sortKey) {
+        this.sortKey = sortKey;
+    }
+
     public static FlamdexMetadata readMetadata(final String directory) throws IOException {
         JavaBeanLoader<FlamdexMetadata> loader = new JavaBeanLoader<FlamdexMetadata>(FlamdexMetadata.class);
         File metadataFile;
@@ -15,18 +15,33 @@
 
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.datastruct.CompressedBitSet;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
 import com.indeed.flamdex.query.BooleanOp;
+import org.apache.log4j.Logger;
 
+import javax.annotation.Nullable;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
+ * Conjunctions are planned from the doc frequency estimates of their operands: the most selective operand is
+ * evaluated first and, if it reads few enough postings, its matches become a set of candidates that every later
+ * operand only has to check, so the postings and metrics of the other operands are never expanded into a bitset
+ * over the whole shard and nothing at all is evaluated once the candidates run out.
+ *
  * @author jsgroth
  */
 class BooleanQueryEvaluator implements QueryEvaluator {
+    private static final Logger log = Logger.getLogger(BooleanQueryEvaluator.class);
+
     private final BooleanOp operator;
     private final List<? extends QueryEvaluator> operands;
+    /** whether the whole query can be evaluated from postings as a {@link CompressedBitSet} */
+    private final boolean postingsOnly;
+    /** whether the whole query can be checked against a set of candidates */
+    private final boolean candidateOnly;
 
     BooleanQueryEvaluator(BooleanOp operator, List<? extends QueryEvaluator> operands) {
         if (operator == BooleanOp.NOT && operands.size() != 1) {
@@ -34,14 +49,268 @@ class BooleanQueryEvaluator implements QueryEvaluator {
         }
         this.operator = operator;
         this.operands = operands;
+        boolean allPostings = true;
+        boolean allCandidates = true;
+        for (final QueryEvaluator operand : operands) {
+            allPostings &= isPostingsOnly(operand);
+            allCandidates &= isCandidateQuery(operand);
+        }
+        postingsOnly = operator != BooleanOp.NOT && allPostings;
+        candidateOnly = allCandidates;
+    }
+
+    BooleanOp getOperator() {
+        return operator;
+    }
+
+    List<? extends QueryEvaluator> getOperands() {
+        return operands;
+    }
+
+    private static boolean isPostingsOnly(QueryEvaluator evaluator) {
+        if (evaluator instanceof BooleanQueryEvaluator) {
+            return ((BooleanQueryEvaluator) evaluator).postingsOnly;
+        }
+        return evaluator instanceof PostingsQueryEvaluator;
+    }
+
+    static boolean isCandidateQuery(QueryEvaluator evaluator) {
+        if (evaluator instanceof BooleanQueryEvaluator) {
+            return ((BooleanQueryEvaluator) evaluator).candidateOnly;
+        }
+        return evaluator instanceof CandidateQueryEvaluator;
+    }
+
+    /**
+     * @return the number of postings read by a query for which {@link #isPostingsOnly} is true, which bounds both
+     *         the number of documents it matches and the memory needed to evaluate it as {@link CompressedBitSet}s
+     */
+    private static long countPostings(QueryEvaluator evaluator, FlamdexReader r) {
+        if (evaluator instanceof BooleanQueryEvaluator) {
+            return countPostings(((BooleanQueryEvaluator) evaluator).operands, r);
+        }
+        return ((PostingsQueryEvaluator) evaluator).countPostings(r);
+    }
+
+    private static long countPostings(List<? extends QueryEvaluator> operands, FlamdexReader r) {
+        long count = 0;
+        for (final QueryEvaluator operand : operands) {
+            count += countPostings(operand, r);
+        }
+        return count;
+    }
+
+    @Override
+    public long estimateDocCount(FlamdexReader r) {
+        if (operator == BooleanOp.NOT) {
+            return Math.max(0, r.getNumDocs() - operands.get(0).estimateDocCount(r));
+        }
+        long count = operator == BooleanOp.AND ? r.getNumDocs() : 0;
+        for (final QueryEvaluator operand : operands) {
+            if (operator == BooleanOp.AND) {
+                count = Math.min(count, operand.estimateDocCount(r));
+            } else {
+                count += operand.estimateDocCount(r);
+            }
+        }
+        return Math.min(r.getNumDocs(), count);
+    }
+
+    /**
+     * @return the operands ordered from the most selective to the least
+     */
+    private static List<QueryEvaluator> plan(BooleanOp operator, List<? extends QueryEvaluator> operands, FlamdexReader r) {
+        final List<QueryEvaluator> plan = new ArrayList<QueryEvaluator>(operands);
+        final long[] estimates = new long[plan.size()];
+        for (int i = 0; i < estimates.length; ++i) {
+            estimates[i] = plan.get(i).estimateDocCount(r);
+        }
+        // insertion sort, which keeps the query order among equal estimates and there are only a few operands
+        for (int i = 1; i < estimates.length; ++i) {
+            final long estimate = estimates[i];
+            final QueryEvaluator operand = plan.get(i);
+            int j = i;
+            for (; j > 0 && estimates[j - 1] > estimate; --j) {
+                estimates[j] = estimates[j - 1];
+                plan.set(j, plan.get(j - 1));
+            }
+            estimates[j] = estimate;
+            plan.set(j, operand);
+        }
+        if (log.isDebugEnabled()) {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(operator).append(" of ").append(r.getNumDocs()).append(" docs:");
+            for (int i = 0; i < estimates.length; ++i) {
+                sb.append(" [").append(plan.get(i)).append(" ~").append(estimates[i]).append(']');
+            }
+            log.debug(sb);
+        }
+        return plan;
+    }
+
+    /**
+     * @return the documents matching a query for which {@link #isPostingsOnly} is true, with their memory claimed
+     */
+    private static CompressedBitSet searchPostings(QueryEvaluator evaluator, FlamdexReader r, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        if (evaluator instanceof BooleanQueryEvaluator) {
+            final BooleanQueryEvaluator booleanEvaluator = (BooleanQueryEvaluator) evaluator;
+            if (booleanEvaluator.operator == BooleanOp.AND) {
+                final List<QueryEvaluator> plan = plan(BooleanOp.AND, booleanEvaluator.operands, r);
+                return narrow(searchPostings(plan.get(0), r, bitSetPooler), plan, r, bitSetPooler, null);
+            } else {
+                return union(booleanEvaluator.operands, null, r, bitSetPooler);
+            }
+        }
+        return ((PostingsQueryEvaluator) evaluator).search(r, bitSetPooler);
+    }
+
+    /**
+     * @return the candidates matched by a query for which {@link #isCandidateQuery} is true, with their memory claimed
+     */
+    static CompressedBitSet filter(QueryEvaluator evaluator, FlamdexReader r, CompressedBitSet candidates, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        if (evaluator instanceof BooleanQueryEvaluator) {
+            final BooleanQueryEvaluator booleanEvaluator = (BooleanQueryEvaluator) evaluator;
+            if (booleanEvaluator.operator == BooleanOp.AND) {
+                final List<QueryEvaluator> plan = plan(BooleanOp.AND, booleanEvaluator.operands, r);
+                return narrow(filter(plan.get(0), r, candidates, bitSetPooler), plan, r, bitSetPooler, null);
+            } else if (booleanEvaluator.operator == BooleanOp.OR) {
+                return union(booleanEvaluator.operands, candidates, r, bitSetPooler);
+            } else {
+                final CompressedBitSet matches = filter(booleanEvaluator.operands.get(0), r, candidates, bitSetPooler);
+                try {
+                    return CompressedBitSets.claim(candidates.andNot(matches), bitSetPooler);
+                } finally {
+                    CompressedBitSets.release(matches, bitSetPooler);
+                }
+            }
+        }
+        return ((CandidateQueryEvaluator) evaluator).filter(r, candidates, bitSetPooler);
+    }
+
+    /**
+     * Checks the candidates matched by the first operand of a plan against the other operands in order, stopping as
+     * soon as there are none left. Operands that cannot be checked against candidates are added to deferred, which
+     * may only be null if there are none.
+     *
+     * @param candidates released by this method, the result is claimed in its place
+     */
+    private static CompressedBitSet narrow(CompressedBitSet candidates, List<QueryEvaluator> plan, FlamdexReader r, FastBitSetPooler bitSetPooler, @Nullable List<QueryEvaluator> deferred) throws FlamdexOutOfMemoryException {
+        try {
+            for (int i = 1; i < plan.size() && !candidates.isEmpty(); ++i) {
+                final QueryEvaluator operand = plan.get(i);
+                if (isCandidateQuery(operand)) {
+                    final CompressedBitSet next = filter(operand, r, candidates, bitSetPooler);
+                    CompressedBitSets.release(candidates, bitSetPooler);
+                    candidates = next;
+                } else if (deferred != null) {
+                    deferred.add(operand);
+                } else {
+                    throw new IllegalStateException("bug, " + operand + " cannot be checked against candidates");
+                }
+            }
+            final CompressedBitSet ret = candidates;
+            candidates = null;
+            return ret;
+        } finally {
+            if (candidates != null) {
+                CompressedBitSets.release(candidates, bitSetPooler);
+            }
+        }
+    }
+
+    /**
+     * @param candidates if not null, only the candidates matched by the operands are returned
+     */
+    private static CompressedBitSet union(List<? extends QueryEvaluator> operands, @Nullable CompressedBitSet candidates, FlamdexReader r, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        CompressedBitSet result = null;
+        try {
+            for (final QueryEvaluator operand : operands) {
+                final CompressedBitSet matches = candidates == null ? searchPostings(operand, r, bitSetPooler) : filter(operand, r, candidates, bitSetPooler);
+                if (result == null) {
+                    result = matches;
+                } else {
+                    final CompressedBitSet merged;
+                    try {
+                        merged = CompressedBitSets.claim(result.or(matches), bitSetPooler);
+                    } finally {
+                        CompressedBitSets.release(matches, bitSetPooler);
+                    }
+                    CompressedBitSets.release(result, bitSetPooler);
+                    result = merged;
+                }
+            }
+            final CompressedBitSet ret = result;
+            result = null;
+            return ret;
+        } finally {
+            if (result != null) {
+                CompressedBitSets.release(result, bitSetPooler);
+            }
+        }
+    }
+
+    /**
+     * @return the candidates of this AND from the most selective operand of the plan with their memory claimed, or
+     *         null if that operand does not read few enough postings to be evaluated as a {@link CompressedBitSet}
+     */
+    @Nullable
+    private static CompressedBitSet searchCandidates(List<QueryEvaluator> plan, FlamdexReader r, FastBitSetPooler bitSetPooler, List<QueryEvaluator> deferred) throws FlamdexOutOfMemoryException {
+        final QueryEvaluator seed = plan.get(0);
+        if (!isPostingsOnly(seed) || !CompressedBitSets.isSparse(countPostings(seed, r), r.getNumDocs())) {
+            return null;
+        }
+        return narrow(searchPostings(seed, r, bitSetPooler), plan, r, bitSetPooler, deferred);
+    }
+
+    /**
+     * @return whether all operands of this query can be evaluated as {@link CompressedBitSet}s that take less
+     *         memory than a bitset over the shard
+     */
+    private boolean isSparsePostings(FlamdexReader r) {
+        for (final QueryEvaluator operand : operands) {
+            if (!isPostingsOnly(operand)) {
+                return false;
+            }
+        }
+        return CompressedBitSets.isSparse(countPostings(operands, r), r.getNumDocs());
     }
 
     @Override
     public void and(FlamdexReader r, FastBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
         if (operator == BooleanOp.AND) {
-            for (final QueryEvaluator operand : operands) {
+            final List<QueryEvaluator> plan = plan(operator, operands, r);
+            final List<QueryEvaluator> deferred = new ArrayList<QueryEvaluator>();
+            final CompressedBitSet candidates = searchCandidates(plan, r, bitSetPooler, deferred);
+            if (candidates == null) {
+                for (final QueryEvaluator operand : plan) {
+                    operand.and(r, bitSet, bitSetPooler);
+                }
+                return;
+            }
+            try {
+                if (candidates.isEmpty()) {
+                    bitSet.clearAll();
+                    return;
+                }
+                candidates.andInto(bitSet);
+            } finally {
+                CompressedBitSets.release(candidates, bitSetPooler);
+            }
+            for (final QueryEvaluator operand : deferred) {
                 operand.and(r, bitSet, bitSetPooler);
             }
+        } else if (isSparsePostings(r)) {
+            // an OR of postings, or the NOT of one, without a temporary bitset over the whole shard
+            final CompressedBitSet docs = operator == BooleanOp.OR ? union(operands, null, r, bitSetPooler) : searchPostings(operands.get(0), r, bitSetPooler);
+            try {
+                if (operator == BooleanOp.OR) {
+                    docs.andInto(bitSet);
+                } else {
+                    docs.andNotInto(bitSet);
+                }
+            } finally {
+                CompressedBitSets.release(docs, bitSetPooler);
+            }
         } else {
             FastBitSet tmp = bitSetPooler.create(bitSet.size());
             try {
@@ -68,11 +337,27 @@ class BooleanQueryEvaluator implements QueryEvaluator {
                 operand.or(r, bitSet, bitSetPooler);
             }
         } else {
-            FastBitSet tmp = bitSetPooler.create(bitSet.size());
+            final List<QueryEvaluator> deferred = new ArrayList<QueryEvaluator>();
+            final CompressedBitSet candidates = operator == BooleanOp.AND ? searchCandidates(plan(operator, operands, r), r, bitSetPooler, deferred) : null;
+            if (candidates != null && deferred.isEmpty()) {
+                try {
+                    candidates.orInto(bitSet);
+                } finally {
+                    CompressedBitSets.release(candidates, bitSetPooler);
+                }
+                return;
+            }
+            FastBitSet tmp = null;
             try {
-                if (operator == BooleanOp.AND) {
+                tmp = bitSetPooler.create(bitSet.size());
+                if (candidates != null) {
+                    candidates.orInto(tmp);
+                    for (final QueryEvaluator operand : deferred) {
+                        operand.and(r, tmp, bitSetPooler);
+                    }
+                } else if (operator == BooleanOp.AND) {
                     tmp.setAll();
-                    for (final QueryEvaluator operand : operands) {
+                    for (final QueryEvaluator operand : plan(operator, operands, r)) {
                         operand.and(r, tmp, bitSetPooler);
                     }
                 } else {
@@ -80,9 +365,14 @@ class BooleanQueryEvaluator implements QueryEvaluator {
                 }
                 bitSet.or(tmp);
             } finally {
-                final long bytes = tmp.memoryUsage();
-                tmp = null;
-                bitSetPooler.release(bytes);
+                if (candidates != null) {
+                    CompressedBitSets.release(candidates, bitSetPooler);
+                }
+                if (tmp != null) {
+                    final long bytes = tmp.memoryUsage();
+                    tmp = null;
+                    bitSetPooler.release(bytes);
+                }
             }
         }
     }
@@ -93,9 +383,7 @@ class BooleanQueryEvaluator implements QueryEvaluator {
             throw new IllegalArgumentException("invalid query tree, two NOTs in a row is not allowed");
         } else if (operator == BooleanOp.AND) {
             bitSet.setAll();
-            for (final QueryEvaluator operand : operands) {
-                operand.and(r, bitSet, bitSetPooler);
-            }
+            and(r, bitSet, bitSetPooler);
         } else {
             bitSet.clearAll();
             for (final QueryEvaluator operand : operands) {
@@ -104,4 +392,17 @@ class BooleanQueryEvaluator implements QueryEvaluator {
         }
         bitSet.invertAll();
     }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(operator).append('(');
+        for (int i = 0; i < operands.size(); ++i) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(operands.get(i));
+        }
+        return sb.append(')').toString();
+    }
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.search;
+
+import com.indeed.flamdex.api.DocIdStream;
+import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
+import com.indeed.flamdex.datastruct.CompressedBitSet;
+import com.indeed.flamdex.datastruct.FastBitSetPooler;
+
+/**
+ * Marks which of a set of candidate documents appear in the postings visited, seeking through the candidates with
+ * exponentially growing steps so that postings far denser than the candidates cost little more than reading them.
+ */
+final class CandidateMatcher implements PostingsVisitor {
+    private static final int BUFFER_SIZE = 64;
+
+    private final int size;
+    private final int[] docs;
+    private final boolean[] matched;
+    private final int[] docIdBuffer = new int[BUFFER_SIZE];
+
+    private CandidateMatcher(CompressedBitSet candidates) {
+        size = candidates.size();
+        docs = new int[candidates.cardinality()];
+        matched = new boolean[docs.length];
+        final CompressedBitSet.IntIterator iterator = candidates.iterator();
+        for (int i = 0; iterator.next(); ++i) {
+            docs[i] = iterator.getValue();
+        }
+    }
+
+    /**
+     * creates a matcher whose memory usage is claimed from bitSetPooler, give it back with {@link #release}
+     */
+    static CandidateMatcher create(CompressedBitSet candidates, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        bitSetPooler.claim(memoryUsage(candidates.cardinality()));
+        return new CandidateMatcher(candidates);
+    }
+
+    private static long memoryUsage(int numCandidates) {
+        return 5L * numCandidates;
+    }
+
+    void release(FastBitSetPooler bitSetPooler) {
+        bitSetPooler.release(memoryUsage(docs.length));
+    }
+
+    @Override
+    public void visit(DocIdStream docIdStream) {
+        int index = 0;
+        while (index < docs.length) {
+            final int n = docIdStream.fillDocIdBuffer(docIdBuffer);
+            for (int i = 0; i < n && index < docs.length; ++i) {
+                index = seek(index, docIdBuffer[i]);
+                if (index < docs.length && docs[index] == docIdBuffer[i]) {
+                    matched[index++] = true;
+                }
+            }
+            if (n < docIdBuffer.length) break;
+        }
+    }
+
+    /**
+     * @return the index of the first candidate at or after index that is not less than doc
+     */
+    private int seek(int index, int doc) {
+        int step = 1;
+        int hi = index;
+        while (hi < docs.length && docs[hi] < doc) {
+            index = hi + 1;
+            hi += step;
+            step <<= 1;
+        }
+        hi = Math.min(hi, docs.length);
+        while (index < hi) {
+            final int mid = (index + hi) >>> 1;
+            if (docs[mid] < doc) {
+                index = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return the candidates that were matched, with their memory usage claimed from bitSetPooler
+     */
+    CompressedBitSet getMatches(FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        final CompressedBitSet.Builder builder = new CompressedBitSet.Builder(size);
+        for (int i = 0; i < docs.length; ++i) {
+            if (matched[i]) {
+                builder.add(docs[i]);
+            }
+        }
+        return CompressedBitSets.claim(builder.build(), bitSetPooler);
+    }
+}
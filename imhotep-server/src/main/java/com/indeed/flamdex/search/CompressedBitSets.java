@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.search;
+
+import com.indeed.flamdex.api.DocIdStream;
+import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
+import com.indeed.flamdex.datastruct.CompressedBitSet;
+import com.indeed.flamdex.datastruct.FastBitSet;
+import com.indeed.flamdex.datastruct.FastBitSetPooler;
+
+import java.util.Arrays;
+
+/**
+ * Helpers for building {@link CompressedBitSet}s from postings with their memory claimed from a {@link FastBitSetPooler}.
+ */
+final class CompressedBitSets {
+    private static final int BUFFER_SIZE = 64;
+
+    private CompressedBitSets() {
+    }
+
+    /**
+     * @return whether buffering numPostings doc ids takes less memory than a bitset over numDocs documents
+     */
+    static boolean isSparse(long numPostings, int numDocs) {
+        return 4L * numPostings < FastBitSet.calculateMemoryUsage(numDocs);
+    }
+
+    /**
+     * builds a set from the doc ids of a stream that has been reset to a term
+     */
+    static CompressedBitSet fromDocIdStream(DocIdStream docIdStream, int numDocs, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        final CompressedBitSet.Builder builder = new CompressedBitSet.Builder(numDocs);
+        final int[] docIdBuffer = new int[BUFFER_SIZE];
+        while (true) {
+            final int n = docIdStream.fillDocIdBuffer(docIdBuffer);
+            for (int i = 0; i < n; ++i) {
+                builder.add(docIdBuffer[i]);
+            }
+            if (n < docIdBuffer.length) break;
+        }
+        return claim(builder.build(), bitSetPooler);
+    }
+
+    /**
+     * appends the doc ids of a stream that has been reset to a term to docs, starting at offset
+     *
+     * @return the offset after the last doc id read
+     */
+    static int readDocIdStream(DocIdStream docIdStream, int[] docs, int offset) {
+        final int[] docIdBuffer = new int[BUFFER_SIZE];
+        while (true) {
+            final int n = docIdStream.fillDocIdBuffer(docIdBuffer);
+            System.arraycopy(docIdBuffer, 0, docs, offset, n);
+            offset += n;
+            if (n < docIdBuffer.length) break;
+        }
+        return offset;
+    }
+
+    /**
+     * sorts the first n doc ids of docs in place and builds a set from them
+     */
+    static CompressedBitSet fromDocs(int[] docs, int n, int numDocs, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        Arrays.sort(docs, 0, n);
+        final CompressedBitSet.Builder builder = new CompressedBitSet.Builder(numDocs);
+        for (int i = 0; i < n; ++i) {
+            builder.add(docs[i]);
+        }
+        return claim(builder.build(), bitSetPooler);
+    }
+
+    static CompressedBitSet fromBitSet(FastBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        final CompressedBitSet.Builder builder = new CompressedBitSet.Builder(bitSet.size());
+        final FastBitSet.IntIterator iterator = bitSet.iterator();
+        while (iterator.next() && iterator.getValue() < bitSet.size()) {
+            builder.add(iterator.getValue());
+        }
+        return claim(builder.build(), bitSetPooler);
+    }
+
+    static CompressedBitSet claim(CompressedBitSet set, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        bitSetPooler.claim(set.memoryUsage());
+        return set;
+    }
+
+    static void release(CompressedBitSet set, FastBitSetPooler bitSetPooler) {
+        bitSetPooler.release(set.memoryUsage());
+    }
+
+    /**
+     * appends the doc ids of every visited term to an array that must be large enough to hold all of them
+     */
+    static final class DocCollector implements PostingsVisitor {
+        private final int[] docs;
+        private int size = 0;
+
+        DocCollector(int capacity) {
+            docs = new int[capacity];
+        }
+
+        @Override
+        public void visit(DocIdStream docIdStream) {
+            size = readDocIdStream(docIdStream, docs, size);
+        }
+
+        /**
+         * @return a set of the collected doc ids, which may contain duplicates, with its memory claimed
+         */
+        CompressedBitSet build(int numDocs, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+            return fromDocs(docs, size, numDocs, bitSetPooler);
+        }
+    }
+}
@@ -17,6 +17,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.datastruct.CompressedBitSet;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
 import com.indeed.flamdex.datastruct.MockFastBitSetPooler;
@@ -27,6 +28,7 @@ import com.indeed.flamdex.query.Term;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -57,6 +59,33 @@ public class FlamdexSearcher {
         evaluator.or(r, bitSet, bitSetPooler);
     }
 
+    /**
+     * Like {@link #search(Query, FastBitSet, FastBitSetPooler)} but only sets the candidates matching the query. When
+     * the whole query can be checked against candidates, nothing outside of them is ever read.
+     */
+    public void search(final Query query, final CompressedBitSet candidates, final FastBitSet bitSet, final FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        final QueryEvaluator evaluator = rewriteQuery(query);
+        if (BooleanQueryEvaluator.isCandidateQuery(evaluator)) {
+            final CompressedBitSet matches = BooleanQueryEvaluator.filter(evaluator, r, candidates, bitSetPooler);
+            try {
+                matches.orInto(bitSet);
+            } finally {
+                CompressedBitSets.release(matches, bitSetPooler);
+            }
+            return;
+        }
+        FastBitSet localBitSet = bitSetPooler.create(r.getNumDocs());
+        try {
+            evaluator.or(r, localBitSet, bitSetPooler);
+            candidates.andInto(localBitSet);
+            bitSet.or(localBitSet);
+        } finally {
+            final long memUsage = localBitSet.memoryUsage();
+            localBitSet = null;
+            bitSetPooler.release(memUsage);
+        }
+    }
+
     private static QueryEvaluator rewriteQuery(final Query query) {
         switch (query.getQueryType()) {
             case TERM:
@@ -64,6 +93,8 @@ public class FlamdexSearcher {
             case BOOLEAN:
                 if (query.getOperator() == BooleanOp.OR) {
                     return rewriteOr(query);
+                } else if (query.getOperator() == BooleanOp.NOT) {
+                    return negate(rewriteQuery(query.getOperands().get(0)));
                 } else {
                     final List<QueryEvaluator> operands = new ArrayList<QueryEvaluator>(query.getOperands().size());
                     for (final Query operand : query.getOperands()) {
@@ -82,6 +113,29 @@ public class FlamdexSearcher {
         }
     }
 
+    /*
+    Push NOTs down so that the planner in BooleanQueryEvaluator sees the operands of a negated OR as operands of an AND
+    and can order them with the rest of the enclosing conjunction
+        - NOT(NOT(x)) becomes x
+        - NOT(x OR y) becomes NOT(x) AND NOT(y)
+     */
+    private static QueryEvaluator negate(final QueryEvaluator evaluator) {
+        if (evaluator instanceof BooleanQueryEvaluator) {
+            final BooleanQueryEvaluator booleanEvaluator = (BooleanQueryEvaluator) evaluator;
+            if (booleanEvaluator.getOperator() == BooleanOp.NOT) {
+                return booleanEvaluator.getOperands().get(0);
+            }
+            if (booleanEvaluator.getOperator() == BooleanOp.OR && booleanEvaluator.getOperands().size() > 1) {
+                final List<QueryEvaluator> operands = new ArrayList<QueryEvaluator>(booleanEvaluator.getOperands().size());
+                for (final QueryEvaluator operand : booleanEvaluator.getOperands()) {
+                    operands.add(negate(operand));
+                }
+                return new BooleanQueryEvaluator(BooleanOp.AND, operands);
+            }
+        }
+        return new BooleanQueryEvaluator(BooleanOp.NOT, Collections.singletonList(evaluator));
+    }
+
     /*
     Separate into two categories of operands
         - term queries
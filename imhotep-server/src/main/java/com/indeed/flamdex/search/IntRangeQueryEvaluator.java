@@ -15,16 +15,23 @@
 
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.api.IntTermIterator;
 import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.flamdex.datastruct.CompressedBitSet;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
+import com.indeed.flamdex.fieldcache.ZoneMap;
 import com.indeed.flamdex.query.Term;
 
+import javax.annotation.Nullable;
+
 /**
  * @author jsgroth
  */
-class IntRangeQueryEvaluator implements QueryEvaluator {
+class IntRangeQueryEvaluator implements CandidateQueryEvaluator {
     private static final int BUFFER_SIZE = 64;
+    /** wider ranges are assumed to match every document rather than being estimated term by term */
+    private static final int MAX_ESTIMATE_TERMS = 1024;
 
     private final Term startTerm;
     private final Term endTerm;
@@ -36,77 +43,74 @@ class IntRangeQueryEvaluator implements QueryEvaluator {
         isMaxInclusive = maxInclusive;
     }
 
+    /** how much of a set of documents is in the range, from the minimum and maximum of their values */
+    private enum Coverage {
+        NONE, ALL, SOME
+    }
+
+    private Coverage getCoverage(long min, long max) {
+        final long startVal = startTerm.getTermIntVal();
+        final long endVal = endTerm.getTermIntVal();
+        if (isMaxInclusive ? (endVal < min || startVal > max) : (endVal <= min || startVal > max)) {
+            return Coverage.NONE;
+        }
+        if (startVal <= min && (isMaxInclusive ? endVal >= max : endVal > max)) {
+            return Coverage.ALL;
+        }
+        return Coverage.SOME;
+    }
+
+    private Coverage getBlockCoverage(@Nullable ZoneMap zoneMap, int block) {
+        if (zoneMap == null) {
+            return Coverage.SOME;
+        }
+        return getCoverage(zoneMap.getMin(block), zoneMap.getMax(block));
+    }
+
+    private boolean inRange(long val) {
+        return val >= startTerm.getTermIntVal() && (isMaxInclusive ? val <= endTerm.getTermIntVal() : val < endTerm.getTermIntVal());
+    }
+
     @Override
     public void and(FlamdexReader r, FastBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
         final IntValueLookup metric = r.getMetric(startTerm.getFieldName());
         try {
-            internalAnd(metric, r.getNumDocs(), bitSet);
+            switch (getCoverage(metric.getMin(), metric.getMax())) {
+                case NONE:
+                    bitSet.clearAll();
+                    return;
+                case ALL:
+                    return;
+            }
+            final ZoneMap zoneMap = ZoneMap.get(r, startTerm.getFieldName(), metric);
+            internalAnd(metric, zoneMap, r.getNumDocs(), bitSet);
         } finally {
             metric.close();
         }
     }
 
-    private void internalAnd(IntValueLookup metric, int numDocs, FastBitSet bitSet) {
-        final long startVal = startTerm.getTermIntVal();
-        final long endVal = endTerm.getTermIntVal();
-        if (isMaxInclusive) {
-            if (endVal < metric.getMin() || startVal > metric.getMax()) {
-                bitSet.clearAll();
-                return;
-            }
-            if (startVal <= metric.getMin() && endVal >= metric.getMax()) {
-                return;
-            }
-            final int[] docBuf = new int[BUFFER_SIZE];
-            final long[] valueBuf = new long[BUFFER_SIZE];
-            int lastDoc = 0;
-            for (int docStart = 0; docStart < numDocs; docStart += BUFFER_SIZE) {
-                final int n = Math.min(numDocs, docStart + BUFFER_SIZE) - docStart;
-                for (int i = 0; i < n; ++i) {
-                    docBuf[i] = docStart + i;
-                }
-                metric.lookup(docBuf, valueBuf, n);
-                for (int i = 0; i < n; ++i) {
-                    final int doc = docBuf[i];
-                    final long val = valueBuf[i];
-                    if (val >= startVal && val <= endVal) {
-                        if (lastDoc != doc) {
-                            bitSet.clearRange(lastDoc, doc);
-                        }
-                        lastDoc = doc + 1;
-                    }
-                }
-            }
-            bitSet.clearRange(lastDoc, numDocs);
-        } else {
-            if (endVal <= metric.getMin() || startVal > metric.getMax()) {
-                bitSet.clearAll();
-                return;
-            }
-            if (startVal <= metric.getMin() && endVal > metric.getMax()) {
-                return;
-            }
-            final int[] docBuf = new int[BUFFER_SIZE];
-            final long[] valueBuf = new long[BUFFER_SIZE];
-            int lastDoc = 0;
-            for (int docStart = 0; docStart < numDocs; docStart += BUFFER_SIZE) {
-                final int n = Math.min(numDocs, docStart + BUFFER_SIZE) - docStart;
-                for (int i = 0; i < n; ++i) {
-                    docBuf[i] = docStart + i;
-                }
-                metric.lookup(docBuf, valueBuf, n);
-                for (int i = 0; i < n; ++i) {
-                    final int doc = docBuf[i];
-                    final long val = valueBuf[i];
-                    if (val >= startVal && val < endVal) {
-                        if (lastDoc != doc) {
-                            bitSet.clearRange(lastDoc, doc);
+    private void internalAnd(IntValueLookup metric, @Nullable ZoneMap zoneMap, int numDocs, FastBitSet bitSet) {
+        final int[] docBuf = new int[BUFFER_SIZE];
+        final long[] valueBuf = new long[BUFFER_SIZE];
+        for (int block = 0; block * ZoneMap.BLOCK_SIZE < numDocs; ++block) {
+            final int blockStart = block * ZoneMap.BLOCK_SIZE;
+            final int blockEnd = Math.min(numDocs, blockStart + ZoneMap.BLOCK_SIZE);
+            switch (getBlockCoverage(zoneMap, block)) {
+                case NONE:
+                    bitSet.clearRange(blockStart, blockEnd);
+                    break;
+                case ALL:
+                    break;
+                default:
+                    for (int docStart = blockStart; docStart < blockEnd; docStart += BUFFER_SIZE) {
+                        final int n = lookup(metric, docStart, blockEnd, docBuf, valueBuf);
+                        for (int i = 0; i < n; ++i) {
+                            if (!inRange(valueBuf[i])) {
+                                bitSet.clear(docBuf[i]);
+                            }
                         }
-                        lastDoc = doc + 1;
                     }
-                }
             }
-            bitSet.clearRange(lastDoc, numDocs);
         }
     }
 
@@ -114,62 +118,41 @@ class IntRangeQueryEvaluator implements QueryEvaluator {
     public void or(FlamdexReader r, FastBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
         final IntValueLookup metric = r.getMetric(startTerm.getFieldName());
         try {
-            internalOr(metric, r.getNumDocs(), bitSet);
+            switch (getCoverage(metric.getMin(), metric.getMax())) {
+                case NONE:
+                    return;
+                case ALL:
+                    bitSet.setAll();
+                    return;
+            }
+            final ZoneMap zoneMap = ZoneMap.get(r, startTerm.getFieldName(), metric);
+            internalOr(metric, zoneMap, r.getNumDocs(), bitSet);
         } finally {
             metric.close();
         }
     }
 
-    private void internalOr(IntValueLookup metric, int numDocs, FastBitSet bitSet) {
-        final long startVal = startTerm.getTermIntVal();
-        final long endVal = endTerm.getTermIntVal();
-        if (isMaxInclusive) {
-            if (endVal < metric.getMin() || startVal > metric.getMax()) {
-                return;
-            }
-            if (startVal <= metric.getMin() && endVal >= metric.getMax()) {
-                bitSet.setAll();
-                return;
-            }
-            final int[] docBuf = new int[BUFFER_SIZE];
-            final long[] valueBuf = new long[BUFFER_SIZE];
-            for (int docStart = 0; docStart < numDocs; docStart += BUFFER_SIZE) {
-                final int n = Math.min(numDocs, docStart + BUFFER_SIZE) - docStart;
-                for (int i = 0; i < n; ++i) {
-                    docBuf[i] = docStart + i;
-                }
-                metric.lookup(docBuf, valueBuf, n);
-                for (int i = 0; i < n; ++i) {
-                    final int doc = docBuf[i];
-                    final long val = valueBuf[i];
-                    if (val >= startVal && val <= endVal) {
-                        bitSet.set(doc);
-                    }
-                }
-            }
-        } else {
-            if (endVal <= metric.getMin() || startVal > metric.getMax()) {
-                return;
-            }
-            if (startVal <= metric.getMin() && endVal > metric.getMax()) {
-                bitSet.setAll();
-                return;
-            }
-            final int[] docBuf = new int[BUFFER_SIZE];
-            final long[] valueBuf = new long[BUFFER_SIZE];
-            for (int docStart = 0; docStart < numDocs; docStart += BUFFER_SIZE) {
-                final int n = Math.min(numDocs, docStart + BUFFER_SIZE) - docStart;
-                for (int i = 0; i < n; ++i) {
-                    docBuf[i] = docStart + i;
-                }
-                metric.lookup(docBuf, valueBuf, n);
-                for (int i = 0; i < n; ++i) {
-                    final int doc = docBuf[i];
-                    final long val = valueBuf[i];
-                    if (val >= startVal && val < endVal) {
-                        bitSet.set(doc);
+    private void internalOr(IntValueLookup metric, @Nullable ZoneMap zoneMap, int numDocs, FastBitSet bitSet) {
+        final int[] docBuf = new int[BUFFER_SIZE];
+        final long[] valueBuf = new long[BUFFER_SIZE];
+        for (int block = 0; block * ZoneMap.BLOCK_SIZE < numDocs; ++block) {
+            final int blockStart = block * ZoneMap.BLOCK_SIZE;
+            final int blockEnd = Math.min(numDocs, blockStart + ZoneMap.BLOCK_SIZE);
+            switch (getBlockCoverage(zoneMap, block)) {
+                case NONE:
+                    break;
+                case ALL:
+                    bitSet.setRange(blockStart, blockEnd);
+                    break;
+                default:
+                    for (int docStart = blockStart; docStart < blockEnd; docStart += BUFFER_SIZE) {
+                        final int n = lookup(metric, docStart, blockEnd, docBuf, valueBuf);
+                        for (int i = 0; i < n; ++i) {
+                            if (inRange(valueBuf[i])) {
+                                bitSet.set(docBuf[i]);
+                            }
+                        }
                     }
-                }
             }
         }
     }
@@ -178,69 +161,144 @@ class IntRangeQueryEvaluator implements QueryEvaluator {
     public void not(FlamdexReader r, FastBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
         final IntValueLookup metric = r.getMetric(startTerm.getFieldName());
         try {
-            internalNot(metric, r.getNumDocs(), bitSet);
+            if (getCoverage(metric.getMin(), metric.getMax()) == Coverage.NONE) {
+                bitSet.setAll();
+                return;
+            }
+            final ZoneMap zoneMap = ZoneMap.get(r, startTerm.getFieldName(), metric);
+            internalNot(metric, zoneMap, r.getNumDocs(), bitSet);
         } finally {
             metric.close();
         }
     }
 
-    private void internalNot(IntValueLookup metric, int numDocs, FastBitSet bitSet) {
-        final long startVal = startTerm.getTermIntVal();
-        final long endVal = endTerm.getTermIntVal();
-        if (isMaxInclusive) {
-            if (endVal < metric.getMin() || startVal > metric.getMax()) {
-                bitSet.setAll();
-                return;
+    private void internalNot(IntValueLookup metric, @Nullable ZoneMap zoneMap, int numDocs, FastBitSet bitSet) {
+        final int[] docBuf = new int[BUFFER_SIZE];
+        final long[] valueBuf = new long[BUFFER_SIZE];
+        for (int block = 0; block * ZoneMap.BLOCK_SIZE < numDocs; ++block) {
+            final int blockStart = block * ZoneMap.BLOCK_SIZE;
+            final int blockEnd = Math.min(numDocs, blockStart + ZoneMap.BLOCK_SIZE);
+            switch (getBlockCoverage(zoneMap, block)) {
+                case NONE:
+                    bitSet.setRange(blockStart, blockEnd);
+                    break;
+                case ALL:
+                    bitSet.clearRange(blockStart, blockEnd);
+                    break;
+                default:
+                    for (int docStart = blockStart; docStart < blockEnd; docStart += BUFFER_SIZE) {
+                        final int n = lookup(metric, docStart, blockEnd, docBuf, valueBuf);
+                        for (int i = 0; i < n; ++i) {
+                            if (inRange(valueBuf[i])) {
+                                bitSet.clear(docBuf[i]);
+                            } else {
+                                bitSet.set(docBuf[i]);
+                            }
+                        }
+                    }
             }
+        }
+    }
+
+    /**
+     * looks up the values of the documents from docStart up to BUFFER_SIZE of them, stopping at end
+     *
+     * @return the number of documents looked up
+     */
+    private static int lookup(IntValueLookup metric, int docStart, int end, int[] docBuf, long[] valueBuf) {
+        final int n = Math.min(end, docStart + BUFFER_SIZE) - docStart;
+        for (int i = 0; i < n; ++i) {
+            docBuf[i] = docStart + i;
+        }
+        metric.lookup(docBuf, valueBuf, n);
+        return n;
+    }
+
+    /**
+     * looks up the metric of the candidates only, instead of every document in the shard, and none of the candidates
+     * in blocks that the zone map decides on its own
+     */
+    @Override
+    public CompressedBitSet filter(FlamdexReader r, CompressedBitSet candidates, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        final CompressedBitSet.Builder builder = new CompressedBitSet.Builder(candidates.size());
+        final IntValueLookup metric = r.getMetric(startTerm.getFieldName());
+        try {
+            final ZoneMap zoneMap = ZoneMap.get(r, startTerm.getFieldName(), metric);
             final int[] docBuf = new int[BUFFER_SIZE];
             final long[] valueBuf = new long[BUFFER_SIZE];
-            int lastDoc = 0;
-            for (int docStart = 0; docStart < numDocs; docStart += BUFFER_SIZE) {
-                final int n = Math.min(numDocs, docStart + BUFFER_SIZE) - docStart;
-                for (int i = 0; i < n; ++i) {
-                    docBuf[i] = docStart + i;
+            final CompressedBitSet.IntIterator iterator = candidates.iterator();
+            int n = 0;
+            int block = -1;
+            Coverage coverage = Coverage.SOME;
+            while (iterator.next()) {
+                final int doc = iterator.getValue();
+                if (doc / ZoneMap.BLOCK_SIZE != block) {
+                    // the builder takes doc ids in order, so the candidates of the previous block go first
+                    filterBuffered(metric, docBuf, valueBuf, n, builder);
+                    n = 0;
+                    block = doc / ZoneMap.BLOCK_SIZE;
+                    coverage = getBlockCoverage(zoneMap, block);
                 }
-                metric.lookup(docBuf, valueBuf, n);
-                for (int i = 0; i < n; ++i) {
-                    final int doc = docBuf[i];
-                    final long val = valueBuf[i];
-                    if (val >= startVal && val <= endVal) {
-                        if (lastDoc != doc) {
-                            bitSet.setRange(lastDoc, doc);
-                        }
-                        bitSet.clear(doc);
-                        lastDoc = doc + 1;
+                if (coverage == Coverage.ALL) {
+                    builder.add(doc);
+                } else if (coverage == Coverage.SOME) {
+                    docBuf[n++] = doc;
+                    if (n == BUFFER_SIZE) {
+                        filterBuffered(metric, docBuf, valueBuf, n, builder);
+                        n = 0;
                     }
                 }
             }
-            bitSet.setRange(lastDoc, numDocs);
-        } else {
-            if (endVal <= metric.getMin() || startVal > metric.getMax()) {
-                bitSet.setAll();
-                return;
+            filterBuffered(metric, docBuf, valueBuf, n, builder);
+        } finally {
+            metric.close();
+        }
+        return CompressedBitSets.claim(builder.build(), bitSetPooler);
+    }
+
+    private void filterBuffered(IntValueLookup metric, int[] docBuf, long[] valueBuf, int n, CompressedBitSet.Builder builder) {
+        if (n == 0) {
+            return;
+        }
+        metric.lookup(docBuf, valueBuf, n);
+        for (int i = 0; i < n; ++i) {
+            if (inRange(valueBuf[i])) {
+                builder.add(docBuf[i]);
             }
-            final int[] docBuf = new int[BUFFER_SIZE];
-            final long[] valueBuf = new long[BUFFER_SIZE];
-            int lastDoc = 0;
-            for (int docStart = 0; docStart < numDocs; docStart += BUFFER_SIZE) {
-                final int n = Math.min(numDocs, docStart + BUFFER_SIZE) - docStart;
-                for (int i = 0; i < n; ++i) {
-                    docBuf[i] = docStart + i;
-                }
-                metric.lookup(docBuf, valueBuf, n);
-                for (int i = 0; i < n; ++i) {
-                    final int doc = docBuf[i];
-                    final long val = valueBuf[i];
-                    if (val >= startVal && val < endVal) {
-                        if (lastDoc != doc) {
-                            bitSet.setRange(lastDoc, doc);
-                        }
-                        bitSet.clear(doc);
-                        lastDoc = doc + 1;
-                    }
+        }
+    }
+
+    /**
+     * Sums the doc frequencies of the terms in the range, plus the documents without the field if 0 is in the range
+     * since their metric value is 0.
+     */
+    @Override
+    public long estimateDocCount(FlamdexReader r) {
+        final long startVal = startTerm.getTermIntVal();
+        final long endVal = endTerm.getTermIntVal();
+        final String field = startTerm.getFieldName();
+        long count = 0;
+        if (startVal <= 0 && (isMaxInclusive ? 0 <= endVal : 0 < endVal)) {
+            count += Math.max(0, r.getNumDocs() - r.getIntTotalDocFreq(field));
+        }
+        final IntTermIterator iterator = r.getIntTermIterator(field);
+        try {
+            iterator.reset(startVal);
+            int numTerms = 0;
+            while (iterator.next() && (isMaxInclusive ? iterator.term() <= endVal : iterator.term() < endVal)) {
+                if (++numTerms > MAX_ESTIMATE_TERMS) {
+                    return r.getNumDocs();
                 }
+                count += iterator.docFreq();
             }
-            bitSet.setRange(lastDoc, numDocs);
+        } finally {
+            iterator.close();
         }
+        return Math.min(r.getNumDocs(), count);
+    }
+
+    @Override
+    public String toString() {
+        return startTerm + " to " + endTerm.getTermIntVal() + (isMaxInclusive ? " inclusive" : "");
     }
 }
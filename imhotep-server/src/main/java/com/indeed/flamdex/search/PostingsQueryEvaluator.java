@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.search;
+
+import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
+import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.datastruct.CompressedBitSet;
+import com.indeed.flamdex.datastruct.FastBitSetPooler;
+
+/**
+ * A query answered from postings alone, which can produce its matches as a {@link CompressedBitSet} instead of
+ * filling a bitset over every document in the shard.
+ */
+interface PostingsQueryEvaluator extends QueryEvaluator {
+    /**
+     * @return the number of postings this query reads, an upper bound on the number of documents it matches
+     */
+    long countPostings(FlamdexReader r);
+
+    /**
+     * @return the matching documents, whose memory usage has been claimed from bitSetPooler and must be released by
+     *         the caller
+     */
+    CompressedBitSet search(FlamdexReader r, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException;
+}
@@ -25,4 +25,10 @@ interface QueryEvaluator {
     void and(FlamdexReader r, FastBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException;
     void or(FlamdexReader r, FastBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException;
     void not(FlamdexReader r, FastBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException;
+
+    /**
+     * @return an estimate of the number of documents this query matches, from term doc frequencies, used to decide
+     *         the order in which the operands of a conjunction are evaluated
+     */
+    long estimateDocCount(FlamdexReader r);
 }
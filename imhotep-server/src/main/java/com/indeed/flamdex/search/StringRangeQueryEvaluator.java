@@ -17,6 +17,7 @@ import com.indeed.flamdex.api.DocIdStream;
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.StringTermIterator;
+import com.indeed.flamdex.datastruct.CompressedBitSet;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
 import com.indeed.flamdex.query.Term;
@@ -24,8 +25,10 @@ import com.indeed.flamdex.query.Term;
 /**
  * @author jsgroth
  */
-class StringRangeQueryEvaluator implements QueryEvaluator {
+class StringRangeQueryEvaluator implements CandidateQueryEvaluator {
     private static final int BUFFER_SIZE = 64;
+    /** wider ranges are estimated from the total doc frequency of the field rather than term by term */
+    private static final int MAX_ESTIMATE_TERMS = 1024;
 
     private final Term startTerm;
     private final Term endTerm;
@@ -60,9 +63,19 @@ class StringRangeQueryEvaluator implements QueryEvaluator {
         }
     }
 
-    private void internalSearch(FlamdexReader r, FastBitSet bitSet) {
+    private void internalSearch(FlamdexReader r, final FastBitSet bitSet) {
+        final int[] docIdBuffer = new int[BUFFER_SIZE];
+        visitPostings(r, new PostingsVisitor() {
+            @Override
+            public void visit(DocIdStream docIdStream) {
+                readDocIdStream(docIdStream, docIdBuffer, bitSet);
+            }
+        });
+    }
+
+    private void visitPostings(FlamdexReader r, PostingsVisitor visitor) {
         if (looksLikeAnIntQuery) {
-            doIntRangeQuery(r, bitSet);
+            doIntRangeQuery(r, visitor);
             return;
         }
 
@@ -70,17 +83,16 @@ class StringRangeQueryEvaluator implements QueryEvaluator {
         try {
             final DocIdStream docIdStream = r.getDocIdStream();
             try {
-                final int[] docIdBuffer = new int[BUFFER_SIZE];
                 iterator.reset(startTerm.getTermStringVal());
                 if (isMaxInclusive) {
                     while (iterator.next() && iterator.term().compareTo(endTerm.getTermStringVal()) <= 0) {
                         docIdStream.reset(iterator);
-                        readDocIdStream(docIdStream, docIdBuffer, bitSet);
+                        visitor.visit(docIdStream);
                     }
                 } else {
                     while (iterator.next() && iterator.term().compareTo(endTerm.getTermStringVal()) < 0) {
                         docIdStream.reset(iterator);
-                        readDocIdStream(docIdStream, docIdBuffer, bitSet);
+                        visitor.visit(docIdStream);
                     }
                 }
             } finally {
@@ -101,7 +113,7 @@ class StringRangeQueryEvaluator implements QueryEvaluator {
         }
     }
 
-    private void doIntRangeQuery(FlamdexReader r, FastBitSet bitSet) {
+    private void doIntRangeQuery(FlamdexReader r, PostingsVisitor visitor) {
         final int min = Integer.parseInt(startTerm.getTermStringVal());
         final int max = Integer.parseInt(endTerm.getTermStringVal());
 
@@ -109,7 +121,6 @@ class StringRangeQueryEvaluator implements QueryEvaluator {
         try {
             final DocIdStream docIdStream = r.getDocIdStream();
             try {
-                final int[] docIdBuffer = new int[BUFFER_SIZE];
                 while (iterator.next()) {
                     final int termIntVal;
                     try {
@@ -121,7 +132,7 @@ class StringRangeQueryEvaluator implements QueryEvaluator {
                     if (termIntVal < min || (isMaxInclusive && termIntVal > max) || (!isMaxInclusive && termIntVal >= max)) continue;
 
                     docIdStream.reset(iterator);
-                    readDocIdStream(docIdStream, docIdBuffer, bitSet);
+                    visitor.visit(docIdStream);
                 }
             } finally {
                 docIdStream.close();
@@ -131,6 +142,45 @@ class StringRangeQueryEvaluator implements QueryEvaluator {
         }
     }
 
+    @Override
+    public CompressedBitSet filter(FlamdexReader r, CompressedBitSet candidates, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        final CandidateMatcher matcher = CandidateMatcher.create(candidates, bitSetPooler);
+        try {
+            visitPostings(r, matcher);
+            return matcher.getMatches(bitSetPooler);
+        } finally {
+            matcher.release(bitSetPooler);
+        }
+    }
+
+    @Override
+    public long estimateDocCount(FlamdexReader r) {
+        final long totalDocFreq = Math.min(r.getNumDocs(), r.getStringTotalDocFreq(startTerm.getFieldName()));
+        if (looksLikeAnIntQuery) {
+            // numeric ranges are not contiguous in the dictionary
+            return totalDocFreq;
+        }
+        final StringTermIterator iterator = r.getStringTermIterator(startTerm.getFieldName());
+        try {
+            iterator.reset(startTerm.getTermStringVal());
+            long count = 0;
+            int numTerms = 0;
+            while (iterator.next()) {
+                final int c = iterator.term().compareTo(endTerm.getTermStringVal());
+                if (c > 0 || (c == 0 && !isMaxInclusive)) {
+                    break;
+                }
+                if (++numTerms > MAX_ESTIMATE_TERMS) {
+                    return totalDocFreq;
+                }
+                count += iterator.docFreq();
+            }
+            return Math.min(totalDocFreq, count);
+        } finally {
+            iterator.close();
+        }
+    }
+
     @Override
     public void or(FlamdexReader r, FastBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
         internalSearch(r, bitSet);
@@ -142,4 +192,9 @@ class StringRangeQueryEvaluator implements QueryEvaluator {
         internalSearch(r, bitSet);
         bitSet.invertAll();
     }
+
+    @Override
+    public String toString() {
+        return startTerm + " to " + endTerm.getTermStringVal() + (isMaxInclusive ? " inclusive" : "");
+    }
 }
@@ -17,6 +17,7 @@ import com.indeed.flamdex.api.DocIdStream;
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.StringTermIterator;
+import com.indeed.flamdex.datastruct.CompressedBitSet;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
 
@@ -25,7 +26,7 @@ import java.util.Arrays;
 /**
  * @author jwolfe
  */
-public class StringTermSetQueryEvaluator implements QueryEvaluator {
+public class StringTermSetQueryEvaluator implements PostingsQueryEvaluator, CandidateQueryEvaluator {
     private static final int BUFFER_SIZE = 64;
 
     private final String field;
@@ -40,6 +41,15 @@ public class StringTermSetQueryEvaluator implements QueryEvaluator {
 
     @Override
     public void and(FlamdexReader r, FastBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        if (CompressedBitSets.isSparse(countPostings(r), r.getNumDocs())) {
+            final CompressedBitSet docs = search(r, bitSetPooler);
+            try {
+                docs.andInto(bitSet);
+            } finally {
+                CompressedBitSets.release(docs, bitSetPooler);
+            }
+            return;
+        }
         FastBitSet localBitSet = bitSetPooler.create(r.getNumDocs());
         try {
             internalSearch(r, localBitSet);
@@ -63,6 +73,85 @@ public class StringTermSetQueryEvaluator implements QueryEvaluator {
         bitSet.invertAll();
     }
 
+    @Override
+    public CompressedBitSet search(FlamdexReader r, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        final long numPostings = countPostings(r);
+        if (!CompressedBitSets.isSparse(numPostings, r.getNumDocs())) {
+            FastBitSet localBitSet = bitSetPooler.create(r.getNumDocs());
+            try {
+                internalSearch(r, localBitSet);
+                return CompressedBitSets.fromBitSet(localBitSet, bitSetPooler);
+            } finally {
+                final long memUsage = localBitSet.memoryUsage();
+                localBitSet = null;
+                bitSetPooler.release(memUsage);
+            }
+        }
+        final long bufferBytes = 4L * numPostings;
+        bitSetPooler.claim(bufferBytes);
+        try {
+            final CompressedBitSets.DocCollector collector = new CompressedBitSets.DocCollector((int) numPostings);
+            visitPostings(r, collector);
+            return collector.build(r.getNumDocs(), bitSetPooler);
+        } finally {
+            bitSetPooler.release(bufferBytes);
+        }
+    }
+
+    @Override
+    public CompressedBitSet filter(FlamdexReader r, CompressedBitSet candidates, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        final CandidateMatcher matcher = CandidateMatcher.create(candidates, bitSetPooler);
+        try {
+            visitPostings(r, matcher);
+            return matcher.getMatches(bitSetPooler);
+        } finally {
+            matcher.release(bitSetPooler);
+        }
+    }
+
+    @Override
+    public long estimateDocCount(FlamdexReader r) {
+        return Math.min(r.getNumDocs(), countPostings(r));
+    }
+
+    @Override
+    public long countPostings(FlamdexReader r) {
+        final StringTermIterator iterator = r.getStringTermIterator(field);
+        try {
+            long numPostings = 0;
+            for (final String term : terms) {
+                iterator.reset(term);
+                if (!iterator.next()) break;
+                if (!iterator.term().equals(term)) continue;
+                numPostings += iterator.docFreq();
+            }
+            return numPostings;
+        } finally {
+            iterator.close();
+        }
+    }
+
+    private void visitPostings(FlamdexReader r, PostingsVisitor visitor) {
+        final StringTermIterator iterator = r.getStringTermIterator(field);
+        int ix = 0;
+        try {
+            final DocIdStream docIdStream = r.getDocIdStream();
+            try {
+                while (ix < terms.length) {
+                    iterator.reset(terms[ix++]);
+                    if (!iterator.next()) break;
+                    if(!iterator.term().equals(terms[ix-1])) continue;
+                    docIdStream.reset(iterator);
+                    visitor.visit(docIdStream);
+                }
+            } finally {
+                docIdStream.close();
+            }
+        } finally {
+            iterator.close();
+        }
+    }
+
     private void internalSearch(FlamdexReader r, FastBitSet bitSet) {
         final StringTermIterator iterator = r.getStringTermIterator(field);
         int ix = 0;
@@ -94,4 +183,9 @@ public class StringTermSetQueryEvaluator implements QueryEvaluator {
             if (n < docIdBuffer.length) break;
         }
     }
+
+    @Override
+    public String toString() {
+        return field + " in " + terms.length + " terms";
+    }
 }
@@ -14,10 +14,12 @@
  package com.indeed.flamdex.search;
 
 import com.indeed.flamdex.api.DocIdStream;
+import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntTermIterator;
 import com.indeed.flamdex.api.StringTermIterator;
 import com.indeed.flamdex.api.TermIterator;
+import com.indeed.flamdex.datastruct.CompressedBitSet;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
 import com.indeed.flamdex.query.Term;
@@ -25,7 +27,7 @@ import com.indeed.flamdex.query.Term;
 /**
  * @author jsgroth
  */
-class TermQueryEvaluator implements QueryEvaluator {
+class TermQueryEvaluator implements PostingsQueryEvaluator, CandidateQueryEvaluator {
     private final Term term;
 
     TermQueryEvaluator(Term term) {
@@ -200,4 +202,113 @@ class TermQueryEvaluator implements QueryEvaluator {
         }
         bitSet.setRange(lastDoc, bitSet.size());
     }
+
+    @Override
+    public long countPostings(FlamdexReader r) {
+        if (term.isIntField()) {
+            final IntTermIterator iterator = r.getIntTermIterator(term.getFieldName());
+            try {
+                final long termIntVal = term.getTermIntVal();
+                iterator.reset(termIntVal);
+                return iterator.next() && iterator.term() == termIntVal ? iterator.docFreq() : 0;
+            } finally {
+                iterator.close();
+            }
+        } else {
+            final StringTermIterator iterator = r.getStringTermIterator(term.getFieldName());
+            try {
+                final String termStringVal = term.getTermStringVal();
+                iterator.reset(termStringVal);
+                return iterator.next() && iterator.term().equals(termStringVal) ? iterator.docFreq() : 0;
+            } finally {
+                iterator.close();
+            }
+        }
+    }
+
+    @Override
+    public CompressedBitSet search(FlamdexReader r, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        final DocIdStream docIdStream = r.getDocIdStream();
+        try {
+            if (term.isIntField()) {
+                final IntTermIterator iterator = r.getIntTermIterator(term.getFieldName());
+                try {
+                    final long termIntVal = term.getTermIntVal();
+                    iterator.reset(termIntVal);
+                    if (!iterator.next() || iterator.term() != termIntVal) {
+                        return CompressedBitSets.claim(CompressedBitSet.empty(r.getNumDocs()), bitSetPooler);
+                    }
+                    docIdStream.reset(iterator);
+                    return CompressedBitSets.fromDocIdStream(docIdStream, r.getNumDocs(), bitSetPooler);
+                } finally {
+                    iterator.close();
+                }
+            } else {
+                final StringTermIterator iterator = r.getStringTermIterator(term.getFieldName());
+                try {
+                    final String termStringVal = term.getTermStringVal();
+                    iterator.reset(termStringVal);
+                    if (!iterator.next() || !iterator.term().equals(termStringVal)) {
+                        return CompressedBitSets.claim(CompressedBitSet.empty(r.getNumDocs()), bitSetPooler);
+                    }
+                    docIdStream.reset(iterator);
+                    return CompressedBitSets.fromDocIdStream(docIdStream, r.getNumDocs(), bitSetPooler);
+                } finally {
+                    iterator.close();
+                }
+            }
+        } finally {
+            docIdStream.close();
+        }
+    }
+
+    @Override
+    public CompressedBitSet filter(FlamdexReader r, CompressedBitSet candidates, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        final CandidateMatcher matcher = CandidateMatcher.create(candidates, bitSetPooler);
+        try {
+            final DocIdStream docIdStream = r.getDocIdStream();
+            try {
+                if (term.isIntField()) {
+                    final IntTermIterator iterator = r.getIntTermIterator(term.getFieldName());
+                    try {
+                        final long termIntVal = term.getTermIntVal();
+                        iterator.reset(termIntVal);
+                        if (iterator.next() && iterator.term() == termIntVal) {
+                            docIdStream.reset(iterator);
+                            matcher.visit(docIdStream);
+                        }
+                    } finally {
+                        iterator.close();
+                    }
+                } else {
+                    final StringTermIterator iterator = r.getStringTermIterator(term.getFieldName());
+                    try {
+                        final String termStringVal = term.getTermStringVal();
+                        iterator.reset(termStringVal);
+                        if (iterator.next() && iterator.term().equals(termStringVal)) {
+                            docIdStream.reset(iterator);
+                            matcher.visit(docIdStream);
+                        }
+                    } finally {
+                        iterator.close();
+                    }
+                }
+            } finally {
+                docIdStream.close();
+            }
+            return matcher.getMatches(bitSetPooler);
+        } finally {
+            matcher.release(bitSetPooler);
+        }
+    }
+
+    @Override
+    public long estimateDocCount(FlamdexReader r) {
+        return countPostings(r);
+    }
+
+    @Override
+    public String toString() {
+        return term.toString();
+    }
 }
@@ -15,43 +15,105 @@
 
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.indeed.util.core.Throwables2;
 import com.indeed.util.io.BufferedFileDataInputStream;
 import com.indeed.util.io.BufferedFileDataOutputStream;
+import com.indeed.flamdex.CompactMemoryFlamdex;
 import com.indeed.flamdex.MemoryFlamdex;
 import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.utils.FlamdexSort;
 import com.indeed.flamdex.writer.FlamdexDocWriter;
 import com.indeed.flamdex.writer.FlamdexDocument;
+import com.indeed.flamdex.writer.FlamdexDocumentBuilder;
 import com.indeed.flamdex.writer.FlamdexWriter;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
+ * Buffers documents in memory, writes each full buffer out as a segment and merges segments in tiers of
+ * mergeFactor, merging whatever is left into the final index on {@link #close()}.
+ *
+ * With {@link Config#setNumThreads(int)} above one, documents may be added from several threads at once. Each
+ * thread fills its own buffer, full buffers are written out on a background pool and tiered merges run on a
+ * second pool, so producers only block when too many buffers or merges are outstanding. Documents are numbered
+ * in the order their buffers are handed off; documents added from a single thread keep the order they were
+ * added in, and the index is then byte for byte the same as one written with a single thread.
+ *
  * @author jsgroth
  */
 public final class SimpleFlamdexDocWriter implements FlamdexDocWriter {
     private final String outputDirectory;
     private final int docBufferSize;
     private final int mergeFactor;
+    private final int numThreads;
+    private final boolean writeMetricCaches;
+    private final List<String> sortKey;
 
-    private final List<List<File>> segmentsOnDisk;
-
-    private MemoryFlamdex currentBuffer = new MemoryFlamdex();
+    /** segments of each merge level in document order, guarded by this */
+    private final List<List<Future<File>>> segmentsOnDisk;
     private String currentSegment = "_0";
 
+    /** every buffer that has not been handed off yet, in the order they were created, guarded by itself */
+    private final List<CompactMemoryFlamdex> buffers = Lists.newArrayList();
+    private final ThreadLocal<CompactMemoryFlamdex> currentBuffer = new ThreadLocal<CompactMemoryFlamdex>() {
+        @Override
+        protected CompactMemoryFlamdex initialValue() {
+            final CompactMemoryFlamdex buffer = new CompactMemoryFlamdex();
+            synchronized (buffers) {
+                buffers.add(buffer);
+            }
+            return buffer;
+        }
+    };
+
+    /** null when flushes and merges run on the calling thread */
+    private final ExecutorService flushExecutor;
+    private final ExecutorService mergeExecutor;
+    private final Semaphore flushPermits;
+    private final Semaphore mergePermits;
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
     public SimpleFlamdexDocWriter(String outputDirectory, Config config) throws IOException {
         createOutputDir(outputDirectory);
 
         this.outputDirectory = outputDirectory;
         this.docBufferSize = config.getDocBufferSize();
         this.mergeFactor = config.getMergeFactor();
+        this.numThreads = Math.max(1, config.getNumThreads());
+        this.writeMetricCaches = config.isWriteMetricCaches();
+        this.sortKey = config.getSortKey();
 
         segmentsOnDisk = Lists.newArrayList();
-        segmentsOnDisk.add(new ArrayList<File>());
+        segmentsOnDisk.add(new ArrayList<Future<File>>());
+
+        if (numThreads > 1) {
+            flushExecutor = Executors.newFixedThreadPool(numThreads,
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("SimpleFlamdexDocWriter-flush-%d").build());
+            mergeExecutor = Executors.newFixedThreadPool(numThreads,
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("SimpleFlamdexDocWriter-merge-%d").build());
+        } else {
+            flushExecutor = null;
+            mergeExecutor = null;
+        }
+        // each pending flush holds a full buffer in memory
+        flushPermits = new Semaphore(2 * numThreads);
+        mergePermits = new Semaphore(2 * numThreads);
     }
 
     private static void createOutputDir(String outputDirectory) throws IOException {
@@ -66,91 +128,237 @@ public final class SimpleFlamdexDocWriter implements FlamdexDocWriter {
 
     @Override
     public void addDocument(FlamdexDocument doc) throws IOException {
-        currentBuffer.addDocument(doc);
-        if (currentBuffer.getNumDocs() == docBufferSize) {
-            flush();
-            currentBuffer = new MemoryFlamdex();
-        }
+        final CompactMemoryFlamdex buffer = getBuffer();
+        buffer.addDocument(doc);
+        documentAdded(buffer);
     }
 
-    private void flush() throws IOException {
-        if (currentBuffer.getNumDocs() == 0) return;
-
-        final File outFile = new File(outputDirectory, currentSegment);
-        final BufferedFileDataOutputStream out = new BufferedFileDataOutputStream(outFile, ByteOrder.nativeOrder(), 65536);
-        currentBuffer.write(out);
-        out.close();
+    /**
+     * adds the current contents of the builder as a document, after which the builder may be cleared and reused
+     */
+    public void addDocument(FlamdexDocumentBuilder doc) throws IOException {
+        final CompactMemoryFlamdex buffer = getBuffer();
+        buffer.addDocument(doc);
+        documentAdded(buffer);
+    }
 
-        segmentsOnDisk.get(0).add(outFile);
+    private CompactMemoryFlamdex getBuffer() throws IOException {
+        final Throwable t = failure.get();
+        if (t != null) {
+            throw new IOException("a previous flush or merge failed", t);
+        }
+        return currentBuffer.get();
+    }
 
-        currentSegment = nextSegmentDirectory(currentSegment);
+    private void documentAdded(final CompactMemoryFlamdex buffer) throws IOException {
+        if (buffer.getNumDocs() == docBufferSize) {
+            currentBuffer.remove();
+            flush(buffer);
+        }
+    }
 
-        int i = 0;
-        while (segmentsOnDisk.get(i).size() == mergeFactor) {
-            final List<File> segments = segmentsOnDisk.get(i);
-            final List<FlamdexReader> readers = Lists.newArrayListWithCapacity(segments.size());
-            long numDocs = 0;
-            for (final File segment : segments) {
-                final FlamdexReader reader;
-                if (i == 0) {
-                    reader = MemoryFlamdex.streamer(new BufferedFileDataInputStream(segment, ByteOrder.nativeOrder(), 65536));
-                } else {
-                    reader = SimpleFlamdexReader.open(segment.getAbsolutePath(), new SimpleFlamdexReader.Config().setWriteBTreesIfNotExisting(false));
-                }
-                readers.add(reader);
-                numDocs += reader.getNumDocs();
-            }
+    private void flush(final CompactMemoryFlamdex buffer) throws IOException {
+        synchronized (buffers) {
+            buffers.remove(buffer);
+        }
+        if (buffer.getNumDocs() == 0) return;
 
-            final File mergeDir = new File(outputDirectory, currentSegment);
+        acquire(flushPermits);
+        synchronized (this) {
+            final File outFile = new File(outputDirectory, currentSegment);
             currentSegment = nextSegmentDirectory(currentSegment);
-            final FlamdexWriter w = new SimpleFlamdexWriter(mergeDir.getAbsolutePath(), numDocs, true, false);
-            SimpleFlamdexWriter.merge(readers, w);
-            w.close();
+            segmentsOnDisk.get(0).add(submit(flushExecutor, flushPermits, new Callable<File>() {
+                @Override
+                public File call() throws IOException {
+                    final BufferedFileDataOutputStream out = new BufferedFileDataOutputStream(outFile, ByteOrder.nativeOrder(), 65536);
+                    buffer.write(out);
+                    out.close();
+                    return outFile;
+                }
+            }));
+
+            int i = 0;
+            while (segmentsOnDisk.get(i).size() == mergeFactor) {
+                final List<Future<File>> segments = new ArrayList<Future<File>>(segmentsOnDisk.get(i));
+                segmentsOnDisk.get(i).clear();
+                final boolean buffered = i == 0;
+
+                final File mergeDir = new File(outputDirectory, currentSegment);
+                currentSegment = nextSegmentDirectory(currentSegment);
+                // merges only wait on flushes and on merges submitted before them, so a FIFO pool cannot deadlock
+                acquire(mergePermits);
+                final Future<File> merged = submit(mergeExecutor, mergePermits, new Callable<File>() {
+                    @Override
+                    public File call() throws IOException {
+                        return mergeSegments(segments, buffered, mergeDir);
+                    }
+                });
+
+                if (i == segmentsOnDisk.size() - 1) {
+                    segmentsOnDisk.add(new ArrayList<Future<File>>());
+                }
+                segmentsOnDisk.get(i + 1).add(merged);
 
-            for (final FlamdexReader reader : readers) {
-                reader.close();
+                ++i;
             }
+        }
+    }
 
-            for (final File segment : segments) {
-                rmrf(segment);
+    private static File mergeSegments(List<Future<File>> segments, boolean buffered, File mergeDir) throws IOException {
+        final List<FlamdexReader> readers = Lists.newArrayListWithCapacity(segments.size());
+        long numDocs = 0;
+        for (final Future<File> segment : segments) {
+            final File file = getSegment(segment);
+            final FlamdexReader reader;
+            if (buffered) {
+                reader = MemoryFlamdex.streamer(new BufferedFileDataInputStream(file, ByteOrder.nativeOrder(), 65536));
+            } else {
+                reader = SimpleFlamdexReader.open(file.getAbsolutePath(), new SimpleFlamdexReader.Config().setWriteBTreesIfNotExisting(false));
             }
-            segments.clear();
+            readers.add(reader);
+            numDocs += reader.getNumDocs();
+        }
+
+        final FlamdexWriter w = new SimpleFlamdexWriter(mergeDir.getAbsolutePath(), numDocs, true, false);
+        SimpleFlamdexWriter.merge(readers, w);
+        w.close();
 
-            if (i == segmentsOnDisk.size() - 1) {
-                segmentsOnDisk.add(new ArrayList<File>());
+        for (final FlamdexReader reader : readers) {
+            reader.close();
+        }
+
+        for (final Future<File> segment : segments) {
+            rmrf(getSegment(segment));
+        }
+        return mergeDir;
+    }
+
+    private <T> Future<T> submit(ExecutorService executor, final Semaphore permits, final Callable<T> task) throws IOException {
+        if (executor == null) {
+            try {
+                return Futures.immediateFuture(task.call());
+            } catch (Exception e) {
+                throw Throwables2.propagate(e, IOException.class);
+            } finally {
+                permits.release();
             }
-            segmentsOnDisk.get(i + 1).add(mergeDir);
+        }
+        return executor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                try {
+                    return task.call();
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                    throw Throwables2.propagate(t, Exception.class);
+                } finally {
+                    permits.release();
+                }
+            }
+        });
+    }
+
+    private static void acquire(Semaphore permits) throws InterruptedIOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a flush or merge");
+        }
+    }
 
-            ++i;
+    private static File getSegment(Future<File> segment) throws IOException {
+        try {
+            return segment.get();
+        } catch (ExecutionException e) {
+            throw Throwables2.propagate(e.getCause(), IOException.class);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a flush or merge");
         }
     }
 
+    /**
+     * Flushes the buffers of every thread and merges all segments into the index. Documents must not be added
+     * concurrently with or after this call.
+     */
     @Override
     public void close() throws IOException {
-        flush();
-        long numDocs = 0;
-        final List<FlamdexReader> allReaders = Lists.newArrayList();
-        for (final File file : Iterables.concat(Lists.reverse(segmentsOnDisk.subList(1, segmentsOnDisk.size())))) {
-            final SimpleFlamdexReader reader = SimpleFlamdexReader.open(file.getAbsolutePath(), new SimpleFlamdexReader.Config().setWriteBTreesIfNotExisting(false));
-            allReaders.add(reader);
-            numDocs += reader.getNumDocs();
-        }
-        for (final File file : segmentsOnDisk.get(0)) {
-            final FlamdexReader reader = MemoryFlamdex.streamer(new BufferedFileDataInputStream(file, ByteOrder.nativeOrder(), 65536));
-            allReaders.add(reader);
-            numDocs += reader.getNumDocs();
-        }
+        try {
+            final List<CompactMemoryFlamdex> remaining;
+            synchronized (buffers) {
+                remaining = Lists.newArrayList(buffers);
+            }
+            for (final CompactMemoryFlamdex buffer : remaining) {
+                flush(buffer);
+            }
+            currentBuffer.remove();
 
-        final FlamdexWriter w = new SimpleFlamdexWriter(outputDirectory, numDocs, true, true);
-        SimpleFlamdexWriter.merge(allReaders, w);
-        w.close();
+            final List<Future<File>> mergedSegments;
+            final List<Future<File>> bufferedSegments;
+            synchronized (this) {
+                mergedSegments = Lists.newArrayList(Iterables.concat(Lists.reverse(segmentsOnDisk.subList(1, segmentsOnDisk.size()))));
+                bufferedSegments = Lists.newArrayList(segmentsOnDisk.get(0));
+            }
 
-        for (final FlamdexReader reader : allReaders) {
-            reader.close();
-        }
+            long numDocs = 0;
+            final List<FlamdexReader> allReaders = Lists.newArrayList();
+            for (final Future<File> segment : mergedSegments) {
+                final SimpleFlamdexReader reader = SimpleFlamdexReader.open(getSegment(segment).getAbsolutePath(), new SimpleFlamdexReader.Config().setWriteBTreesIfNotExisting(false));
+                allReaders.add(reader);
+                numDocs += reader.getNumDocs();
+            }
+            for (final Future<File> segment : bufferedSegments) {
+                final BufferedFileDataInputStream in = new BufferedFileDataInputStream(getSegment(segment), ByteOrder.nativeOrder(), 65536);
+                final FlamdexReader reader;
+                if (numThreads > 1) {
+                    // a streamer only supports visiting fields in order, which a parallel merge does not do
+                    final MemoryFlamdex buffer = new MemoryFlamdex();
+                    buffer.readFields(in);
+                    in.close();
+                    reader = buffer;
+                } else {
+                    reader = MemoryFlamdex.streamer(in);
+                }
+                allReaders.add(reader);
+                numDocs += reader.getNumDocs();
+            }
 
-        for (final File file : Iterables.concat(segmentsOnDisk)) {
-            rmrf(file);
+            if (sortKey.isEmpty()) {
+                final FlamdexWriter w = new SimpleFlamdexWriter(outputDirectory, numDocs, true, true).setWriteMetricCaches(writeMetricCaches);
+                SimpleFlamdexWriter.merge(allReaders, w, numThreads);
+                w.close();
+            } else {
+                final File unsortedDir = new File(outputDirectory, currentSegment);
+                try {
+                    final FlamdexWriter unsorted = new SimpleFlamdexWriter(unsortedDir.getAbsolutePath(), numDocs, true, false);
+                    SimpleFlamdexWriter.merge(allReaders, unsorted, numThreads);
+                    unsorted.close();
+
+                    final SimpleFlamdexReader r = SimpleFlamdexReader.open(unsortedDir.getAbsolutePath(), new SimpleFlamdexReader.Config().setWriteBTreesIfNotExisting(false));
+                    try {
+                        final int[] oldDocIdToNewDocId = FlamdexSort.getOldDocIdToNewDocId(r, sortKey);
+                        FlamdexSort.sort(r, new SimpleFlamdexWriter(outputDirectory, numDocs, true, true).setWriteMetricCaches(writeMetricCaches).setSortKey(sortKey), oldDocIdToNewDocId);
+                    } finally {
+                        r.close();
+                    }
+                } finally {
+                    rmrf(unsortedDir);
+                }
+            }
+
+            for (final FlamdexReader reader : allReaders) {
+                reader.close();
+            }
+
+            for (final Future<File> segment : Iterables.concat(mergedSegments, bufferedSegments)) {
+                rmrf(getSegment(segment));
+            }
+        } finally {
+            if (flushExecutor != null) {
+                flushExecutor.shutdownNow();
+                mergeExecutor.shutdownNow();
+            }
         }
     }
 
@@ -176,6 +384,9 @@ public final class SimpleFlamdexDocWriter implements FlamdexDocWriter {
     public static class Config {
         private int docBufferSize = 500;
         private int mergeFactor = 100;
+        private int numThreads = 1;
+        private boolean writeMetricCaches = false;
+        private List<String> sortKey = Collections.emptyList();
 
         public int getDocBufferSize() {
             return docBufferSize;
@@ -185,6 +396,18 @@ public final class SimpleFlamdexDocWriter implements FlamdexDocWriter {
             return mergeFactor;
         }
 
+        public int getNumThreads() {
+            return numThreads;
+        }
+
+        public boolean isWriteMetricCaches() {
+            return writeMetricCaches;
+        }
+
+        public List<String> getSortKey() {
+            return sortKey;
+        }
+
         public Config setDocBufferSize(int docBufferSize) {
             this.docBufferSize = docBufferSize;
             return this;
@@ -194,6 +417,32 @@ public final class SimpleFlamdexDocWriter implements FlamdexDocWriter {
             this.mergeFactor = mergeFactor;
             return this;
         }
+
+        /**
+         * number of threads used for flushing buffers, for merging and for the final merge on close
+         */
+        public Config setNumThreads(int numThreads) {
+            this.numThreads = numThreads;
+            return this;
+        }
+
+        /**
+         * whether to write the mmap metric cache of every int field with the index, see {@link SimpleFlamdexWriter#setWriteMetricCaches(boolean)}
+         */
+        public Config setWriteMetricCaches(boolean writeMetricCaches) {
+            this.writeMetricCaches = writeMetricCaches;
+            return this;
+        }
+
+        /**
+         * Reorders the documents of the index by this key before writing it, and records the key in the metadata.
+         * Clustering documents by the fields queries filter and group on makes postings smaller and doc id scans more
+         * local. See {@link FlamdexSort#getOldDocIdToNewDocId} for the syntax, such as ["unixtime/3600", "country"].
+         */
+        public Config setSortKey(List<String> sortKey) {
+            this.sortKey = sortKey;
+            return this;
+        }
     }
 
     private static void rmrf(final File file) throws IOException {
@@ -13,6 +13,8 @@
  */
  package com.indeed.flamdex.simple;
 
+import com.indeed.flamdex.fieldcache.FieldCacher;
+
 import java.io.File;
 import java.io.FileFilter;
 
@@ -32,6 +34,14 @@ public class SimpleFlamdexFileFilter implements FileFilter {
             if (name.endsWith(".intindex") && pathname.isDirectory()) return true;
             if (name.endsWith(".intindex64") && pathname.isDirectory()) return true;
             if (name.endsWith(".strindex") && pathname.isDirectory()) return true;
+            if (name.endsWith(".zonemap")) return true;
+            final int extension = name.lastIndexOf('.');
+            if (extension > 4) {
+                final String field = name.substring(4, extension);
+                for (final FieldCacher cacher : FieldCacher.values()) {
+                    if (name.equals(cacher.getMMapFileName(field))) return true;
+                }
+            }
         }
         return false;
     }
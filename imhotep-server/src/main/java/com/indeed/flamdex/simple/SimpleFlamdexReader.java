@@ -15,6 +15,7 @@
 
 import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.indeed.util.io.Files;
 import com.indeed.flamdex.AbstractFlamdexReader;
@@ -24,6 +25,7 @@ import com.indeed.flamdex.api.GenericRawStringTermDocIterator;
 import com.indeed.flamdex.api.IntTermDocIterator;
 import com.indeed.flamdex.api.RawFlamdexReader;
 import com.indeed.flamdex.api.RawStringTermDocIterator;
+import com.indeed.flamdex.fieldcache.FieldCacher;
 import com.indeed.flamdex.fieldcache.UnsortedIntTermDocIterator;
 import com.indeed.flamdex.reader.FlamdexMetadata;
 import com.indeed.flamdex.utils.FlamdexUtils;
@@ -33,7 +35,9 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -42,6 +46,7 @@ import java.util.Set;
 public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFlamdexReader {
     private final Collection<String> intFields;
     private final Collection<String> stringFields;
+    private final Map<String, FieldCacher> precomputedMetrics;
     private final MapCache mapCache = new MapCache();
 
     private static final boolean useNativeDocIdStream;
@@ -56,10 +61,20 @@ public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFla
                                   Collection<String> intFields,
                                   Collection<String> stringFields,
                                   boolean useMMapMetrics) {
+        this(directory, numDocs, intFields, stringFields, Collections.<String, FieldCacher>emptyMap(), useMMapMetrics);
+    }
+
+    protected SimpleFlamdexReader(String directory,
+                                  int numDocs,
+                                  Collection<String> intFields,
+                                  Collection<String> stringFields,
+                                  Map<String, FieldCacher> precomputedMetrics,
+                                  boolean useMMapMetrics) {
         super(directory, numDocs, useMMapMetrics);
 
         this.intFields = intFields;
         this.stringFields = stringFields;
+        this.precomputedMetrics = precomputedMetrics;
     }
 
     public static SimpleFlamdexReader open(String directory) throws IOException {
@@ -74,7 +89,18 @@ public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFla
             buildIntBTrees(directory, Lists.newArrayList(intFields));
             buildStringBTrees(directory, Lists.newArrayList(stringFields));
         }
-        return new SimpleFlamdexReader(directory, metadata.numDocs, intFields, stringFields, config.useMMapMetrics);
+        return new SimpleFlamdexReader(directory, metadata.numDocs, intFields, stringFields, getPrecomputedMetrics(metadata), config.useMMapMetrics);
+    }
+
+    protected static Map<String, FieldCacher> getPrecomputedMetrics(final FlamdexMetadata metadata) {
+        if (metadata.getMetricCaches() == null) {
+            return Collections.emptyMap();
+        }
+        final Map<String, FieldCacher> ret = Maps.newHashMap();
+        for (final Map.Entry<String, String> e : metadata.getMetricCaches().entrySet()) {
+            ret.put(e.getKey(), FieldCacher.valueOf(e.getValue()));
+        }
+        return ret;
     }
 
     protected static Collection<String> scan(final String directory, final String ending) throws IOException {
@@ -142,6 +168,11 @@ public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFla
         }
     }
 
+    @Override
+    protected FieldCacher getPrecomputedMetricCacher(final String metric) {
+        return precomputedMetrics.get(metric);
+    }
+
     @Override
     protected UnsortedIntTermDocIterator createUnsortedIntTermDocIterator(final String field) {
         return getIntTermDocIterator(field);
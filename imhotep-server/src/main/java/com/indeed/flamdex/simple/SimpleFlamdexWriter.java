@@ -15,10 +15,13 @@
 
 import com.google.common.base.Charsets;
 import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.CountingInputStream;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.indeed.util.core.Throwables2;
 import com.indeed.util.core.sort.Quicksortable;
 import com.indeed.util.core.sort.Quicksortables;
 import com.indeed.util.io.Files;
@@ -27,7 +30,10 @@ import com.indeed.util.serialization.StringSerializer;
 import com.indeed.flamdex.api.DocIdStream;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntTermIterator;
+import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.flamdex.api.StringTermIterator;
+import com.indeed.flamdex.fieldcache.FieldCacher;
+import com.indeed.flamdex.fieldcache.ZoneMap;
 import com.indeed.flamdex.reader.FlamdexMetadata;
 import com.indeed.flamdex.utils.FlamdexUtils;
 import com.indeed.flamdex.writer.FlamdexWriter;
@@ -48,6 +54,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
@@ -56,9 +63,16 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author jsgroth
@@ -70,6 +84,8 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
 
     private static final int DOC_ID_BUFFER_SIZE = 32;
 
+    private static final int PARALLEL_MERGE_DOC_ID_BUFFER_SIZE = 1024;
+
     private static final int BLOCK_SIZE = 64;    
 
     private final String outputDirectory;
@@ -79,6 +95,11 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
 
     private final Set<String> intFields;
     private final Set<String> stringFields;
+    /** int field to the name of the cacher its metric cache file was written with */
+    private final Map<String, String> metricCaches;
+
+    private boolean writeMetricCaches = false;
+    private List<String> sortKey;
 
     public SimpleFlamdexWriter(String outputDirectory, long numDocs) throws IOException {
         this(outputDirectory, numDocs, true, true);
@@ -100,6 +121,7 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
             }
             intFields = new HashSet<String>();
             stringFields = new HashSet<String>();
+            metricCaches = new TreeMap<String, String>();
         } else {
             final FlamdexMetadata metadata = FlamdexMetadata.readMetadata(outputDirectory);
             if (metadata.numDocs != numDocs) {
@@ -107,9 +129,29 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
             }
             intFields = new HashSet<String>(metadata.intFields);
             stringFields = new HashSet<String>(metadata.stringFields);
+            metricCaches = metadata.getMetricCaches() != null ? new TreeMap<String, String>(metadata.getMetricCaches()) : new TreeMap<String, String>();
+            sortKey = metadata.getSortKey();
         }
     }
+
+    /**
+     * If set, {@link #close()} writes the mmap metric cache of every int field that does not already have one, in
+     * the narrowest width its terms fit, and records them in the metadata. Readers then map these files instead of
+     * uninverting the field the first time it is used as a metric. The field's {@link ZoneMap} is written as well.
+     */
+    public SimpleFlamdexWriter setWriteMetricCaches(boolean writeMetricCaches) {
+        this.writeMetricCaches = writeMetricCaches;
+        return this;
+    }
     
+    /**
+     * records the key the documents are written in the order of, as computed by {@link com.indeed.flamdex.utils.FlamdexSort#getOldDocIdToNewDocId}
+     */
+    public SimpleFlamdexWriter setSortKey(List<String> sortKey) {
+        this.sortKey = sortKey;
+        return this;
+    }
+
     @Override
     public String getOutputDirectory() {
         return this.outputDirectory;
@@ -129,6 +171,9 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
             throw new IllegalArgumentException("already added int field "+field);
         }
         intFields.add(field);
+        if (metricCaches.remove(field) != null) {
+            deleteMetricCaches(outputDirectory, field);
+        }
         return SimpleIntFieldWriter.open(outputDirectory, field, maxDocs, writeBTreesOnClose);
     }
 
@@ -153,10 +198,62 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
         final List<String> stringFieldsList = new ArrayList<String>(stringFields);
         Collections.sort(stringFieldsList);
 
+        if (writeMetricCaches) {
+            final SimpleFlamdexReader reader = new SimpleFlamdexReader(outputDirectory, (int)maxDocs, intFieldsList, stringFieldsList, false);
+            try {
+                for (final String intField : intFieldsList) {
+                    if (!metricCaches.containsKey(intField)) {
+                        metricCaches.put(intField, writeMetricCache(outputDirectory, intField, reader).name());
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
         final FlamdexMetadata metadata = new FlamdexMetadata((int)maxDocs, intFieldsList, stringFieldsList, FORMAT_VERSION);
+        if (!metricCaches.isEmpty()) {
+            metadata.setMetricCaches(metricCaches);
+        }
+        if (sortKey != null && !sortKey.isEmpty()) {
+            metadata.setSortKey(new ArrayList<String>(sortKey));
+        }
         FlamdexMetadata.writeMetadata(outputDirectory, metadata);
     }
 
+    /**
+     * writes the mmap metric cache and zone map of an int field and returns the cacher whose format it was written in
+     */
+    public static FieldCacher writeMetricCache(String directory, String intField, FlamdexReader r) throws IOException {
+        if (!deleteMetricCaches(directory, intField)) {
+            throw new IOException("unable to delete stale metric cache of " + intField + " in " + directory);
+        }
+        final FieldCacher cacher = FieldCacher.getCacherForField(intField, r);
+        final IntValueLookup lookup = cacher.newMMapFieldCache(intField, r, directory);
+        try {
+            ZoneMap.build(lookup, r.getNumDocs()).write(new File(directory, ZoneMap.getFileName(intField)));
+        } finally {
+            lookup.close();
+        }
+        return cacher;
+    }
+
+    private static boolean deleteMetricCaches(String directory, String intField) {
+        boolean deleted = true;
+        final List<String> cacheFiles = Lists.newArrayList(ZoneMap.getFileName(intField));
+        for (final FieldCacher cacher : FieldCacher.values()) {
+            cacheFiles.add(cacher.getMMapFileName(intField));
+        }
+        for (final String cacheFile : cacheFiles) {
+            final File f = new File(directory, cacheFile);
+            if (f.exists() && !f.delete()) {
+                log.error("unable to delete metric cache " + f);
+                deleted = false;
+            }
+        }
+        return deleted;
+    }
+
     public static void writeIntBTree(String directory, String intField, File btreeDir) throws IOException {
         final String termsFilename = Files.buildPath(directory, SimpleIntFieldWriter.getTermsFilename(intField));
         if (!new File(termsFilename).exists() || new File(termsFilename).length() == 0L) return;
@@ -333,129 +430,256 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
     }
 
     public static void merge(FlamdexReader[] readers, FlamdexWriter w) throws IOException {
-        final DocIdStream[] docIdStreams = new DocIdStream[readers.length];
-        final int[] segmentStartDocs = new int[readers.length];
-        int totalNumDocs = 0;
-        for (int i = 0; i < readers.length; ++i) {
-            docIdStreams[i] = readers[i].getDocIdStream();
-            segmentStartDocs[i] = totalNumDocs;
-            totalNumDocs += readers[i].getNumDocs();
-        }
+        final DocIdStream[] docIdStreams = openDocIdStreams(readers);
+        final int[] segmentStartDocs = getSegmentStartDocs(readers);
 
-        log.info("merging " + readers.length + " readers with a total of " + totalNumDocs + " docs");
+        log.info("merging " + readers.length + " readers with a total of " + getTotalNumDocs(readers) + " docs");
 
         final int[] indexBuf = new int[readers.length];
         final int[] docIdBuf = new int[64];
 
         for (final String intField : mergeIntFields(readers)) {
             final IntFieldWriter ifw = w.getIntFieldWriter(intField);
+            mergeIntField(readers, intField, docIdStreams, segmentStartDocs, ifw, indexBuf, docIdBuf);
+            ifw.close();
+        }
 
-            final IntTermIteratorWrapper[] iterators = new IntTermIteratorWrapper[readers.length];
-            final IndirectPriorityQueue<IntTermIteratorWrapper> pq = new ObjectHeapSemiIndirectPriorityQueue<IntTermIteratorWrapper>(iterators, iterators.length);
-            for (int i = 0; i < readers.length; ++i) {
-                if (!readers[i].getIntFields().contains(intField)) continue;
-                final IntTermIterator it = readers[i].getIntTermIterator(intField);
-                if (it.next()) {
-                    iterators[i] = new IntTermIteratorWrapper(it, i);
-                    pq.enqueue(i);
-                } else {
-                    it.close();
-                }
-            }
+        for (final String stringField : mergeStringFields(readers)) {
+            final StringFieldWriter sfw = w.getStringFieldWriter(stringField);
+            mergeStringField(readers, stringField, docIdStreams, segmentStartDocs, sfw, indexBuf, docIdBuf);
+            sfw.close();
+        }
 
-            while (!pq.isEmpty()) {
-                final long term = iterators[pq.first()].it.term();
-                int numIndexes = 0;
-                IntTermIteratorWrapper wrap;
-                while (!pq.isEmpty() && (wrap = iterators[pq.first()]).it.term() == term) {
-                    final int index = wrap.index;
-                    docIdStreams[index].reset(wrap.it);
-                    indexBuf[numIndexes++] = index;
-                    if (wrap.it.next()) {
-                        pq.changed();
-                    } else {
-                        wrap.it.close();
-                        pq.dequeue();
-                    }
-                }
+        closeDocIdStreams(docIdStreams);
+    }
+
+    public static void merge(Collection<? extends FlamdexReader> readers, FlamdexWriter w, int numThreads) throws IOException {
+        merge(readers.toArray(new FlamdexReader[readers.size()]), w, numThreads);
+    }
+
+    /**
+     * Merges like {@link #merge(FlamdexReader[], FlamdexWriter)}, producing the same index, but merges up to
+     * numThreads fields at a time. Each field is merged with its own doc id streams and written (including its
+     * B-tree, if the writer writes them on close) by the worker that merged it, so at most numThreads fields are
+     * buffered at any time.
+     *
+     * The field writers handed out by w must be independent of each other, as those of
+     * {@link SimpleFlamdexWriter} are. Calls to w itself are made while holding its monitor.
+     */
+    public static void merge(final FlamdexReader[] readers, final FlamdexWriter w, final int numThreads) throws IOException {
+        if (numThreads <= 1) {
+            merge(readers, w);
+            return;
+        }
 
-                ifw.nextTerm(term);
-                for (int i = 0; i < numIndexes; ++i) {
-                    final int index = indexBuf[i];
-                    final int startDoc = segmentStartDocs[index];
-                    final DocIdStream dis = docIdStreams[index];
-                    while (true) {
-                        final int n = dis.fillDocIdBuffer(docIdBuf);
+        final int[] segmentStartDocs = getSegmentStartDocs(readers);
 
-                        for (int j = 0; j < n; ++j) {
-                            ifw.nextDoc(docIdBuf[j]+startDoc);
-                        }
+        log.info("merging " + readers.length + " readers with a total of " + getTotalNumDocs(readers) + " docs on " + numThreads + " threads");
 
-                        if (n < docIdBuf.length) break;
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final String intField : mergeIntFields(readers)) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    final IntFieldWriter ifw;
+                    synchronized (w) {
+                        ifw = w.getIntFieldWriter(intField);
+                    }
+                    final DocIdStream[] docIdStreams = openDocIdStreams(readers);
+                    try {
+                        mergeIntField(readers, intField, docIdStreams, segmentStartDocs, ifw,
+                                      new int[readers.length], new int[PARALLEL_MERGE_DOC_ID_BUFFER_SIZE]);
+                    } finally {
+                        closeDocIdStreams(docIdStreams);
                     }
+                    ifw.close();
+                    return null;
                 }
-            }
+            });
+        }
+        for (final String stringField : mergeStringFields(readers)) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    final StringFieldWriter sfw;
+                    synchronized (w) {
+                        sfw = w.getStringFieldWriter(stringField);
+                    }
+                    final DocIdStream[] docIdStreams = openDocIdStreams(readers);
+                    try {
+                        mergeStringField(readers, stringField, docIdStreams, segmentStartDocs, sfw,
+                                         new int[readers.length], new int[PARALLEL_MERGE_DOC_ID_BUFFER_SIZE]);
+                    } finally {
+                        closeDocIdStreams(docIdStreams);
+                    }
+                    sfw.close();
+                    return null;
+                }
+            });
+        }
 
-            ifw.close();
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("SimpleFlamdexWriter-merge-%d").build());
+        try {
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks.size());
+            for (final Callable<Void> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (final Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw Throwables2.propagate(e.getCause(), IOException.class);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while merging");
+                }
+            }
+        } finally {
+            executor.shutdownNow();
         }
+    }
 
-        for (final String stringField : mergeStringFields(readers)) {
-            final StringFieldWriter sfw = w.getStringFieldWriter(stringField);
+    private static void mergeIntField(FlamdexReader[] readers,
+                                      String intField,
+                                      DocIdStream[] docIdStreams,
+                                      int[] segmentStartDocs,
+                                      IntFieldWriter ifw,
+                                      int[] indexBuf,
+                                      int[] docIdBuf) throws IOException {
+        final IntTermIteratorWrapper[] iterators = new IntTermIteratorWrapper[readers.length];
+        final IndirectPriorityQueue<IntTermIteratorWrapper> pq = new ObjectHeapSemiIndirectPriorityQueue<IntTermIteratorWrapper>(iterators, iterators.length);
+        for (int i = 0; i < readers.length; ++i) {
+            if (!readers[i].getIntFields().contains(intField)) continue;
+            final IntTermIterator it = readers[i].getIntTermIterator(intField);
+            if (it.next()) {
+                iterators[i] = new IntTermIteratorWrapper(it, i);
+                pq.enqueue(i);
+            } else {
+                it.close();
+            }
+        }
 
-            final StringTermIteratorWrapper[] iterators = new StringTermIteratorWrapper[readers.length];
-            final IndirectPriorityQueue<StringTermIteratorWrapper> pq = new ObjectHeapSemiIndirectPriorityQueue<StringTermIteratorWrapper>(iterators, iterators.length);
-            for (int i = 0; i < readers.length; ++i) {
-                if (!readers[i].getStringFields().contains(stringField)) continue;
-                final StringTermIterator it = readers[i].getStringTermIterator(stringField);
-                if (it.next()) {
-                    iterators[i] = new StringTermIteratorWrapper(it, i);
-                    pq.enqueue(i);
+        while (!pq.isEmpty()) {
+            final long term = iterators[pq.first()].it.term();
+            int numIndexes = 0;
+            IntTermIteratorWrapper wrap;
+            while (!pq.isEmpty() && (wrap = iterators[pq.first()]).it.term() == term) {
+                final int index = wrap.index;
+                docIdStreams[index].reset(wrap.it);
+                indexBuf[numIndexes++] = index;
+                if (wrap.it.next()) {
+                    pq.changed();
                 } else {
-                    it.close();
+                    wrap.it.close();
+                    pq.dequeue();
                 }
             }
 
-            while (!pq.isEmpty()) {
-                final String term = iterators[pq.first()].it.term();
-                int numIndexes = 0;
-                StringTermIteratorWrapper wrap;
-                while (!pq.isEmpty() && (wrap = iterators[pq.first()]).it.term().equals(term)) {
-                    final int index = wrap.index;
-                    docIdStreams[index].reset(wrap.it);
-                    indexBuf[numIndexes++] = index;
-                    if (wrap.it.next()) {
-                        pq.changed();
-                    } else {
-                        wrap.it.close();
-                        pq.dequeue();
+            ifw.nextTerm(term);
+            for (int i = 0; i < numIndexes; ++i) {
+                final int index = indexBuf[i];
+                final int startDoc = segmentStartDocs[index];
+                final DocIdStream dis = docIdStreams[index];
+                while (true) {
+                    final int n = dis.fillDocIdBuffer(docIdBuf);
+
+                    for (int j = 0; j < n; ++j) {
+                        ifw.nextDoc(docIdBuf[j]+startDoc);
                     }
+
+                    if (n < docIdBuf.length) break;
                 }
+            }
+        }
+    }
+
+    private static void mergeStringField(FlamdexReader[] readers,
+                                         String stringField,
+                                         DocIdStream[] docIdStreams,
+                                         int[] segmentStartDocs,
+                                         StringFieldWriter sfw,
+                                         int[] indexBuf,
+                                         int[] docIdBuf) throws IOException {
+        final StringTermIteratorWrapper[] iterators = new StringTermIteratorWrapper[readers.length];
+        final IndirectPriorityQueue<StringTermIteratorWrapper> pq = new ObjectHeapSemiIndirectPriorityQueue<StringTermIteratorWrapper>(iterators, iterators.length);
+        for (int i = 0; i < readers.length; ++i) {
+            if (!readers[i].getStringFields().contains(stringField)) continue;
+            final StringTermIterator it = readers[i].getStringTermIterator(stringField);
+            if (it.next()) {
+                iterators[i] = new StringTermIteratorWrapper(it, i);
+                pq.enqueue(i);
+            } else {
+                it.close();
+            }
+        }
 
-                sfw.nextTerm(term);
-                for (int i = 0; i < numIndexes; ++i) {
-                    final int index = indexBuf[i];
-                    final int startDoc = segmentStartDocs[index];
-                    final DocIdStream dis = docIdStreams[index];
-                    while (true) {
-                        final int n = dis.fillDocIdBuffer(docIdBuf);
+        while (!pq.isEmpty()) {
+            final String term = iterators[pq.first()].it.term();
+            int numIndexes = 0;
+            StringTermIteratorWrapper wrap;
+            while (!pq.isEmpty() && (wrap = iterators[pq.first()]).it.term().equals(term)) {
+                final int index = wrap.index;
+                docIdStreams[index].reset(wrap.it);
+                indexBuf[numIndexes++] = index;
+                if (wrap.it.next()) {
+                    pq.changed();
+                } else {
+                    wrap.it.close();
+                    pq.dequeue();
+                }
+            }
 
-                        for (int j = 0; j < n; ++j) {
-                            sfw.nextDoc(docIdBuf[j]+startDoc);
-                        }
+            sfw.nextTerm(term);
+            for (int i = 0; i < numIndexes; ++i) {
+                final int index = indexBuf[i];
+                final int startDoc = segmentStartDocs[index];
+                final DocIdStream dis = docIdStreams[index];
+                while (true) {
+                    final int n = dis.fillDocIdBuffer(docIdBuf);
 
-                        if (n < docIdBuf.length) break;
+                    for (int j = 0; j < n; ++j) {
+                        sfw.nextDoc(docIdBuf[j]+startDoc);
                     }
+
+                    if (n < docIdBuf.length) break;
                 }
             }
+        }
+    }
 
-            sfw.close();
+    private static DocIdStream[] openDocIdStreams(FlamdexReader[] readers) {
+        final DocIdStream[] docIdStreams = new DocIdStream[readers.length];
+        for (int i = 0; i < readers.length; ++i) {
+            docIdStreams[i] = readers[i].getDocIdStream();
         }
+        return docIdStreams;
+    }
 
+    private static void closeDocIdStreams(DocIdStream[] docIdStreams) {
         for (final DocIdStream dis : docIdStreams) {
             dis.close();
         }
     }
 
+    private static int[] getSegmentStartDocs(FlamdexReader[] readers) {
+        final int[] segmentStartDocs = new int[readers.length];
+        int totalNumDocs = 0;
+        for (int i = 0; i < readers.length; ++i) {
+            segmentStartDocs[i] = totalNumDocs;
+            totalNumDocs += readers[i].getNumDocs();
+        }
+        return segmentStartDocs;
+    }
+
+    private static int getTotalNumDocs(FlamdexReader[] readers) {
+        int totalNumDocs = 0;
+        for (final FlamdexReader reader : readers) {
+            totalNumDocs += reader.getNumDocs();
+        }
+        return totalNumDocs;
+    }
+
     private static Set<String> mergeIntFields(FlamdexReader[] readers) {
         final Set<String> ret = new TreeSet<String>();
         for (final FlamdexReader reader : readers) {
@@ -13,6 +13,10 @@
  */
  package com.indeed.flamdex.utils;
 
+import com.google.common.math.LongMath;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import com.indeed.util.core.sort.Quicksortable;
 import com.indeed.util.core.sort.Quicksortables;
 import com.indeed.flamdex.api.DocIdStream;
 import com.indeed.flamdex.api.FlamdexReader;
@@ -24,12 +28,105 @@ import com.indeed.flamdex.writer.StringFieldWriter;
 import com.indeed.util.core.sort.RadixSort;
 
 import java.io.IOException;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * @author jsgroth
  */
 public class FlamdexSort {
     private static final int MAGIC_SORTING_NUMBER = 50000;    
+    private static final int BUFFER_SIZE = 1024;
+
+    /**
+     * Computes the oldDocIdToNewDocId mapping for {@link #sort} that orders documents by a sort key, keeping the existing
+     * order of documents with equal keys.
+     *
+     * Each element of the key is a field name, optionally followed by "/" and a bucket size for int fields, such as
+     * "unixtime/3600" to order by the hour. Int fields order documents by their metric value, string fields by their
+     * largest term with documents lacking the field first.
+     */
+    public static int[] getOldDocIdToNewDocId(FlamdexReader r, List<String> sortKey) {
+        final long[][] keys = new long[sortKey.size()][];
+        for (int i = 0; i < keys.length; ++i) {
+            keys[i] = getSortKeyValues(r, sortKey.get(i));
+        }
+
+        final int[] newDocIdToOldDocId = new int[r.getNumDocs()];
+        for (int i = 0; i < newDocIdToOldDocId.length; ++i) {
+            newDocIdToOldDocId[i] = i;
+        }
+        Quicksortables.sort(new Quicksortable() {
+            @Override
+            public void swap(int i, int j) {
+                Quicksortables.swap(newDocIdToOldDocId, i, j);
+            }
+
+            @Override
+            public int compare(int i, int j) {
+                final int a = newDocIdToOldDocId[i];
+                final int b = newDocIdToOldDocId[j];
+                for (final long[] key : keys) {
+                    final int c = Longs.compare(key[a], key[b]);
+                    if (c != 0) return c;
+                }
+                return Ints.compare(a, b);
+            }
+        }, newDocIdToOldDocId.length);
+
+        final int[] oldDocIdToNewDocId = new int[newDocIdToOldDocId.length];
+        for (int i = 0; i < newDocIdToOldDocId.length; ++i) {
+            oldDocIdToNewDocId[newDocIdToOldDocId[i]] = i;
+        }
+        return oldDocIdToNewDocId;
+    }
+
+    private static long[] getSortKeyValues(FlamdexReader r, String key) {
+        final int slash = key.indexOf('/');
+        final String field = slash < 0 ? key : key.substring(0, slash);
+        final long bucketSize = slash < 0 ? 1 : Long.parseLong(key.substring(slash + 1));
+        if (bucketSize <= 0) {
+            throw new IllegalArgumentException("bucket size must be positive: " + key);
+        }
+
+        if (r.getIntFields().contains(field)) {
+            final long[] values = FlamdexUtils.cacheLongField(field, r);
+            if (bucketSize > 1) {
+                for (int doc = 0; doc < values.length; ++doc) {
+                    values[doc] = LongMath.divide(values[doc], bucketSize, RoundingMode.FLOOR);
+                }
+            }
+            return values;
+        }
+        if (r.getStringFields().contains(field)) {
+            if (slash >= 0) {
+                throw new IllegalArgumentException("buckets are only supported for int fields: " + key);
+            }
+            final long[] ordinals = new long[r.getNumDocs()];
+            Arrays.fill(ordinals, -1);
+            final int[] docIdBuffer = new int[BUFFER_SIZE];
+            final StringTermIterator iter = r.getStringTermIterator(field);
+            final DocIdStream dis = r.getDocIdStream();
+            try {
+                for (long ordinal = 0; iter.next(); ++ordinal) {
+                    dis.reset(iter);
+                    while (true) {
+                        final int n = dis.fillDocIdBuffer(docIdBuffer);
+                        for (int i = 0; i < n; ++i) {
+                            ordinals[docIdBuffer[i]] = ordinal;
+                        }
+                        if (n < docIdBuffer.length) break;
+                    }
+                }
+            } finally {
+                dis.close();
+                iter.close();
+            }
+            return ordinals;
+        }
+        throw new IllegalArgumentException("sort key field " + field + " does not exist");
+    }
 
     // this method DOES close the FlamdexWriter upon completion
     public static void sort(FlamdexReader r, FlamdexWriter w, int[] oldDocIdToNewDocId) throws IOException {
@@ -44,7 +141,6 @@ public class FlamdexSort {
         final DocIdStream dis = r.getDocIdStream();
 
         for (final String intField : intFields) {
-            System.out.println("intField:"+intField);
             final IntTermIterator iter = r.getIntTermIterator(intField);
             final IntFieldWriter ifw = w.getIntFieldWriter(intField);
             while (iter.next()) {
@@ -68,7 +164,6 @@ public class FlamdexSort {
         }
 
         for (final String stringField : stringFields) {
-            System.out.println("stringField:"+stringField);
             final StringTermIterator iter = r.getStringTermIterator(stringField);
             final StringFieldWriter sfw = w.getStringFieldWriter(stringField);
             while (iter.next()) {
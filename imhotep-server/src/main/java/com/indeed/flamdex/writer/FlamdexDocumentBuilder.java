@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.writer;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A reusable alternative to {@link FlamdexDocument} for indexing. Field names are interned the first time they
+ * are seen and term lists are kept between documents, so once a builder has seen every field and its largest
+ * document, adding terms and calling {@link #clear()} does not allocate.
+ *
+ * Fields are listed in the order they were first seen by this builder, restricted to the fields set since the
+ * last {@link #clear()}.
+ */
+public final class FlamdexDocumentBuilder {
+    private final Object2IntOpenHashMap<String> intFieldSlots = new Object2IntOpenHashMap<String>();
+    private final List<String> intFieldNames = new ArrayList<String>();
+    private final List<LongArrayList> intTerms = new ArrayList<LongArrayList>();
+    private int[] usedIntSlots = new int[8];
+    private int numIntFields = 0;
+    /** the generation in which each int field slot was last used */
+    private int[] intSlotGenerations = new int[8];
+
+    private final Object2IntOpenHashMap<String> stringFieldSlots = new Object2IntOpenHashMap<String>();
+    private final List<String> stringFieldNames = new ArrayList<String>();
+    private final List<ArrayList<String>> stringTerms = new ArrayList<ArrayList<String>>();
+    private int[] usedStringSlots = new int[8];
+    private int numStringFields = 0;
+    private int[] stringSlotGenerations = new int[8];
+
+    /** incremented by {@link #clear()} */
+    private int generation = 1;
+
+    public FlamdexDocumentBuilder() {
+        intFieldSlots.defaultReturnValue(-1);
+        stringFieldSlots.defaultReturnValue(-1);
+    }
+
+    /**
+     * removes every field so that the builder can be reused for the next document
+     */
+    public void clear() {
+        for (int i = 0; i < numIntFields; ++i) {
+            intTerms.get(usedIntSlots[i]).clear();
+        }
+        numIntFields = 0;
+        for (int i = 0; i < numStringFields; ++i) {
+            stringTerms.get(usedStringSlots[i]).clear();
+        }
+        numStringFields = 0;
+        ++generation;
+    }
+
+    private LongArrayList prepareIntField(final String field) {
+        Preconditions.checkNotNull(field, "field cannot be null");
+
+        int slot = intFieldSlots.getInt(field);
+        if (slot < 0) {
+            slot = intFieldNames.size();
+            intFieldSlots.put(field, slot);
+            intFieldNames.add(field);
+            intTerms.add(new LongArrayList());
+            if (slot == intSlotGenerations.length) {
+                intSlotGenerations = Arrays.copyOf(intSlotGenerations, 2 * slot);
+            }
+        }
+        if (intSlotGenerations[slot] != generation) {
+            intSlotGenerations[slot] = generation;
+            if (numIntFields == usedIntSlots.length) {
+                usedIntSlots = Arrays.copyOf(usedIntSlots, 2 * numIntFields);
+            }
+            usedIntSlots[numIntFields++] = slot;
+        }
+        return intTerms.get(slot);
+    }
+
+    private ArrayList<String> prepareStringField(final String field) {
+        Preconditions.checkNotNull(field, "field cannot be null");
+
+        int slot = stringFieldSlots.getInt(field);
+        if (slot < 0) {
+            slot = stringFieldNames.size();
+            stringFieldSlots.put(field, slot);
+            stringFieldNames.add(field);
+            stringTerms.add(new ArrayList<String>());
+            if (slot == stringSlotGenerations.length) {
+                stringSlotGenerations = Arrays.copyOf(stringSlotGenerations, 2 * slot);
+            }
+        }
+        if (stringSlotGenerations[slot] != generation) {
+            stringSlotGenerations[slot] = generation;
+            if (numStringFields == usedStringSlots.length) {
+                usedStringSlots = Arrays.copyOf(usedStringSlots, 2 * numStringFields);
+            }
+            usedStringSlots[numStringFields++] = slot;
+        }
+        return stringTerms.get(slot);
+    }
+
+    /**
+     * adds the field to the document without any terms, like {@link FlamdexDocument#setIntField(String, long[])}
+     * with an empty array
+     */
+    public FlamdexDocumentBuilder addIntField(@Nonnull final String field) {
+        prepareIntField(field);
+        return this;
+    }
+
+    public FlamdexDocumentBuilder addIntTerm(@Nonnull final String field, final long term) {
+        prepareIntField(field).add(term);
+        return this;
+    }
+
+    public FlamdexDocumentBuilder addIntTerm(@Nonnull final String field, final boolean b) {
+        prepareIntField(field).add(b ? 1 : 0);
+        return this;
+    }
+
+    public FlamdexDocumentBuilder addIntTerms(@Nonnull final String field, @Nonnull final long[] terms) {
+        Preconditions.checkNotNull(terms, "terms list cannot be null");
+        final LongArrayList list = prepareIntField(field);
+        for (final long term : terms) {
+            list.add(term);
+        }
+        return this;
+    }
+
+    /**
+     * adds the field to the document without any terms
+     */
+    public FlamdexDocumentBuilder addStringField(@Nonnull final String field) {
+        prepareStringField(field);
+        return this;
+    }
+
+    public FlamdexDocumentBuilder addStringTerm(@Nonnull final String field, @Nonnull final String term) {
+        Preconditions.checkNotNull(term, "term cannot be null");
+        prepareStringField(field).add(term);
+        return this;
+    }
+
+    public FlamdexDocumentBuilder addStringTerms(@Nonnull final String field, @Nonnull final String[] terms) {
+        Preconditions.checkNotNull(terms, "terms list cannot be null");
+        final ArrayList<String> list = prepareStringField(field);
+        for (final String term : terms) {
+            Preconditions.checkNotNull(term, "null terms not allowed");
+            list.add(term);
+        }
+        return this;
+    }
+
+    public int getNumIntFields() {
+        return numIntFields;
+    }
+
+    @Nonnull
+    public String getIntField(final int index) {
+        return intFieldNames.get(usedIntSlots[index]);
+    }
+
+    /**
+     * Returns the terms of the index-th int field. The list is reused by later documents and must not be modified.
+     */
+    @Nonnull
+    public LongList getIntTerms(final int index) {
+        return intTerms.get(usedIntSlots[index]);
+    }
+
+    public int getNumStringFields() {
+        return numStringFields;
+    }
+
+    @Nonnull
+    public String getStringField(final int index) {
+        return stringFieldNames.get(usedStringSlots[index]);
+    }
+
+    /**
+     * Returns the terms of the index-th string field. The list is reused by later documents and must not be modified.
+     */
+    @Nonnull
+    public List<String> getStringTerms(final int index) {
+        return stringTerms.get(usedStringSlots[index]);
+    }
+
+    /**
+     * copies the current contents of this builder into a new {@link FlamdexDocument}
+     */
+    public FlamdexDocument toDocument() {
+        final FlamdexDocument doc = new FlamdexDocument();
+        for (int i = 0; i < numIntFields; ++i) {
+            doc.setIntField(getIntField(i), getIntTerms(i).toLongArray());
+        }
+        for (int i = 0; i < numStringFields; ++i) {
+            doc.setStringField(getStringField(i), getStringTerms(i));
+        }
+        return doc;
+    }
+}
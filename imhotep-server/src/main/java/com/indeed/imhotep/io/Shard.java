@@ -61,6 +61,29 @@ public class Shard implements Closeable {
         copy.close();
     }
 
+    /**
+     * creates a shard from already known metadata without opening the reader, which will be
+     * opened the first time a session asks for it
+     */
+    public Shard(final ReloadableSharedReference<CachedFlamdexReader, IOException> ref,
+                 final SharedReference<ReadLock> readLock,
+                 final long shardVersion,
+                 final String indexDir,
+                 final String dataset,
+                 final String shardId,
+                 final int numDocs,
+                 final Collection<String> intFields,
+                 final Collection<String> stringFields,
+                 final Collection<String> availableMetrics) {
+        this.ref = ref;
+        this.readLock = readLock;
+        this.shardId = new ShardId(dataset, shardId, shardVersion, indexDir);
+        this.numDocs = numDocs;
+        this.intFields = intFields;
+        this.stringFields = stringFields;
+        this.availableMetrics = availableMetrics;
+    }
+
     public synchronized @Nullable
     SharedReference<CachedFlamdexReader> getRef() throws IOException {
         if (closed)
@@ -68,6 +91,16 @@ public class Shard implements Closeable {
         return ref.copy();
     }
 
+    /**
+     * @return a reference to the reader if it is already open, null if it is not or the shard has been closed
+     */
+    public synchronized @Nullable
+    SharedReference<CachedFlamdexReader> getRefIfLoaded() {
+        if (closed)
+            return null;
+        return ref.copyIfLoaded();
+    }
+
     public ShardId getShardId() {
         return shardId;
     }
@@ -128,7 +161,9 @@ public class Shard implements Closeable {
     public synchronized void close() throws IOException {
         if (!closed) {
             closed = true;
-            readLock.close();
+            if (readLock != null) {
+                readLock.close();
+            }
         }
     }
 }
@@ -20,10 +20,14 @@ import java.io.InputStream;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.apache.log4j.Logger;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
@@ -32,13 +36,21 @@ import com.google.common.cache.RemovalCause;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
 import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class CachedRemoteFileSystem extends RemoteFileSystem {
+    private static final Logger log = Logger.getLogger(CachedRemoteFileSystem.class);
+
+    /* number of directories remembered as already read ahead */
+    private static final int READ_AHEAD_DIRECTORY_HISTORY = 4096;
+
     private RemoteFileSystem parentFS;
     private String mountPoint;
     private RemoteFileSystemMounter mounter;
     private File localCacheDir;
     private LoadingCache<String, File> cache;
+    private ExecutorService readAheadExecutor;
+    private ConcurrentMap<String, Boolean> readAheadDirectories;
 
     public CachedRemoteFileSystem(Map<String,Object> settings, 
                                   RemoteFileSystem parentFS,
@@ -94,6 +106,22 @@ public class CachedRemoteFileSystem extends RemoteFileSystem {
                                 }
                             });
 
+        /*
+         * when a file is requested, the rest of the files in its directory (usually the rest of the
+         * shard) are fetched into the cache in the background
+         */
+        final Integer readAheadThreads = (Integer)settings.get("read-ahead-threads");
+        if (readAheadThreads != null && readAheadThreads > 0) {
+            readAheadExecutor = Executors.newFixedThreadPool(readAheadThreads,
+                                                             new ThreadFactoryBuilder().setDaemon(true)
+                                                                                       .setNameFormat("CachedRemoteFileSystem-ReadAhead-%d")
+                                                                                       .build());
+            readAheadDirectories = CacheBuilder.newBuilder()
+                                               .maximumSize(READ_AHEAD_DIRECTORY_HISTORY)
+                                               .<String, Boolean>build()
+                                               .asMap();
+        }
+
         scanExistingFiles();
     }
     
@@ -130,13 +158,59 @@ public class CachedRemoteFileSystem extends RemoteFileSystem {
         return localFile;
     }
 
+    /*
+     * concurrent requests for the same path share a single download since
+     * LoadingCache only runs one load per key at a time
+     */
     @Override
     public File loadFile(String fullPath) throws IOException {
+        final File file;
         try {
-            return cache.get(fullPath);
+            file = cache.get(fullPath);
         } catch (ExecutionException e) {
             throw new IOException(e);
         }
+        readAheadSiblings(fullPath);
+        return file;
+    }
+
+    private void readAheadSiblings(String fullPath) {
+        if (readAheadExecutor == null) {
+            return;
+        }
+        final int lastDelimiter = fullPath.lastIndexOf(DELIMITER);
+        if (lastDelimiter <= 0) {
+            return;
+        }
+        final String dirPath = fullPath.substring(0, lastDelimiter);
+        if (readAheadDirectories.putIfAbsent(dirPath, Boolean.TRUE) != null) {
+            return;
+        }
+        readAheadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<RemoteFileInfo> siblings = parentFS.readDir(dirPath);
+                if (siblings == null) {
+                    return;
+                }
+                for (final RemoteFileInfo sibling : siblings) {
+                    if (sibling.type != RemoteFileInfo.TYPE_FILE) {
+                        continue;
+                    }
+                    final String siblingPath = dirPath + DELIMITER + sibling.path;
+                    if (cache.getIfPresent(siblingPath) != null) {
+                        continue;
+                    }
+                    try {
+                        cache.get(siblingPath);
+                    } catch (ExecutionException e) {
+                        log.warn("unable to read ahead " + siblingPath, e.getCause());
+                    } catch (RuntimeException e) {
+                        log.warn("unable to read ahead " + siblingPath, e);
+                    }
+                }
+            }
+        });
     }
 
     @Override
@@ -156,14 +230,10 @@ public class CachedRemoteFileSystem extends RemoteFileSystem {
 
     @Override
     public void copyFileInto(String fullPath, File localFile) throws IOException {
-        try {
-            final File cachedFile;
+        final File cachedFile;
 
-            cachedFile = cache.get(fullPath);
-            FileUtils.copyFile(cachedFile, localFile);
-        } catch (ExecutionException e) {
-            throw new IOException(e);
-        }
+        cachedFile = loadFile(fullPath);
+        FileUtils.copyFile(cachedFile, localFile);
     }
 
     @Override
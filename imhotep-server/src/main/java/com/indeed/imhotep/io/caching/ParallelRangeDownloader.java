@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.io.caching;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.indeed.util.core.Throwables2;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Downloads a remote file by splitting it into fixed size parts and fetching the parts concurrently
+ * with ranged reads, writing each part directly to its offset in the local file. An optional bandwidth
+ * cap is shared by all downloads made through the same instance.
+ */
+public final class ParallelRangeDownloader implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * A remote store that supports reading byte ranges of a file.
+     */
+    public interface RangeSource {
+        long length(String path) throws IOException;
+
+        InputStream openRange(String path, long start, long length) throws IOException;
+    }
+
+    private final long partSize;
+    private final ExecutorService executor;
+    private final BandwidthThrottle throttle;
+
+    /**
+     * @param partSize size in bytes of each ranged read
+     * @param concurrency maximum number of ranged reads in flight across all downloads
+     * @param maxBytesPerSecond bandwidth cap across all downloads, 0 for no cap
+     */
+    public ParallelRangeDownloader(final long partSize, final int concurrency, final long maxBytesPerSecond) {
+        if (partSize <= 0) {
+            throw new IllegalArgumentException("part size must be positive: " + partSize);
+        }
+        this.partSize = partSize;
+        executor = Executors.newFixedThreadPool(concurrency, new ThreadFactoryBuilder().setDaemon(true)
+                                                                                     .setNameFormat("ParallelRangeDownloader-%d")
+                                                                                     .build());
+        throttle = new BandwidthThrottle(maxBytesPerSecond);
+    }
+
+    public void download(final RangeSource source, final String path, final File localFile) throws IOException {
+        final long length = source.length(path);
+        final RandomAccessFile raf = new RandomAccessFile(localFile, "rw");
+        try {
+            raf.setLength(length);
+            final FileChannel channel = raf.getChannel();
+            final AtomicBoolean aborted = new AtomicBoolean(false);
+            final List<Future<Void>> parts = Lists.newArrayList();
+            Throwable failure = null;
+            try {
+                for (long start = 0; start < length; start += partSize) {
+                    final long partStart = start;
+                    final long partLength = Math.min(partSize, length - start);
+                    parts.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            copyRange(source, path, channel, partStart, partLength, aborted);
+                            return null;
+                        }
+                    }));
+                }
+            } catch (RejectedExecutionException e) {
+                aborted.set(true);
+                failure = new IOException("downloader closed while downloading " + path, e);
+            }
+            // every part has to be finished before the file is closed, parts still writing to a closed
+            // channel would fail with errors that hide the one that actually aborted the download
+            boolean interrupted = false;
+            for (final Future<Void> part : parts) {
+                while (true) {
+                    try {
+                        part.get();
+                        break;
+                    } catch (ExecutionException e) {
+                        aborted.set(true);
+                        if (failure == null) {
+                            failure = e.getCause();
+                        }
+                        break;
+                    } catch (InterruptedException e) {
+                        aborted.set(true);
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+                final InterruptedIOException e = new InterruptedIOException("interrupted while downloading " + path);
+                if (failure != null) {
+                    e.initCause(failure);
+                }
+                throw e;
+            }
+            if (failure != null) {
+                throw Throwables2.propagate(failure, IOException.class);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * copies one part, stopping early without an error once another part has failed
+     */
+    private void copyRange(final RangeSource source,
+                           final String path,
+                           final FileChannel channel,
+                           final long start,
+                           final long length,
+                           final AtomicBoolean aborted) throws IOException {
+        if (aborted.get()) {
+            return;
+        }
+        final InputStream in = source.openRange(path, start, length);
+        try {
+            final byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, length)];
+            long position = start;
+            long remaining = length;
+            while (remaining > 0 && !aborted.get()) {
+                final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("unexpected end of " + path + " at offset " + position);
+                }
+                throttle.acquire(read);
+                final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+                while (byteBuffer.hasRemaining()) {
+                    position += channel.write(byteBuffer, position);
+                }
+                remaining -= read;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static final class BandwidthThrottle {
+        private final long bytesPerSecond;
+        private long nextFreeNanos = 0;
+
+        private BandwidthThrottle(final long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        void acquire(final int bytes) throws InterruptedIOException {
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            final long waitNanos;
+            synchronized (this) {
+                final long now = System.nanoTime();
+                if (nextFreeNanos < now) {
+                    nextFreeNanos = now;
+                }
+                waitNanos = nextFreeNanos - now;
+                nextFreeNanos += TimeUnit.SECONDS.toNanos(bytes) / bytesPerSecond;
+            }
+            if (waitNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+}
@@ -38,12 +38,16 @@ import com.amazonaws.services.s3.model.S3ObjectSummary;
 
 public class S3RemoteFileSystem extends RemoteFileSystem {
     private static final Logger log = Logger.getLogger(S3RemoteFileSystem.class);
+
+    private static final int DEFAULT_PART_SIZE_MB = 8;
+    private static final int DEFAULT_CONCURRENCY = 8;
     
     private String mountPoint;
     private RemoteFileSystemMounter mounter;
     private String s3bucket;
     private String s3prefix;
     private AmazonS3Client client;
+    private ParallelRangeDownloader downloader;
 
     public S3RemoteFileSystem(Map<String,Object> settings, 
                               RemoteFileSystem parent,
@@ -72,6 +76,19 @@ public class S3RemoteFileSystem extends RemoteFileSystem {
         cred = new BasicAWSCredentials(s3key, s3secret);
 
         client = new AmazonS3Client(cred);
+
+        final int partSizeMB = getIntSetting(settings, "s3-part-size-mb", DEFAULT_PART_SIZE_MB);
+        final int concurrency = getIntSetting(settings, "s3-concurrency", DEFAULT_CONCURRENCY);
+        final long maxBytesPerSecond = getIntSetting(settings, "s3-max-kb-per-second", 0) * 1024L;
+        downloader = new ParallelRangeDownloader(partSizeMB * 1024L * 1024L, concurrency, maxBytesPerSecond);
+    }
+
+    private static int getIntSetting(Map<String,Object> settings, String name, int defaultValue) {
+        final Object value = settings.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        return (Integer)value;
     }
     
     private String getS3path(String path) {
@@ -120,15 +137,38 @@ public class S3RemoteFileSystem extends RemoteFileSystem {
     public void copyFileInto(String fullPath, File localFile) throws IOException {
         final String relativePath = mounter.getMountRelativePath(fullPath, mountPoint);
         final String s3path = getS3path(relativePath);
-        final ObjectMetadata metadata;
-        
-        try {
-            metadata = client.getObject(new GetObjectRequest(s3bucket, s3path), localFile);
-        } catch(AmazonS3Exception e) {
-            throw new IOException(e);
-        }
+
+        downloader.download(rangeSource, s3path, localFile);
     }
 
+    /*
+     * Ranged reads of S3 objects, used to download large objects in parallel parts
+     */
+    private final ParallelRangeDownloader.RangeSource rangeSource = new ParallelRangeDownloader.RangeSource() {
+        @Override
+        public long length(String s3path) throws IOException {
+            try {
+                return client.getObjectMetadata(s3bucket, s3path).getContentLength();
+            } catch(AmazonServiceException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public InputStream openRange(String s3path, long start, long length) throws IOException {
+            final GetObjectRequest request;
+
+            request = new GetObjectRequest(s3bucket, s3path);
+            /* S3 ranges are inclusive */
+            request.setRange(start, start + length - 1);
+            try {
+                return client.getObject(request).getObjectContent();
+            } catch(AmazonServiceException e) {
+                throw new IOException(e);
+            }
+        }
+    };
+
     private ObjectMetadata getMetadata(String fullPath) {
         final String relativePath = mounter.getMountRelativePath(fullPath, mountPoint);
         final String s3path = getS3path(relativePath);
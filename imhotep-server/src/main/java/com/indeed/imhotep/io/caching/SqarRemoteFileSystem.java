@@ -26,8 +26,10 @@ import java.util.concurrent.ConcurrentHashMap;
 import com.google.common.base.Charsets;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import com.indeed.imhotep.archive.ArchiveUtils;
 import com.indeed.imhotep.archive.FileMetadata;
+import com.indeed.imhotep.archive.compression.BlockIndex;
 import com.indeed.imhotep.archive.compression.SquallArchiveCompressor;
 
 public class SqarRemoteFileSystem extends RemoteFileSystem {
@@ -71,8 +73,9 @@ public class SqarRemoteFileSystem extends RemoteFileSystem {
         final SquallArchiveCompressor compressor = split.length > 5 ?
                 SquallArchiveCompressor.fromKey(split[5]) : SquallArchiveCompressor.NONE;
         final String archiveFilename = split.length > 6 ? split[6] : "archive.bin";
+        final BlockIndex blockIndex = split.length > 7 ? BlockIndex.parse(split[7]) : null;
         return new FileMetadata(filename, size, timestamp, checksum, startOffset, compressor,
-                                archiveFilename);
+                                archiveFilename, blockIndex);
    }
     
     private FileMetadata scanMetadataForFile(String file) throws IOException {
@@ -157,9 +160,12 @@ public class SqarRemoteFileSystem extends RemoteFileSystem {
 
         sqarpath = mountPoint.substring(0, mountPoint.length() - DELIMITER.length()) + SUFFIX;
         archivePath = sqarpath + DELIMITER + archiveFile;
+        final BlockIndex blockIndex = metadata.getBlockIndex();
         is = parentFS.getInputStreamForFile(archivePath, 
                                             startOffset, 
-                                            originalSize + 2048 /* for safety */);
+                                            blockIndex != null ?
+                                                    blockIndex.getCompressedLength() :
+                                                    originalSize + 2048 /* for safety */);
         try {
             compressor = metadata.getCompressor();
             
@@ -348,12 +354,60 @@ public class SqarRemoteFileSystem extends RemoteFileSystem {
 
 
     /*
-     * Unneeded for now
+     * Reads a range of an archived file. Files written with a block compressor are served by
+     * fetching and decompressing only the blocks that overlap the range; other files have to be
+     * decompressed from their beginning.
      */
     @Override
-    public InputStream getInputStreamForFile(String archivePath,
+    public InputStream getInputStreamForFile(String fullPath,
                                              long startOffset,
-                                             long maxReadLength) {
-        throw new UnsupportedOperationException();
+                                             long maxReadLength) throws IOException {
+        final String relativePath = mounter.getMountRelativePath(fullPath, mountPoint);
+        final FileMetadata metadata = scanMetadataForFile(relativePath);
+        if (metadata == null) {
+            throw new FileNotFoundException("Could not locate " + relativePath + " in archive.");
+        }
+
+        final long size = metadata.getSize();
+        if (startOffset < 0 || startOffset > size) {
+            throw new IOException("offset " + startOffset + " is out of bounds for " + fullPath + " of size " + size);
+        }
+        final long readLength = maxReadLength == -1 ?
+                size - startOffset : Math.min(maxReadLength, size - startOffset);
+
+        final String sqarpath = mountPoint.substring(0, mountPoint.length() - DELIMITER.length()) + SUFFIX;
+        final String archivePath = sqarpath + DELIMITER + metadata.getArchiveFilename();
+        final SquallArchiveCompressor compressor = metadata.getCompressor();
+        final BlockIndex blockIndex = metadata.getBlockIndex();
+
+        final InputStream is;
+        final long toSkip;
+        if (blockIndex != null) {
+            final int firstBlock = blockIndex.getBlock(startOffset);
+            final int endBlock = readLength == 0 ?
+                    firstBlock : blockIndex.getBlock(startOffset + readLength - 1) + 1;
+            final long compressedStart = blockIndex.getBlockOffset(firstBlock);
+            final long compressedEnd = blockIndex.getBlockOffset(Math.min(endBlock, blockIndex.getNumBlocks()));
+            is = compressor.newInputStream(parentFS.getInputStreamForFile(archivePath,
+                                                                          metadata.getStartOffset() + compressedStart,
+                                                                          compressedEnd - compressedStart));
+            toSkip = startOffset - (long) firstBlock * blockIndex.getBlockSize();
+        } else if (compressor == SquallArchiveCompressor.NONE) {
+            return parentFS.getInputStreamForFile(archivePath,
+                                                  metadata.getStartOffset() + startOffset,
+                                                  readLength);
+        } else {
+            is = compressor.newInputStream(parentFS.getInputStreamForFile(archivePath,
+                                                                          metadata.getStartOffset(),
+                                                                          -1));
+            toSkip = startOffset;
+        }
+        try {
+            ByteStreams.skipFully(is, toSkip);
+        } catch (IOException e) {
+            is.close();
+            throw e;
+        }
+        return ByteStreams.limit(is, readLength);
     }
 }
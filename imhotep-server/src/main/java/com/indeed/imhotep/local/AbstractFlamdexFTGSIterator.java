@@ -26,6 +26,17 @@ import org.apache.log4j.Logger;
  */
 public abstract class AbstractFlamdexFTGSIterator implements FTGSIterator {
     private static final Logger log = Logger.getLogger(AbstractFlamdexFTGSIterator.class);
+
+    /**
+     * sessions with more group stats than this accumulate the stats of a term in a hash table of the groups it
+     * reaches rather than in arrays indexed by group
+     */
+    static final long MAX_DENSE_GROUP_STATS = 1 << 21;
+
+    static boolean needsSparseGroupStats(int numGroups, int numStats) {
+        return (long) numGroups * (numStats + 1) > MAX_DENSE_GROUP_STATS;
+    }
+
     /**
      *
      */
@@ -34,6 +45,8 @@ public abstract class AbstractFlamdexFTGSIterator implements FTGSIterator {
     protected final int[] groupsSeen;
     protected final BitTree bitTree;
     protected final long[][] termGrpStats;
+    // used instead of groupsSeen, bitTree and termGrpStats when there are too many groups for them
+    private final SparseGroupStats sparseGroupStats;
 
     protected boolean currentFieldIsIntType;
 
@@ -55,9 +68,19 @@ public abstract class AbstractFlamdexFTGSIterator implements FTGSIterator {
 
     public AbstractFlamdexFTGSIterator(ImhotepLocalSession imhotepLocalSession, SharedReference<FlamdexReader> flamdexReader) {
         this.session = imhotepLocalSession;
-        this.termGrpStats = new long[session.numStats][session.docIdToGroup.getNumGroups()];
-        this.groupsSeen = new int[session.docIdToGroup.getNumGroups()];
-        this.bitTree = new BitTree(session.docIdToGroup.getNumGroups());
+        final int numGroups = session.docIdToGroup.getNumGroups();
+        // the session reserves memory for the dense arrays only when it has chosen them
+        if (session.sparseFTGSGroupStats) {
+            this.termGrpStats = null;
+            this.groupsSeen = null;
+            this.bitTree = null;
+            this.sparseGroupStats = new SparseGroupStats(session.numStats, session.memory);
+        } else {
+            this.termGrpStats = new long[session.numStats][numGroups];
+            this.groupsSeen = new int[numGroups];
+            this.bitTree = new BitTree(numGroups);
+            this.sparseGroupStats = null;
+        }
         this.flamdexReader = flamdexReader;
     }
 
@@ -101,7 +124,11 @@ public abstract class AbstractFlamdexFTGSIterator implements FTGSIterator {
 
     private boolean calculateTermGroupStats() {
         // clear out ram from previous iterations if necessary
-        for (final long[] x : termGrpStats) ImhotepLocalSession.clear(x, groupsSeen, groupsSeenCount);
+        if (sparseGroupStats != null) {
+            sparseGroupStats.clear();
+        } else {
+            for (final long[] x : termGrpStats) ImhotepLocalSession.clear(x, groupsSeen, groupsSeenCount);
+        }
         groupsSeenCount = 0;
 
         if (fieldZeroDocBitset != null) {
@@ -121,7 +148,11 @@ public abstract class AbstractFlamdexFTGSIterator implements FTGSIterator {
                     docsTime += System.nanoTime();
                     lookupsTime -= System.nanoTime();
                 }
-                session.docIdToGroup.nextGroupCallback(n, termGrpStats, bitTree);
+                if (sparseGroupStats != null) {
+                    addToSparseGroupStats(n);
+                } else {
+                    session.docIdToGroup.nextGroupCallback(n, termGrpStats, bitTree);
+                }
                 if (ImhotepLocalSession.logTiming) {
                     lookupsTime += System.nanoTime();
                     timingErrorTime -= System.nanoTime();
@@ -130,7 +161,7 @@ public abstract class AbstractFlamdexFTGSIterator implements FTGSIterator {
                 if (n < ImhotepLocalSession.BUFFER_SIZE) break;
             }
         }
-        groupsSeenCount = bitTree.dump(groupsSeen);
+        groupsSeenCount = sparseGroupStats != null ? sparseGroupStats.sortGroups() : bitTree.dump(groupsSeen);
 
         if (fieldZeroDocBitset != null && groupsSeenCount == 0) {
             fieldZeroDocBitset.set(termIndex - 1);
@@ -143,6 +174,26 @@ public abstract class AbstractFlamdexFTGSIterator implements FTGSIterator {
 
     protected abstract int fillDocIdBuffer();
 
+    /**
+     * releases the memory claimed by sparse group stats, called by subclasses on close
+     */
+    protected final void closeGroupStats() {
+        if (sparseGroupStats != null) {
+            sparseGroupStats.close();
+        }
+    }
+
+    private void addToSparseGroupStats(int n) {
+        session.docIdToGroup.fillDocGrpBuffer(session.docIdBuf, session.docGroupBuffer, n);
+        final int numDocs = sparseGroupStats.toSlots(session.docIdBuf, session.docGroupBuffer, n);
+        if (numDocs > 0) {
+            final long[][] slotStats = sparseGroupStats.getSlotStats();
+            for (int statIndex = 0; statIndex < session.numStats; statIndex++) {
+                ImhotepLocalSession.updateGroupStatsDocIdBuf(session.statLookup[statIndex], slotStats[statIndex], session.docGroupBuffer, session.docIdBuf, session.valBuf, numDocs);
+            }
+        }
+    }
+
     private void expandFieldNonZeroDocBitset() {
         synchronized (session) {
             if (fieldZeroDocBitset == null) return;
@@ -164,11 +215,15 @@ public abstract class AbstractFlamdexFTGSIterator implements FTGSIterator {
 
     @Override
     public final int group() {
-        return groupsSeen[groupPointer];
+        return sparseGroupStats != null ? sparseGroupStats.group(groupPointer) : groupsSeen[groupPointer];
     }
 
     @Override
     public final void groupStats(long[] stats) {
+        if (sparseGroupStats != null) {
+            sparseGroupStats.groupStats(groupPointer, stats);
+            return;
+        }
         final int group = group();
         for (int i = 0; i < session.numStats; i++) {
             stats[i] = termGrpStats[i][group];
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.indeed.util.core.threads.ThreadSafeBitSet;
+import com.indeed.flamdex.datastruct.FastBitSet;
+import com.indeed.imhotep.BitTree;
+import com.indeed.imhotep.GroupRemapRule;
+
+/**
+ * Group assignments restored from a {@link SessionCheckpoint}, shared with the checkpoint and every other session
+ * forked from it. Nothing writes to them: {@link GroupLookupFactory#resize}, which every regroup goes through before
+ * writing, copies them into a lookup owned by the session.
+ */
+final class CopyOnWriteGroupLookup extends GroupLookup {
+    private final ImhotepLocalSession session;
+    private final GroupLookup shared;
+
+    CopyOnWriteGroupLookup(ImhotepLocalSession session, GroupLookup shared) {
+        this.session = session;
+        this.shared = shared;
+        this.numGroups = shared.getNumGroups();
+    }
+
+    GroupLookup getShared() {
+        return shared;
+    }
+
+    @Override
+    void nextGroupCallback(int n, long[][] termGrpStats, BitTree groupsSeen) {
+        shared.fillDocGrpBuffer(session.docIdBuf, session.docGroupBuffer, n);
+        int rewriteHead = 0;
+        // filter out useless docids (ones with group = 0), keep track of groups that were found
+        for (int i = 0; i < n; i++) {
+            final int group = session.docGroupBuffer[i];
+            if (group == 0) continue;
+
+            session.docGroupBuffer[rewriteHead] = group;
+            session.docIdBuf[rewriteHead] = session.docIdBuf[i];
+            rewriteHead++;
+        }
+        groupsSeen.set(session.docGroupBuffer, rewriteHead);
+
+        if (rewriteHead > 0) {
+            for (int statIndex = 0; statIndex < session.numStats; statIndex++) {
+                ImhotepLocalSession.updateGroupStatsDocIdBuf(session.statLookup[statIndex], termGrpStats[statIndex], session.docGroupBuffer, session.docIdBuf, session.valBuf, rewriteHead);
+            }
+        }
+    }
+
+    @Override
+    void applyIntConditionsCallback(int n, ThreadSafeBitSet docRemapped, GroupRemapRule[] remapRules, String intField, long itrTerm) {
+        throw new UnsupportedOperationException("bug!");
+    }
+
+    @Override
+    void applyStringConditionsCallback(int n, ThreadSafeBitSet docRemapped, GroupRemapRule[] remapRules, String stringField, String itrTerm) {
+        throw new UnsupportedOperationException("bug!");
+    }
+
+    @Override
+    int get(int doc) {
+        return shared.get(doc);
+    }
+
+    @Override
+    void set(int doc, int group) {
+        throw new UnsupportedOperationException("bug!");
+    }
+
+    @Override
+    void batchSet(int[] docIdBuf, int[] docGrpBuffer, int n) {
+        throw new UnsupportedOperationException("bug!");
+    }
+
+    @Override
+    void fill(int group) {
+        throw new UnsupportedOperationException("bug!");
+    }
+
+    @Override
+    void copyInto(GroupLookup other) {
+        shared.copyInto(other);
+    }
+
+    @Override
+    int size() {
+        return shared.size();
+    }
+
+    @Override
+    int maxGroup() {
+        return shared.maxGroup();
+    }
+
+    @Override
+    long memoryUsed() {
+        return 0L; // accounted for by the checkpoint
+    }
+
+    @Override
+    void fillDocGrpBuffer(int[] docIdBuf, int[] docGrpBuffer, int n) {
+        shared.fillDocGrpBuffer(docIdBuf, docGrpBuffer, n);
+    }
+
+    @Override
+    void fillDocGrpBufferSequential(int start, int[] docGrpBuffer, int n) {
+        shared.fillDocGrpBufferSequential(start, docGrpBuffer, n);
+    }
+
+    @Override
+    void bitSetRegroup(FastBitSet bitSet, int targetGroup, int negativeGroup, int positiveGroup) {
+        throw new UnsupportedOperationException("bug!");
+    }
+
+    @Override
+    ImhotepLocalSession getSession() {
+        return session;
+    }
+
+    @Override
+    void recalculateNumGroups() {
+        this.numGroups = shared.getNumGroups();
+    }
+}
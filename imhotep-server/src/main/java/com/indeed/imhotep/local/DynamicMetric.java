@@ -28,6 +28,14 @@ public class DynamicMetric implements IntValueLookup, Serializable {
         this.values = new int[size];
     }
 
+    private DynamicMetric(int[] values) {
+        this.values = values;
+    }
+
+    DynamicMetric copy() {
+        return new DynamicMetric(values.clone());
+    }
+
     @Override
     public long getMin() {
         return Ints.min(values);
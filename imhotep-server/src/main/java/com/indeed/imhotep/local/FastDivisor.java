@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.google.common.primitives.UnsignedLongs;
+
+/**
+ * Divides by a fixed divisor with a multiplication and shifts instead of a division instruction, like libdivide does
+ * with the magic numbers of Granlund and Montgomery. Dividends and divisors that fit in 32 bits, which covers the
+ * values of int fields, take this path, and anything wider falls back to a plain division.
+ */
+final class FastDivisor {
+    private static final long UINT_MASK = 0xFFFFFFFFL;
+
+    private final long divisor;
+    private final boolean hasMagic;
+    private final long magic;
+    private final int shift1;
+    private final int shift2;
+
+    FastDivisor(long divisor) {
+        if (divisor <= 0) {
+            throw new IllegalArgumentException("divisor must be positive: " + divisor);
+        }
+        this.divisor = divisor;
+        hasMagic = divisor <= UINT_MASK;
+        if (hasMagic) {
+            // l = ceil(log2(divisor)), so 2^l - divisor < divisor and the magic number fits in 33 bits
+            final int l = 64 - Long.numberOfLeadingZeros(divisor - 1);
+            magic = (((1L << l) - divisor) << 32) / divisor + 1;
+            shift1 = Math.min(l, 1);
+            shift2 = Math.max(l - 1, 0);
+        } else {
+            magic = 0;
+            shift1 = 0;
+            shift2 = 0;
+        }
+    }
+
+    /**
+     * @param dividend an unsigned value
+     * @return the unsigned quotient
+     */
+    long divide(long dividend) {
+        if (hasMagic && (dividend & ~UINT_MASK) == 0) {
+            // the high half of the 64 bit product of two values below 2^32 never overflows
+            final long t = (magic * dividend) >>> 32;
+            return (t + ((dividend - t) >>> shift1)) >>> shift2;
+        }
+        return dividend >= 0 ? dividend / divisor : UnsignedLongs.divide(dividend, divisor);
+    }
+}
@@ -87,6 +87,7 @@ class FlamdexFTGSIterator extends AbstractFlamdexFTGSIterator {
                 Closeables2.closeQuietly(flamdexReader, ImhotepLocalSession.log);
                 flamdexReader = null;
             }
+            closeGroupStats();
         }
     }
 
@@ -103,6 +103,7 @@ class FlamdexSubsetFTGSIterator extends AbstractFlamdexFTGSIterator {
                 Closeables2.closeQuietly(flamdexReader, ImhotepLocalSession.log);
                 flamdexReader = null;
             }
+            closeGroupStats();
         }
     }
 
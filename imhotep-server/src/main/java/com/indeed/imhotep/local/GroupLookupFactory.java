@@ -53,7 +53,10 @@ public class GroupLookupFactory {
                                      MemoryReservationContext memory) throws ImhotepOutOfMemoryException {
         final GroupLookup newGL;
 
-        if (maxGroup > existingGL.maxGroup()) {
+        if (existingGL instanceof CopyOnWriteGroupLookup) {
+            /* groups shared with a checkpoint are copied before anything writes to them */
+            newGL = create(Math.max(maxGroup, existingGL.getNumGroups()), existingGL.size(), existingGL.getSession(), memory);
+        } else if (maxGroup > existingGL.maxGroup()) {
             /* need a bigger group */
             newGL = create(maxGroup, existingGL.size(), existingGL.getSession(), memory);
         } else {
@@ -36,6 +36,13 @@ public class ImhotepBitSetPooler implements FastBitSetPooler {
         return new FastBitSet(size);
     }
 
+    @Override
+    public void claim(long bytes) throws FlamdexOutOfMemoryException {
+        if (!memory.claimMemory(bytes)) {
+            throw new FlamdexOutOfMemoryException();
+        }
+    }
+
     @Override
     public void release(long bytes) {
         memory.releaseMemory(bytes);
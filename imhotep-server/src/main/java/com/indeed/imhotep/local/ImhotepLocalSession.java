@@ -15,6 +15,7 @@
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
+import com.google.common.base.Objects;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
@@ -33,10 +34,12 @@ import com.indeed.flamdex.api.RawFlamdexReader;
 import com.indeed.flamdex.api.StringTermDocIterator;
 import com.indeed.flamdex.api.StringTermIterator;
 import com.indeed.flamdex.api.StringValueLookup;
+import com.indeed.flamdex.datastruct.CompressedBitSet;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
 import com.indeed.flamdex.fieldcache.ByteArrayIntValueLookup;
 import com.indeed.flamdex.fieldcache.IntArrayIntValueLookup;
+import com.indeed.flamdex.fieldcache.ZoneMap;
 import com.indeed.flamdex.query.Query;
 import com.indeed.flamdex.query.Term;
 import com.indeed.flamdex.reader.FlamdexMetadata;
@@ -45,15 +48,20 @@ import com.indeed.flamdex.simple.SimpleFlamdexReader;
 import com.indeed.flamdex.simple.SimpleFlamdexWriter;
 import com.indeed.flamdex.utils.FlamdexUtils;
 import com.indeed.imhotep.AbstractImhotepSession;
+import com.indeed.imhotep.DocSample;
 import com.indeed.imhotep.FTGSSplitter;
+import com.indeed.imhotep.GroupHyperLogLog;
 import com.indeed.imhotep.GroupMultiRemapRule;
+import com.indeed.imhotep.GroupQuantileSketch;
 import com.indeed.imhotep.GroupRemapRule;
+import com.indeed.imhotep.GroupStatAggregation;
 import com.indeed.imhotep.ImhotepMemoryPool;
 import com.indeed.imhotep.MemoryReservationContext;
 import com.indeed.imhotep.MemoryReserver;
 import com.indeed.imhotep.QueryRemapRule;
 import com.indeed.imhotep.RegroupCondition;
 import com.indeed.imhotep.TermCount;
+import com.indeed.imhotep.api.DocBlockIterator;
 import com.indeed.imhotep.api.DocIterator;
 import com.indeed.imhotep.api.FTGSIterator;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
@@ -86,6 +94,7 @@ import com.indeed.imhotep.metrics.NotEqual;
 import com.indeed.imhotep.metrics.ShiftLeftAndDivide;
 import com.indeed.imhotep.metrics.Subtraction;
 import com.indeed.imhotep.protobuf.QueryMessage;
+import com.indeed.imhotep.service.BlockDocIterator;
 import com.indeed.imhotep.service.CachedFlamdexReader;
 import com.indeed.imhotep.service.RawCachedFlamdexReader;
 import com.indeed.util.core.Pair;
@@ -105,6 +114,7 @@ import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -146,6 +156,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
 
     private static final int MAX_NUMBER_STATS = 64;
     static final int BUFFER_SIZE = 2048;
+    private static final int DOC_BLOCK_SIZE = 4096;
     private final AtomicLong tempFileSizeBytesLeft;
 
     private int numDocs;
@@ -171,22 +182,43 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
     int numStats;
     private long[][] groupStats = new long[MAX_NUMBER_STATS][];
     final IntValueLookup[] statLookup = new IntValueLookup[MAX_NUMBER_STATS];
+    /** the int field of each stat that is a plain field metric, null for any other stat */
+    private final String[] statFields = new String[MAX_NUMBER_STATS];
     private final List<String> statCommands;
 
     private final boolean[] needToReCalcGroupStats = new boolean[MAX_NUMBER_STATS];
 
+    /** whether FTGS iterators accumulate the stats of a term sparsely, see {@link #reserveFTGSIteratorMemory} */
+    boolean sparseFTGSGroupStats = false;
+    /** the memory reserved for the dense group stats of FTGS iterators */
+    private long ftgsIteratorMemory = 0;
+
     private boolean closed = false;
     @VisibleForTesting
     private Map<String, DynamicMetric> dynamicMetrics = Maps.newHashMap();
 
     Map<Pair<String, Boolean>, FastBitSet> fieldZeroDocBitsets;
 
+    /** the checkpointed groups this session was restored from, which docIdToGroup may still share */
+    private SharedReference<SessionCheckpoint.FrozenGroups> sharedGroups;
+
     private final Exception constructorStackTrace;
 
     private final File optimizationLog;
 
     private FTGSSplitter ftgsIteratorSplits;
 
+    /** the sample this session is restricted to, null if it sees every document */
+    private DocSample docSample;
+    /** the start and end of each run of consecutive sampled blocks, every other document stays in group 0 */
+    private int[] sampleRanges;
+    /** the documents of {@link #sampleRanges}, built once for the queries of query regroups */
+    private CompressedBitSet sampledDocs;
+    /** the number of documents in the shard over the number of sampled documents, by which sums are scaled up */
+    private double sampleScale = 1;
+    /** whether a regroup of group 0 may have moved documents outside of the sample out of it */
+    private boolean unsampledDocsRegrouped = false;
+
     public ImhotepLocalSession(final FlamdexReader flamdexReader) throws ImhotepOutOfMemoryException {
         this(flamdexReader, null,
                 new MemoryReservationContext(new ImhotepMemoryPool(Long.MAX_VALUE)), false, null);
@@ -211,12 +243,13 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         this.numDocs = flamdexReader.getNumDocs();
         this.optimizedIndexesDir = optimizedIndexDirectory;
 
-        if (!memory.claimMemory(BUFFER_SIZE * (4 + 4 + 4) + 12 * 2)) {
+        if (!memory.claimMemory(BUFFER_SIZE * (4 + 4 + 4))) {
             throw new ImhotepOutOfMemoryException();
         }
 
         docIdToGroup = new ConstantGroupLookup(this, 1, numDocs);
         docIdToGroup.recalculateNumGroups();
+        reserveFTGSIteratorMemory(docIdToGroup.getNumGroups());
         groupDocCount = clearAndResize((int[]) null, docIdToGroup.getNumGroups(), memory);
         groupDocCount[1] = numDocs;
         this.statCommands = new ArrayList<String>();
@@ -579,6 +612,228 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
 
     }
 
+    /**
+     * Takes a checkpoint of the groups, stats and dynamic metrics of this session, from which sessions on the same
+     * shard can be forked with {@link #restore}.
+     *
+     * @param checkpointMemory the memory the checkpoint claims, which outlives this session
+     */
+    public synchronized SessionCheckpoint checkpoint(MemoryReserver checkpointMemory) throws ImhotepOutOfMemoryException {
+        if (originalReader != null) {
+            throw new IllegalStateException("cannot checkpoint a session whose indexes have been rebuilt");
+        }
+        final SharedReference<SessionCheckpoint.FrozenGroups> groups;
+        if (docIdToGroup instanceof CopyOnWriteGroupLookup) {
+            // not regrouped since it was restored, so the groups of the previous checkpoint are still current
+            groups = sharedGroups.copy();
+        } else {
+            groups = SessionCheckpoint.freeze(docIdToGroup, checkpointMemory);
+        }
+        return new SessionCheckpoint(checkpointMemory, numDocs, statCommands, groups, dynamicMetrics, docSample);
+    }
+
+    /**
+     * Replaces the groups, stats and dynamic metrics of this session with those of a checkpoint taken on the same
+     * shard. The group assignments are shared with the checkpoint until the next regroup.
+     */
+    public synchronized void restore(SessionCheckpoint checkpoint) throws ImhotepOutOfMemoryException {
+        if (originalReader != null) {
+            throw new IllegalStateException("cannot restore a session whose indexes have been rebuilt");
+        }
+        if (checkpoint.getNumDocs() != numDocs) {
+            throw new IllegalArgumentException("checkpoint has " + checkpoint.getNumDocs() + " documents, shard has " + numDocs);
+        }
+        if (!Objects.equal(checkpoint.getDocSample(), docSample)) {
+            throw new IllegalArgumentException("checkpoint was taken on " + checkpoint.getDocSample() + ", session has " + docSample);
+        }
+
+        final SharedReference<SessionCheckpoint.FrozenGroups> groups = checkpoint.copyGroups();
+        final Map<String, DynamicMetric> newMetrics;
+        try {
+            newMetrics = checkpoint.copyDynamicMetrics(memory);
+        } catch (ImhotepOutOfMemoryException e) {
+            Closeables2.closeQuietly(groups, log);
+            throw e;
+        }
+
+        /* pop off all the stats, the ones of the checkpoint are pushed once the groups are restored */
+        while (numStats > 0) {
+            popStat();
+        }
+        statCommands.clear();
+
+        final GroupLookup newLookup = new CopyOnWriteGroupLookup(this, groups.get().lookup);
+        final int newNumGroups = newLookup.getNumGroups();
+        final long bytesToFree = docIdToGroup.memoryUsed();
+        try {
+            reserveFTGSIteratorMemory(newNumGroups);
+        } catch (ImhotepOutOfMemoryException e) {
+            Closeables2.closeQuietly(groups, log);
+            releaseDynamicMetrics(newMetrics);
+            throw e;
+        }
+        clearZeroDocBitsets();
+        docIdToGroup = newLookup;
+        memory.releaseMemory(bytesToFree);
+        if (sharedGroups != null) {
+            Closeables2.closeQuietly(sharedGroups, log);
+        }
+        sharedGroups = groups;
+        releaseDynamicMetrics(dynamicMetrics);
+        dynamicMetrics = newMetrics;
+
+        recalcGroupCounts(newNumGroups);
+        recalcGroupStats(newNumGroups);
+
+        for (final String stat : checkpoint.getStatCommands()) {
+            if ("pop".equals(stat)) {
+                popStat();
+            } else {
+                pushStat(stat);
+            }
+        }
+    }
+
+    /**
+     * Restricts this session to the documents in the blocks of a sample. Every other document is moved to group 0 for
+     * good, scans over the documents skip the blocks outside of the sample, and group stats and FTGS stats are scaled
+     * up from the sampled documents to the whole shard.
+     *
+     * @param shardId the id of the shard without its version, which picks the blocks independently of other shards
+     */
+    public synchronized void restrictToSample(DocSample sample, String shardId) throws ImhotepOutOfMemoryException {
+        if (originalReader != null) {
+            throw new IllegalStateException("cannot sample a session whose indexes have been rebuilt");
+        }
+        final int numBlocks = (numDocs + DocSample.BLOCK_SIZE - 1) / DocSample.BLOCK_SIZE;
+        final long shardKey = DocSample.shardKey(shardId);
+        int[] ranges = new int[16];
+        int rangesSize = 0;
+        int numSampledDocs = 0;
+        for (int block = 0; block < numBlocks; block++) {
+            if (!sample.containsBlock(shardKey, block)) {
+                continue;
+            }
+            final int start = block * DocSample.BLOCK_SIZE;
+            final int end = Math.min(numDocs, start + DocSample.BLOCK_SIZE);
+            numSampledDocs += end - start;
+            if (rangesSize > 0 && ranges[rangesSize - 1] == start) {
+                ranges[rangesSize - 1] = end;
+            } else {
+                if (rangesSize == ranges.length) {
+                    ranges = Arrays.copyOf(ranges, 2 * ranges.length);
+                }
+                ranges[rangesSize++] = start;
+                ranges[rangesSize++] = end;
+            }
+        }
+        final CompressedBitSet.Builder builder = new CompressedBitSet.Builder(numDocs);
+        for (int i = 0; i < rangesSize; i += 2) {
+            for (int doc = ranges[i]; doc < ranges[i + 1]; doc++) {
+                builder.add(doc);
+            }
+        }
+        final CompressedBitSet sampledDocSet = builder.build();
+        if (!memory.claimMemory(sampledDocSet.memoryUsage())) {
+            throw new ImhotepOutOfMemoryException();
+        }
+        releaseSampledDocs();
+        docSample = sample;
+        sampleRanges = Arrays.copyOf(ranges, rangesSize);
+        sampledDocs = sampledDocSet;
+        sampleScale = numSampledDocs > 0 ? (double) numDocs / numSampledDocs : 0;
+        resetGroupsTo(1);
+    }
+
+    private void releaseSampledDocs() {
+        if (sampledDocs != null) {
+            memory.releaseMemory(sampledDocs.memoryUsage());
+            sampledDocs = null;
+        }
+    }
+
+    @Nullable
+    public DocSample getDocSample() {
+        return docSample;
+    }
+
+    /**
+     * @return the start and end of each run of documents that can be outside of group 0, which is every document
+     *         unless the session is sampled, flattened into one array. The runs start at multiples of
+     *         {@link #BUFFER_SIZE} so buffers never straddle a zone map block.
+     */
+    private int[] scanRanges() {
+        if (docSample == null || originalReader != null) {
+            return new int[] {0, numDocs};
+        }
+        return sampleRanges;
+    }
+
+    /**
+     * @return the sampled documents, or null if the session is not sampled
+     */
+    @Nullable
+    private CompressedBitSet getSampledDocs() {
+        if (docSample == null || originalReader != null) {
+            return null;
+        }
+        return sampledDocs;
+    }
+
+    private static int countDocs(int[] ranges) {
+        int ret = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            ret += ranges[i + 1] - ranges[i];
+        }
+        return ret;
+    }
+
+    private long scale(long value) {
+        return Math.round(value * sampleScale);
+    }
+
+    /**
+     * called by regroups of group 0, which also holds the documents outside of the sample
+     */
+    private void beginGroupZeroRegroup() {
+        clearZeroDocBitsets();
+        unsampledDocsRegrouped = docSample != null;
+    }
+
+    /**
+     * moves the documents outside of the sample that a regroup of group 0 put in other groups back to group 0
+     */
+    private void excludeUnsampledDocs() {
+        final int[] ranges = scanRanges();
+        int start = 0;
+        for (int i = 0; i <= ranges.length; i += 2) {
+            final int end = i < ranges.length ? ranges[i] : numDocs;
+            for (int doc = start; doc < end; doc += BUFFER_SIZE) {
+                final int n = Math.min(BUFFER_SIZE, end - doc);
+                docIdToGroup.fillDocGrpBufferSequential(doc, docGroupBuffer, n);
+                for (int j = 0; j < n; j++) {
+                    if (docGroupBuffer[j] != 0) {
+                        docIdToGroup.set(doc + j, 0);
+                    }
+                }
+            }
+            if (i < ranges.length) {
+                start = ranges[i + 1];
+            }
+        }
+        unsampledDocsRegrouped = false;
+    }
+
+    private void releaseDynamicMetrics(Map<String, DynamicMetric> metrics) {
+        long memoryUsed = 0;
+        for (final DynamicMetric metric : metrics.values()) {
+            memoryUsed += metric.memoryUsed();
+        }
+        if (memoryUsed > 0) {
+            memory.releaseMemory(memoryUsed);
+        }
+    }
+
     /**
      * export the current docId -> group lookup into an array
      *
@@ -633,23 +888,36 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                 }
             }
         }
+        final FTGSIterator iterator;
         if (flamdexReader instanceof RawFlamdexReader) {
-            return new RawFlamdexFTGSIterator(this, flamdexReaderRef.copy(), intFields,
-                                              stringFields);
+            iterator = new RawFlamdexFTGSIterator(this, flamdexReaderRef.copy(), intFields,
+                                                  stringFields);
+        } else {
+            iterator = new FlamdexFTGSIterator(this, flamdexReaderRef.copy(), intFields, stringFields);
         }
-        return new FlamdexFTGSIterator(this, flamdexReaderRef.copy(), intFields, stringFields);
+        return docSample != null ? ScaledFTGSIterator.wrap(iterator, sampleScale) : iterator;
     }
 
     @Override
     public FTGSIterator getSubsetFTGSIterator(Map<String, long[]> intFields, Map<String, String[]> stringFields) {
+        final FTGSIterator iterator;
         if (flamdexReader instanceof RawFlamdexReader) {
-            return new RawFlamdexSubsetFTGSIterator(this, flamdexReaderRef.copy(), intFields,
+            iterator = new RawFlamdexSubsetFTGSIterator(this, flamdexReaderRef.copy(), intFields,
                     stringFields);
+        } else {
+            iterator = new FlamdexSubsetFTGSIterator(this, flamdexReaderRef.copy(), intFields, stringFields);
         }
-        return new FlamdexSubsetFTGSIterator(this, flamdexReaderRef.copy(), intFields, stringFields);
+        return docSample != null ? ScaledFTGSIterator.wrap(iterator, sampleScale) : iterator;
     }
 
     public DocIterator getDocIterator(final String[] intFields, final String[] stringFields) throws ImhotepOutOfMemoryException {
+        return new BlockDocIterator(getDocBlockIterator(intFields, stringFields));
+    }
+
+    /**
+     * looks up each requested field a block at a time for only the documents in non-zero groups
+     */
+    public DocBlockIterator getDocBlockIterator(final String[] intFields, final String[] stringFields) throws ImhotepOutOfMemoryException {
         boolean shardOnlyContainsGroupZero = true;
         for (int group = 1; group < groupDocCount.length; group++) {
             if (groupDocCount[group] != 0) {
@@ -658,7 +926,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
             }
         }
         if (shardOnlyContainsGroupZero) {
-            return emptyDocIterator();
+            return emptyDocBlockIterator();
         }
 
         final IntValueLookup[] intValueLookups = new IntValueLookup[intFields.length];
@@ -671,110 +939,114 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                 stringValueLookups[i] = flamdexReader.getStringLookup(stringFields[i]);
             }
         } catch (FlamdexOutOfMemoryException e) {
-            for (IntValueLookup lookup : intValueLookups) {
-                if (lookup != null) {
-                    lookup.close();
-                }
-            }
-            for (StringValueLookup lookup : stringValueLookups) {
-                if (lookup != null) {
-                    lookup.close();
-                }
-            }
+            closeLookups(intValueLookups, stringValueLookups);
             throw new ImhotepOutOfMemoryException();
         }
-        return new DocIterator() {
+        return new DocBlockIterator() {
+            final int[] groupBuffer = new int[DOC_BLOCK_SIZE];
+            final int[] docIds = new int[DOC_BLOCK_SIZE];
+            final int[] groups = new int[DOC_BLOCK_SIZE];
+            final long[][] ints = new long[intFields.length][DOC_BLOCK_SIZE];
+            final String[][] strings = new String[stringFields.length][DOC_BLOCK_SIZE];
+            int bufferStart = 0;
+            int n = 0;
 
-            int[] groups = new int[1024];
-            int n = groups.length;
-            int bufferStart = -groups.length;
-            int docId = -1;
-            boolean done = false;
-
-            public boolean next() {
-                if (done) {
-                    return false;
-                }
-                while (true) {
-                    docId++;
-                    if (docId - bufferStart >= n) {
-                        if (!readGroups()) {
-                            return endOfData();
+            @Override
+            public boolean nextBlock() {
+                n = 0;
+                while (n == 0) {
+                    if (bufferStart >= numDocs) {
+                        return false;
+                    }
+                    final int count = Math.min(numDocs - bufferStart, DOC_BLOCK_SIZE);
+                    docIdToGroup.fillDocGrpBufferSequential(bufferStart, groupBuffer, count);
+                    for (int i = 0; i < count; i++) {
+                        if (groupBuffer[i] != 0) {
+                            docIds[n] = bufferStart + i;
+                            groups[n] = groupBuffer[i];
+                            n++;
                         }
                     }
-                    if (groups[docId - bufferStart] != 0) {
-                        return true;
+                    bufferStart += count;
+                }
+                for (int i = 0; i < intValueLookups.length; i++) {
+                    intValueLookups[i].lookup(docIds, ints[i], n);
+                }
+                for (int i = 0; i < stringValueLookups.length; i++) {
+                    final StringValueLookup lookup = stringValueLookups[i];
+                    final String[] values = strings[i];
+                    for (int j = 0; j < n; j++) {
+                        values[j] = lookup.getString(docIds[j]);
                     }
                 }
+                return true;
             }
 
-            boolean endOfData() {
-                done = true;
-                return false;
+            @Override
+            public int getNumDocs() {
+                return n;
             }
 
-            public boolean readGroups() {
-                bufferStart += n;
-                n = Math.min(numDocs - bufferStart, groups.length);
-                if (n <= 0) {
-                    return false;
-                }
-                docIdToGroup.fillDocGrpBufferSequential(bufferStart, groups, n);
-                return true;
+            @Override
+            public int[] getGroups() {
+                return groups;
             }
 
-            public int getGroup() {
-                return groups[docId - bufferStart];
+            @Override
+            public long[] getInts(int index) {
+                return ints[index];
             }
 
-            int[] docIdRef = new int[1];
-            long[] valueRef = new long[1];
-
-            public long getInt(final int index) {
-                docIdRef[0] = docId;
-                intValueLookups[index].lookup(docIdRef, valueRef, 1);
-                return valueRef[0];
+            @Override
+            public String[] getStrings(int index) {
+                return strings[index];
             }
 
-            public String getString(final int index) {
-                return stringValueLookups[index].getString(docId);
+            @Override
+            public void close() {
+                closeLookups(intValueLookups, stringValueLookups);
             }
+        };
+    }
 
-            public void close() throws IOException {
-                for (IntValueLookup lookup : intValueLookups) {
-                    if (lookup != null) {
-                        lookup.close();
-                    }
-                }
-                for (StringValueLookup lookup : stringValueLookups) {
-                    if (lookup != null) {
-                        lookup.close();
-                    }
-                }
+    private static void closeLookups(IntValueLookup[] intValueLookups, StringValueLookup[] stringValueLookups) {
+        for (IntValueLookup lookup : intValueLookups) {
+            if (lookup != null) {
+                lookup.close();
             }
-        };
+        }
+        for (StringValueLookup lookup : stringValueLookups) {
+            if (lookup != null) {
+                lookup.close();
+            }
+        }
     }
 
-    private static DocIterator emptyDocIterator() {
-        return new DocIterator() {
+    private static DocBlockIterator emptyDocBlockIterator() {
+        return new DocBlockIterator() {
             @Override
-            public boolean next() {
+            public boolean nextBlock() {
                 return false;
             }
 
             @Override
-            public int getGroup() {
+            public int getNumDocs() {
                 return 0;
             }
 
             @Override
-            public long getInt(int index) {
-                return 0;
+            public int[] getGroups() {
+                return new int[0];
             }
 
             @Override
-            public String getString(int index) {
-                return null;
+            public long[] getInts(int index) {
+                return new long[0];
+            }
+
+            @Override
+            public String[] getStrings(int index) {
+                return new String[0];
             }
 
             @Override
@@ -954,7 +1226,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
     public synchronized int regroup(final GroupRemapRule[] rawRules) throws ImhotepOutOfMemoryException {
         for (GroupRemapRule rule : rawRules) {
             if (rule.targetGroup == 0) {
-                clearZeroDocBitsets();
+                beginGroupZeroRegroup();
             }
         }
         final int requiredMemory = numDocs / 8 + 1;
@@ -1013,31 +1285,51 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         final int oldNumGroups = docIdToGroup.getNumGroups();
         final int newNumGroups;
 
+        if (unsampledDocsRegrouped) {
+            excludeUnsampledDocs();
+        }
         docIdToGroup.recalculateNumGroups();
         newNumGroups = docIdToGroup.getNumGroups();
-        accountForFlamdexFTGSIteratorMemChange(oldNumGroups, newNumGroups);
+        reserveFTGSIteratorMemory(newNumGroups);
         docIdToGroup = GroupLookupFactory.resize(docIdToGroup, 0, memory);
         recalcGroupCounts(newNumGroups);
         recalcGroupStats(newNumGroups);
     }
 
-    private void accountForFlamdexFTGSIteratorMemChange(final int oldNumGroups,
-                                                        final int newNumGroups) throws ImhotepOutOfMemoryException {
-        if (newNumGroups > oldNumGroups) {
-            // for memory in FlamdexFTGSIterator
-            if (!memory.claimMemory((12L + 8L * numStats) * (newNumGroups - oldNumGroups))) {
-                throw new ImhotepOutOfMemoryException();
+    /**
+     * Picks the way FTGS iterators accumulate the stats of a term for the current number of stats and the given number
+     * of groups, and claims or releases memory so that the reservation covers the dense arrays if they were picked.
+     * Sparse group stats claim their memory themselves as they grow.
+     */
+    private void reserveFTGSIteratorMemory(final int numGroups) throws ImhotepOutOfMemoryException {
+        if (!tryReserveFTGSIteratorMemory(numGroups)) {
+            throw new ImhotepOutOfMemoryException();
+        }
+    }
+
+    /**
+     * @return false if the memory for the dense arrays could not be claimed, in which case nothing changed
+     */
+    private boolean tryReserveFTGSIteratorMemory(final int numGroups) {
+        final boolean sparse = AbstractFlamdexFTGSIterator.needsSparseGroupStats(numGroups, numStats);
+        // groupsSeen and bitTree take 12 bytes per group, termGrpStats 8 per group and stat
+        final long required = sparse ? 0 : (12L + 8L * numStats) * numGroups;
+        if (required > ftgsIteratorMemory) {
+            if (!memory.claimMemory(required - ftgsIteratorMemory)) {
+                return false;
             }
-        } else if (newNumGroups < oldNumGroups) {
-            // for memory in FlamdexFTGSIterator
-            memory.releaseMemory((12L + 8L * numStats) * (oldNumGroups - newNumGroups));
+        } else if (required < ftgsIteratorMemory) {
+            memory.releaseMemory(ftgsIteratorMemory - required);
         }
+        ftgsIteratorMemory = required;
+        sparseFTGSGroupStats = sparse;
+        return true;
     }
 
     @Override
     public int regroup(QueryRemapRule rule) throws ImhotepOutOfMemoryException {
         if (rule.getTargetGroup() == 0) {
-            clearZeroDocBitsets();
+            beginGroupZeroRegroup();
         }
         docIdToGroup =
                 GroupLookupFactory.resize(docIdToGroup, Math.max(rule.getNegativeGroup(),
@@ -1054,7 +1346,12 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         try {
             final FlamdexSearcher searcher = new FlamdexSearcher(flamdexReader);
             final Query query = rule.getQuery();
-            searcher.search(query, bitSet, bitSetPooler);
+            final CompressedBitSet sampledDocs = getSampledDocs();
+            if (sampledDocs != null) {
+                searcher.search(query, sampledDocs, bitSet, bitSetPooler);
+            } else {
+                searcher.search(query, bitSet, bitSetPooler);
+            }
             docIdToGroup.bitSetRegroup(bitSet,
                                        rule.getTargetGroup(),
                                        rule.getNegativeGroup(),
@@ -1077,7 +1374,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                                           int negativeGroup,
                                           int positiveGroup) throws ImhotepOutOfMemoryException {
         if (targetGroup == 0) {
-            clearZeroDocBitsets();
+            beginGroupZeroRegroup();
         }
         docIdToGroup =
                 GroupLookupFactory.resize(docIdToGroup,
@@ -1131,7 +1428,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                                              int negativeGroup,
                                              int positiveGroup) throws ImhotepOutOfMemoryException {
         if (targetGroup == 0) {
-            clearZeroDocBitsets();
+            beginGroupZeroRegroup();
         }
         docIdToGroup =
                 GroupLookupFactory.resize(docIdToGroup,
@@ -1182,7 +1479,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
             throw new IllegalStateException("regexRegroup should be applied as a filter when you have only one group");
         }
         if (targetGroup == 0) {
-            clearZeroDocBitsets();
+            beginGroupZeroRegroup();
         }
         docIdToGroup =
                 GroupLookupFactory.resize(docIdToGroup,
@@ -1256,7 +1553,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                                            int negativeGroup,
                                            int positiveGroup) throws ImhotepOutOfMemoryException {
         if (targetGroup == 0) {
-            clearZeroDocBitsets();
+            beginGroupZeroRegroup();
         }
         docIdToGroup =
                 GroupLookupFactory.resize(docIdToGroup,
@@ -1322,7 +1619,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                                                 double[] percentages,
                                                 int[] resultGroups) throws ImhotepOutOfMemoryException {
         if (targetGroup == 0) {
-            clearZeroDocBitsets();
+            beginGroupZeroRegroup();
         }
         ensureValidMultiRegroupArrays(percentages, resultGroups);
         docIdToGroup = GroupLookupFactory.resize(docIdToGroup, Ints.max(resultGroups), memory);
@@ -1448,6 +1745,73 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         }
     }
 
+    /**
+     * walks the term dictionary of the field, hashing each term once and adding it to the sketch of the group of each
+     * of its documents
+     */
+    @Override
+    public synchronized GroupHyperLogLog approximateDistinctTerms(String field, boolean isIntField, int precision) throws ImhotepOutOfMemoryException {
+        if (docSample != null) {
+            // the terms of the sampled documents say little about the number of distinct terms of the whole shard
+            throw new IllegalStateException("approximateDistinctTerms is not supported on a sampled session");
+        }
+        final int numGroups = docIdToGroup.getNumGroups();
+        // reject sketches too large to send back before walking the field
+        GroupHyperLogLog.getNumRegisters(precision, numGroups);
+        final long memoryUsage = GroupHyperLogLog.memoryUsage(precision, numGroups);
+        if (!memory.claimMemory(memoryUsage)) {
+            throw new ImhotepOutOfMemoryException();
+        }
+        try {
+            final GroupHyperLogLog sketches = new GroupHyperLogLog(precision, numGroups);
+            final DocIdStream docIdStream = flamdexReader.getDocIdStream();
+            try {
+                if (isIntField) {
+                    final IntTermIterator iter = flamdexReader.getIntTermIterator(field);
+                    try {
+                        while (iter.next()) {
+                            docIdStream.reset(iter);
+                            addToSketches(sketches, docIdStream, GroupHyperLogLog.hash(iter.term()));
+                        }
+                    } finally {
+                        iter.close();
+                    }
+                } else {
+                    final StringTermIterator iter = flamdexReader.getStringTermIterator(field);
+                    try {
+                        while (iter.next()) {
+                            docIdStream.reset(iter);
+                            addToSketches(sketches, docIdStream, GroupHyperLogLog.hash(iter.term()));
+                        }
+                    } finally {
+                        iter.close();
+                    }
+                }
+            } finally {
+                docIdStream.close();
+            }
+            return sketches;
+        } finally {
+            memory.releaseMemory(memoryUsage);
+        }
+    }
+
+    private void addToSketches(GroupHyperLogLog sketches, DocIdStream docIdStream, long hash) {
+        while (true) {
+            final int n = docIdStream.fillDocIdBuffer(docIdBuf);
+            docIdToGroup.fillDocGrpBuffer(docIdBuf, docGroupBuffer, n);
+            for (int i = 0; i < n; ++i) {
+                final int group = docGroupBuffer[i];
+                if (group != 0) {
+                    sketches.add(group, hash);
+                }
+            }
+            if (n < docIdBuf.length) {
+                break;
+            }
+        }
+    }
+
     private static final Comparator<IntTermWithFreq> INT_FREQ_COMPARATOR =
             new Comparator<IntTermWithFreq>() {
                 @Override
@@ -1563,35 +1927,44 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         docIdToGroup = GroupLookupFactory.resize(docIdToGroup, newMaxGroup, memory);
 
         final IntValueLookup lookup = statLookup[stat];
+        final ZoneMap zoneMap = getZoneMap(stat);
+        final int[] ranges = scanRanges();
+        for (int r = 0; r < ranges.length; r += 2) {
+            final int end = ranges[r + 1];
+            for (int doc = ranges[r]; doc < end; doc += BUFFER_SIZE) {
 
-        final int numDocs = docIdToGroup.size();
-        for (int doc = 0; doc < numDocs; doc += BUFFER_SIZE) {
+                final int n = Math.min(BUFFER_SIZE, end - doc);
 
-            final int n = Math.min(BUFFER_SIZE, numDocs - doc);
+                docIdToGroup.fillDocGrpBufferSequential(doc, docGroupBuffer, n);
 
-            docIdToGroup.fillDocGrpBufferSequential(doc, docGroupBuffer, n);
+                int numNonZero = 0;
+                for (int i = 0; i < n; ++i) {
+                    if (docGroupBuffer[i] != 0) {
+                        docGroupBuffer[numNonZero] = docGroupBuffer[i];
+                        docIdBuf[numNonZero++] = doc + i;
+                    }
+                }
 
-            int numNonZero = 0;
-            for (int i = 0; i < n; ++i) {
-                if (docGroupBuffer[i] != 0) {
-                    docGroupBuffer[numNonZero] = docGroupBuffer[i];
-                    docIdBuf[numNonZero++] = doc + i;
+                if (numNonZero == 0) {
+                    continue;
                 }
-            }
 
-            if (numNonZero == 0) {
-                continue;
-            }
+                final int block = doc / ZoneMap.BLOCK_SIZE;
+                if (zoneMap != null && getRegroupBucket(zoneMap.getMin(block), min, max, intervalSize) == getRegroupBucket(zoneMap.getMax(block), min, max, intervalSize)) {
+                    // every value in the block lands in the same bucket as the block's minimum
+                    Arrays.fill(valBuf, 0, numNonZero, zoneMap.getMin(block));
+                } else {
+                    lookup.lookup(docIdBuf, valBuf, numNonZero);
+                }
 
-            lookup.lookup(docIdBuf, valBuf, numNonZero);
+                if (noGutters) {
+                    internalMetricRegroupNoGutters(min, max, intervalSize, numBuckets, numNonZero);
+                } else {
+                    internalMetricRegroupGutters(min, max, intervalSize, numBuckets, numNonZero);
+                }
 
-            if (noGutters) {
-                internalMetricRegroupNoGutters(min, max, intervalSize, numBuckets, numNonZero);
-            } else {
-                internalMetricRegroupGutters(min, max, intervalSize, numBuckets, numNonZero);
+                docIdToGroup.batchSet(docIdBuf, docGroupBuffer, numNonZero);
             }
-
-            docIdToGroup.batchSet(docIdBuf, docGroupBuffer, numNonZero);
         }
 
         finalizeRegroup();
@@ -1599,6 +1972,32 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         return docIdToGroup.getNumGroups();
     }
 
+    /**
+     * orders values the way metricRegroup buckets them, with every value below min and every value at or above max
+     * sharing a bucket
+     */
+    private static long getRegroupBucket(long val, long min, long max, long intervalSize) {
+        if (val < min) {
+            return -1;
+        } else if (val >= max) {
+            return Long.MAX_VALUE;
+        }
+        return (val - min) / intervalSize;
+    }
+
+    /**
+     * Returns the zone map of a stat that is a plain int field, or null if it has none. The reader keeps it in memory
+     * for as long as it is open. Zone map blocks are a multiple of {@link #BUFFER_SIZE}, so each buffer of documents
+     * lies within a single block.
+     */
+    @Nullable
+    private ZoneMap getZoneMap(int stat) {
+        if (statFields[stat] == null) {
+            return null;
+        }
+        return ZoneMap.get(flamdexReader, statFields[stat], statLookup[stat]);
+    }
+
     private void internalMetricRegroupGutters(long min, long max, long intervalSize, int numBuckets, int numNonZero) {
         for (int i = 0; i < numNonZero; ++i) {
             final int group;
@@ -1653,74 +2052,217 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
             final IntValueLookup xLookup = statLookup[xStat];
             final IntValueLookup yLookup = statLookup[yStat];
 
-            final int numDocs = docIdToGroup.size();
-            for (int doc = 0; doc < numDocs; doc += BUFFER_SIZE) {
+            final int[] ranges = scanRanges();
+            for (int r = 0; r < ranges.length; r += 2) {
+                final int end = ranges[r + 1];
+                for (int doc = ranges[r]; doc < end; doc += BUFFER_SIZE) {
 
-                final int n = Math.min(BUFFER_SIZE, numDocs - doc);
+                    final int n = Math.min(BUFFER_SIZE, end - doc);
 
-                docIdToGroup.fillDocGrpBufferSequential(doc, docGroupBuffer, n);
+                    docIdToGroup.fillDocGrpBufferSequential(doc, docGroupBuffer, n);
 
-                int numNonZero = 0;
-                for (int i = 0; i < n; ++i) {
-                    if (docGroupBuffer[i] != 0) {
-                        docIdBuf[numNonZero++] = doc + i;
+                    int numNonZero = 0;
+                    for (int i = 0; i < n; ++i) {
+                        if (docGroupBuffer[i] != 0) {
+                            docIdBuf[numNonZero++] = doc + i;
+                        }
                     }
-                }
 
-                if (numNonZero == 0) {
-                    continue;
+                    if (numNonZero == 0) {
+                        continue;
+                    }
+
+                    xLookup.lookup(docIdBuf, valBuf, numNonZero);
+                    yLookup.lookup(docIdBuf, yValBuf, numNonZero);
+
+                    for (int i = 0; i < numNonZero; ++i) {
+                        final long xVal = valBuf[i];
+                        final long yVal = yValBuf[i];
+
+                        final int group;
+                        if (xVal < xMin) {
+                            if (yVal < yMin) {
+                                group = 1;
+                            } else if (yVal >= yMax) {
+                                group = (yBuckets - 1) * xBuckets + 1;
+                            } else {
+                                group = (int) (((yVal - yMin) / yIntervalSize + 1) * xBuckets + 1);
+                            }
+                        } else if (xVal >= xMax) {
+                            if (yVal < yMin) {
+                                group = xBuckets;
+                            } else if (yVal >= yMax) {
+                                group = xBuckets * yBuckets;
+                            } else {
+                                group = (int) (((yVal - yMin) / yIntervalSize + 2) * xBuckets);
+                            }
+                        } else {
+                            if (yVal < yMin) {
+                                group = (int) ((xVal - xMin) / xIntervalSize + 2);
+                            } else if (yVal >= yMax) {
+                                group =
+                                        (int) ((yBuckets - 1) * xBuckets + (xVal - xMin)
+                                                / xIntervalSize + 2);
+                            } else {
+                                group =
+                                        (int) (((yVal - yMin) / yIntervalSize + 1) * xBuckets
+                                                + (xVal - xMin) / xIntervalSize + 2);
+                            }
+                        }
+
+                        docGroupBuffer[i] = group;
+                    }
+
+                    docIdToGroup.batchSet(docIdBuf, docGroupBuffer, numNonZero);
                 }
+            }
+        } finally {
+            memory.releaseMemory(BUFFER_SIZE * 8);
+        }
 
-                xLookup.lookup(docIdBuf, valBuf, numNonZero);
-                yLookup.lookup(docIdBuf, yValBuf, numNonZero);
+        finalizeRegroup();
 
-                for (int i = 0; i < numNonZero; ++i) {
-                    final long xVal = valBuf[i];
-                    final long yVal = yValBuf[i];
+        return numGroups;
+    }
 
-                    final int group;
-                    if (xVal < xMin) {
-                        if (yVal < yMin) {
-                            group = 1;
-                        } else if (yVal >= yMax) {
-                            group = (yBuckets - 1) * xBuckets + 1;
-                        } else {
-                            group = (int) (((yVal - yMin) / yIntervalSize + 1) * xBuckets + 1);
-                        }
-                    } else if (xVal >= xMax) {
-                        if (yVal < yMin) {
-                            group = xBuckets;
-                        } else if (yVal >= yMax) {
-                            group = xBuckets * yBuckets;
-                        } else {
-                            group = (int) (((yVal - yMin) / yIntervalSize + 2) * xBuckets);
+    /**
+     * Buckets every dimension in a single pass over the documents. The bucket of each dimension is numbered like
+     * {@link #metricRegroup(int, long, long, long, boolean)} numbers them, the first dimension varying fastest, and
+     * each existing group is split into the product of the numbers of buckets of the dimensions.
+     */
+    @Override
+    public synchronized int metricRegroupND(int[] stats, long[] mins, long[] maxes, long[] intervalSizes, boolean noGutters) throws ImhotepOutOfMemoryException {
+        clearZeroDocBitsets();
+        final int numDimensions = stats.length;
+        if (numDimensions == 0 || mins.length != numDimensions || maxes.length != numDimensions
+                || intervalSizes.length != numDimensions) {
+            throw new IllegalArgumentException("stats, mins, maxes and intervalSizes must have the same non-zero length");
+        }
+        final FastDivisor[] divisors = new FastDivisor[numDimensions];
+        final int[] dimensionBuckets = new int[numDimensions];
+        final int[] strides = new int[numDimensions];
+        long numBuckets = 1;
+        for (int d = 0; d < numDimensions; ++d) {
+            if (stats[d] < 0 || stats[d] >= statLookup.length) {
+                throw new IllegalArgumentException("invalid stat index: " + stats[d]
+                        + ", must be between [0," + statLookup.length + ")");
+            }
+            if (mins[d] >= maxes[d] || intervalSizes[d] <= 0) {
+                throw new IllegalArgumentException("invalid bucketing of stat " + stats[d] + ": min " + mins[d]
+                        + ", max " + maxes[d] + ", interval size " + intervalSizes[d]);
+            }
+            divisors[d] = new FastDivisor(intervalSizes[d]);
+            // max - min may not fit in a long, but it always fits in an unsigned one
+            final long inRangeBuckets = divisors[d].divide(maxes[d] - mins[d] - 1) + 1;
+            if (inRangeBuckets <= 0 || inRangeBuckets > Integer.MAX_VALUE - 2) {
+                throw new IllegalArgumentException("too many buckets for stat " + stats[d]);
+            }
+            dimensionBuckets[d] = (int) inRangeBuckets;
+            strides[d] = (int) numBuckets;
+            numBuckets *= noGutters ? inRangeBuckets : inRangeBuckets + 2;
+            if (numBuckets > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("too many groups: more than " + Integer.MAX_VALUE + " buckets");
+            }
+        }
+        final long newMaxGroup = (docIdToGroup.getNumGroups() - 1) * numBuckets;
+        if (newMaxGroup > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("too many groups: " + newMaxGroup);
+        }
+
+        docIdToGroup = GroupLookupFactory.resize(docIdToGroup, (int) newMaxGroup, memory);
+
+        if (!memory.claimMemory(BUFFER_SIZE * 4)) {
+            throw new ImhotepOutOfMemoryException();
+        }
+        final ZoneMap[] zoneMaps = new ZoneMap[numDimensions];
+        try {
+            for (int d = 0; d < numDimensions; ++d) {
+                zoneMaps[d] = getZoneMap(stats[d]);
+            }
+            final int[] bucketBuf = new int[BUFFER_SIZE];
+
+            final int[] ranges = scanRanges();
+            for (int r = 0; r < ranges.length; r += 2) {
+                final int end = ranges[r + 1];
+                for (int doc = ranges[r]; doc < end; doc += BUFFER_SIZE) {
+
+                    final int n = Math.min(BUFFER_SIZE, end - doc);
+
+                    docIdToGroup.fillDocGrpBufferSequential(doc, docGroupBuffer, n);
+
+                    int numNonZero = 0;
+                    for (int i = 0; i < n; ++i) {
+                        if (docGroupBuffer[i] != 0) {
+                            docGroupBuffer[numNonZero] = docGroupBuffer[i];
+                            docIdBuf[numNonZero++] = doc + i;
                         }
-                    } else {
-                        if (yVal < yMin) {
-                            group = (int) ((xVal - xMin) / xIntervalSize + 2);
-                        } else if (yVal >= yMax) {
-                            group =
-                                    (int) ((yBuckets - 1) * xBuckets + (xVal - xMin)
-                                            / xIntervalSize + 2);
+                    }
+
+                    if (numNonZero == 0) {
+                        continue;
+                    }
+
+                    // a dropped document gets Integer.MIN_VALUE, which stays negative since the offsets of all the
+                    // dimensions add up to less than Integer.MAX_VALUE
+                    Arrays.fill(bucketBuf, 0, numNonZero, 0);
+                    final int block = doc / ZoneMap.BLOCK_SIZE;
+                    for (int d = 0; d < numDimensions; ++d) {
+                        final ZoneMap zoneMap = zoneMaps[d];
+                        if (zoneMap != null && getRegroupBucket(zoneMap.getMin(block), mins[d], maxes[d], intervalSizes[d])
+                                == getRegroupBucket(zoneMap.getMax(block), mins[d], maxes[d], intervalSizes[d])) {
+                            // every value in the block lands in the same bucket as the block's minimum
+                            final int offset = getBucketOffset(zoneMap.getMin(block), mins[d], maxes[d], divisors[d],
+                                    dimensionBuckets[d], strides[d], noGutters);
+                            for (int i = 0; i < numNonZero; ++i) {
+                                bucketBuf[i] = offset < 0 ? Integer.MIN_VALUE : bucketBuf[i] + offset;
+                            }
                         } else {
-                            group =
-                                    (int) (((yVal - yMin) / yIntervalSize + 1) * xBuckets
-                                            + (xVal - xMin) / xIntervalSize + 2);
+                            statLookup[stats[d]].lookup(docIdBuf, valBuf, numNonZero);
+                            for (int i = 0; i < numNonZero; ++i) {
+                                final int offset = getBucketOffset(valBuf[i], mins[d], maxes[d], divisors[d],
+                                        dimensionBuckets[d], strides[d], noGutters);
+                                bucketBuf[i] = offset < 0 ? Integer.MIN_VALUE : bucketBuf[i] + offset;
+                            }
                         }
                     }
 
-                    docGroupBuffer[i] = group;
-                }
+                    for (int i = 0; i < numNonZero; ++i) {
+                        final int bucket = bucketBuf[i];
+                        docGroupBuffer[i] = bucket < 0 ? 0 : (docGroupBuffer[i] - 1) * (int) numBuckets + bucket + 1;
+                    }
 
-                docIdToGroup.batchSet(docIdBuf, docGroupBuffer, numNonZero);
+                    docIdToGroup.batchSet(docIdBuf, docGroupBuffer, numNonZero);
+                }
             }
         } finally {
-            memory.releaseMemory(BUFFER_SIZE * 8);
+            memory.releaseMemory(BUFFER_SIZE * 4);
         }
 
         finalizeRegroup();
 
-        return numGroups;
+        return docIdToGroup.getNumGroups();
+    }
+
+    /**
+     * @return the offset of the bucket of a value in one dimension, where values outside of [min, max) go to gutter
+     *         buckets numbered after the others, or -1 to drop the document if there are no gutters
+     */
+    private static int getBucketOffset(long val, long min, long max, FastDivisor divisor, int numBuckets, int stride, boolean noGutters) {
+        final int bucket;
+        if (val < min) {
+            if (noGutters) {
+                return -1;
+            }
+            bucket = numBuckets;
+        } else if (val >= max) {
+            if (noGutters) {
+                return -1;
+            }
+            bucket = numBuckets + 1;
+        } else {
+            bucket = (int) divisor.divide(val - min);
+        }
+        return bucket * stride;
     }
 
     public synchronized int metricFilter(int stat, long min, long max, final boolean negate) throws ImhotepOutOfMemoryException {
@@ -1731,38 +2273,59 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         }
         docIdToGroup = GroupLookupFactory.resize(docIdToGroup, docIdToGroup.getNumGroups(), memory);
         final IntValueLookup lookup = statLookup[stat];
+        final ZoneMap zoneMap = getZoneMap(stat);
+        final int[] ranges = scanRanges();
+        for (int r = 0; r < ranges.length; r += 2) {
+            final int end = ranges[r + 1];
+            for (int doc = ranges[r]; doc < end; doc += BUFFER_SIZE) {
+
+                final int n = Math.min(BUFFER_SIZE, end - doc);
+
+                // a block entirely inside or outside of the range keeps or removes all of its documents
+                boolean blockDecided = false;
+                if (zoneMap != null) {
+                    final int block = doc / ZoneMap.BLOCK_SIZE;
+                    final boolean allInRange = zoneMap.getMin(block) >= min && zoneMap.getMax(block) <= max;
+                    final boolean noneInRange = zoneMap.getMax(block) < min || zoneMap.getMin(block) > max;
+                    if (allInRange || noneInRange) {
+                        if (allInRange != negate) {
+                            continue;
+                        }
+                        blockDecided = true;
+                    }
+                }
 
-        final int numDocs = docIdToGroup.size();
-        for (int doc = 0; doc < numDocs; doc += BUFFER_SIZE) {
-
-            final int n = Math.min(BUFFER_SIZE, numDocs - doc);
-
-            docIdToGroup.fillDocGrpBufferSequential(doc, docGroupBuffer, n);
+                docIdToGroup.fillDocGrpBufferSequential(doc, docGroupBuffer, n);
 
-            int numNonZero = 0;
-            for (int i = 0; i < n; ++i) {
-                final int group = docGroupBuffer[i];
-                if (group != 0) {
-                    docIdBuf[numNonZero] = doc + i;
-                    docGroupBuffer[numNonZero++] = group;
+                int numNonZero = 0;
+                for (int i = 0; i < n; ++i) {
+                    final int group = docGroupBuffer[i];
+                    if (group != 0) {
+                        docIdBuf[numNonZero] = doc + i;
+                        docGroupBuffer[numNonZero++] = group;
+                    }
                 }
-            }
 
-            if (numNonZero == 0) {
-                continue;
-            }
+                if (numNonZero == 0) {
+                    continue;
+                }
 
-            lookup.lookup(docIdBuf, valBuf, numNonZero);
+                if (blockDecided) {
+                    Arrays.fill(docGroupBuffer, 0, numNonZero, 0);
+                } else {
+                    lookup.lookup(docIdBuf, valBuf, numNonZero);
 
-            for (int i = 0; i < numNonZero; ++i) {
-                final long val = valBuf[i];
-                final boolean valInRange = val >= min && val <= max;
-                if (valInRange == negate) {
-                    docGroupBuffer[i] = 0;
+                    for (int i = 0; i < numNonZero; ++i) {
+                        final long val = valBuf[i];
+                        final boolean valInRange = val >= min && val <= max;
+                        if (valInRange == negate) {
+                            docGroupBuffer[i] = 0;
+                        }
+                    }
                 }
-            }
 
-            docIdToGroup.batchSet(docIdBuf, docGroupBuffer, numNonZero);
+                docIdToGroup.batchSet(docIdBuf, docGroupBuffer, numNonZero);
+            }
         }
 
         finalizeRegroup();
@@ -1770,12 +2333,28 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         return docIdToGroup.getNumGroups();
     }
 
+    /**
+     * the sums of a sampled session are those of its sampled documents scaled up to the whole shard
+     */
     @Override
     public synchronized long[] getGroupStats(int stat) {
+        final long[] sums = getSampledGroupStats(stat);
+        if (docSample == null) {
+            return sums;
+        }
+        final long[] ret = new long[sums.length];
+        for (int group = 1; group < ret.length; group++) {
+            ret[group] = scale(sums[group]);
+        }
+        return ret;
+    }
+
+    private long[] getSampledGroupStats(int stat) {
         if (needToReCalcGroupStats[stat]) {
             updateGroupStatsAllDocs(statLookup[stat],
                                     groupStats[stat],
                                     docIdToGroup,
+                                    scanRanges(),
                                     docGroupBuffer,
                                     docIdBuf,
                                     valBuf);
@@ -1784,6 +2363,208 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         return groupStats[stat];
     }
 
+    /**
+     * Estimates the variance of the scaled up sums from the sums over each sampled block. The sums of a group are
+     * ratio estimates y * N / n from the sampled documents y of the group, the n sampled documents and the N documents
+     * in the shard, and blocks are sampled independently with probability p, so the linearized variance is
+     * (1 - p) * (N / n)^2 * sum((y_b - y / n * n_b)^2) over the sampled blocks b with n_b documents, expanded into
+     * sums that are accumulated in one pass.
+     */
+    @Override
+    public synchronized double[] getGroupStatVariances(int stat) {
+        if (stat < 0 || stat >= numStats) {
+            throw new IllegalArgumentException("invalid stat index: " + stat
+                    + ", must be between [0," + numStats + ")");
+        }
+        final int numGroups = docIdToGroup.getNumGroups();
+        final double[] ret = new double[numGroups];
+        if (docSample == null) {
+            return ret;
+        }
+        if (originalReader != null) {
+            throw new IllegalStateException("cannot estimate the variances of a session whose indexes have been rebuilt");
+        }
+        final int sampledDocs = countDocs(sampleRanges);
+        if (sampledDocs == 0) {
+            return ret;
+        }
+        final long[] sums = getSampledGroupStats(stat);
+        final double[] sumSquares = new double[numGroups];
+        final double[] sumProducts = new double[numGroups];
+        final long[] blockSums = new long[numGroups];
+        // the groups seen in the current block, and for each group the number of the last block it was seen in
+        final int[] blockGroups = new int[DocSample.BLOCK_SIZE];
+        final int[] lastBlocks = new int[numGroups];
+        int blockNumber = 0;
+        double sumDocSquares = 0;
+        final IntValueLookup lookup = statLookup[stat];
+        for (int r = 0; r < sampleRanges.length; r += 2) {
+            for (int block = sampleRanges[r]; block < sampleRanges[r + 1]; block += DocSample.BLOCK_SIZE) {
+                final int blockEnd = Math.min(sampleRanges[r + 1], block + DocSample.BLOCK_SIZE);
+                blockNumber++;
+                int numBlockGroups = 0;
+                for (int start = block; start < blockEnd; start += BUFFER_SIZE) {
+                    final int n = Math.min(BUFFER_SIZE, blockEnd - start);
+                    docIdToGroup.fillDocGrpBufferSequential(start, docGroupBuffer, n);
+                    for (int i = 0; i < n; i++) {
+                        docIdBuf[i] = start + i;
+                    }
+                    lookup.lookup(docIdBuf, valBuf, n);
+                    for (int i = 0; i < n; i++) {
+                        final int group = docGroupBuffer[i];
+                        if (group != 0) {
+                            if (lastBlocks[group] != blockNumber) {
+                                lastBlocks[group] = blockNumber;
+                                blockGroups[numBlockGroups++] = group;
+                            }
+                            blockSums[group] += valBuf[i];
+                        }
+                    }
+                }
+                final double blockDocs = blockEnd - block;
+                sumDocSquares += blockDocs * blockDocs;
+                for (int i = 0; i < numBlockGroups; i++) {
+                    final int group = blockGroups[i];
+                    final double blockSum = blockSums[group];
+                    sumSquares[group] += blockSum * blockSum;
+                    sumProducts[group] += blockSum * blockDocs;
+                    blockSums[group] = 0;
+                }
+            }
+        }
+        final double factor = (1 - docSample.getRate()) * sampleScale * sampleScale;
+        for (int group = 1; group < numGroups; group++) {
+            final double ratio = (double) sums[group] / sampledDocs;
+            final double sumResiduals = sumSquares[group] - 2 * ratio * sumProducts[group] + ratio * ratio * sumDocSquares;
+            ret[group] = factor * Math.max(0, sumResiduals);
+        }
+        return ret;
+    }
+
+    /**
+     * sums come from the cached group stats, the other aggregations are computed in one pass over the documents with
+     * a loop of their own, so the aggregation is chosen once per buffer rather than once per document. Sampled
+     * sessions scale up counts, minimums and maximums are those of the sampled documents.
+     */
+    @Override
+    public synchronized long[] getGroupStats(int stat, GroupStatAggregation aggregation) {
+        if (aggregation == GroupStatAggregation.SUM) {
+            return getGroupStats(stat);
+        }
+        if (stat < 0 || stat >= numStats) {
+            throw new IllegalArgumentException("invalid stat index: " + stat
+                    + ", must be between [0," + numStats + ")");
+        }
+        if (aggregation != GroupStatAggregation.MIN && aggregation != GroupStatAggregation.MAX
+                && aggregation != GroupStatAggregation.COUNT_NONZERO) {
+            // checked up front, since a failure halfway through would leave the sums half computed
+            throw new IllegalArgumentException("unsupported aggregation: " + aggregation);
+        }
+        final long[] ret = new long[docIdToGroup.getNumGroups()];
+        Arrays.fill(ret, aggregation.identity());
+        // stale sums are computed in the same pass, so asking for the sums as well does not scan the documents again
+        final long[] sums = needToReCalcGroupStats[stat] ? groupStats[stat] : null;
+        final IntValueLookup lookup = statLookup[stat];
+        final int[] ranges = scanRanges();
+        for (int r = 0; r < ranges.length; r += 2) {
+            for (int start = ranges[r]; start < ranges[r + 1]; start += BUFFER_SIZE) {
+                final int n = Math.min(BUFFER_SIZE, ranges[r + 1] - start);
+                docIdToGroup.fillDocGrpBufferSequential(start, docGroupBuffer, n);
+                for (int i = 0; i < n; i++) {
+                    docIdBuf[i] = start + i;
+                }
+                lookup.lookup(docIdBuf, valBuf, n);
+                if (sums != null) {
+                    for (int i = 0; i < n; i++) {
+                        sums[docGroupBuffer[i]] += valBuf[i];
+                    }
+                }
+                switch (aggregation) {
+                    case MIN:
+                        for (int i = 0; i < n; i++) {
+                            final int group = docGroupBuffer[i];
+                            ret[group] = Math.min(ret[group], valBuf[i]);
+                        }
+                        break;
+                    case MAX:
+                        for (int i = 0; i < n; i++) {
+                            final int group = docGroupBuffer[i];
+                            ret[group] = Math.max(ret[group], valBuf[i]);
+                        }
+                        break;
+                    case COUNT_NONZERO:
+                        for (int i = 0; i < n; i++) {
+                            ret[docGroupBuffer[i]] += valBuf[i] != 0 ? 1 : 0;
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unsupported aggregation: " + aggregation);
+                }
+            }
+        }
+        if (sums != null) {
+            needToReCalcGroupStats[stat] = false;
+        }
+        if (docSample != null && aggregation == GroupStatAggregation.COUNT_NONZERO) {
+            for (int group = 1; group < ret.length; group++) {
+                ret[group] = scale(ret[group]);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * adds the value of the stat of every document to the digest of its group in one pass, claiming the memory of
+     * the digests up front from the number of documents in each group
+     */
+    @Override
+    public synchronized GroupQuantileSketch getGroupQuantiles(int stat, int compression) throws ImhotepOutOfMemoryException {
+        if (docSample != null) {
+            // the digests would only hold the sampled documents, with counts that are not scaled up
+            throw new IllegalStateException("getGroupQuantiles is not supported on a sampled session");
+        }
+        if (stat < 0 || stat >= numStats) {
+            throw new IllegalArgumentException("invalid stat index: " + stat
+                    + ", must be between [0," + numStats + ")");
+        }
+        final int numGroups = docIdToGroup.getNumGroups();
+        long memoryUsage = 0;
+        for (int group = 0; group < numGroups; group++) {
+            memoryUsage += GroupQuantileSketch.memoryUsage(compression, group == 0 ? 0 : groupDocCount[group]);
+        }
+        if (!memory.claimMemory(memoryUsage)) {
+            throw new ImhotepOutOfMemoryException();
+        }
+        try {
+            final GroupQuantileSketch sketch = new GroupQuantileSketch(compression, numGroups);
+            final IntValueLookup lookup = statLookup[stat];
+            final int[] ranges = scanRanges();
+            for (int r = 0; r < ranges.length; r += 2) {
+                for (int start = ranges[r]; start < ranges[r + 1]; start += BUFFER_SIZE) {
+                    final int n = Math.min(BUFFER_SIZE, ranges[r + 1] - start);
+                    docIdToGroup.fillDocGrpBufferSequential(start, docGroupBuffer, n);
+                    int numNonZero = 0;
+                    for (int i = 0; i < n; i++) {
+                        if (docGroupBuffer[i] != 0) {
+                            docGroupBuffer[numNonZero] = docGroupBuffer[i];
+                            docIdBuf[numNonZero++] = start + i;
+                        }
+                    }
+                    if (numNonZero == 0) {
+                        continue;
+                    }
+                    lookup.lookup(docIdBuf, valBuf, numNonZero);
+                    for (int i = 0; i < numNonZero; i++) {
+                        sketch.add(docGroupBuffer[i], valBuf[i]);
+                    }
+                }
+            }
+            return sketch;
+        } finally {
+            memory.releaseMemory(memoryUsage);
+        }
+    }
+
     private static GroupRemapRule[] cleanUpRules(GroupRemapRule[] rawRules, int numGroups) {
         final GroupRemapRule[] cleanRules = new GroupRemapRule[numGroups];
         for (final GroupRemapRule rawRule : rawRules) {
@@ -1807,9 +2588,14 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
 
     private void recalcGroupCounts(int numGroups) throws ImhotepOutOfMemoryException {
         groupDocCount = clearAndResize(groupDocCount, numGroups, memory);
-        for (int i = 0; i < numDocs; i++) {
-            groupDocCount[docIdToGroup.get(i)]++;
+        final int[] ranges = scanRanges();
+        for (int r = 0; r < ranges.length; r += 2) {
+            for (int i = ranges[r]; i < ranges[r + 1]; i++) {
+                groupDocCount[docIdToGroup.get(i)]++;
+            }
         }
+        // everything outside of the ranges is in group 0
+        groupDocCount[0] += numDocs - countDocs(ranges);
     }
 
     private static final String decimalPattern = "-?[0-9]*\\.?[0-9]+";
@@ -2078,6 +2864,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                 }
 
                 statLookup[numStats] = flamdexReader.getMetric(statName);
+                statFields[numStats] = statName;
             } catch (FlamdexOutOfMemoryException e) {
                 throw new ImhotepOutOfMemoryException(e);
             }
@@ -2087,10 +2874,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         needToReCalcGroupStats[numStats] = true;
         numStats++;
 
-        // FlamdexFTGSIterator.termGrpStats
-        if (!memory.claimMemory(8L * docIdToGroup.getNumGroups())) {
-            throw new ImhotepOutOfMemoryException();
-        }
+        reserveFTGSIteratorMemory(docIdToGroup.getNumGroups());
 
         /* this request is valid, so keep track of the command */
         this.statCommands.add(statName);
@@ -2124,10 +2908,14 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
 
         final IntValueLookup ret = statLookup[numStats];
         statLookup[numStats] = null;
-        final long memFreed = groupStats[numStats].length * 8 + 8L * docIdToGroup.getNumGroups();
+        statFields[numStats] = null;
+        final long memFreed = groupStats[numStats].length * 8;
         groupStats[numStats] = null;
 
         memory.releaseMemory(memFreed);
+        // fewer stats only shrink the dense arrays, or make them fit where sparse group stats were needed before,
+        // in which case those are kept if the dense arrays cannot be claimed
+        tryReserveFTGSIteratorMemory(docIdToGroup.getNumGroups());
 
         return ret;
     }
@@ -2426,7 +3214,8 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
             if (docIdToGroup != null) {
                 final long memFreed =
                         docIdToGroup.memoryUsed() + groupDocCount.length * 4L + BUFFER_SIZE
-                                * (4 + 4 + 4) + 12L * docIdToGroup.getNumGroups();
+                                * (4 + 4 + 4) + ftgsIteratorMemory;
+                ftgsIteratorMemory = 0;
                 docIdToGroup = null;
                 groupDocCount = null;
                 memory.releaseMemory(memFreed);
@@ -2440,6 +3229,11 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
             if (dynamicMetricUsage > 0) {
                 memory.releaseMemory(dynamicMetricUsage);
             }
+            releaseSampledDocs();
+            if (sharedGroups != null) {
+                Closeables2.closeQuietly(sharedGroups, log);
+                sharedGroups = null;
+            }
             if (memory.usedMemory() > 0) {
                 log.error("ImhotepLocalSession is leaking! memory reserved after all memory has been freed: "
                         + memory.usedMemory());
@@ -2481,16 +3275,37 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
 
     private void resetGroupsTo(int group) throws ImhotepOutOfMemoryException {
         final long bytesToFree = docIdToGroup.memoryUsed();
-        final int newNumGroups = group + 1;
+        final GroupLookup newLookup = group != 0 && docSample != null ? newSampledGroupLookup(group) : new ConstantGroupLookup(this, group, numDocs);
+        final int newNumGroups = newLookup.getNumGroups();
 
         clearZeroDocBitsets();
-        accountForFlamdexFTGSIteratorMemChange(docIdToGroup.getNumGroups(), newNumGroups);
-        docIdToGroup = new ConstantGroupLookup(this, group, numDocs);
+        try {
+            reserveFTGSIteratorMemory(newNumGroups);
+        } catch (ImhotepOutOfMemoryException e) {
+            memory.releaseMemory(newLookup.memoryUsed());
+            throw e;
+        }
+        docIdToGroup = newLookup;
+        unsampledDocsRegrouped = false;
         recalcGroupCounts(newNumGroups);
         recalcGroupStats(newNumGroups);
         memory.releaseMemory(bytesToFree);
     }
 
+    /**
+     * @return a lookup with the sampled documents in the given group and every other document in group 0
+     */
+    private GroupLookup newSampledGroupLookup(int group) throws ImhotepOutOfMemoryException {
+        final GroupLookup ret = GroupLookupFactory.create(group, numDocs, this, memory);
+        for (int i = 0; i < sampleRanges.length; i += 2) {
+            for (int doc = sampleRanges[i]; doc < sampleRanges[i + 1]; doc++) {
+                ret.set(doc, group);
+            }
+        }
+        ret.recalculateNumGroups();
+        return ret;
+    }
+
     void clearZeroDocBitsets() {
         // Remove cache of what terms only exist in group zero
         if (fieldZeroDocBitsets != null) {
@@ -2533,21 +3348,26 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         return a;
     }
 
+    /**
+     * @param ranges the start and end of each run of documents to sum, flattened into one array
+     */
     private static void updateGroupStatsAllDocs(IntValueLookup statLookup,
                                                 long[] groupStats,
                                                 GroupLookup docIdToGroup,
+                                                int[] ranges,
                                                 int[] docGrpBuffer,
                                                 int[] docIdBuf,
                                                 long[] valBuf) {
         // populate new group stats
-        final int numDocs = docIdToGroup.size();
-        for (int start = 0; start < numDocs; start += BUFFER_SIZE) {
-            final int n = Math.min(BUFFER_SIZE, numDocs - start);
-            for (int i = 0; i < n; i++) {
-                docIdBuf[i] = start + i;
+        for (int r = 0; r < ranges.length; r += 2) {
+            for (int start = ranges[r]; start < ranges[r + 1]; start += BUFFER_SIZE) {
+                final int n = Math.min(BUFFER_SIZE, ranges[r + 1] - start);
+                for (int i = 0; i < n; i++) {
+                    docIdBuf[i] = start + i;
+                }
+                docIdToGroup.fillDocGrpBuffer(docIdBuf, docGrpBuffer, n);
+                updateGroupStatsDocIdBuf(statLookup, groupStats, docGrpBuffer, docIdBuf, valBuf, n);
             }
-            docIdToGroup.fillDocGrpBuffer(docIdBuf, docGrpBuffer, n);
-            updateGroupStatsDocIdBuf(statLookup, groupStats, docGrpBuffer, docIdBuf, valBuf, n);
         }
     }
 
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.indeed.imhotep.api.FTGSIterator;
+import com.indeed.imhotep.api.RawFTGSIterator;
+
+/**
+ * Scales up the group stats of a sampled session to the whole shard. Term doc frequencies are left as they are since
+ * they come from the postings of every document.
+ */
+class ScaledFTGSIterator implements FTGSIterator {
+    private final FTGSIterator iterator;
+    private final double scale;
+
+    static FTGSIterator wrap(FTGSIterator iterator, double scale) {
+        if (iterator instanceof RawFTGSIterator) {
+            return new Raw((RawFTGSIterator) iterator, scale);
+        }
+        return new ScaledFTGSIterator(iterator, scale);
+    }
+
+    private ScaledFTGSIterator(FTGSIterator iterator, double scale) {
+        this.iterator = iterator;
+        this.scale = scale;
+    }
+
+    @Override
+    public boolean nextField() {
+        return iterator.nextField();
+    }
+
+    @Override
+    public String fieldName() {
+        return iterator.fieldName();
+    }
+
+    @Override
+    public boolean fieldIsIntType() {
+        return iterator.fieldIsIntType();
+    }
+
+    @Override
+    public boolean nextTerm() {
+        return iterator.nextTerm();
+    }
+
+    @Override
+    public long termDocFreq() {
+        return iterator.termDocFreq();
+    }
+
+    @Override
+    public long termIntVal() {
+        return iterator.termIntVal();
+    }
+
+    @Override
+    public String termStringVal() {
+        return iterator.termStringVal();
+    }
+
+    @Override
+    public boolean nextGroup() {
+        return iterator.nextGroup();
+    }
+
+    @Override
+    public int group() {
+        return iterator.group();
+    }
+
+    @Override
+    public void groupStats(long[] stats) {
+        iterator.groupStats(stats);
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = Math.round(stats[i] * scale);
+        }
+    }
+
+    @Override
+    public void close() {
+        iterator.close();
+    }
+
+    private static final class Raw extends ScaledFTGSIterator implements RawFTGSIterator {
+        private final RawFTGSIterator iterator;
+
+        private Raw(RawFTGSIterator iterator, double scale) {
+            super(iterator, scale);
+            this.iterator = iterator;
+        }
+
+        @Override
+        public byte[] termStringBytes() {
+            return iterator.termStringBytes();
+        }
+
+        @Override
+        public int termStringLength() {
+            return iterator.termStringLength();
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.indeed.imhotep.DocSample;
+import com.indeed.imhotep.MemoryReservationContext;
+import com.indeed.imhotep.MemoryReserver;
+import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.util.core.reference.SharedReference;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The group assignments, stats and dynamic metrics of an {@link ImhotepLocalSession}, from which sessions on the same
+ * shard can be forked with {@link ImhotepLocalSession#restore}. Forked sessions share the group assignments until
+ * their first regroup, and keep them in memory until they are closed even if the checkpoint is spilled or closed
+ * first. A spilled checkpoint is read back from its compressed file by the next fork.
+ */
+public final class SessionCheckpoint implements Closeable {
+    private static final Logger log = Logger.getLogger(SessionCheckpoint.class);
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final MemoryReserver memory;
+    private final int numDocs;
+    private final int numGroups;
+    private final List<String> statCommands;
+    private final DocSample docSample;
+
+    // null while spilled
+    private SharedReference<FrozenGroups> groups;
+    private Map<String, DynamicMetric> dynamicMetrics;
+    private MemoryReservationContext dynamicMetricsMemory;
+
+    private File spillFile;
+    private boolean closed = false;
+
+    SessionCheckpoint(MemoryReserver memory,
+                      int numDocs,
+                      List<String> statCommands,
+                      SharedReference<FrozenGroups> groups,
+                      Map<String, DynamicMetric> dynamicMetrics,
+                      @Nullable DocSample docSample) throws ImhotepOutOfMemoryException {
+        this.memory = memory;
+        this.numDocs = numDocs;
+        this.docSample = docSample;
+        this.numGroups = groups.get().lookup.getNumGroups();
+        this.statCommands = ImmutableList.copyOf(statCommands);
+        this.groups = groups;
+        try {
+            this.dynamicMetricsMemory = new MemoryReservationContext(memory);
+            this.dynamicMetrics = copyDynamicMetrics(dynamicMetrics, dynamicMetricsMemory);
+        } catch (ImhotepOutOfMemoryException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * group assignments frozen by a checkpoint, which release their memory once the checkpoint and every session
+     * forked from it are done with them
+     */
+    static final class FrozenGroups implements Closeable {
+        final GroupLookup lookup;
+        private final MemoryReservationContext memory;
+
+        private FrozenGroups(GroupLookup lookup, MemoryReservationContext memory) {
+            this.lookup = lookup;
+            this.memory = memory;
+        }
+
+        @Override
+        public void close() {
+            memory.close();
+        }
+    }
+
+    static SharedReference<FrozenGroups> freeze(GroupLookup groups, MemoryReserver memory) throws ImhotepOutOfMemoryException {
+        final MemoryReservationContext context = new MemoryReservationContext(memory);
+        final GroupLookup lookup;
+        try {
+            lookup = GroupLookupFactory.create(groups.getNumGroups() - 1, groups.size(), null, context);
+        } catch (ImhotepOutOfMemoryException e) {
+            context.close();
+            throw e;
+        }
+        groups.copyInto(lookup);
+        return SharedReference.create(new FrozenGroups(lookup, context));
+    }
+
+    private static Map<String, DynamicMetric> copyDynamicMetrics(Map<String, DynamicMetric> dynamicMetrics, MemoryReserver memory) throws ImhotepOutOfMemoryException {
+        long memoryUsed = 0;
+        for (final DynamicMetric metric : dynamicMetrics.values()) {
+            memoryUsed += metric.memoryUsed();
+        }
+        if (!memory.claimMemory(memoryUsed)) {
+            throw new ImhotepOutOfMemoryException();
+        }
+        final Map<String, DynamicMetric> ret = Maps.newHashMap();
+        for (final Map.Entry<String, DynamicMetric> entry : dynamicMetrics.entrySet()) {
+            ret.put(entry.getKey(), entry.getValue().copy());
+        }
+        return ret;
+    }
+
+    public int getNumDocs() {
+        return numDocs;
+    }
+
+    /**
+     * @return the sample the checkpointed session was restricted to, which sessions forked from it must have too
+     */
+    @Nullable
+    public DocSample getDocSample() {
+        return docSample;
+    }
+
+    List<String> getStatCommands() {
+        return statCommands;
+    }
+
+    /**
+     * @return the frozen group assignments, read back first if the checkpoint has been spilled
+     */
+    synchronized SharedReference<FrozenGroups> copyGroups() throws ImhotepOutOfMemoryException {
+        load();
+        return groups.copy();
+    }
+
+    /**
+     * @return copies of the dynamic metrics with their memory claimed from the given reserver
+     */
+    synchronized Map<String, DynamicMetric> copyDynamicMetrics(MemoryReserver memory) throws ImhotepOutOfMemoryException {
+        load();
+        return copyDynamicMetrics(dynamicMetrics, memory);
+    }
+
+    /**
+     * @return the memory held by this checkpoint, including group assignments it shares with forked sessions
+     */
+    public synchronized long memoryUsed() {
+        if (groups == null) {
+            return 0;
+        }
+        return groups.get().lookup.memoryUsed() + dynamicMetricsMemory.usedMemory();
+    }
+
+    public synchronized boolean isSpilled() {
+        return groups == null;
+    }
+
+    /**
+     * Writes this checkpoint to a compressed file in the given directory, unless it has been spilled before, and
+     * releases its memory.
+     */
+    public synchronized void spill(File directory) throws IOException {
+        if (closed || groups == null) {
+            return;
+        }
+        if (spillFile == null) {
+            final File file = File.createTempFile("checkpoint.", ".bin", directory);
+            try {
+                write(file);
+            } catch (IOException e) {
+                if (!file.delete()) {
+                    log.warn("unable to delete " + file);
+                }
+                throw e;
+            }
+            spillFile = file;
+        }
+        releaseMemory();
+    }
+
+    private void releaseMemory() {
+        Closeables2.closeQuietly(groups, log);
+        groups = null;
+        dynamicMetrics = null;
+        if (dynamicMetricsMemory != null) {
+            dynamicMetricsMemory.close();
+            dynamicMetricsMemory = null;
+        }
+    }
+
+    private void write(File file) throws IOException {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(new FileOutputStream(file), deflater, BUFFER_SIZE), BUFFER_SIZE));
+            try {
+                final GroupLookup lookup = groups.get().lookup;
+                // group assignments and dynamic metrics are mostly long runs of the same value
+                int runStart = 0;
+                for (int doc = 1; doc <= numDocs; ++doc) {
+                    if (doc == numDocs || lookup.get(doc) != lookup.get(runStart)) {
+                        writeVInt(out, lookup.get(runStart));
+                        writeVInt(out, doc - runStart);
+                        runStart = doc;
+                    }
+                }
+                writeVInt(out, dynamicMetrics.size());
+                for (final Map.Entry<String, DynamicMetric> entry : dynamicMetrics.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    final DynamicMetric metric = entry.getValue();
+                    runStart = 0;
+                    for (int doc = 1; doc <= numDocs; ++doc) {
+                        if (doc == numDocs || metric.lookupSingleVal(doc) != metric.lookupSingleVal(runStart)) {
+                            final int value = metric.lookupSingleVal(runStart);
+                            writeVInt(out, (value << 1) ^ (value >> 31));
+                            writeVInt(out, doc - runStart);
+                            runStart = doc;
+                        }
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void load() throws ImhotepOutOfMemoryException {
+        if (closed) {
+            throw new IllegalStateException("checkpoint has been closed");
+        }
+        if (groups != null) {
+            return;
+        }
+        final MemoryReservationContext groupsMemory = new MemoryReservationContext(memory);
+        final MemoryReservationContext metricsMemory = new MemoryReservationContext(memory);
+        boolean success = false;
+        try {
+            final GroupLookup lookup = GroupLookupFactory.create(numGroups - 1, numDocs, null, groupsMemory);
+            final Map<String, DynamicMetric> metrics = Maps.newHashMap();
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new FileInputStream(spillFile)), BUFFER_SIZE));
+            try {
+                for (int doc = 0; doc < numDocs; ) {
+                    final int group = readVInt(in);
+                    final int end = doc + readVInt(in);
+                    for (; doc < end; ++doc) {
+                        lookup.set(doc, group);
+                    }
+                }
+                lookup.numGroups = numGroups;
+                final int numMetrics = readVInt(in);
+                for (int i = 0; i < numMetrics; ++i) {
+                    final String name = in.readUTF();
+                    if (!metricsMemory.claimMemory(4L * numDocs)) {
+                        throw new ImhotepOutOfMemoryException();
+                    }
+                    final DynamicMetric metric = new DynamicMetric(numDocs);
+                    for (int doc = 0; doc < numDocs; ) {
+                        final int zigZag = readVInt(in);
+                        final int value = (zigZag >>> 1) ^ -(zigZag & 1);
+                        final int end = doc + readVInt(in);
+                        for (; doc < end; ++doc) {
+                            metric.set(doc, value);
+                        }
+                    }
+                    metrics.put(name, metric);
+                }
+            } finally {
+                Closeables2.closeQuietly(in, log);
+            }
+            groups = SharedReference.create(new FrozenGroups(lookup, groupsMemory));
+            dynamicMetrics = metrics;
+            dynamicMetricsMemory = metricsMemory;
+            success = true;
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        } finally {
+            if (!success) {
+                groupsMemory.close();
+                metricsMemory.close();
+            }
+        }
+    }
+
+    private static void writeVInt(DataOutputStream out, int i) throws IOException {
+        while ((i & ~0x7F) != 0) {
+            out.writeByte((i & 0x7F) | 0x80);
+            i >>>= 7;
+        }
+        out.writeByte(i);
+    }
+
+    private static int readVInt(DataInputStream in) throws IOException {
+        int ret = 0;
+        for (int shift = 0; ; shift += 7) {
+            final byte b = in.readByte();
+            ret |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return ret;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        releaseMemory();
+        if (spillFile != null && !spillFile.delete()) {
+            log.warn("unable to delete " + spillFile);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.google.common.base.Throwables;
+import com.indeed.imhotep.MemoryReserver;
+import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
+
+import java.util.Arrays;
+
+/**
+ * The stats of one term per group for FTGS iterators of sessions with so many groups that arrays indexed by group
+ * would take hundreds of megabytes, while a term only reaches a handful of groups. The groups a term reaches are
+ * numbered in order of appearance by an open addressing hash table, and their stats are accumulated in arrays indexed
+ * by that slot number instead. The arrays are claimed from the memory of the session as they grow.
+ */
+final class SparseGroupStats {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int numStats;
+    private final MemoryReserver memory;
+    private long memoryUsed = 0;
+
+    // open addressing table from group to slot, groups are positive so 0 marks an empty entry
+    private int[] tableGroups;
+    private int[] tableSlots;
+    private int tableMask;
+
+    private int numSlots = 0;
+    private int[] slotGroups;
+    private int[] slotPositions;
+    private long[][] slotStats;
+
+    // (group << 32 | slot) of the slots in group order, filled by sortGroups
+    private long[] sortedSlots;
+
+    SparseGroupStats(int numStats, MemoryReserver memory) {
+        this.numStats = numStats;
+        this.memory = memory;
+        claim(memoryUsage(INITIAL_CAPACITY, 2 * INITIAL_CAPACITY));
+        tableGroups = new int[2 * INITIAL_CAPACITY];
+        tableSlots = new int[2 * INITIAL_CAPACITY];
+        tableMask = tableGroups.length - 1;
+        slotGroups = new int[INITIAL_CAPACITY];
+        slotPositions = new int[INITIAL_CAPACITY];
+        slotStats = new long[numStats][INITIAL_CAPACITY];
+        sortedSlots = new long[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Drops the documents in group 0 from the buffers and replaces the groups of the others by their slots, which
+     * index the arrays of {@link #getSlotStats} the stats of the documents have to be added to.
+     *
+     * @return the number of documents left in the buffers
+     */
+    int toSlots(int[] docIdBuf, int[] docGrpBuffer, int n) {
+        ensureCapacity(numSlots + n);
+        int rewriteHead = 0;
+        for (int i = 0; i < n; i++) {
+            final int group = docGrpBuffer[i];
+            if (group == 0) continue;
+
+            docGrpBuffer[rewriteHead] = slot(group);
+            docIdBuf[rewriteHead] = docIdBuf[i];
+            rewriteHead++;
+        }
+        return rewriteHead;
+    }
+
+    private int slot(int group) {
+        int position = mix(group) & tableMask;
+        while (true) {
+            final int tableGroup = tableGroups[position];
+            if (tableGroup == group) {
+                return tableSlots[position];
+            }
+            if (tableGroup == 0) {
+                break;
+            }
+            position = (position + 1) & tableMask;
+        }
+        final int slot = numSlots++;
+        tableGroups[position] = group;
+        tableSlots[position] = slot;
+        slotGroups[slot] = group;
+        slotPositions[slot] = position;
+        return slot;
+    }
+
+    private static int mix(int group) {
+        final int h = group * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * makes room for slots up to the given number, keeping the table at most half full
+     */
+    private void ensureCapacity(int maxSlots) {
+        final int capacity = maxSlots > slotGroups.length ? Math.max(maxSlots, 2 * slotGroups.length) : slotGroups.length;
+        int tableSize = tableGroups.length;
+        while (2 * maxSlots > tableSize) {
+            tableSize *= 2;
+        }
+        final long newMemoryUsed = memoryUsage(capacity, tableSize);
+        if (newMemoryUsed > memoryUsed) {
+            claim(newMemoryUsed - memoryUsed);
+        }
+        if (capacity > slotGroups.length) {
+            slotGroups = Arrays.copyOf(slotGroups, capacity);
+            slotPositions = Arrays.copyOf(slotPositions, capacity);
+            for (int stat = 0; stat < numStats; stat++) {
+                slotStats[stat] = Arrays.copyOf(slotStats[stat], capacity);
+            }
+            sortedSlots = new long[capacity];
+        }
+        if (tableSize > tableGroups.length) {
+            tableGroups = new int[tableSize];
+            tableSlots = new int[tableSize];
+            tableMask = tableSize - 1;
+            for (int slot = 0; slot < numSlots; slot++) {
+                int position = mix(slotGroups[slot]) & tableMask;
+                while (tableGroups[position] != 0) {
+                    position = (position + 1) & tableMask;
+                }
+                tableGroups[position] = slotGroups[slot];
+                tableSlots[position] = slot;
+                slotPositions[slot] = position;
+            }
+        }
+    }
+
+    private long memoryUsage(int slotCapacity, int tableSize) {
+        return 8L * tableSize + (16L + 8L * numStats) * slotCapacity;
+    }
+
+    private void claim(long bytes) {
+        if (!memory.claimMemory(bytes)) {
+            throw Throwables.propagate(new ImhotepOutOfMemoryException());
+        }
+        memoryUsed += bytes;
+    }
+
+    long memoryUsed() {
+        return memoryUsed;
+    }
+
+    /**
+     * releases the memory of the arrays, which must not be used afterwards
+     */
+    void close() {
+        memory.releaseMemory(memoryUsed);
+        memoryUsed = 0;
+    }
+
+    /**
+     * @return the stats of the slots, valid until the next call to {@link #toSlots}
+     */
+    long[][] getSlotStats() {
+        return slotStats;
+    }
+
+    /**
+     * orders the groups of the current term for {@link #group} and {@link #groupStats}
+     *
+     * @return the number of groups of the current term
+     */
+    int sortGroups() {
+        for (int slot = 0; slot < numSlots; slot++) {
+            sortedSlots[slot] = (long) slotGroups[slot] << 32 | slot;
+        }
+        Arrays.sort(sortedSlots, 0, numSlots);
+        return numSlots;
+    }
+
+    /**
+     * @return the index-th smallest group of the current term
+     */
+    int group(int index) {
+        return (int) (sortedSlots[index] >>> 32);
+    }
+
+    void groupStats(int index, long[] stats) {
+        final int slot = (int) sortedSlots[index];
+        for (int stat = 0; stat < numStats; stat++) {
+            stats[stat] = slotStats[stat][slot];
+        }
+    }
+
+    /**
+     * forgets the groups and stats of the current term
+     */
+    void clear() {
+        for (int slot = 0; slot < numSlots; slot++) {
+            tableGroups[slotPositions[slot]] = 0;
+        }
+        for (final long[] stats : slotStats) {
+            Arrays.fill(stats, 0, numSlots, 0);
+        }
+        numSlots = 0;
+    }
+}
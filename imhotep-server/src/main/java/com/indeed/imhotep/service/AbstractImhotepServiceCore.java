@@ -21,21 +21,29 @@ import com.indeed.util.core.Throwables2;
 import com.indeed.util.core.io.Closeables2;
 import com.indeed.util.core.reference.SharedReference;
 import com.indeed.imhotep.DatasetInfo;
+import com.indeed.imhotep.DocSample;
+import com.indeed.imhotep.GroupHyperLogLog;
 import com.indeed.imhotep.GroupMultiRemapRule;
+import com.indeed.imhotep.GroupQuantileSketch;
 import com.indeed.imhotep.GroupRemapRule;
+import com.indeed.imhotep.GroupStatAggregation;
 import com.indeed.imhotep.ImhotepStatusDump;
 import com.indeed.imhotep.QueryRemapRule;
 import com.indeed.imhotep.RegroupCondition;
+import com.indeed.imhotep.SessionProgram;
 import com.indeed.imhotep.ShardInfo;
 import com.indeed.imhotep.TermCount;
+import com.indeed.imhotep.api.DocBlockIterator;
 import com.indeed.imhotep.api.DocIterator;
 import com.indeed.imhotep.api.FTGSIterator;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.api.ImhotepServiceCore;
 import com.indeed.imhotep.api.ImhotepSession;
+import com.indeed.imhotep.local.SessionCheckpoint;
 
 import org.apache.log4j.Logger;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
@@ -63,13 +71,22 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
 
     protected abstract SessionManager getSessionManager();
 
+    protected abstract CheckpointStore getCheckpointStore();
+
+    protected abstract ResultCache getResultCache();
+
+    /**
+     * @return the shards of the session, in the order of its local sessions
+     */
+    protected abstract List<ShardId> getShardsForSession(String sessionId);
+
     protected AbstractImhotepServiceCore() {
         ftgsExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("LocalImhotepServiceCore-FTGSWorker-%d").build());
     }
 
     @Override
     public long handleGetTotalDocFreq(String sessionId, final String[] intFields, final String[] stringFields) {
-        return doWithSession(sessionId, new Function<ImhotepSession, Long>() {
+        return doWithSession(sessionId, true, new Function<ImhotepSession, Long>() {
             public Long apply(final ImhotepSession session) {
                 return session.getTotalDocFreq(intFields, stringFields);
             }
@@ -78,22 +95,54 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
 
     @Override
     public long[] handleGetGroupStats(String sessionId, final int stat) {
-        return doWithSession(sessionId, new Function<ImhotepSession, long[]>() {
+        return doWithSession(sessionId, true, new Function<ImhotepSession, long[]>() {
             public long[] apply(final ImhotepSession session) {
                 return session.getGroupStats(stat);
             }
         });
     }
 
+    @Override
+    public long[] handleGetGroupStats(String sessionId, final int stat, final GroupStatAggregation aggregation) {
+        return doWithSession(sessionId, true, new Function<ImhotepSession, long[]>() {
+            public long[] apply(final ImhotepSession session) {
+                return session.getGroupStats(stat, aggregation);
+            }
+        });
+    }
+
+    @Override
+    public double[] handleGetGroupStatVariances(String sessionId, final int stat) {
+        return doWithSession(sessionId, true, new Function<ImhotepSession, double[]>() {
+            public double[] apply(final ImhotepSession session) {
+                return session.getGroupStatVariances(stat);
+            }
+        });
+    }
+
     @Override
     public void handleGetFTGSIterator(final String sessionId, final String[] intFields, final String[] stringFields, final OutputStream os) throws
             IOException {
-        doWithSession(sessionId, new ThrowingFunction<ImhotepSession, Void, IOException>() {
+        final ResultCache resultCache = getResultCache();
+        final ResultCache.Key key = resultCache.getFTGSKey(sessionId, getShardsForSession(sessionId), intFields, stringFields);
+        final byte[] cachedFTGS = key != null ? resultCache.getFTGS(key) : null;
+        if (cachedFTGS != null) {
+            sendSuccessResponse(os);
+            os.write(cachedFTGS);
+            return;
+        }
+        doWithSession(sessionId, true, new ThrowingFunction<ImhotepSession, Void, IOException>() {
             public Void apply(final ImhotepSession session) throws IOException {
                 final int numStats = getSessionManager().getNumStats(sessionId);
                 final FTGSIterator merger = session.getFTGSIterator(intFields, stringFields);
                 sendSuccessResponse(os);
-                return writeFTGSIteratorToOutputStream(numStats, merger, os);
+                if (key == null) {
+                    return writeFTGSIteratorToOutputStream(numStats, merger, os);
+                }
+                final ResultCache.CapturingOutputStream capture = resultCache.capture(key, os);
+                writeFTGSIteratorToOutputStream(numStats, merger, capture);
+                capture.cache();
+                return null;
             }
         });
     }
@@ -111,7 +160,7 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
 
     @Override
     public void handleGetSubsetFTGSIterator(final String sessionId, final Map<String, long[]> intFields, final Map<String, String[]> stringFields, final OutputStream os) throws IOException {
-        doWithSession(sessionId, new ThrowingFunction<ImhotepSession, Void, IOException>() {
+        doWithSession(sessionId, true, new ThrowingFunction<ImhotepSession, Void, IOException>() {
             public Void apply(final ImhotepSession session) throws IOException {
                 final int numStats = getSessionManager().getNumStats(sessionId);
                 final FTGSIterator merger = session.getSubsetFTGSIterator(intFields, stringFields);
@@ -157,7 +206,7 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
     }
 
     public void handleGetFTGSIteratorSplit(final String sessionId, final String[] intFields, final String[] stringFields, final OutputStream os, final int splitIndex, final int numSplits) throws IOException {
-        doWithSession(sessionId, new ThrowingFunction<ImhotepSession, Void, IOException>() {
+        doWithSession(sessionId, true, new ThrowingFunction<ImhotepSession, Void, IOException>() {
             public Void apply(final ImhotepSession session) throws IOException {
                 final int numStats = getSessionManager().getNumStats(sessionId);
                 final FTGSIterator merger = session.getFTGSIteratorSplit(intFields, stringFields, splitIndex, numSplits);
@@ -169,7 +218,7 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
 
     @Override
     public void handleGetSubsetFTGSIteratorSplit(final String sessionId, final Map<String, long[]> intFields, final Map<String, String[]> stringFields, final OutputStream os, final int splitIndex, final int numSplits) throws IOException {
-        doWithSession(sessionId, new ThrowingFunction<ImhotepSession, Void, IOException>() {
+        doWithSession(sessionId, true, new ThrowingFunction<ImhotepSession, Void, IOException>() {
             public Void apply(final ImhotepSession session) throws IOException {
                 final int numStats = getSessionManager().getNumStats(sessionId);
                 final FTGSIterator merger = session.getSubsetFTGSIteratorSplit(intFields, stringFields, splitIndex, numSplits);
@@ -185,7 +234,7 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
                                              final OutputStream os,
                                              final InetSocketAddress[] nodes,
                                              final int splitIndex) throws IOException {
-        doWithSession(sessionId, new ThrowingFunction<ImhotepSession, Void, IOException>() {
+        doWithSession(sessionId, true, new ThrowingFunction<ImhotepSession, Void, IOException>() {
             public Void apply(final ImhotepSession session) throws IOException {
                 final int numStats = getSessionManager().getNumStats(sessionId);
                 final FTGSIterator merger = session.mergeFTGSSplit(intFields, stringFields, sessionId, nodes, splitIndex);
@@ -197,7 +246,7 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
 
     @Override
     public void handleMergeSubsetFTGSIteratorSplit(final String sessionId, final Map<String, long[]> intFields, final Map<String, String[]> stringFields, final OutputStream os, final InetSocketAddress[] nodes, final int splitIndex) throws IOException {
-        doWithSession(sessionId, new ThrowingFunction<ImhotepSession, Void, IOException>() {
+        doWithSession(sessionId, true, new ThrowingFunction<ImhotepSession, Void, IOException>() {
             public Void apply(final ImhotepSession session) throws IOException {
                 final int numStats = getSessionManager().getNumStats(sessionId);
                 final FTGSIterator merger = session.mergeSubsetFTGSSplit(intFields, stringFields, sessionId, nodes, splitIndex);
@@ -242,6 +291,41 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
         }
     }
 
+    @Override
+    public void handleGetDocBlockIterator(String sessionId, final String[] intFields, final String[] stringFields, final OutputStream os) throws
+            ImhotepOutOfMemoryException, IOException {
+        final SharedReference<ImhotepSession> sessionRef = getSessionManager().getSession(sessionId);
+        try {
+            final DocBlockIterator iterator = sessionRef.get().getDocBlockIterator(intFields, stringFields);
+            sendSuccessResponse(os);
+            final Future<?> future = ftgsExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        DocBlockOutputStreamWriter.write(iterator, intFields.length, stringFields.length, os);
+                    } finally {
+                        Closeables2.closeAll(log, iterator, sessionRef);
+                    }
+                    return null;
+                }
+            });
+            try {
+                // do a timed get so the task doesn't run infinitely
+                future.get(30L, TimeUnit.MINUTES);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                throw Throwables.propagate(e);
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e);
+            } catch (InterruptedException e) {
+                throw Throwables.propagate(e);
+            }
+        } catch (Throwable t) {
+            Closeables2.closeQuietly(sessionRef, log);
+            throw Throwables2.propagate(t, ImhotepOutOfMemoryException.class, IOException.class);
+        }
+    }
+
     @Override
     public abstract List<ShardInfo> handleGetShardList();
 
@@ -256,23 +340,39 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
     }
 
     public <Z, T extends Throwable> Z doWithSession(String sessionId, ThrowingFunction<ImhotepSession, Z, T> f) throws T {
-        final SharedReference<ImhotepSession> sessionRef = getSessionManager().getSession(sessionId);
-        try {
-            return f.apply(sessionRef.get());
-        } finally {
-            Closeables2.closeQuietly(sessionRef, log);
-        }
+        return doWithSession(sessionId, false, f);
     }
 
     public <Z> Z doWithSession(String sessionId, Function<ImhotepSession, Z> f)  {
+        return doWithSession(sessionId, false, f);
+    }
+
+    /**
+     * @param keepOpLog true if f does not change the session, or records what it changed in the result cache itself.
+     *                  anything else makes the result cache stop caching the session.
+     */
+    private <Z, T extends Throwable> Z doWithSession(String sessionId, boolean keepOpLog, ThrowingFunction<ImhotepSession, Z, T> f) throws T {
         final SharedReference<ImhotepSession> sessionRef = getSessionManager().getSession(sessionId);
         try {
+            try {
+                getResultCache().replayDeferred(sessionId, sessionRef.get(), keepOpLog);
+            } catch (ImhotepOutOfMemoryException e) {
+                throw Throwables.propagate(e);
+            }
             return f.apply(sessionRef.get());
         } finally {
             Closeables2.closeQuietly(sessionRef, log);
         }
     }
 
+    private <Z> Z doWithSession(String sessionId, boolean keepOpLog, final Function<ImhotepSession, Z> f) {
+        return doWithSession(sessionId, keepOpLog, new ThrowingFunction<ImhotepSession, Z, RuntimeException>() {
+            public Z apply(final ImhotepSession session) {
+                return f.apply(session);
+            }
+        });
+    }
+
     @Override
     public int handleRegroup(String sessionId, final GroupRemapRule[] remapRules) throws ImhotepOutOfMemoryException {
         return doWithSession(sessionId, new ThrowingFunction<ImhotepSession, Integer, ImhotepOutOfMemoryException>() {
@@ -385,6 +485,15 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
         });
     }
 
+    @Override
+    public int handleMetricRegroupND(String sessionId, final int[] stats, final long[] mins, final long[] maxes, final long[] intervalSizes, final boolean noGutters) throws ImhotepOutOfMemoryException {
+        return doWithSession(sessionId, new ThrowingFunction<ImhotepSession, Integer, ImhotepOutOfMemoryException>() {
+            public Integer apply(final ImhotepSession session) throws ImhotepOutOfMemoryException {
+                return session.metricRegroupND(stats, mins, maxes, intervalSizes, noGutters);
+            }
+        });
+    }
+
     public int handleMetricFilter(final String sessionId, final int stat, final long min, final long max, final boolean negation) throws ImhotepOutOfMemoryException {
         return doWithSession(sessionId, new ThrowingFunction<ImhotepSession, Integer, ImhotepOutOfMemoryException>() {
             public Integer apply(final ImhotepSession session) throws ImhotepOutOfMemoryException {
@@ -395,13 +504,31 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
 
     @Override
     public List<TermCount> handleApproximateTopTerms(String sessionId, final String field, final boolean isIntField, final int k) {
-        return doWithSession(sessionId, new Function<ImhotepSession,List<TermCount>>() {
+        return doWithSession(sessionId, true, new Function<ImhotepSession,List<TermCount>>() {
             public List<TermCount> apply(final ImhotepSession session) {
                 return session.approximateTopTerms(field, isIntField, k);
             }
         });
     }
 
+    @Override
+    public GroupHyperLogLog handleApproximateDistinctTerms(String sessionId, final String field, final boolean isIntField, final int precision) throws ImhotepOutOfMemoryException {
+        return doWithSession(sessionId, true, new ThrowingFunction<ImhotepSession, GroupHyperLogLog, ImhotepOutOfMemoryException>() {
+            public GroupHyperLogLog apply(final ImhotepSession session) throws ImhotepOutOfMemoryException {
+                return session.approximateDistinctTerms(field, isIntField, precision);
+            }
+        });
+    }
+
+    @Override
+    public GroupQuantileSketch handleGetGroupQuantiles(String sessionId, final int stat, final int compression) throws ImhotepOutOfMemoryException {
+        return doWithSession(sessionId, true, new ThrowingFunction<ImhotepSession, GroupQuantileSketch, ImhotepOutOfMemoryException>() {
+            public GroupQuantileSketch apply(final ImhotepSession session) throws ImhotepOutOfMemoryException {
+                return session.getGroupQuantiles(stat, compression);
+            }
+        });
+    }
+
     @Override
     public int handlePushStat(final String sessionId, final String metric) throws ImhotepOutOfMemoryException {
         return doWithSession(sessionId, new ThrowingFunction<ImhotepSession, Integer, ImhotepOutOfMemoryException>() {
@@ -424,9 +551,60 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
         });
     }
 
+    @Override
+    public int handleGetNumStats(final String sessionId) {
+        // deferred programs have already updated the count
+        return getSessionManager().getNumStats(sessionId);
+    }
+
+    @Override
+    public SessionProgram.Results handleExecuteProgram(final String sessionId, final SessionProgram program) throws ImhotepOutOfMemoryException {
+        final ResultCache resultCache = getResultCache();
+        final ResultCache.Key key = resultCache.getKey(sessionId, getShardsForSession(sessionId), program.toProto());
+        final SessionProgram.Results cachedResults = key != null ? resultCache.getResults(key) : null;
+        if (cachedResults != null) {
+            // executed only once something needs the state of the session
+            resultCache.defer(sessionId, program);
+            getSessionManager().setNumStats(sessionId, cachedResults.getFinalNumStats(getSessionManager().getNumStats(sessionId)));
+            return cachedResults;
+        }
+        final SessionProgram.Results results = doWithSession(sessionId, true, new ThrowingFunction<ImhotepSession, SessionProgram.Results, ImhotepOutOfMemoryException>() {
+            public SessionProgram.Results apply(final ImhotepSession session) throws ImhotepOutOfMemoryException {
+                final SessionProgram.Results results;
+                try {
+                    results = session.executeProgram(program);
+                } catch (ImhotepOutOfMemoryException e) {
+                    // the steps before the failing one did change the session
+                    resultCache.forgetOpLog(sessionId);
+                    syncNumStats(sessionId, session);
+                    throw e;
+                } catch (RuntimeException e) {
+                    resultCache.forgetOpLog(sessionId);
+                    syncNumStats(sessionId, session);
+                    throw e;
+                }
+                resultCache.logProgram(sessionId, program);
+                getSessionManager().setNumStats(sessionId, results.getFinalNumStats(getSessionManager().getNumStats(sessionId)));
+                return results;
+            }
+        });
+        if (key != null) {
+            resultCache.putResults(key, results);
+        }
+        return results;
+    }
+
+    private void syncNumStats(final String sessionId, final ImhotepSession session) {
+        try {
+            getSessionManager().setNumStats(sessionId, session.getNumStats());
+        } catch (RuntimeException e) {
+            log.warn("unable to read the number of stats of session " + sessionId, e);
+        }
+    }
+
     @Override
     public int handleGetNumGroups(String sessionId) {
-        return doWithSession(sessionId, new Function<ImhotepSession, Integer>() {
+        return doWithSession(sessionId, true, new Function<ImhotepSession, Integer>() {
             @Override
             public Integer apply(ImhotepSession imhotepSession) {
                 return imhotepSession.getNumGroups();
@@ -494,6 +672,62 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
         });
     }
 
+    @Override
+    public void handleCheckpointSession(final String sessionId, final String checkpointId) throws ImhotepOutOfMemoryException {
+        final CheckpointStore checkpointStore = getCheckpointStore();
+        final String dataset = getSessionManager().getDataset(sessionId);
+        final List<ShardId> shards = getShardsForSession(sessionId);
+        final SessionCheckpoint[] checkpoints = doWithSession(sessionId, new ThrowingFunction<ImhotepSession, SessionCheckpoint[], ImhotepOutOfMemoryException>() {
+            public SessionCheckpoint[] apply(final ImhotepSession session) throws ImhotepOutOfMemoryException {
+                return ((MTImhotepMultiSession) session).checkpoint(checkpointStore.getMemory());
+            }
+        });
+        checkpointStore.add(checkpointId, new CheckpointStore.Checkpoint(dataset, shards, checkpoints));
+    }
+
+    @Override
+    public int handleForkSession(final String checkpointId,
+                                 final String sessionId,
+                                 final String username,
+                                 final String ipAddress,
+                                 final int clientVersion,
+                                 final int mergeThreadLimit) throws ImhotepOutOfMemoryException {
+        if (sessionId == null || sessionId.isEmpty()) {
+            throw new IllegalArgumentException("forked sessions need a session id");
+        }
+        final SharedReference<CheckpointStore.Checkpoint> checkpointRef = getCheckpointStore().get(checkpointId);
+        try {
+            final CheckpointStore.Checkpoint checkpoint = checkpointRef.get();
+            handleOpenSession(checkpoint.dataset, checkpoint.getShardNames(), username, ipAddress, clientVersion, mergeThreadLimit, false, sessionId, null, checkpoint.getDocSample());
+            boolean success = false;
+            try {
+                if (!checkpoint.shards.equals(getShardsForSession(sessionId))) {
+                    throw new IllegalStateException("shards of checkpoint " + checkpointId + " have been reloaded since it was taken");
+                }
+                final int numStats = doWithSession(sessionId, new ThrowingFunction<ImhotepSession, Integer, ImhotepOutOfMemoryException>() {
+                    public Integer apply(final ImhotepSession session) throws ImhotepOutOfMemoryException {
+                        ((MTImhotepMultiSession) session).restore(checkpoint.sessionCheckpoints);
+                        return session.getNumStats();
+                    }
+                });
+                getSessionManager().setNumStats(sessionId, numStats);
+                success = true;
+                return numStats;
+            } finally {
+                if (!success) {
+                    getSessionManager().removeAndCloseIfExists(sessionId);
+                }
+            }
+        } finally {
+            Closeables2.closeQuietly(checkpointRef, log);
+        }
+    }
+
+    @Override
+    public void handleReleaseCheckpoint(final String checkpointId) {
+        getCheckpointStore().release(checkpointId);
+    }
+
     public abstract List<String> getShardIdsForSession(String sessionId);
 
     @Override
@@ -506,7 +740,8 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
             int mergeThreadLimit,
             boolean optimizeGroupZeroLookups,
             String sessionId,
-            AtomicLong tempFileSizeBytesLeft
+            AtomicLong tempFileSizeBytesLeft,
+            @Nullable DocSample docSample
     ) throws ImhotepOutOfMemoryException;
 
     @Override
@@ -517,11 +752,13 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
     @Override
     public void handleCloseSession(String sessionId) {
         getSessionManager().removeAndCloseIfExists(sessionId);
+        getResultCache().closeSession(sessionId);
     }
 
     @Override
     public void handleCloseSession(String sessionId, Exception e) {
         getSessionManager().removeAndCloseIfExists(sessionId, e);
+        getResultCache().closeSession(sessionId);
     }
 
     @Override
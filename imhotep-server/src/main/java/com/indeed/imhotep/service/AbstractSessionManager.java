@@ -95,6 +95,11 @@ public abstract class AbstractSessionManager<E> implements SessionManager<E> {
         return session.numStats;
     }
 
+    @Override
+    public String getDataset(final String sessionId) {
+        return internalGetSession(sessionId).dataset;
+    }
+
     @Override
     public Map<String, Long> getLastActionTimes() {
         final Map<String, Session<E>> sessionMap = cloneSessionMap();
@@ -26,6 +26,8 @@ import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.flamdex.api.StringTermDocIterator;
 import com.indeed.flamdex.api.StringTermIterator;
 import com.indeed.flamdex.api.StringValueLookup;
+import com.indeed.flamdex.fieldcache.ZoneMap;
+import com.indeed.flamdex.fieldcache.ZoneMapReader;
 import com.indeed.imhotep.ImhotepMemoryCache;
 import com.indeed.imhotep.ImhotepStatusDump;
 import com.indeed.imhotep.MemoryReservationContext;
@@ -47,7 +49,7 @@ import static com.indeed.util.core.Either.Right;
 /**
  * @author jsgroth
  */
-public class CachedFlamdexReader implements FlamdexReader, MetricCache {
+public class CachedFlamdexReader implements FlamdexReader, MetricCache, ZoneMapReader {
     private static final Logger log = Logger.getLogger(CachedFlamdexReader.class);
 
     private final @Nullable MemoryReservationContext memory;
@@ -58,6 +60,10 @@ public class CachedFlamdexReader implements FlamdexReader, MetricCache {
 
     private final MetricCache metricCache;
 
+    private final @Nullable String indexName;
+
+    private final @Nullable MetricPrewarmer prewarmer;
+
     private final Map<String, Long> intDocFreqCache = new ConcurrentHashMap<String, Long>();
     private final Map<String, Long> stringDocFreqCache = new ConcurrentHashMap<String, Long>();
 
@@ -67,10 +73,22 @@ public class CachedFlamdexReader implements FlamdexReader, MetricCache {
                                   final @Nullable String indexName,
                                   final @Nullable String shardName,
                                   final @Nullable ImhotepMemoryCache<MetricKey, IntValueLookup> freeCache) {
+        this(memory, wrapped, readLockRef, indexName, shardName, freeCache, null);
+    }
+
+    public CachedFlamdexReader(final MemoryReservationContext memory,
+                                  final FlamdexReader wrapped,
+                                  final @Nullable Closeable readLockRef,
+                                  final @Nullable String indexName,
+                                  final @Nullable String shardName,
+                                  final @Nullable ImhotepMemoryCache<MetricKey, IntValueLookup> freeCache,
+                                  final @Nullable MetricPrewarmer prewarmer) {
         //closer will free these in the opposite order that they are added
         this.memory = memory;
         this.readLockRef = readLockRef;
         this.wrapped = wrapped;
+        this.indexName = indexName;
+        this.prewarmer = prewarmer;
         metricCache = new MetricCacheImpl(
                 new Function<String, Either<FlamdexOutOfMemoryException, IntValueLookup>>() {
                     @Override
@@ -140,6 +158,11 @@ public class CachedFlamdexReader implements FlamdexReader, MetricCache {
     public String getDirectory() {
         return wrapped.getDirectory();
     }
+
+    @Override
+    public ZoneMap getZoneMap(String field, IntValueLookup lookup) {
+        return ZoneMap.get(wrapped, field, lookup);
+    }
     
     @Override
     public DocIdStream getDocIdStream() {
@@ -193,9 +216,20 @@ public class CachedFlamdexReader implements FlamdexReader, MetricCache {
 
     @Override
     public IntValueLookup getMetric(String metric) throws FlamdexOutOfMemoryException {
+        if (prewarmer != null && indexName != null) {
+            prewarmer.recordUse(indexName, metric);
+        }
         return metricCache.getMetric(metric);
     }
 
+    /**
+     * loads the metric without recording it as used and immediately releases it, which leaves it in the
+     * free cache (if there is one) for the next session that asks for it
+     */
+    void prewarmMetric(String metric) throws FlamdexOutOfMemoryException {
+        Closeables2.closeQuietly(metricCache.getMetric(metric), log);
+    }
+
     //string lookups are always mmapped so it's not as big of a deal to not cache the references
     public StringValueLookup getStringLookup(final String field) throws FlamdexOutOfMemoryException {
         return wrapped.getStringLookup(field);
@@ -14,6 +14,7 @@
  package com.indeed.imhotep.service;
 
 import com.google.common.base.Strings;
+import com.google.common.base.Supplier;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -21,7 +22,6 @@ import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.indeed.util.core.Pair;
 import com.indeed.util.core.shell.PosixFileOperations;
-import com.indeed.util.core.Throwables2;
 import com.indeed.util.core.io.Closeables2;
 import com.indeed.util.core.reference.AtomicSharedReference;
 import com.indeed.util.core.reference.ReloadableSharedReference;
@@ -33,6 +33,7 @@ import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.flamdex.api.RawFlamdexReader;
 import com.indeed.imhotep.CachedMemoryReserver;
 import com.indeed.imhotep.DatasetInfo;
+import com.indeed.imhotep.DocSample;
 import com.indeed.imhotep.ImhotepMemoryCache;
 import com.indeed.imhotep.ImhotepMemoryPool;
 import com.indeed.imhotep.ImhotepStatusDump;
@@ -48,12 +49,14 @@ import com.indeed.imhotep.local.ImhotepLocalSession;
 
 import org.apache.log4j.Logger;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -78,6 +81,14 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
 
     private static final long SESSION_EXPIRATION_TIME_MILLIS = 30L * 60 * 1000;
 
+    private static final String METRIC_USAGE_FILE_NAME = "metric-usage.tsv";
+
+    private static final String SHARD_MANIFEST_FILE_NAME = "shard-manifest.bin";
+    private static final String CHECKPOINT_DIRECTORY_NAME = "checkpoints";
+
+    /* metric prewarming waits while any session has issued a request within this window */
+    private static final long PREWARM_IDLE_MILLIS = 1000;
+
     private final LocalSessionManager sessionManager;
 
     private final ExecutorService executor;
@@ -92,6 +103,14 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
 
     private final FlamdexReaderSource flamdexReaderFactory;
 
+    private final @Nullable MetricPrewarmer prewarmer;
+
+    private final ShardManifest shardManifest;
+    private final CheckpointStore checkpointStore;
+    private final long checkpointExpirationMillis;
+    private final ResultCache resultCache;
+    private final ExecutorService shardMetadataExecutor;
+
     // these maps will not be modified but the references will periodically be
     // swapped
     private volatile Map<String, Map<String, AtomicSharedReference<Shard>>> shards;
@@ -145,6 +164,38 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
         if (shardTempDir != null) {
             clearTempDir(shardTempDir);
         }
+
+        if (freeCache != null && config.getMetricPrewarmMemoryFraction() > 0) {
+            prewarmer = new MetricPrewarmer(shardTempDir != null ? new File(shardTempDir, METRIC_USAGE_FILE_NAME) : null,
+                                            config.getMetricUsageHalfLifeMillis(),
+                                            (long) (memoryCapacity * config.getMetricPrewarmMemoryFraction()),
+                                            config.getMetricPrewarmMaxMetricsPerShard(),
+                                            config.getMetricPrewarmOpensShards(),
+                                            memory,
+                                            freeCache,
+                                            new Supplier<Boolean>() {
+                                                @Override
+                                                public Boolean get() {
+                                                    return hasRecentSessionActivity();
+                                                }
+                                            });
+        } else {
+            prewarmer = null;
+        }
+
+        shardManifest = new ShardManifest(shardTempDir != null ? new File(shardTempDir, SHARD_MANIFEST_FILE_NAME) : null);
+        checkpointStore = new CheckpointStore(memory,
+                                              (long) (memoryCapacity * config.getCheckpointMemoryFraction()),
+                                              new File(shardTempDir, CHECKPOINT_DIRECTORY_NAME));
+        checkpointExpirationMillis = config.getCheckpointExpirationMillis();
+        resultCache = new ResultCache(memory,
+                                      (long) (memoryCapacity * config.getResultCacheMemoryFraction()),
+                                      config.getResultCacheMaxFTGSBytes());
+        shardMetadataExecutor =
+                Executors.newFixedThreadPool(config.getShardMetadataThreads(),
+                                             new ThreadFactoryBuilder().setDaemon(true)
+                                                                       .setNameFormat("LocalImhotepServiceCore-ShardMetadata-%d")
+                                                                       .build());
         updateShards();
 
         executor =
@@ -186,6 +237,9 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
         public void run() {
             try {
                 updateShards();
+                if (prewarmer != null) {
+                    prewarmer.saveUsage();
+                }
             } catch (RuntimeException e) {
                 log.error("error updating shards", e);
             } catch (IOException e) {
@@ -208,8 +262,20 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
             }
             for (final String sessionId : sessionsToClose) {
                 getSessionManager().removeAndCloseIfExists(sessionId);
+                resultCache.closeSession(sessionId);
+            }
+            checkpointStore.closeIdle(System.currentTimeMillis() - checkpointExpirationMillis);
+        }
+    }
+
+    private boolean hasRecentSessionActivity() {
+        final long minTime = System.currentTimeMillis() - PREWARM_IDLE_MILLIS;
+        for (final long lastActionTime : getSessionManager().getLastActionTimes().values()) {
+            if (lastActionTime >= minTime) {
+                return true;
             }
         }
+        return false;
     }
 
     @Override
@@ -255,6 +321,8 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
         }
 
         final Map<String, Map<String, AtomicSharedReference<Shard>>> newShards = Maps.newHashMap();
+        final Set<String> shardDirs = Sets.newHashSet();
+        final List<PendingShard> pendingShards = Lists.newArrayList();
         for (final CachedFile datasetDir : shardsDir.listFiles()) {
             if (!datasetDir.isDirectory())
                 continue;
@@ -266,6 +334,10 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
             }
 
             final Map<String, AtomicSharedReference<Shard>> newDatasetShards = Maps.newHashMap();
+            newShards.put(datasetName, newDatasetShards);
+
+            // only the newest version of each shard is worth reading
+            final Map<String, PendingShard> newestPendingShards = Maps.newHashMap();
 
             for (final CachedFile shardDir : datasetDir.listFiles()) {
                 if (!shardDir.isDirectory())
@@ -284,87 +356,90 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
                     }
 
                     final String canonicalShardDir = shardDir.getCanonicalPath();
+                    shardDirs.add(canonicalShardDir);
 
-                    try {
-                        final AtomicSharedReference<Shard> shard;
-                        if (newDatasetShards.containsKey(shardId)) {
-                            shard = newDatasetShards.get(shardId);
-                            final SharedReference<Shard> current = shard.get();
-                            try {
-                                if (current == null
-                                        || shardVersion > current.get().getShardVersion()) {
-                                    log.info("loading shard " + shardId + " from "
-                                            + shardDir);
-                                    final Shard newShard;
-                                    newShard =
-                                            createNewShard(datasetName,
-                                                           shardDir.getName(),
-                                                           shardVersion,
-                                                           shardId,
-                                                           canonicalShardDir);
-                                    shard.set(newShard);
-                                }
-                            } finally {
-                                Closeables2.closeQuietly(current, log);
-                            }
-                        } else if (oldDatasetShards.containsKey(shardId)) {
-                            shard = oldDatasetShards.get(shardId);
-                            final SharedReference<Shard> oldShard = shard.get();
-                            try {
-                                if (shouldReloadShard(oldShard, canonicalShardDir, shardVersion)) {
-                                    log.info("loading shard " + shardId + " from "
-                                            + canonicalShardDir);
-                                    final Shard newShard;
-                                    newShard =
-                                            createNewShard(datasetName,
-                                                           shardDir.getName(),
-                                                           shardVersion,
-                                                           shardId,
-                                                           canonicalShardDir);
-                                    shard.set(newShard);
-                                }
-                            } finally {
-                                Closeables2.closeQuietly(oldShard, log);
-                            }
-                        } else {
-                            final Shard newShard;
-                            newShard =
-                                    createNewShard(datasetName,
-                                                   shardDir.getName(),
-                                                   shardVersion,
-                                                   shardId,
-                                                   canonicalShardDir);
-                            shard = AtomicSharedReference.create(newShard);
-                            log.info("loading shard " + shardId + " from " + canonicalShardDir);
-                        }
-                        if (shard != null)
-                            newDatasetShards.put(shardId, shard);
-                    } catch (Throwable t) {
-                        throw Throwables2.propagate(t, IOException.class);
+                    final PendingShard newestPendingShard = newestPendingShards.get(shardId);
+                    if (newestPendingShard == null || shardVersion > newestPendingShard.shardVersion) {
+                        newestPendingShards.put(shardId, new PendingShard(datasetName, shardDir.getName(), shardId,
+                                                                          shardVersion, canonicalShardDir));
                     }
-
                 } catch (IOException e) {
                     log.error("error loading shard at " + shardDir.getCanonicalPath(), e);
                 }
             }
 
-            if (newDatasetShards.size() > 0) {
-                newShards.put(datasetName, newDatasetShards);
+            for (final PendingShard pendingShard : newestPendingShards.values()) {
+                final AtomicSharedReference<Shard> shard = oldDatasetShards.get(pendingShard.shardId);
+                if (shard != null) {
+                    final SharedReference<Shard> oldShard = shard.get();
+                    try {
+                        if (!shouldReloadShard(oldShard, pendingShard.canonicalShardDir, pendingShard.shardVersion)) {
+                            newDatasetShards.put(pendingShard.shardId, shard);
+                            continue;
+                        }
+                    } finally {
+                        Closeables2.closeQuietly(oldShard, log);
+                    }
+                }
+                pendingShard.target = shard;
+                pendingShards.add(pendingShard);
             }
+        }
 
-            for (final String shardId : oldDatasetShards.keySet()) {
-                if (!newDatasetShards.containsKey(shardId)) {
+        final List<String> pendingShardDirs = Lists.newArrayListWithCapacity(pendingShards.size());
+        for (final PendingShard pendingShard : pendingShards) {
+            pendingShardDirs.add(pendingShard.canonicalShardDir);
+        }
+        final Map<String, ShardManifest.Entry> metadata =
+                shardManifest.getEntries(pendingShardDirs, flamdexReaderFactory, shardMetadataExecutor);
+
+        for (final PendingShard pendingShard : pendingShards) {
+            final ShardManifest.Entry entry = metadata.get(pendingShard.canonicalShardDir);
+            if (entry == null) {
+                if (pendingShard.target != null) {
+                    newShards.get(pendingShard.dataset).put(pendingShard.shardId, pendingShard.target);
+                }
+                continue;
+            }
+            log.info("loading shard " + pendingShard.shardId + " from " + pendingShard.canonicalShardDir);
+            final Shard newShard = createNewShard(pendingShard, entry);
+            final AtomicSharedReference<Shard> shard;
+            if (pendingShard.target != null) {
+                shard = pendingShard.target;
+                shard.set(newShard);
+            } else {
+                shard = AtomicSharedReference.create(newShard);
+            }
+            newShards.get(pendingShard.dataset).put(pendingShard.shardId, shard);
+        }
+
+        for (final Map.Entry<String, Map<String, AtomicSharedReference<Shard>>> e : oldShards.entrySet()) {
+            final Map<String, AtomicSharedReference<Shard>> newDatasetShards = newShards.get(e.getKey());
+            for (final Map.Entry<String, AtomicSharedReference<Shard>> shard : e.getValue().entrySet()) {
+                if (newDatasetShards == null || !newDatasetShards.containsKey(shard.getKey())) {
                     try {
-                        oldDatasetShards.get(shardId).unset();
-                    } catch (IOException e) {
-                        log.error("error closing shard " + shardId, e);
+                        shard.getValue().unset();
+                    } catch (IOException ex) {
+                        log.error("error closing shard " + shard.getKey(), ex);
                     }
                 }
             }
         }
+        for (final Iterator<Map<String, AtomicSharedReference<Shard>>> it = newShards.values().iterator(); it.hasNext(); ) {
+            if (it.next().isEmpty()) {
+                it.remove();
+            }
+        }
 
         this.shards = newShards;
 
+        shardManifest.retainAll(shardDirs);
+        try {
+            shardManifest.save();
+        } catch (IOException e) {
+            log.warn("unable to save shard manifest", e);
+        }
+
         final List<ShardInfo> shardList = buildShardList();
         final List<ShardInfo> oldShardList = this.shardList;
         if (oldShardList == null || !oldShardList.equals(shardList)) {
@@ -378,35 +453,62 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
         }
     }
     
-    private Shard createNewShard(final String datasetName, 
-                                 final String shardName, 
-                                 final long shardVersion, 
-                                 final String shardId,
-                                 final String canonicalShardDir) throws IOException {
+    private Shard createNewShard(final PendingShard pendingShard, final ShardManifest.Entry entry) {
         final Shard newShard;
         final ReloadableSharedReference.Loader<CachedFlamdexReader, IOException> loader;
         
         loader = new ReloadableSharedReference.Loader<CachedFlamdexReader, IOException>() {
             @Override
             public CachedFlamdexReader load() throws IOException {
-                final FlamdexReader flamdex = flamdexReaderFactory.openReader(canonicalShardDir);
+                final FlamdexReader flamdex = flamdexReaderFactory.openReader(pendingShard.canonicalShardDir);
                 if (flamdex instanceof RawFlamdexReader) {
                     return new RawCachedFlamdexReader(new MemoryReservationContext(memory),
-                                                      (RawFlamdexReader) flamdex, null, datasetName,
-                                                      shardName, freeCache);
+                                                      (RawFlamdexReader) flamdex, null, pendingShard.dataset,
+                                                      pendingShard.shardDirName, freeCache, prewarmer);
                 } else {
                     return new CachedFlamdexReader(new MemoryReservationContext(memory), flamdex,
-                                                   null, datasetName, shardName, freeCache);
+                                                   null, pendingShard.dataset, pendingShard.shardDirName,
+                                                   freeCache, prewarmer);
                 }
             }
         };
         
-        newShard = new Shard(ReloadableSharedReference.create(loader), null, shardVersion,
-                             canonicalShardDir, datasetName, shardId);
+        newShard = new Shard(ReloadableSharedReference.create(loader), null, pendingShard.shardVersion,
+                             pendingShard.canonicalShardDir, pendingShard.dataset, pendingShard.shardId,
+                             entry.numDocs, entry.intFields, entry.stringFields, entry.availableMetrics);
+
+        if (prewarmer != null) {
+            prewarmer.prewarm(newShard);
+        }
 
         return newShard;
     }
 
+    /**
+     * a shard directory whose reader has not been created yet
+     */
+    private static final class PendingShard {
+        final String dataset;
+        final String shardDirName;
+        final String shardId;
+        final long shardVersion;
+        final String canonicalShardDir;
+        /* the reference currently holding this shard id, if any */
+        AtomicSharedReference<Shard> target;
+
+        PendingShard(final String dataset,
+                     final String shardDirName,
+                     final String shardId,
+                     final long shardVersion,
+                     final String canonicalShardDir) {
+            this.dataset = dataset;
+            this.shardDirName = shardDirName;
+            this.shardId = shardId;
+            this.shardVersion = shardVersion;
+            this.canonicalShardDir = canonicalShardDir;
+        }
+    }
+
     private static boolean shouldReloadShard(SharedReference<Shard> ref,
                                              String canonicalShardDir,
                                              long shardVersion) {
@@ -520,7 +622,8 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
             }
         }
 
-        return new ImhotepStatusDump(usedMemory, totalMemory, openSessions, shards);
+        return new ImhotepStatusDump(usedMemory, totalMemory, openSessions, shards,
+                                     prewarmer != null ? prewarmer.getPrewarmDump() : null);
     }
 
     @Override
@@ -528,6 +631,21 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
         return getSessionManager().getShardIdsForSession(sessionId);
     }
 
+    @Override
+    protected List<ShardId> getShardsForSession(String sessionId) {
+        return getSessionManager().getShardsForSession(sessionId);
+    }
+
+    @Override
+    protected CheckpointStore getCheckpointStore() {
+        return checkpointStore;
+    }
+
+    @Override
+    protected ResultCache getResultCache() {
+        return resultCache;
+    }
+
     @Override
     public String handleOpenSession(final String dataset,
                                     final List<String> shardRequestList,
@@ -537,7 +655,8 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
                                     final int mergeThreadLimit,
                                     final boolean optimizeGroupZeroLookups,
                                     String sessionId,
-                                    AtomicLong tempFileSizeBytesLeft) throws ImhotepOutOfMemoryException {
+                                    AtomicLong tempFileSizeBytesLeft,
+                                    @Nullable DocSample docSample) throws ImhotepOutOfMemoryException {
         final Map<String, Map<String, AtomicSharedReference<Shard>>> localShards = this.shards;
         checkDatasetExists(localShards, dataset);
 
@@ -580,7 +699,7 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
             }
         }
 
-        final Map<ShardId, CachedFlamdexReaderReference> flamdexes = Maps.newHashMap();
+        final Map<ShardId, CachedFlamdexReaderReference> flamdexes = Maps.newLinkedHashMap();
         final ImhotepLocalSession[] localSessions;
         localSessions = new ImhotepLocalSession[shardRequestList.size()];
         try {
@@ -608,6 +727,11 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
             }
             final int maxSplits =
                     mergeThreadLimit > 0 ? mergeThreadLimit : DEFAULT_MERGE_THREAD_LIMIT;
+            if (docSample != null) {
+                for (int i = 0; i < localSessions.length; i++) {
+                    localSessions[i].restrictToSample(docSample, shardRequestList.get(i));
+                }
+            }
             final ImhotepSession session =
                     new MTImhotepMultiSession(localSessions, new MemoryReservationContext(memory),
                                               executor, tempFileSizeBytesLeft);
@@ -618,6 +742,10 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
                                            ipAddress,
                                            clientVersion,
                                            dataset);
+            if (docSample == null) {
+                // cached results are keyed by the operations of a session, which do not include its sample
+                resultCache.openSession(sessionId);
+            }
         } catch (RuntimeException e) {
             closeNonNullSessions(localSessions);
             throw e;
@@ -649,7 +777,28 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
         super.close();
         executor.shutdownNow();
         shardReload.shutdown();
+        shardMetadataExecutor.shutdown();
         heartBeat.shutdown();
+        checkpointStore.close();
+        resultCache.close();
+        if (prewarmer != null) {
+            prewarmer.close();
+        }
+    }
+
+    @Export(name = "result-cache-hit-count", doc = "number of programs and FTGS requests answered from the result cache")
+    public long getResultCacheHitCount() {
+        return resultCache.getHitCount();
+    }
+
+    @Export(name = "result-cache-miss-count", doc = "number of cacheable programs and FTGS requests that had to be evaluated")
+    public long getResultCacheMissCount() {
+        return resultCache.getMissCount();
+    }
+
+    @Export(name = "result-cache-memory-used", doc = "bytes occupied by the result cache")
+    public long getResultCacheMemoryUsed() {
+        return resultCache.getMemoryUsed();
     }
 
     @Export(name = "loaded-shard-count", doc = "number of loaded shards for each dataset", expand = true)
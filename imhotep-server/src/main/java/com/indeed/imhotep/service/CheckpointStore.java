@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.google.common.collect.ImmutableList;
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.util.core.reference.SharedReference;
+import com.indeed.imhotep.DocSample;
+import com.indeed.imhotep.MemoryReserver;
+import com.indeed.imhotep.local.SessionCheckpoint;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Session checkpoints kept by a daemon until they are released or expire. Checkpoints beyond the memory budget are
+ * spilled to disk, least recently used first, and read back by the next fork.
+ */
+final class CheckpointStore implements Closeable {
+    private static final Logger log = Logger.getLogger(CheckpointStore.class);
+
+    private final MemoryReserver memory;
+    private final long memoryBudget;
+    private final File spillDirectory;
+
+    // in access order, so the least recently used checkpoints come first
+    private final LinkedHashMap<String, Entry> checkpoints = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private boolean closed = false;
+
+    /**
+     * @param memory the memory reserver the checkpoints claim their memory from
+     * @param memoryBudget checkpoints are spilled once they occupy more than this many bytes
+     * @param spillDirectory directory spilled checkpoints are written to, created if it does not exist
+     */
+    CheckpointStore(MemoryReserver memory, long memoryBudget, File spillDirectory) {
+        this.memory = memory;
+        this.memoryBudget = memoryBudget;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * the checkpoints of the local sessions of one session, in the same order as its shards
+     */
+    static final class Checkpoint implements Closeable {
+        final String dataset;
+        final List<ShardId> shards;
+        final SessionCheckpoint[] sessionCheckpoints;
+
+        Checkpoint(String dataset, List<ShardId> shards, SessionCheckpoint[] sessionCheckpoints) {
+            this.dataset = dataset;
+            this.shards = ImmutableList.copyOf(shards);
+            this.sessionCheckpoints = sessionCheckpoints;
+        }
+
+        /**
+         * @return the sample every checkpointed session was restricted to, if any
+         */
+        @Nullable
+        DocSample getDocSample() {
+            return sessionCheckpoints.length > 0 ? sessionCheckpoints[0].getDocSample() : null;
+        }
+
+        List<String> getShardNames() {
+            final List<String> ret = new ArrayList<String>(shards.size());
+            for (final ShardId shard : shards) {
+                ret.add(shard.getId());
+            }
+            return ret;
+        }
+
+        long memoryUsed() {
+            long ret = 0;
+            for (final SessionCheckpoint checkpoint : sessionCheckpoints) {
+                ret += checkpoint.memoryUsed();
+            }
+            return ret;
+        }
+
+        @Override
+        public void close() {
+            for (final SessionCheckpoint checkpoint : sessionCheckpoints) {
+                Closeables2.closeQuietly(checkpoint, log);
+            }
+        }
+    }
+
+    private static final class Entry {
+        final SharedReference<Checkpoint> checkpoint;
+        long lastAccessTime = System.currentTimeMillis();
+
+        Entry(SharedReference<Checkpoint> checkpoint) {
+            this.checkpoint = checkpoint;
+        }
+    }
+
+    MemoryReserver getMemory() {
+        return memory;
+    }
+
+    /**
+     * takes ownership of the checkpoint, which is closed if it cannot be added
+     */
+    synchronized void add(String checkpointId, Checkpoint checkpoint) {
+        if (closed || checkpoints.containsKey(checkpointId)) {
+            checkpoint.close();
+            throw new IllegalArgumentException(closed ? "checkpoint store is closed" : "there already exists a checkpoint with id " + checkpointId);
+        }
+        checkpoints.put(checkpointId, new Entry(SharedReference.create(checkpoint)));
+        spillOverBudget();
+    }
+
+    /**
+     * @return a reference to the checkpoint, which the caller has to close
+     */
+    synchronized SharedReference<Checkpoint> get(String checkpointId) {
+        final Entry entry = checkpoints.get(checkpointId);
+        if (entry == null) {
+            throw new IllegalArgumentException("there does not exist a checkpoint with id " + checkpointId);
+        }
+        entry.lastAccessTime = System.currentTimeMillis();
+        return entry.checkpoint.copy();
+    }
+
+    synchronized void release(String checkpointId) {
+        final Entry entry = checkpoints.remove(checkpointId);
+        if (entry != null) {
+            Closeables2.closeQuietly(entry.checkpoint, log);
+        }
+    }
+
+    /**
+     * releases the checkpoints that have not been used since the given time
+     */
+    synchronized void closeIdle(long minTime) {
+        final Iterator<Entry> iterator = checkpoints.values().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (entry.lastAccessTime < minTime) {
+                iterator.remove();
+                Closeables2.closeQuietly(entry.checkpoint, log);
+            }
+        }
+    }
+
+    private void spillOverBudget() {
+        long memoryUsed = getMemoryUsed();
+        for (final Entry entry : checkpoints.values()) {
+            if (memoryUsed <= memoryBudget) {
+                return;
+            }
+            for (final SessionCheckpoint checkpoint : entry.checkpoint.get().sessionCheckpoints) {
+                final long checkpointMemory = checkpoint.memoryUsed();
+                try {
+                    if (!spillDirectory.exists() && !spillDirectory.mkdirs()) {
+                        throw new IOException("unable to create " + spillDirectory);
+                    }
+                    checkpoint.spill(spillDirectory);
+                    memoryUsed -= checkpointMemory;
+                } catch (IOException e) {
+                    log.warn("unable to spill checkpoint", e);
+                    return;
+                }
+            }
+        }
+    }
+
+    synchronized int getCheckpointCount() {
+        return checkpoints.size();
+    }
+
+    /**
+     * @return the memory held by the checkpoints that have not been spilled
+     */
+    synchronized long getMemoryUsed() {
+        long ret = 0;
+        for (final Entry entry : checkpoints.values()) {
+            ret += entry.checkpoint.get().memoryUsed();
+        }
+        return ret;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (final Entry entry : checkpoints.values()) {
+            Closeables2.closeQuietly(entry.checkpoint, log);
+        }
+        checkpoints.clear();
+    }
+}
@@ -21,10 +21,15 @@ import com.google.common.collect.UnmodifiableIterator;
 import com.google.common.primitives.Doubles;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
 import com.indeed.imhotep.DatasetInfo;
+import com.indeed.imhotep.DocSample;
+import com.indeed.imhotep.GroupHyperLogLog;
 import com.indeed.imhotep.GroupMultiRemapRule;
+import com.indeed.imhotep.GroupQuantileSketch;
 import com.indeed.imhotep.GroupRemapRule;
 import com.indeed.imhotep.ImhotepStatusDump;
+import com.indeed.imhotep.SessionProgram;
 import com.indeed.imhotep.ShardInfo;
 import com.indeed.imhotep.TermCount;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
@@ -52,6 +57,7 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -60,6 +66,8 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 public class ImhotepDaemon {
     private static final Logger log = Logger.getLogger(ImhotepDaemon.class);
@@ -158,11 +166,52 @@ public class ImhotepDaemon {
         }
 
         private void internalRun() {
-            ImhotepRequest protoRequest = null;
             try {
                 final InputStream is = Streams.newBufferedInputStream(socket.getInputStream());
                 final OutputStream os = Streams.newBufferedOutputStream(socket.getOutputStream());
+                try {
+                    while (handleRequest(is, os) && awaitNextRequest(is)) {
+                        // the client keeps the connection for its next request
+                    }
+                } finally {
+                    close(socket, is, os);
+                }
+            } catch (IOException e) {
+                if (e instanceof SocketException) {
+                    log.warn("IOException while servicing request", e);
+                } else {
+                    log.error("IOException while servicing request", e);
+                }
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * Waits for the next request on a kept alive connection.
+         * @return false if the client closed the connection or left it idle past the socket timeout
+         */
+        private boolean awaitNextRequest(InputStream is) throws IOException {
+            is.mark(1);
+            try {
+                if (is.read() < 0) {
+                    return false;
+                }
+            } catch (SocketTimeoutException e) {
+                return false;
+            }
+            is.reset();
+            return true;
+        }
 
+        /**
+         * @return true if the request succeeded and asked to keep the connection open
+         */
+        private boolean handleRequest(final InputStream is, final OutputStream socketOs) throws IOException {
+            ImhotepRequest protoRequest = null;
+            OutputStream os = socketOs;
+            Deflater deflater = null;
+            DeflaterOutputStream deflaterOs = null;
+            try {
                 final int ndcDepth = NDC.getDepth();
 
                 final long requestId = requestIdCounter.incrementAndGet();
@@ -177,6 +226,12 @@ public class ImhotepDaemon {
                         NDC.push(protoRequest.getSessionId());
                     }
 
+                    if (protoRequest.getCompressResponse()) {
+                        deflater = new Deflater(Deflater.BEST_SPEED);
+                        deflaterOs = new DeflaterOutputStream(socketOs, deflater, 65536);
+                        os = deflaterOs;
+                    }
+
                     log.info("received request of type "+protoRequest.getRequestType()+", building response");
                     final ImhotepResponse.Builder responseBuilder = ImhotepResponse.newBuilder();
 
@@ -204,7 +259,9 @@ public class ImhotepDaemon {
                                     protoRequest.getMergeThreadLimit(),
                                     protoRequest.getOptimizeGroupZeroLookups(),
                                     protoRequest.getSessionId(),
-                                    tempFileSizeBytesLeft
+                                    tempFileSizeBytesLeft,
+                                    protoRequest.hasSampleRate() ?
+                                            new DocSample(protoRequest.getSampleRate(), protoRequest.getSampleSeed()) : null
                             );
                             NDC.push(sessionId);
                             responseBuilder.setSessionId(sessionId);
@@ -287,12 +344,35 @@ public class ImhotepDaemon {
                             sendResponse(responseBuilder.build(), os);
                             break;
                         case GET_GROUP_STATS:
-                            groupStats = service.handleGetGroupStats(protoRequest.getSessionId(), protoRequest.getStat());
+                            groupStats = service.handleGetGroupStats(
+                                    protoRequest.getSessionId(),
+                                    protoRequest.getStat(),
+                                    ImhotepDaemonMarshaller.marshal(protoRequest.getAggregation())
+                            );
                             for (final long groupStat : groupStats) {
                                 responseBuilder.addGroupStat(groupStat);
                             }
+                            responseBuilder.setAggregation(protoRequest.getAggregation());
                             sendResponse(responseBuilder.build(), os);
                             break;
+                        case GET_GROUP_STAT_VARIANCES:
+                            final double[] groupStatVariances = service.handleGetGroupStatVariances(
+                                    protoRequest.getSessionId(),
+                                    protoRequest.getStat()
+                            );
+                            for (final double variance : groupStatVariances) {
+                                responseBuilder.addGroupStatVariances(variance);
+                            }
+                            sendResponse(responseBuilder.build(), os);
+                            break;
+                        case GET_GROUP_QUANTILES:
+                            final GroupQuantileSketch groupQuantiles = service.handleGetGroupQuantiles(
+                                    protoRequest.getSessionId(),
+                                    protoRequest.getStat(),
+                                    protoRequest.getCompression()
+                            );
+                            sendResponse(responseBuilder.setGroupQuantileSketches(ByteString.copyFrom(groupQuantiles.toBytes())).build(), os);
+                            break;
                         case GET_FTGS_ITERATOR:
                             if (!service.sessionIsValid(protoRequest.getSessionId())) {
                                 throw new IllegalArgumentException("invalid session: " + protoRequest.getSessionId());
@@ -345,6 +425,12 @@ public class ImhotepDaemon {
                             }
                             service.handleGetDocIterator(protoRequest.getSessionId(), getIntFields(protoRequest), getStringFields(protoRequest), os);
                             break;
+                        case GET_DOC_BLOCK_ITERATOR:
+                            if (!service.sessionIsValid(protoRequest.getSessionId())) {
+                                throw new IllegalArgumentException("invalid session: " + protoRequest.getSessionId());
+                            }
+                            service.handleGetDocBlockIterator(protoRequest.getSessionId(), getIntFields(protoRequest), getStringFields(protoRequest), os);
+                            break;
                         case PUSH_STAT:
                             numStats = service.handlePushStat(protoRequest.getSessionId(), protoRequest.getMetric());
                             responseBuilder.setNumStats(numStats);
@@ -355,6 +441,18 @@ public class ImhotepDaemon {
                             responseBuilder.setNumStats(numStats);
                             sendResponse(responseBuilder.build(), os);
                             break;
+                        case GET_NUM_STATS:
+                            numStats = service.handleGetNumStats(protoRequest.getSessionId());
+                            responseBuilder.setNumStats(numStats);
+                            sendResponse(responseBuilder.build(), os);
+                            break;
+                        case EXECUTE_PROGRAM:
+                            final SessionProgram.Results programResults = service.handleExecuteProgram(
+                                    protoRequest.getSessionId(),
+                                    SessionProgram.fromProto(protoRequest.getProgramList())
+                            );
+                            sendResponse(responseBuilder.addAllProgramResults(programResults.toProto()).build(), os);
+                            break;
                         case GET_NUM_GROUPS:
                             numGroups = service.handleGetNumGroups(protoRequest.getSessionId());
                             responseBuilder.setNumGroups(numGroups);
@@ -406,6 +504,18 @@ public class ImhotepDaemon {
                             responseBuilder.setNumGroups(numGroups);
                             sendResponse(responseBuilder.build(), os);
                             break;
+                        case METRIC_REGROUP_ND:
+                            numGroups = service.handleMetricRegroupND(
+                                    protoRequest.getSessionId(),
+                                    Ints.toArray(protoRequest.getNdStatsList()),
+                                    Longs.toArray(protoRequest.getNdMinsList()),
+                                    Longs.toArray(protoRequest.getNdMaxesList()),
+                                    Longs.toArray(protoRequest.getNdIntervalSizesList()),
+                                    protoRequest.getNoGutters()
+                            );
+                            responseBuilder.setNumGroups(numGroups);
+                            sendResponse(responseBuilder.build(), os);
+                            break;
                         case METRIC_FILTER:
                             numGroups = service.handleMetricFilter(
                                     protoRequest.getSessionId(),
@@ -508,6 +618,40 @@ public class ImhotepDaemon {
                             );
                             sendResponse(responseBuilder.addAllTopTerms(ImhotepDaemonMarshaller.marshalTermCountList(topTerms)).build(), os);
                             break;
+                        case APPROXIMATE_DISTINCT_TERMS:
+                            final GroupHyperLogLog distinctTermSketches = service.handleApproximateDistinctTerms(
+                                    protoRequest.getSessionId(),
+                                    protoRequest.getField(),
+                                    protoRequest.getIsIntField(),
+                                    protoRequest.getPrecision()
+                            );
+                            sendResponse(responseBuilder.setDistinctTermSketches(ByteString.copyFrom(distinctTermSketches.getRegisters())).build(), os);
+                            break;
+                        case CHECKPOINT_SESSION:
+                            service.handleCheckpointSession(
+                                    protoRequest.getSessionId(),
+                                    protoRequest.getCheckpointId()
+                            );
+                            sendResponse(responseBuilder.build(), os);
+                            break;
+                        case FORK_SESSION:
+                            inetAddress = socket.getInetAddress();
+                            numStats = service.handleForkSession(
+                                    protoRequest.getCheckpointId(),
+                                    protoRequest.getSessionId(),
+                                    protoRequest.getUsername(),
+                                    inetAddress.getHostAddress(),
+                                    protoRequest.getClientVersion(),
+                                    protoRequest.getMergeThreadLimit()
+                            );
+                            NDC.push(protoRequest.getSessionId());
+                            responseBuilder.setSessionId(protoRequest.getSessionId()).setNumStats(numStats);
+                            sendResponse(responseBuilder.build(), os);
+                            break;
+                        case RELEASE_CHECKPOINT:
+                            service.handleReleaseCheckpoint(protoRequest.getCheckpointId());
+                            sendResponse(responseBuilder.build(), os);
+                            break;
                         case SHUTDOWN:
                             if (protoRequest.hasSessionId() && "magicshutdownid".equals(protoRequest.getSessionId())) {
                                 log.info("shutdown signal received, shutting down the JVM");
@@ -531,17 +675,20 @@ public class ImhotepDaemon {
                     throw e;
                 } finally {
                     NDC.setMaxDepth(ndcDepth);
-                    close(socket, is, os);
+                    if (deflaterOs != null) {
+                        deflaterOs.finish();
+                        socketOs.flush();
+                    }
                 }
             } catch (IOException e) {
                 expireSession(protoRequest,e );
-                if (e instanceof SocketException) {
-                    log.warn("IOException while servicing request", e);
-                } else {
-                    log.error("IOException while servicing request", e);
+                throw e;
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
                 }
-                throw new RuntimeException(e);
             }
+            return protoRequest.getKeepAlive();
         }
 
         private ImhotepResponse newErrorResponse(Exception e) {
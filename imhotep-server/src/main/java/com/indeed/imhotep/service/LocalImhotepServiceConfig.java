@@ -21,6 +21,15 @@
 public final class LocalImhotepServiceConfig {
     private int updateShardsFrequencySeconds = 120;
     private int heartBeatCheckFrequencySeconds = 60;
+    private double metricPrewarmMemoryFraction = 0.5;
+    private int metricPrewarmMaxMetricsPerShard = 8;
+    private boolean metricPrewarmOpensShards = false;
+    private long metricUsageHalfLifeMillis = 7L * 24 * 60 * 60 * 1000;
+    private int shardMetadataThreads = 8;
+    private double checkpointMemoryFraction = 0.25;
+    private long checkpointExpirationMillis = 60L * 60 * 1000;
+    private double resultCacheMemoryFraction = 0.05;
+    private int resultCacheMaxFTGSBytes = 1024 * 1024;
 
     public int getUpdateShardsFrequencySeconds() {
         return updateShardsFrequencySeconds;
@@ -30,6 +39,42 @@ public final class LocalImhotepServiceConfig {
         return heartBeatCheckFrequencySeconds;
     }
 
+    public double getMetricPrewarmMemoryFraction() {
+        return metricPrewarmMemoryFraction;
+    }
+
+    public int getMetricPrewarmMaxMetricsPerShard() {
+        return metricPrewarmMaxMetricsPerShard;
+    }
+
+    public boolean getMetricPrewarmOpensShards() {
+        return metricPrewarmOpensShards;
+    }
+
+    public long getMetricUsageHalfLifeMillis() {
+        return metricUsageHalfLifeMillis;
+    }
+
+    public int getShardMetadataThreads() {
+        return shardMetadataThreads;
+    }
+
+    public double getCheckpointMemoryFraction() {
+        return checkpointMemoryFraction;
+    }
+
+    public long getCheckpointExpirationMillis() {
+        return checkpointExpirationMillis;
+    }
+
+    public double getResultCacheMemoryFraction() {
+        return resultCacheMemoryFraction;
+    }
+
+    public int getResultCacheMaxFTGSBytes() {
+        return resultCacheMaxFTGSBytes;
+    }
+
     public LocalImhotepServiceConfig setUpdateShardsFrequencySeconds(int updateShardsFrequencySeconds) {
         this.updateShardsFrequencySeconds = updateShardsFrequencySeconds;
         return this;
@@ -39,4 +84,74 @@ public final class LocalImhotepServiceConfig {
         this.heartBeatCheckFrequencySeconds = heartBeatCheckFrequencySeconds;
         return this;
     }
+
+    /**
+     * fraction of the memory capacity that reserved plus cached metrics may occupy before prewarming stops,
+     * 0 disables prewarming. prewarming only happens when the metric cache is in use.
+     */
+    public LocalImhotepServiceConfig setMetricPrewarmMemoryFraction(double metricPrewarmMemoryFraction) {
+        this.metricPrewarmMemoryFraction = metricPrewarmMemoryFraction;
+        return this;
+    }
+
+    public LocalImhotepServiceConfig setMetricPrewarmMaxMetricsPerShard(int metricPrewarmMaxMetricsPerShard) {
+        this.metricPrewarmMaxMetricsPerShard = metricPrewarmMaxMetricsPerShard;
+        return this;
+    }
+
+    /**
+     * whether prewarming opens the reader of a newly discovered shard, which is otherwise opened lazily by the
+     * first session that uses it. when false only shards whose reader is already open are prewarmed.
+     */
+    public LocalImhotepServiceConfig setMetricPrewarmOpensShards(boolean metricPrewarmOpensShards) {
+        this.metricPrewarmOpensShards = metricPrewarmOpensShards;
+        return this;
+    }
+
+    public LocalImhotepServiceConfig setMetricUsageHalfLifeMillis(long metricUsageHalfLifeMillis) {
+        this.metricUsageHalfLifeMillis = metricUsageHalfLifeMillis;
+        return this;
+    }
+
+    /**
+     * number of threads used to read the metadata of newly discovered shards
+     */
+    public LocalImhotepServiceConfig setShardMetadataThreads(int shardMetadataThreads) {
+        this.shardMetadataThreads = shardMetadataThreads;
+        return this;
+    }
+
+    /**
+     * fraction of the memory capacity that session checkpoints may occupy before the least recently used ones are
+     * spilled to the temp directory
+     */
+    public LocalImhotepServiceConfig setCheckpointMemoryFraction(double checkpointMemoryFraction) {
+        this.checkpointMemoryFraction = checkpointMemoryFraction;
+        return this;
+    }
+
+    /**
+     * time after which a checkpoint nobody forked a session from is released
+     */
+    public LocalImhotepServiceConfig setCheckpointExpirationMillis(long checkpointExpirationMillis) {
+        this.checkpointExpirationMillis = checkpointExpirationMillis;
+        return this;
+    }
+
+    /**
+     * fraction of the memory capacity that cached session results may occupy before the least recently used ones are
+     * evicted, 0 disables the result cache
+     */
+    public LocalImhotepServiceConfig setResultCacheMemoryFraction(double resultCacheMemoryFraction) {
+        this.resultCacheMemoryFraction = resultCacheMemoryFraction;
+        return this;
+    }
+
+    /**
+     * FTGS streams longer than this many bytes are not kept in the result cache
+     */
+    public LocalImhotepServiceConfig setResultCacheMaxFTGSBytes(int resultCacheMaxFTGSBytes) {
+        this.resultCacheMaxFTGSBytes = resultCacheMaxFTGSBytes;
+        return this;
+    }
 }
@@ -21,7 +21,6 @@ import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.indeed.util.core.Pair;
 import com.indeed.util.core.shell.PosixFileOperations;
-import com.indeed.util.core.Throwables2;
 import com.indeed.util.core.io.Closeables2;
 import com.indeed.util.io.Files;
 import com.indeed.util.core.reference.AtomicSharedReference;
@@ -34,6 +33,7 @@ import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.flamdex.api.RawFlamdexReader;
 import com.indeed.imhotep.CachedMemoryReserver;
 import com.indeed.imhotep.DatasetInfo;
+import com.indeed.imhotep.DocSample;
 import com.indeed.imhotep.ImhotepMemoryCache;
 import com.indeed.imhotep.ImhotepMemoryPool;
 import com.indeed.imhotep.ImhotepStatusDump;
@@ -49,6 +49,7 @@ import com.indeed.imhotep.local.ImhotepLocalSession;
 
 import org.apache.log4j.Logger;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -56,6 +57,7 @@ import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -81,6 +83,9 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
 
     private static final long SESSION_EXPIRATION_TIME_MILLIS = 30L * 60 * 1000;
 
+    private static final String SHARD_MANIFEST_FILE_NAME = "shard-manifest.bin";
+    private static final String CHECKPOINT_DIRECTORY_NAME = "checkpoints";
+
     private final LocalSessionManager sessionManager;
 
     private final ExecutorService executor;
@@ -95,6 +100,12 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
 
     private final FlamdexReaderSource flamdexReaderFactory;
 
+    private final ShardManifest shardManifest;
+    private final CheckpointStore checkpointStore;
+    private final long checkpointExpirationMillis;
+    private final ResultCache resultCache;
+    private final ExecutorService shardMetadataExecutor;
+
     // these maps will not be modified but the references will periodically be
     // swapped
     private volatile Map<String, Map<String, AtomicSharedReference<Shard>>> shards;
@@ -148,6 +159,20 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
         if (shardTempDir != null) {
             clearTempDir(shardTempDir);
         }
+
+        shardManifest = new ShardManifest(shardTempDir != null ? new File(shardTempDir, SHARD_MANIFEST_FILE_NAME) : null);
+        checkpointStore = new CheckpointStore(memory,
+                                              (long) (memoryCapacity * config.getCheckpointMemoryFraction()),
+                                              new File(shardTempDir, CHECKPOINT_DIRECTORY_NAME));
+        checkpointExpirationMillis = config.getCheckpointExpirationMillis();
+        resultCache = new ResultCache(memory,
+                                      (long) (memoryCapacity * config.getResultCacheMemoryFraction()),
+                                      config.getResultCacheMaxFTGSBytes());
+        shardMetadataExecutor =
+                Executors.newFixedThreadPool(config.getShardMetadataThreads(),
+                                             new ThreadFactoryBuilder().setDaemon(true)
+                                                                       .setNameFormat("LocalImhotepServiceCore-ShardMetadata-%d")
+                                                                       .build());
         updateShards();
 
         executor =
@@ -212,7 +237,9 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
             for (final String sessionId : sessionsToClose) {
                 getSessionManager().removeAndCloseIfExists(sessionId, 
                                                            new TimeoutException("Session timed out."));
+                resultCache.closeSession(sessionId);
             }
+            checkpointStore.closeIdle(System.currentTimeMillis() - checkpointExpirationMillis);
         }
     }
 
@@ -259,6 +286,8 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
         }
 
         final Map<String, Map<String, AtomicSharedReference<Shard>>> newShards = Maps.newHashMap();
+        final Set<String> shardDirs = Sets.newHashSet();
+        final List<PendingShard> pendingShards = Lists.newArrayList();
         for (final File datasetDir : new File(canonicalShardsDirectory).listFiles()) {
             if (!datasetDir.isDirectory()) {
                 continue;
@@ -271,6 +300,10 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
             }
 
             final Map<String, AtomicSharedReference<Shard>> newDatasetShards = Maps.newHashMap();
+            newShards.put(dataset, newDatasetShards);
+
+            // only the newest unopened version of each shard is worth locking and reading
+            final Map<String, PendingShard> newestPendingShards = Maps.newHashMap();
 
             for (final File shardDir : datasetDir.listFiles()) {
                 if (!shardDir.isDirectory()) {
@@ -290,19 +323,27 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
                     }
 
                     final String canonicalShardDir = shardDir.getCanonicalPath();
+                    shardDirs.add(canonicalShardDir);
+
+                    final boolean alreadyOpen;
+                    synchronized (lockFileMap) {
+                        alreadyOpen = lockFileMap.containsKey(new File(canonicalShardDir));
+                    }
+                    if (alreadyOpen) {
+                        keepOpenShard(shardId, dataset, oldDatasetShards, newDatasetShards);
+                        continue;
+                    }
+
+                    final PendingShard newestPendingShard = newestPendingShards.get(shardId);
+                    if (newestPendingShard != null && shardVersion <= newestPendingShard.shardVersion) {
+                        continue;
+                    }
+
                     final ReadLock readLock;
                     try {
                         readLock = ReadLock.lock(lockFileMap, new File(canonicalShardDir));
                     } catch (ReadLock.AlreadyOpenException e) {
-                        // already loaded
-                        if (!newDatasetShards.containsKey(shardId)) {
-                            if (!oldDatasetShards.containsKey(shardId)) {
-                                log.error("shard " + shardId
-                                        + " claims to be open but isn't referenced");
-                            } else {
-                                newDatasetShards.put(shardId, oldDatasetShards.get(shardId));
-                            }
-                        }
+                        keepOpenShard(shardId, dataset, oldDatasetShards, newDatasetShards);
                         continue;
                     } catch (ReadLock.ShardDeletedException e) {
                         log.info("shard " + shardDir.getName() + " in dataset " + dataset
@@ -313,108 +354,95 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
                         continue;
                     }
 
-                    final SharedReference<ReadLock> readLockRef = SharedReference.create(readLock);
-                    final Shard newShard;
-
-                    try {
-                        final ReloadableSharedReference.Loader<CachedFlamdexReader, IOException> loader =
-                                new ReloadableSharedReference.Loader<CachedFlamdexReader, IOException>() {
-                                    @Override
-                                    public CachedFlamdexReader load() throws IOException {
-                                        final FlamdexReader flamdex =
-                                                flamdexReaderFactory.openReader(canonicalShardDir);
-                                        final SharedReference<ReadLock> copy = readLockRef.copy();
-                                        if (flamdex instanceof RawFlamdexReader) {
-                                            return new RawCachedFlamdexReader(
-                                                                              new MemoryReservationContext(
-                                                                                                           memory),
-                                                                              (RawFlamdexReader) flamdex,
-                                                                              copy, dataset,
-                                                                              shardDir.getName(),
-                                                                              freeCache);
-                                        } else {
-                                            return new CachedFlamdexReader(
-                                                                           new MemoryReservationContext(
-                                                                                                        memory),
-                                                                           flamdex, copy, dataset,
-                                                                           shardDir.getName(),
-                                                                           freeCache);
-                                        }
-                                    }
-                                };
-                        newShard =
-                                new Shard(ReloadableSharedReference.create(loader), readLockRef,
-                                          shardVersion, canonicalShardDir, dataset, shardId);
-                    } catch (Throwable t) {
-                        Closeables2.closeQuietly(readLockRef, log);
-                        throw Throwables2.propagate(t, IOException.class);
+                    if (newestPendingShard != null) {
+                        Closeables2.closeQuietly(newestPendingShard.readLockRef, log);
                     }
+                    newestPendingShards.put(shardId, new PendingShard(dataset, shardDir.getName(), shardId,
+                                                                      shardVersion, canonicalShardDir,
+                                                                      SharedReference.create(readLock)));
+                } catch (IOException e) {
+                    log.error("error loading shard at " + shardDir.getAbsolutePath(), e);
+                }
+            }
 
+            for (final PendingShard pendingShard : newestPendingShards.values()) {
+                AtomicSharedReference<Shard> shard = newDatasetShards.get(pendingShard.shardId);
+                if (shard == null) {
+                    shard = oldDatasetShards.get(pendingShard.shardId);
+                }
+                if (shard != null) {
+                    final SharedReference<Shard> current = shard.getCopy();
                     try {
-                        final AtomicSharedReference<Shard> shard;
-                        if (newDatasetShards.containsKey(shardId)) {
-                            shard = newDatasetShards.get(shardId);
-                            final SharedReference<Shard> current = shard.getCopy();
-                            try {
-                                if (current == null
-                                        || shardVersion > current.get().getShardVersion()) {
-                                    log.debug("loading shard " + shardId + " from "
-                                            + canonicalShardDir);
-                                    shard.set(newShard);
-                                } else {
-                                    Closeables2.closeQuietly(newShard, log);
-                                }
-                            } finally {
-                                Closeables2.closeQuietly(current, log);
-                            }
-                        } else if (oldDatasetShards.containsKey(shardId)) {
-                            shard = oldDatasetShards.get(shardId);
-                            final SharedReference<Shard> oldShard = shard.getCopy();
-                            try {
-                                if (shouldReloadShard(oldShard, canonicalShardDir, shardVersion)) {
-                                    log.debug("loading shard " + shardId + " from "
-                                            + canonicalShardDir);
-                                    shard.set(newShard);
-                                } else {
-                                    Closeables2.closeQuietly(newShard, log);
-                                }
-                            } finally {
-                                Closeables2.closeQuietly(oldShard, log);
-                            }
-                        } else {
-                            shard = AtomicSharedReference.create(newShard);
-                            log.debug("loading shard " + shardId + " from " + canonicalShardDir);
-                        }
-                        if (shard != null) {
-                            newDatasetShards.put(shardId, shard);
+                        if (current != null && !shouldReloadShard(current, pendingShard.canonicalShardDir,
+                                                                  pendingShard.shardVersion)) {
+                            newDatasetShards.put(pendingShard.shardId, shard);
+                            Closeables2.closeQuietly(pendingShard.readLockRef, log);
+                            continue;
                         }
-                    } catch (Throwable t) {
-                        Closeables2.closeQuietly(newShard, log);
-                        throw Throwables2.propagate(t, IOException.class);
+                    } finally {
+                        Closeables2.closeQuietly(current, log);
                     }
-
-                } catch (IOException e) {
-                    log.error("error loading shard at " + shardDir.getAbsolutePath(), e);
                 }
+                pendingShard.target = shard;
+                pendingShards.add(pendingShard);
             }
+        }
 
-            if (newDatasetShards.size() > 0) {
-                newShards.put(dataset, newDatasetShards);
+        final List<String> pendingShardDirs = Lists.newArrayListWithCapacity(pendingShards.size());
+        for (final PendingShard pendingShard : pendingShards) {
+            pendingShardDirs.add(pendingShard.canonicalShardDir);
+        }
+        final Map<String, ShardManifest.Entry> metadata =
+                shardManifest.getEntries(pendingShardDirs, flamdexReaderFactory, shardMetadataExecutor);
+
+        for (final PendingShard pendingShard : pendingShards) {
+            final ShardManifest.Entry entry = metadata.get(pendingShard.canonicalShardDir);
+            if (entry == null) {
+                Closeables2.closeQuietly(pendingShard.readLockRef, log);
+                if (pendingShard.target != null) {
+                    newShards.get(pendingShard.dataset).put(pendingShard.shardId, pendingShard.target);
+                }
+                continue;
+            }
+            final Shard newShard = createNewShard(pendingShard, entry);
+            log.debug("loading shard " + pendingShard.shardId + " from " + pendingShard.canonicalShardDir);
+            final AtomicSharedReference<Shard> shard;
+            if (pendingShard.target != null) {
+                shard = pendingShard.target;
+                shard.set(newShard);
+            } else {
+                shard = AtomicSharedReference.create(newShard);
             }
+            newShards.get(pendingShard.dataset).put(pendingShard.shardId, shard);
+        }
 
-            for (final String shardId : oldDatasetShards.keySet()) {
-                if (!newDatasetShards.containsKey(shardId)) {
+        for (final Map.Entry<String, Map<String, AtomicSharedReference<Shard>>> e : oldShards.entrySet()) {
+            final Map<String, AtomicSharedReference<Shard>> newDatasetShards = newShards.get(e.getKey());
+            for (final Map.Entry<String, AtomicSharedReference<Shard>> shard : e.getValue().entrySet()) {
+                if (newDatasetShards == null || !newDatasetShards.containsKey(shard.getKey())) {
                     try {
-                        oldDatasetShards.get(shardId).unset();
-                    } catch (IOException e) {
-                        log.error("error closing shard " + shardId, e);
+                        shard.getValue().unset();
+                    } catch (IOException ex) {
+                        log.error("error closing shard " + shard.getKey(), ex);
                     }
                 }
             }
         }
+        for (final Iterator<Map<String, AtomicSharedReference<Shard>>> it = newShards.values().iterator(); it.hasNext(); ) {
+            if (it.next().isEmpty()) {
+                it.remove();
+            }
+        }
 
         this.shards = newShards;
 
+        shardManifest.retainAll(shardDirs);
+        try {
+            shardManifest.save();
+        } catch (IOException e) {
+            log.warn("unable to save shard manifest", e);
+        }
+
         final List<ShardInfo> shardList = buildShardList();
         final List<ShardInfo> oldShardList = this.shardList;
         if (oldShardList == null || !oldShardList.equals(shardList)) {
@@ -428,6 +456,76 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
         }
     }
 
+    private static void keepOpenShard(final String shardId,
+                                      final String dataset,
+                                      final Map<String, AtomicSharedReference<Shard>> oldDatasetShards,
+                                      final Map<String, AtomicSharedReference<Shard>> newDatasetShards) {
+        if (!newDatasetShards.containsKey(shardId)) {
+            if (!oldDatasetShards.containsKey(shardId)) {
+                log.error("shard " + shardId + " in dataset " + dataset
+                        + " claims to be open but isn't referenced");
+            } else {
+                newDatasetShards.put(shardId, oldDatasetShards.get(shardId));
+            }
+        }
+    }
+
+    private Shard createNewShard(final PendingShard pendingShard, final ShardManifest.Entry entry) {
+        final SharedReference<ReadLock> readLockRef = pendingShard.readLockRef;
+        final ReloadableSharedReference.Loader<CachedFlamdexReader, IOException> loader =
+                new ReloadableSharedReference.Loader<CachedFlamdexReader, IOException>() {
+                    @Override
+                    public CachedFlamdexReader load() throws IOException {
+                        final FlamdexReader flamdex =
+                                flamdexReaderFactory.openReader(pendingShard.canonicalShardDir);
+                        final SharedReference<ReadLock> copy = readLockRef.copy();
+                        if (flamdex instanceof RawFlamdexReader) {
+                            return new RawCachedFlamdexReader(new MemoryReservationContext(memory),
+                                                              (RawFlamdexReader) flamdex,
+                                                              copy, pendingShard.dataset,
+                                                              pendingShard.shardDirName,
+                                                              freeCache);
+                        } else {
+                            return new CachedFlamdexReader(new MemoryReservationContext(memory),
+                                                           flamdex, copy, pendingShard.dataset,
+                                                           pendingShard.shardDirName,
+                                                           freeCache);
+                        }
+                    }
+                };
+        return new Shard(ReloadableSharedReference.create(loader), readLockRef, pendingShard.shardVersion,
+                         pendingShard.canonicalShardDir, pendingShard.dataset, pendingShard.shardId,
+                         entry.numDocs, entry.intFields, entry.stringFields, entry.availableMetrics);
+    }
+
+    /**
+     * a locked shard directory whose reader has not been created yet
+     */
+    private static final class PendingShard {
+        final String dataset;
+        final String shardDirName;
+        final String shardId;
+        final long shardVersion;
+        final String canonicalShardDir;
+        final SharedReference<ReadLock> readLockRef;
+        /* the reference currently holding this shard id, if any */
+        AtomicSharedReference<Shard> target;
+
+        PendingShard(final String dataset,
+                     final String shardDirName,
+                     final String shardId,
+                     final long shardVersion,
+                     final String canonicalShardDir,
+                     final SharedReference<ReadLock> readLockRef) {
+            this.dataset = dataset;
+            this.shardDirName = shardDirName;
+            this.shardId = shardId;
+            this.shardVersion = shardVersion;
+            this.canonicalShardDir = canonicalShardDir;
+            this.readLockRef = readLockRef;
+        }
+    }
+
     private static boolean shouldReloadShard(SharedReference<Shard> ref,
                                              String canonicalShardDir,
                                              long shardVersion) {
@@ -551,6 +649,21 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
         return getSessionManager().getShardIdsForSession(sessionId);
     }
 
+    @Override
+    protected List<ShardId> getShardsForSession(String sessionId) {
+        return getSessionManager().getShardsForSession(sessionId);
+    }
+
+    @Override
+    protected CheckpointStore getCheckpointStore() {
+        return checkpointStore;
+    }
+
+    @Override
+    protected ResultCache getResultCache() {
+        return resultCache;
+    }
+
     @Override
     public String handleOpenSession(final String dataset,
                                     final List<String> shardRequestList,
@@ -560,7 +673,8 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
                                     final int mergeThreadLimit,
                                     final boolean optimizeGroupZeroLookups,
                                     String sessionId,
-                                    AtomicLong tempFileSizeBytesLeft) throws ImhotepOutOfMemoryException {
+                                    AtomicLong tempFileSizeBytesLeft,
+                                    @Nullable DocSample docSample) throws ImhotepOutOfMemoryException {
         final Map<String, Map<String, AtomicSharedReference<Shard>>> localShards = this.shards;
         checkDatasetExists(localShards, dataset);
 
@@ -604,7 +718,7 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
             }
         }
 
-        final Map<ShardId, CachedFlamdexReaderReference> flamdexes = Maps.newHashMap();
+        final Map<ShardId, CachedFlamdexReaderReference> flamdexes = Maps.newLinkedHashMap();
         final ImhotepLocalSession[] localSessions;
         localSessions = new ImhotepLocalSession[shardRequestList.size()];
         try {
@@ -631,6 +745,11 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
                     throw e;
                 }
             }
+            if (docSample != null) {
+                for (int i = 0; i < localSessions.length; i++) {
+                    localSessions[i].restrictToSample(docSample, shardRequestList.get(i));
+                }
+            }
             final ImhotepSession session =
                     new MTImhotepMultiSession(localSessions, new MemoryReservationContext(memory), executor, tempFileSizeBytesLeft);
             getSessionManager().addSession(sessionId,
@@ -640,6 +759,10 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
                                            ipAddress,
                                            clientVersion,
                                            dataset);
+            if (docSample == null) {
+                // cached results are keyed by the operations of a session, which do not include its sample
+                resultCache.openSession(sessionId);
+            }
         } catch (RuntimeException e) {
             closeNonNullSessions(localSessions);
             throw e;
@@ -671,7 +794,25 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
         super.close();
         executor.shutdownNow();
         shardReload.shutdown();
+        shardMetadataExecutor.shutdown();
         heartBeat.shutdown();
+        checkpointStore.close();
+        resultCache.close();
+    }
+
+    @Export(name = "result-cache-hit-count", doc = "number of programs and FTGS requests answered from the result cache")
+    public long getResultCacheHitCount() {
+        return resultCache.getHitCount();
+    }
+
+    @Export(name = "result-cache-miss-count", doc = "number of cacheable programs and FTGS requests that had to be evaluated")
+    public long getResultCacheMissCount() {
+        return resultCache.getMissCount();
+    }
+
+    @Export(name = "result-cache-memory-used", doc = "bytes occupied by the result cache")
+    public long getResultCacheMemoryUsed() {
+        return resultCache.getMemoryUsed();
     }
 
     @Export(name = "loaded-shard-count", doc = "number of loaded shards for each dataset", expand = true)
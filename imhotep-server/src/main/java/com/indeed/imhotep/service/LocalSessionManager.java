@@ -55,6 +55,14 @@ public final class LocalSessionManager extends AbstractSessionManager<Map<ShardI
         return ret;
     }
 
+    /**
+     * @return the shards of the session, in the order of its local sessions
+     */
+    public List<ShardId> getShardsForSession(final String sessionId) {
+        final Session<Map<ShardId, CachedFlamdexReaderReference>> session = internalGetSession(sessionId);
+        return new ArrayList<ShardId>(session.sessionState.keySet());
+    }
+
     public List<ImhotepStatusDump.SessionDump> getSessionDump() {
         final Map<String, Session<Map<ShardId, CachedFlamdexReaderReference>>> clone = cloneSessionMap();
 
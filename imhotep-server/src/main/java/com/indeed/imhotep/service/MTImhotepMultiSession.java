@@ -19,8 +19,10 @@ import com.indeed.util.core.Throwables2;
 import com.indeed.util.core.io.Closeables2;
 import com.indeed.imhotep.AbstractImhotepMultiSession;
 import com.indeed.imhotep.MemoryReservationContext;
+import com.indeed.imhotep.MemoryReserver;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.local.ImhotepLocalSession;
+import com.indeed.imhotep.local.SessionCheckpoint;
 
 import org.apache.log4j.Logger;
 
@@ -85,6 +87,59 @@ class MTImhotepMultiSession extends AbstractImhotepMultiSession {
         Closeables2.closeQuietly(memory, log);
     }
 
+    /**
+     * @return a checkpoint of each local session, in the order of the sessions
+     */
+    SessionCheckpoint[] checkpoint(final MemoryReserver checkpointMemory) throws ImhotepOutOfMemoryException {
+        // not through execute(), which closes this session if any shard fails
+        final SessionCheckpoint[] ret = new SessionCheckpoint[sessions.length];
+        boolean success = false;
+        try {
+            for (int i = 0; i < sessions.length; ++i) {
+                ret[i] = ((ImhotepLocalSession) sessions[i]).checkpoint(checkpointMemory);
+            }
+            success = true;
+            return ret;
+        } finally {
+            if (!success) {
+                for (final SessionCheckpoint checkpoint : ret) {
+                    if (checkpoint != null) {
+                        Closeables2.closeQuietly(checkpoint, log);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * restores each local session from the checkpoint of the same shard, as returned by {@link #checkpoint}
+     */
+    void restore(final SessionCheckpoint[] checkpoints) throws ImhotepOutOfMemoryException {
+        if (checkpoints.length != sessions.length) {
+            throw new IllegalArgumentException("checkpoint has " + checkpoints.length + " shards, session has " + sessions.length);
+        }
+        final Integer[] indexes = new Integer[sessions.length];
+        for (int i = 0; i < indexes.length; ++i) {
+            indexes[i] = i;
+        }
+        try {
+            execute(new Object[sessions.length], indexes, new ThrowingFunction<Integer, Object>() {
+                @Override
+                public Object apply(Integer i) throws Exception {
+                    ((ImhotepLocalSession) sessions[i]).restore(checkpoints[i]);
+                    return null;
+                }
+            });
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ImhotepOutOfMemoryException) {
+                throw new ImhotepOutOfMemoryException(cause);
+            }
+            throw Throwables.propagate(cause);
+        }
+        getNumStats();
+    }
+
     @Override
     protected <E, T> void execute(final T[] ret, E[] things, final ThrowingFunction<? super E, ? extends T> function) throws ExecutionException {
         final List<Future<T>> futures = Lists.newArrayListWithCapacity(things.length);
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.util.core.reference.SharedReference;
+import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
+import com.indeed.imhotep.ImhotepMemoryCache;
+import com.indeed.imhotep.ImhotepStatusDump;
+import com.indeed.imhotep.MemoryReserver;
+import com.indeed.imhotep.io.Shard;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a decaying per-dataset frequency table of the metrics that sessions actually load and, whenever a
+ * new shard (or a new version of a shard) shows up, loads the hottest of those metrics in the background so
+ * that the first query against the shard does not pay for the field cache loads inline.
+ *
+ * Prewarmed metrics are released into the free cache as soon as they are loaded, so they are evicted like any
+ * other cached metric when live queries need the memory. Prewarming only proceeds while the reserved plus
+ * cached memory stays below the configured budget, and it pauses while sessions are actively issuing requests.
+ *
+ * Shard readers are opened lazily, so by default only shards whose reader is already open are warmed; opening
+ * the reader of every new shard just to warm it has to be asked for explicitly.
+ */
+public final class MetricPrewarmer implements Closeable {
+    private static final Logger log = Logger.getLogger(MetricPrewarmer.class);
+
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    private final @Nullable File usageFile;
+    private final long halfLifeMillis;
+    private final long memoryBudget;
+    private final int maxMetricsPerShard;
+    private final boolean openShards;
+    private final MemoryReserver memory;
+    private final ImhotepMemoryCache<?, ?> freeCache;
+    private final Supplier<Boolean> busy;
+
+    private final ConcurrentMap<String, ConcurrentMap<String, MetricUsage>> usage = Maps.newConcurrentMap();
+
+    private final ExecutorService executor;
+
+    private final AtomicInteger pendingShards = new AtomicInteger(0);
+    private final AtomicInteger warmedShards = new AtomicInteger(0);
+    private final AtomicLong warmedMetrics = new AtomicLong(0);
+    private final AtomicLong warmedBytes = new AtomicLong(0);
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param usageFile file the usage table is loaded from and persisted to, or null to keep it in memory only
+     * @param halfLifeMillis time after which a recorded metric use counts for half as much
+     * @param memoryBudget prewarming stops once reserved plus cached memory would exceed this many bytes
+     * @param maxMetricsPerShard maximum number of metrics to prewarm for any single shard
+     * @param openShards whether to open the reader of a shard in order to warm it, otherwise shards whose reader
+     *                   is not open are skipped
+     * @param memory the memory reserver backing the shards' metric caches
+     * @param freeCache the cache that released metrics are kept in
+     * @param busy returns true while live queries are running, in which case prewarming waits
+     */
+    public MetricPrewarmer(@Nullable final File usageFile,
+                           final long halfLifeMillis,
+                           final long memoryBudget,
+                           final int maxMetricsPerShard,
+                           final boolean openShards,
+                           final MemoryReserver memory,
+                           final ImhotepMemoryCache<?, ?> freeCache,
+                           final Supplier<Boolean> busy) {
+        this.usageFile = usageFile;
+        this.halfLifeMillis = halfLifeMillis;
+        this.memoryBudget = memoryBudget;
+        this.maxMetricsPerShard = maxMetricsPerShard;
+        this.openShards = openShards;
+        this.memory = memory;
+        this.freeCache = freeCache;
+        this.busy = busy;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                                                                               .setPriority(Thread.MIN_PRIORITY)
+                                                                               .setNameFormat("MetricPrewarmer-%d")
+                                                                               .build());
+        if (usageFile != null && usageFile.exists()) {
+            try {
+                loadUsage(usageFile);
+            } catch (IOException e) {
+                log.warn("unable to read metric usage from " + usageFile + ", starting with empty usage", e);
+            } catch (RuntimeException e) {
+                log.warn("unable to parse metric usage from " + usageFile + ", starting with empty usage", e);
+            }
+        }
+    }
+
+    /**
+     * records that a session loaded the given metric from a shard of the given dataset
+     */
+    public void recordUse(final String dataset, final String metric) {
+        ConcurrentMap<String, MetricUsage> datasetUsage = usage.get(dataset);
+        if (datasetUsage == null) {
+            final ConcurrentMap<String, MetricUsage> newUsage = Maps.newConcurrentMap();
+            datasetUsage = usage.putIfAbsent(dataset, newUsage);
+            if (datasetUsage == null) {
+                datasetUsage = newUsage;
+            }
+        }
+        MetricUsage metricUsage = datasetUsage.get(metric);
+        if (metricUsage == null) {
+            final MetricUsage newUsage = new MetricUsage(0, System.currentTimeMillis());
+            metricUsage = datasetUsage.putIfAbsent(metric, newUsage);
+            if (metricUsage == null) {
+                metricUsage = newUsage;
+            }
+        }
+        metricUsage.increment(System.currentTimeMillis(), halfLifeMillis);
+    }
+
+    /**
+     * @return the metrics of the dataset ordered from most to least frequently used
+     */
+    public List<String> getHottestMetrics(final String dataset) {
+        final Map<String, MetricUsage> datasetUsage = usage.get(dataset);
+        if (datasetUsage == null) {
+            return Collections.emptyList();
+        }
+        final long now = System.currentTimeMillis();
+        final List<Map.Entry<String, Double>> scores = Lists.newArrayList();
+        for (final Map.Entry<String, MetricUsage> entry : datasetUsage.entrySet()) {
+            scores.add(Maps.immutableEntry(entry.getKey(), entry.getValue().score(now, halfLifeMillis)));
+        }
+        Collections.sort(scores, new Comparator<Map.Entry<String, Double>>() {
+            @Override
+            public int compare(final Map.Entry<String, Double> o1, final Map.Entry<String, Double> o2) {
+                return Double.compare(o2.getValue(), o1.getValue());
+            }
+        });
+        final List<String> ret = Lists.newArrayListWithCapacity(scores.size());
+        for (final Map.Entry<String, Double> entry : scores) {
+            ret.add(entry.getKey());
+        }
+        return ret;
+    }
+
+    /**
+     * schedules the hottest metrics of the shard's dataset to be loaded in the background
+     */
+    public void prewarm(final Shard shard) {
+        if (closed || !usage.containsKey(shard.getDataset())) {
+            return;
+        }
+        pendingShards.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        prewarmShard(shard);
+                    } catch (Throwable t) {
+                        log.warn("error prewarming shard " + shard.getShardId(), t);
+                    } finally {
+                        pendingShards.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingShards.decrementAndGet();
+        }
+    }
+
+    private void prewarmShard(final Shard shard) throws IOException, InterruptedException {
+        final List<String> hottest = getHottestMetrics(shard.getDataset());
+        final Collection<String> available = shard.getAvailableMetrics();
+        int numWarmed = 0;
+        for (final String metric : hottest) {
+            if (numWarmed >= maxMetricsPerShard) {
+                break;
+            }
+            if (!available.contains(metric)) {
+                continue;
+            }
+            if (!waitUntilIdle()) {
+                return;
+            }
+            final SharedReference<CachedFlamdexReader> ref = openShards ? shard.getRef() : shard.getRefIfLoaded();
+            if (ref == null) {
+                // shard has been unloaded in the meantime, or its reader is not open and we may not open it
+                return;
+            }
+            try {
+                final CachedFlamdexReader reader = ref.get();
+                if (reader.getLoadedMetrics().contains(metric)) {
+                    continue;
+                }
+                final long required = reader.memoryRequired(metric);
+                if (memory.usedMemory() + freeCache.memoryUsed() + required > memoryBudget) {
+                    continue;
+                }
+                try {
+                    reader.prewarmMetric(metric);
+                } catch (FlamdexOutOfMemoryException e) {
+                    return;
+                }
+                numWarmed++;
+                warmedMetrics.incrementAndGet();
+                warmedBytes.addAndGet(required);
+            } finally {
+                Closeables2.closeQuietly(ref, log);
+            }
+        }
+        warmedShards.incrementAndGet();
+    }
+
+    private boolean waitUntilIdle() throws InterruptedException {
+        while (!closed && busy.get()) {
+            Thread.sleep(IDLE_POLL_MILLIS);
+        }
+        return !closed;
+    }
+
+    public ImhotepStatusDump.PrewarmDump getPrewarmDump() {
+        return new ImhotepStatusDump.PrewarmDump(pendingShards.get(), warmedShards.get(),
+                                                 warmedMetrics.get(), warmedBytes.get());
+    }
+
+    /**
+     * writes the usage table to the usage file, replacing the previous contents atomically
+     */
+    public synchronized void saveUsage() throws IOException {
+        if (usageFile == null) {
+            return;
+        }
+        final File tmp = new File(usageFile.getParentFile(), ".tmp." + usageFile.getName());
+        final long now = System.currentTimeMillis();
+        final BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), Charsets.UTF_8));
+        try {
+            for (final Map.Entry<String, ConcurrentMap<String, MetricUsage>> datasetEntry : usage.entrySet()) {
+                for (final Map.Entry<String, MetricUsage> metricEntry : datasetEntry.getValue().entrySet()) {
+                    out.write(datasetEntry.getKey());
+                    out.write('\t');
+                    out.write(metricEntry.getKey());
+                    out.write('\t');
+                    out.write(Double.toString(metricEntry.getValue().score(now, halfLifeMillis)));
+                    out.write('\t');
+                    out.write(Long.toString(now));
+                    out.newLine();
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(usageFile)) {
+            throw new IOException("unable to rename " + tmp + " to " + usageFile);
+        }
+    }
+
+    private void loadUsage(final File file) throws IOException {
+        final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String[] split = line.split("\t");
+                if (split.length != 4) {
+                    continue;
+                }
+                ConcurrentMap<String, MetricUsage> datasetUsage = usage.get(split[0]);
+                if (datasetUsage == null) {
+                    datasetUsage = Maps.newConcurrentMap();
+                    usage.put(split[0], datasetUsage);
+                }
+                datasetUsage.put(split[1], new MetricUsage(Double.parseDouble(split[2]), Long.parseLong(split[3])));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdownNow();
+        try {
+            saveUsage();
+        } catch (IOException e) {
+            log.warn("unable to save metric usage to " + usageFile, e);
+        }
+    }
+
+    private static final class MetricUsage {
+        private double score;
+        private long lastUpdate;
+
+        private MetricUsage(final double score, final long lastUpdate) {
+            this.score = score;
+            this.lastUpdate = lastUpdate;
+        }
+
+        synchronized void increment(final long now, final long halfLifeMillis) {
+            score = score(now, halfLifeMillis) + 1;
+            lastUpdate = Math.max(now, lastUpdate);
+        }
+
+        synchronized double score(final long now, final long halfLifeMillis) {
+            if (now <= lastUpdate) {
+                return score;
+            }
+            return score * Math.pow(0.5, (double) (now - lastUpdate) / halfLifeMillis);
+        }
+    }
+}
@@ -43,6 +43,18 @@ public final class RawCachedFlamdexReader extends CachedFlamdexReader implements
         super(memory, wrapped, readLockRef, indexName, shardName, freeCache);
     }
 
+    public RawCachedFlamdexReader(
+            final MemoryReservationContext memory,
+            final RawFlamdexReader wrapped,
+            final @Nullable Closeable readLockRef,
+            final String indexName,
+            final String shardName,
+            final ImhotepMemoryCache<MetricKey, IntValueLookup> freeCache,
+            final @Nullable MetricPrewarmer prewarmer
+    ) {
+        super(memory, wrapped, readLockRef, indexName, shardName, freeCache, prewarmer);
+    }
+
     @Override
     public RawStringTermIterator getStringTermIterator(final String field) {
         return (RawStringTermIterator)super.getStringTermIterator(field);
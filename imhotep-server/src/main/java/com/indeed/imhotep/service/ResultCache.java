@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.google.common.collect.ImmutableList;
+import com.indeed.imhotep.MemoryReserver;
+import com.indeed.imhotep.SessionProgram;
+import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
+import com.indeed.imhotep.api.ImhotepSession;
+import com.indeed.imhotep.protobuf.ImhotepRequest;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Results of session programs and small FTGS streams, keyed by the shards of the session with their versions and the
+ * normalized log of the operations that brought the session to its current state. Sessions that start from the same
+ * shards and go through the same operations get the same results, so a dashboard reopening the same query is answered
+ * without evaluating anything.
+ * <p>
+ * A program whose results are cached is not executed but deferred, and only replayed once something needs the state
+ * of the session, so a session that is answered entirely from the cache never builds its group lookups or loads its
+ * metrics. Sessions whose state cannot be described by a log, because they were forked from a checkpoint or were
+ * changed by a request outside of a program, are not cached from then on.
+ * <p>
+ * Results are evicted least recently used first, once they occupy more than the memory budget or the memory reserver
+ * runs out of memory.
+ */
+final class ResultCache implements Closeable {
+    private static final Logger log = Logger.getLogger(ResultCache.class);
+
+    // rough size of an entry besides its key and value
+    private static final long ENTRY_OVERHEAD = 128;
+
+    private final MemoryReserver memory;
+    private final long memoryBudget;
+    private final int maxFTGSBytes;
+
+    // in access order, so the least recently used results come first
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private long memoryUsed = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private boolean closed = false;
+
+    private final Map<String, SessionLog> sessionLogs = new HashMap<String, SessionLog>();
+
+    /**
+     * @param memory the memory reserver the cached results claim their memory from
+     * @param memoryBudget the least recently used results are evicted once the cache occupies more than this many
+     *                     bytes, 0 disables the cache
+     * @param maxFTGSBytes FTGS streams longer than this are not cached
+     */
+    ResultCache(MemoryReserver memory, long memoryBudget, int maxFTGSBytes) {
+        this.memory = memory;
+        this.memoryBudget = memoryBudget;
+        this.maxFTGSBytes = maxFTGSBytes;
+    }
+
+    /**
+     * the cache key of a query on a session, the query being a program or the request of an FTGS iterator
+     */
+    static final class Key {
+        private final List<ShardId> shards;
+        private final List<ImhotepRequest> opLog;
+        private final List<ImhotepRequest> query;
+        private final int hashCode;
+
+        private Key(List<ShardId> shards, List<ImhotepRequest> opLog, List<ImhotepRequest> query) {
+            this.shards = ImmutableList.copyOf(shards);
+            this.opLog = opLog;
+            this.query = ImmutableList.copyOf(query);
+            hashCode = 31 * (31 * this.shards.hashCode() + opLog.hashCode()) + this.query.hashCode();
+        }
+
+        long memoryUsed() {
+            long ret = 0;
+            for (final ImhotepRequest request : opLog) {
+                ret += request.getSerializedSize();
+            }
+            for (final ImhotepRequest request : query) {
+                ret += request.getSerializedSize();
+            }
+            return ret;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return hashCode == key.hashCode && shards.equals(key.shards) && opLog.equals(key.opLog) && query.equals(key.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static final class Entry {
+        final Object value;
+        final long memoryUsed;
+
+        Entry(Object value, long memoryUsed) {
+            this.value = value;
+            this.memoryUsed = memoryUsed;
+        }
+    }
+
+    /**
+     * what a session did since it was opened, as far as the cache is concerned
+     */
+    private static final class SessionLog {
+        // the state changing requests executed so far, null if the state of the session is unknown
+        ImmutableList<ImhotepRequest> opLog = null;
+        // programs answered from the cache that have not been executed on the session yet
+        final List<SessionProgram> deferred = new ArrayList<SessionProgram>();
+    }
+
+    private SessionLog getSessionLog(String sessionId) {
+        synchronized (sessionLogs) {
+            SessionLog ret = sessionLogs.get(sessionId);
+            if (ret == null) {
+                ret = new SessionLog();
+                sessionLogs.put(sessionId, ret);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * starts the log of a newly opened session, which has every document in group 1 and no stats
+     */
+    void openSession(String sessionId) {
+        final SessionLog sessionLog = new SessionLog();
+        sessionLog.opLog = ImmutableList.of();
+        synchronized (sessionLogs) {
+            sessionLogs.put(sessionId, sessionLog);
+        }
+    }
+
+    /**
+     * @return the key of the query on the session in its current state, or null if the state is unknown
+     */
+    Key getKey(String sessionId, List<ShardId> shards, List<ImhotepRequest> query) {
+        if (memoryBudget <= 0) {
+            return null;
+        }
+        final SessionLog sessionLog = getSessionLog(sessionId);
+        synchronized (sessionLog) {
+            return sessionLog.opLog != null ? new Key(shards, sessionLog.opLog, query) : null;
+        }
+    }
+
+    Key getFTGSKey(String sessionId, List<ShardId> shards, String[] intFields, String[] stringFields) {
+        final ImhotepRequest request = ImhotepRequest.newBuilder()
+                .setRequestType(ImhotepRequest.RequestType.GET_FTGS_ITERATOR)
+                .addAllIntFields(ImmutableList.copyOf(intFields))
+                .addAllStringFields(ImmutableList.copyOf(stringFields))
+                .build();
+        return getKey(sessionId, shards, ImmutableList.of(request));
+    }
+
+    /**
+     * @return the cached results of the program, or null
+     */
+    SessionProgram.Results getResults(Key key) {
+        return (SessionProgram.Results) get(key);
+    }
+
+    /**
+     * @return the cached FTGS stream, or null
+     */
+    byte[] getFTGS(Key key) {
+        return (byte[]) get(key);
+    }
+
+    private synchronized Object get(Key key) {
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.value;
+    }
+
+    void putResults(Key key, SessionProgram.Results results) {
+        put(key, results, results.memoryUsed());
+    }
+
+    private synchronized void put(Key key, Object value, long valueMemoryUsed) {
+        final long size = ENTRY_OVERHEAD + key.memoryUsed() + valueMemoryUsed;
+        if (closed || size > memoryBudget || entries.containsKey(key)) {
+            return;
+        }
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (memoryUsed + size > memoryBudget || !memory.claimMemory(size)) {
+            if (!iterator.hasNext()) {
+                return;
+            }
+            final Entry eldest = iterator.next();
+            iterator.remove();
+            memoryUsed -= eldest.memoryUsed;
+            memory.releaseMemory(eldest.memoryUsed);
+        }
+        entries.put(key, new Entry(value, size));
+        memoryUsed += size;
+    }
+
+    /**
+     * Returns a stream that writes through to out and keeps a copy of what was written, which is cached under the
+     * key by {@link CapturingOutputStream#cache} unless it grew longer than the FTGS size limit.
+     */
+    CapturingOutputStream capture(Key key, OutputStream out) {
+        return new CapturingOutputStream(key, out);
+    }
+
+    final class CapturingOutputStream extends FilterOutputStream {
+        private final Key key;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        private CapturingOutputStream(Key key, OutputStream out) {
+            super(out);
+            this.key = key;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (copy != null) {
+                copy.write(b);
+                checkSize();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (copy != null) {
+                copy.write(b, off, len);
+                checkSize();
+            }
+        }
+
+        private void checkSize() {
+            if (copy.size() > maxFTGSBytes) {
+                copy = null;
+            }
+        }
+
+        /**
+         * caches what was written, to be called once the whole stream has been written successfully
+         */
+        void cache() {
+            if (copy != null) {
+                final byte[] bytes = copy.toByteArray();
+                put(key, bytes, bytes.length);
+            }
+        }
+    }
+
+    /**
+     * records that the session executed the program or got its results from the cache
+     */
+    void logProgram(String sessionId, SessionProgram program) {
+        final SessionLog sessionLog = getSessionLog(sessionId);
+        synchronized (sessionLog) {
+            if (sessionLog.opLog != null) {
+                final List<ImhotepRequest> stateChanges = program.getStateChanges();
+                if (!stateChanges.isEmpty()) {
+                    sessionLog.opLog = ImmutableList.<ImhotepRequest>builder().addAll(sessionLog.opLog).addAll(stateChanges).build();
+                }
+            }
+        }
+    }
+
+    /**
+     * records that the results of the program came from the cache, so it has to be executed before anything else
+     * touches the session
+     */
+    void defer(String sessionId, SessionProgram program) {
+        final SessionLog sessionLog = getSessionLog(sessionId);
+        synchronized (sessionLog) {
+            sessionLog.deferred.add(program);
+        }
+        logProgram(sessionId, program);
+    }
+
+    /**
+     * Executes the deferred programs of the session, which has to be done before anything reads or changes its state.
+     *
+     * @param keepOpLog false if the caller is about to change the session in a way the log does not record, after
+     *                  which nothing the session does is cached anymore
+     */
+    void replayDeferred(String sessionId, ImhotepSession session, boolean keepOpLog) throws ImhotepOutOfMemoryException {
+        final SessionLog sessionLog = getSessionLog(sessionId);
+        synchronized (sessionLog) {
+            if (!keepOpLog) {
+                sessionLog.opLog = null;
+            }
+            while (!sessionLog.deferred.isEmpty()) {
+                final SessionProgram program = sessionLog.deferred.remove(0);
+                boolean success = false;
+                try {
+                    session.executeProgram(program);
+                    success = true;
+                } finally {
+                    if (!success) {
+                        // the state of the session no longer matches its log
+                        sessionLog.opLog = null;
+                        sessionLog.deferred.clear();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * stops caching the session, whose state no longer matches its log
+     */
+    void forgetOpLog(String sessionId) {
+        final SessionLog sessionLog = getSessionLog(sessionId);
+        synchronized (sessionLog) {
+            sessionLog.opLog = null;
+        }
+    }
+
+    void closeSession(String sessionId) {
+        synchronized (sessionLogs) {
+            sessionLogs.remove(sessionId);
+        }
+    }
+
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    synchronized long getMissCount() {
+        return missCount;
+    }
+
+    synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    synchronized long getMemoryUsed() {
+        return memoryUsed;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        entries.clear();
+        memory.releaseMemory(memoryUsed);
+        memoryUsed = 0;
+        log.debug("result cache closed after " + hitCount + " hits and " + missCount + " misses");
+    }
+}
@@ -44,6 +44,8 @@ public interface SessionManager<E> {
 
     int getNumStats(String sessionId);
 
+    String getDataset(String sessionId);
+
     Map<String, Long> getLastActionTimes();
 
 }
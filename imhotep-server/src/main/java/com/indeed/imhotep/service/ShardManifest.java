@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.util.core.io.Closeables2;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Cache of the per-shard information (doc count, fields and metrics) that the service cores need to
+ * advertise a shard, keyed by canonical shard directory. Shard directories are immutable once published,
+ * so an entry stays valid for as long as its directory exists. The manifest is persisted so that a
+ * restarted daemon can advertise its shards without opening every one of them, and entries that are
+ * missing are filled in parallel.
+ */
+final class ShardManifest {
+    private static final Logger log = Logger.getLogger(ShardManifest.class);
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final @Nullable File file;
+
+    private final Map<String, Entry> entries = Maps.newHashMap();
+
+    private boolean dirty = false;
+
+    ShardManifest(@Nullable final File file) {
+        this.file = file;
+        if (file != null && file.exists()) {
+            try {
+                read(file);
+            } catch (IOException e) {
+                log.warn("unable to read shard manifest " + file + ", all shards will be rescanned", e);
+                entries.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the entries for the given shard directories, opening the shards that have no entry yet on
+     * the executor. Shards that fail to open are logged and left out of the result.
+     */
+    synchronized Map<String, Entry> getEntries(final Collection<String> shardDirs,
+                                               final FlamdexReaderSource flamdexReaderFactory,
+                                               final ExecutorService executor) {
+        final Map<String, Entry> ret = Maps.newHashMap();
+        final List<String> missingDirs = Lists.newArrayList();
+        final List<Future<Entry>> futures = Lists.newArrayList();
+        for (final String shardDir : shardDirs) {
+            final Entry entry = entries.get(shardDir);
+            if (entry != null) {
+                ret.put(shardDir, entry);
+                continue;
+            }
+            missingDirs.add(shardDir);
+            futures.add(executor.submit(new Callable<Entry>() {
+                @Override
+                public Entry call() throws IOException {
+                    return readEntry(shardDir, flamdexReaderFactory);
+                }
+            }));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            final String shardDir = missingDirs.get(i);
+            try {
+                final Entry entry = futures.get(i).get();
+                entries.put(shardDir, entry);
+                ret.put(shardDir, entry);
+                dirty = true;
+            } catch (ExecutionException e) {
+                log.error("error reading shard metadata at " + shardDir, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        return ret;
+    }
+
+    private static Entry readEntry(final String shardDir, final FlamdexReaderSource flamdexReaderFactory) throws IOException {
+        final FlamdexReader reader = flamdexReaderFactory.openReader(shardDir);
+        try {
+            return new Entry(reader.getNumDocs(),
+                             Lists.newArrayList(reader.getIntFields()),
+                             Lists.newArrayList(reader.getStringFields()),
+                             Lists.newArrayList(reader.getAvailableMetrics()));
+        } finally {
+            Closeables2.closeQuietly(reader, log);
+        }
+    }
+
+    /**
+     * drops the entries of all shard directories that are not in the given set
+     */
+    synchronized void retainAll(final Set<String> shardDirs) {
+        if (entries.keySet().retainAll(shardDirs)) {
+            dirty = true;
+        }
+    }
+
+    synchronized void save() throws IOException {
+        if (file == null || !dirty) {
+            return;
+        }
+        final File tmp = new File(file.getParentFile(), ".tmp." + file.getName());
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(entries.size());
+            for (final Map.Entry<String, Entry> e : entries.entrySet()) {
+                out.writeUTF(e.getKey());
+                final Entry entry = e.getValue();
+                out.writeInt(entry.numDocs);
+                writeStrings(out, entry.intFields);
+                writeStrings(out, entry.stringFields);
+                writeStrings(out, entry.availableMetrics);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("unable to rename " + tmp + " to " + file);
+        }
+        dirty = false;
+    }
+
+    private void read(final File file) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            final int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("unsupported shard manifest version " + version);
+            }
+            final int numEntries = in.readInt();
+            for (int i = 0; i < numEntries; i++) {
+                final String shardDir = in.readUTF();
+                final int numDocs = in.readInt();
+                final List<String> intFields = readStrings(in);
+                final List<String> stringFields = readStrings(in);
+                final List<String> availableMetrics = readStrings(in);
+                entries.put(shardDir, new Entry(numDocs, intFields, stringFields, availableMetrics));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeStrings(final DataOutputStream out, final List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (final String s : strings) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static List<String> readStrings(final DataInputStream in) throws IOException {
+        final int size = in.readInt();
+        final List<String> ret = Lists.newArrayListWithCapacity(size);
+        for (int i = 0; i < size; i++) {
+            ret.add(in.readUTF());
+        }
+        return ret;
+    }
+
+    static final class Entry {
+        final int numDocs;
+        final List<String> intFields;
+        final List<String> stringFields;
+        final List<String> availableMetrics;
+
+        Entry(final int numDocs,
+              final List<String> intFields,
+              final List<String> stringFields,
+              final List<String> availableMetrics) {
+            this.numDocs = numDocs;
+            this.intFields = Collections.unmodifiableList(intFields);
+            this.stringFields = Collections.unmodifiableList(stringFields);
+            this.availableMetrics = Collections.unmodifiableList(availableMetrics);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex;
+
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.indeed.flamdex.writer.FlamdexDocument;
+import com.indeed.flamdex.writer.FlamdexDocumentBuilder;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestCompactMemoryFlamdex {
+    private static final String[] STRING_TERMS = {"", "a", "aa", "ab", "b", "été", "中文", "zzz", "a\u0000b"};
+
+    private static void randomDocument(Random rand, FlamdexDocumentBuilder builder) {
+        builder.clear();
+        // visit fields in a random order so the builder sees them in a different order than they sort in
+        final int numIntFields = rand.nextInt(6);
+        for (int i = 0; i < numIntFields; ++i) {
+            final String field = "if" + rand.nextInt(8);
+            builder.addIntField(field);
+            final int numTerms = rand.nextInt(4);
+            for (int j = 0; j < numTerms; ++j) {
+                switch (rand.nextInt(4)) {
+                    case 0:
+                        builder.addIntTerm(field, rand.nextBoolean() ? Long.MIN_VALUE : Long.MAX_VALUE);
+                        break;
+                    case 1:
+                        builder.addIntTerm(field, rand.nextLong());
+                        break;
+                    default:
+                        builder.addIntTerm(field, rand.nextInt(20) - 5);
+                }
+            }
+        }
+        final int numStringFields = rand.nextInt(6);
+        for (int i = 0; i < numStringFields; ++i) {
+            final String field = "sf" + rand.nextInt(8);
+            builder.addStringField(field);
+            final int numTerms = rand.nextInt(4);
+            for (int j = 0; j < numTerms; ++j) {
+                builder.addStringTerm(field, rand.nextBoolean() ? STRING_TERMS[rand.nextInt(STRING_TERMS.length)] : "t" + rand.nextInt(50));
+            }
+        }
+    }
+
+    private static byte[] write(MemoryFlamdex fdx) throws IOException {
+        final ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        fdx.write(out);
+        return out.toByteArray();
+    }
+
+    private static byte[] write(CompactMemoryFlamdex fdx) throws IOException {
+        final ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        fdx.write(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testSameFormatAsMemoryFlamdex() throws IOException {
+        final Random rand = new Random(0);
+        for (int iteration = 0; iteration < 20; ++iteration) {
+            final MemoryFlamdex expected = new MemoryFlamdex();
+            final CompactMemoryFlamdex fromDocuments = new CompactMemoryFlamdex();
+            final CompactMemoryFlamdex fromBuilder = new CompactMemoryFlamdex();
+            final FlamdexDocumentBuilder builder = new FlamdexDocumentBuilder();
+            final int numDocs = rand.nextInt(300);
+            for (int i = 0; i < numDocs; ++i) {
+                randomDocument(rand, builder);
+                final FlamdexDocument doc = builder.toDocument();
+                expected.addDocument(doc);
+                fromDocuments.addDocument(doc);
+                fromBuilder.addDocument(builder);
+            }
+            assertEquals(numDocs, fromBuilder.getNumDocs());
+            final byte[] expectedBytes = write(expected);
+            assertArrayEquals(expectedBytes, write(fromDocuments));
+            assertArrayEquals(expectedBytes, write(fromBuilder));
+        }
+    }
+
+    @Test
+    public void testAddAfterWrite() throws IOException {
+        final Random rand = new Random(1);
+        final MemoryFlamdex expected = new MemoryFlamdex();
+        final CompactMemoryFlamdex fdx = new CompactMemoryFlamdex();
+        final FlamdexDocumentBuilder builder = new FlamdexDocumentBuilder();
+        for (int round = 0; round < 5; ++round) {
+            for (int i = 0; i < 100; ++i) {
+                randomDocument(rand, builder);
+                expected.addDocument(builder.toDocument());
+                fdx.addDocument(builder);
+            }
+            final byte[] expectedBytes = write(expected);
+            assertArrayEquals(expectedBytes, write(fdx));
+            // writing again must not be affected by the sorting done by the first write
+            assertArrayEquals(expectedBytes, write(fdx));
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final Random rand = new Random(2);
+        final CompactMemoryFlamdex fdx = new CompactMemoryFlamdex();
+        final FlamdexDocumentBuilder builder = new FlamdexDocumentBuilder();
+        for (int i = 0; i < 200; ++i) {
+            randomDocument(rand, builder);
+            fdx.addDocument(builder);
+        }
+        final byte[] bytes = write(fdx);
+        final MemoryFlamdex read = new MemoryFlamdex();
+        read.readFields(ByteStreams.newDataInput(bytes));
+        assertEquals(200, read.getNumDocs());
+        assertArrayEquals(bytes, write(read));
+    }
+}
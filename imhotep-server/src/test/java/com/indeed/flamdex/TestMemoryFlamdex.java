@@ -18,6 +18,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.ByteArrayDataOutput;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
 import com.indeed.util.core.shell.PosixFileOperations;
 import com.indeed.flamdex.api.DocIdStream;
 import com.indeed.flamdex.api.FlamdexReader;
@@ -380,6 +381,22 @@ public class TestMemoryFlamdex {
         writer.close();
         SimpleFlamdexReader reader = SimpleFlamdexReader.open(tmpFlamdexDir.getPath());
         assertTrue(FlamdexCompare.unorderedEquals(reader, original));
+
+        File sequentialDir = new File(tmpDir, "sequential");
+        SimpleFlamdexWriter sequentialWriter = new SimpleFlamdexWriter(sequentialDir.getPath(), numDocs, true);
+        SimpleFlamdexWriter.merge(flamdexes, sequentialWriter);
+        sequentialWriter.close();
+        File parallelDir = new File(tmpDir, "parallel");
+        SimpleFlamdexWriter parallelWriter = new SimpleFlamdexWriter(parallelDir.getPath(), numDocs, true);
+        SimpleFlamdexWriter.merge(flamdexes, parallelWriter, 4);
+        parallelWriter.close();
+        SimpleFlamdexReader parallelReader = SimpleFlamdexReader.open(parallelDir.getPath());
+        assertTrue(FlamdexCompare.unorderedEquals(parallelReader, original));
+        for (File file : sequentialDir.listFiles()) {
+            if (file.isFile() && file.getName().startsWith("fld-")) {
+                assertArrayEquals(file.getName(), Files.toByteArray(file), Files.toByteArray(new File(parallelDir, file.getName())));
+            }
+        }
     }
 
     public class MockDoc {
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.datastruct;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class TestCompressedBitSet extends TestCase {
+    private static final int SIZE = 5 * 65536 + 123;
+
+    /**
+     * a random set whose chunks are empty, sparse, dense, made of runs or full, so that every kind of container and
+     * every pair of them shows up
+     */
+    private static FastBitSet randomBitSet(Random rand) {
+        final FastBitSet bitSet = new FastBitSet(SIZE);
+        for (int base = 0; base < SIZE; base += 65536) {
+            final int end = Math.min(SIZE, base + 65536);
+            switch (rand.nextInt(5)) {
+                case 0:
+                    break;
+                case 1:
+                    for (int i = rand.nextInt(3000); i >= 0; --i) {
+                        bitSet.set(base + rand.nextInt(end - base));
+                    }
+                    break;
+                case 2:
+                    for (int doc = base; doc < end; ++doc) {
+                        if (rand.nextInt(3) == 0) {
+                            bitSet.set(doc);
+                        }
+                    }
+                    break;
+                case 3:
+                    for (int i = rand.nextInt(20); i >= 0; --i) {
+                        final int start = base + rand.nextInt(end - base);
+                        bitSet.setRange(start, Math.min(end, start + rand.nextInt(5000)));
+                    }
+                    break;
+                default:
+                    bitSet.setRange(base, end);
+            }
+        }
+        return bitSet;
+    }
+
+    private static CompressedBitSet compress(FastBitSet bitSet) {
+        final CompressedBitSet.Builder builder = new CompressedBitSet.Builder(bitSet.size());
+        final FastBitSet.IntIterator iterator = bitSet.iterator();
+        while (iterator.next() && iterator.getValue() < bitSet.size()) {
+            builder.add(iterator.getValue());
+            // adding the same id again is allowed
+            builder.add(iterator.getValue());
+        }
+        return builder.build();
+    }
+
+    private static void assertSame(FastBitSet expected, CompressedBitSet actual) {
+        assertEquals(expected.cardinality(), actual.cardinality());
+        for (int doc = 0; doc < SIZE; ++doc) {
+            assertEquals(expected.get(doc), actual.get(doc));
+        }
+        final FastBitSet fromIterator = new FastBitSet(SIZE);
+        final CompressedBitSet.IntIterator iterator = actual.iterator();
+        while (iterator.next()) {
+            fromIterator.set(iterator.getValue());
+        }
+        assertEquals(expected.cardinality(), fromIterator.cardinality());
+        fromIterator.xor(expected);
+        assertEquals(0, fromIterator.cardinality());
+    }
+
+    private static FastBitSet copy(FastBitSet bitSet) {
+        final FastBitSet copy = new FastBitSet(bitSet.size());
+        copy.or(bitSet);
+        return copy;
+    }
+
+    public void testOperations() {
+        final Random rand = new Random(0);
+        for (int iteration = 0; iteration < 10; ++iteration) {
+            final FastBitSet a = randomBitSet(rand);
+            final FastBitSet b = randomBitSet(rand);
+            final CompressedBitSet ca = compress(a);
+            final CompressedBitSet cb = compress(b);
+            assertSame(a, ca);
+
+            final FastBitSet and = copy(a);
+            and.and(b);
+            assertSame(and, ca.and(cb));
+
+            final FastBitSet or = copy(a);
+            or.or(b);
+            assertSame(or, ca.or(cb));
+
+            final FastBitSet not = copy(a);
+            not.invertAll();
+            assertSame(not, ca.not());
+            assertSame(a, ca.not().not());
+
+            final FastBitSet andInto = copy(b);
+            ca.andInto(andInto);
+            assertEquals(and.cardinality(), andInto.cardinality());
+            andInto.xor(and);
+            assertEquals(0, andInto.cardinality());
+
+            final FastBitSet orInto = copy(b);
+            ca.orInto(orInto);
+            assertEquals(or.cardinality(), orInto.cardinality());
+
+            final FastBitSet andNotInto = copy(b);
+            ca.andNotInto(andNotInto);
+            final FastBitSet expectedAndNot = copy(not);
+            expectedAndNot.and(b);
+            assertEquals(expectedAndNot.cardinality(), andNotInto.cardinality());
+            andNotInto.xor(expectedAndNot);
+            assertEquals(0, andNotInto.cardinality());
+            assertSame(expectedAndNot, cb.andNot(ca));
+            final FastBitSet notB = copy(b);
+            notB.invertAll();
+            notB.and(a);
+            assertSame(notB, ca.andNot(cb));
+        }
+    }
+
+    public void testGalloping() {
+        // a handful of ids against a chunk that is nearly full but too irregular for runs
+        final FastBitSet small = new FastBitSet(SIZE);
+        final FastBitSet large = new FastBitSet(SIZE);
+        for (int doc = 0; doc < 4000; ++doc) {
+            large.set(3 * doc);
+        }
+        for (int doc = 0; doc < 12000; doc += 997) {
+            small.set(doc);
+        }
+        small.set(11999);
+        final FastBitSet expected = copy(small);
+        expected.and(large);
+        assertSame(expected, compress(small).and(compress(large)));
+        assertSame(expected, compress(large).and(compress(small)));
+    }
+
+    public void testMemoryUsage() {
+        final CompressedBitSet.Builder builder = new CompressedBitSet.Builder(SIZE);
+        for (int doc = 0; doc < SIZE; doc += 1000) {
+            builder.add(doc);
+        }
+        final CompressedBitSet sparse = builder.build();
+        assertTrue(sparse.memoryUsage() < FastBitSet.calculateMemoryUsage(SIZE) / 10);
+        // the complement is a handful of runs
+        assertTrue(sparse.not().memoryUsage() < FastBitSet.calculateMemoryUsage(SIZE) / 10);
+        assertTrue(CompressedBitSet.empty(SIZE).isEmpty());
+        assertEquals(SIZE, CompressedBitSet.empty(SIZE).not().cardinality());
+    }
+
+    public void testOutOfOrder() {
+        final CompressedBitSet.Builder builder = new CompressedBitSet.Builder(SIZE);
+        builder.add(5);
+        try {
+            builder.add(4);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
+import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.flamdex.datastruct.CompressedBitSet;
+import com.indeed.flamdex.datastruct.FastBitSet;
+import com.indeed.flamdex.datastruct.FastBitSetPooler;
+import com.indeed.flamdex.datastruct.MockFastBitSetPooler;
+import com.indeed.flamdex.query.BooleanOp;
+import com.indeed.flamdex.query.Query;
+import com.indeed.flamdex.search.FlamdexSearcher;
+import com.indeed.flamdex.simple.SimpleFlamdexReader;
+import com.indeed.flamdex.simple.SimpleFlamdexWriter;
+import com.indeed.flamdex.writer.IntFieldWriter;
+import com.indeed.util.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestZoneMap {
+    private static final int NUM_DOCS = 3 * ZoneMap.BLOCK_SIZE + 100;
+
+    private static long[] writeIndex(String dir, boolean writeMetricCaches) throws IOException {
+        final Random rand = new Random(0);
+        final long[] values = new long[NUM_DOCS];
+        final SimpleFlamdexWriter w = new SimpleFlamdexWriter(dir, NUM_DOCS, true).setWriteMetricCaches(writeMetricCaches);
+        final IntFieldWriter ifw = w.getIntFieldWriter("if1");
+        // values increase with the doc id but blocks overlap a little
+        int doc = 0;
+        for (long term = -50; doc < NUM_DOCS; ++term) {
+            ifw.nextTerm(term);
+            final int n = rand.nextInt(200) + 1;
+            for (int i = 0; i < n && doc < NUM_DOCS; ++i) {
+                values[doc] = term;
+                ifw.nextDoc(doc++);
+            }
+        }
+        ifw.close();
+        w.close();
+        return values;
+    }
+
+    private static void assertZoneMap(long[] values, ZoneMap zoneMap) {
+        assertEquals(4, zoneMap.getNumBlocks());
+        for (int block = 0; block < zoneMap.getNumBlocks(); ++block) {
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int doc = block * ZoneMap.BLOCK_SIZE; doc < Math.min(NUM_DOCS, (block + 1) * ZoneMap.BLOCK_SIZE); ++doc) {
+                min = Math.min(min, values[doc]);
+                max = Math.max(max, values[doc]);
+            }
+            assertEquals(min, zoneMap.getMin(block));
+            assertEquals(max, zoneMap.getMax(block));
+        }
+    }
+
+    @Test
+    public void testWrittenWithIndex() throws IOException {
+        final String dir = Files.getTempDirectory("flamdex-test", "zonemap");
+        try {
+            final long[] values = writeIndex(dir, true);
+            assertZoneMap(values, ZoneMap.read(new File(dir, ZoneMap.getFileName("if1")), NUM_DOCS));
+            try {
+                ZoneMap.read(new File(dir, ZoneMap.getFileName("if1")), NUM_DOCS + 1);
+                fail("a zone map for a different number of documents must not be used");
+            } catch (FileNotFoundException e) {
+                // expected
+            }
+        } finally {
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testKeptByReader() throws IOException {
+        final String dir = Files.getTempDirectory("flamdex-test", "zonemap");
+        try {
+            final long[] values = writeIndex(dir, false);
+            final File file = new File(dir, ZoneMap.getFileName("if1"));
+            assertFalse(file.exists());
+
+            final SimpleFlamdexReader r = SimpleFlamdexReader.open(dir);
+            final IntValueLookup lookup = FieldCacher.LONG.newFieldCache("if1", r);
+            final ZoneMap zoneMap = ZoneMap.get(r, "if1", lookup);
+            assertNotNull(zoneMap);
+            assertZoneMap(values, zoneMap);
+            // built in memory without writing to the shard directory, and reused by later requests
+            assertFalse(file.exists());
+            assertSame(zoneMap, ZoneMap.get(r, "if1", lookup));
+            lookup.close();
+            r.close();
+        } finally {
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testReadOrBuild() throws IOException {
+        final String dir = Files.getTempDirectory("flamdex-test", "zonemap");
+        try {
+            final long[] values = writeIndex(dir, true);
+            final File file = new File(dir, ZoneMap.getFileName("if1"));
+            final SimpleFlamdexReader r = SimpleFlamdexReader.open(dir);
+            final IntValueLookup lookup = FieldCacher.LONG.newFieldCache("if1", r);
+            assertZoneMap(values, ZoneMap.readOrBuild(dir, "if1", lookup, NUM_DOCS));
+            assertTrue(file.delete());
+            assertZoneMap(values, ZoneMap.readOrBuild(dir, "if1", lookup, NUM_DOCS));
+            assertZoneMap(values, ZoneMap.readOrBuild(null, "if1", lookup, NUM_DOCS));
+            assertFalse(file.exists());
+            lookup.close();
+            r.close();
+        } finally {
+            Files.delete(dir);
+        }
+    }
+
+    private static void assertMatches(long[] values, long start, long end, boolean isMaxInclusive, boolean negate, FastBitSet actual) {
+        for (int doc = 0; doc < NUM_DOCS; ++doc) {
+            final boolean inRange = values[doc] >= start && (isMaxInclusive ? values[doc] <= end : values[doc] < end);
+            assertEquals("doc " + doc, inRange != negate, actual.get(doc));
+        }
+    }
+
+    @Test
+    public void testRangeQueries() throws IOException, FlamdexOutOfMemoryException {
+        final String dir = Files.getTempDirectory("flamdex-test", "zonemap");
+        try {
+            final long[] values = writeIndex(dir, false);
+            final SimpleFlamdexReader r = SimpleFlamdexReader.open(dir);
+            final FlamdexSearcher searcher = new FlamdexSearcher(r);
+            final FastBitSetPooler pooler = new MockFastBitSetPooler();
+            final CompressedBitSet.Builder builder = new CompressedBitSet.Builder(NUM_DOCS);
+            for (int doc = 0; doc < NUM_DOCS; ++doc) {
+                builder.add(doc);
+            }
+            final CompressedBitSet allDocs = builder.build();
+            // ranges inside of one block, across blocks, covering everything and covering nothing
+            final long[][] ranges = {{-40, -30}, {-20, 10}, {0, 200}, {-100, 1000}, {500, 600}, {3, 3}};
+            for (final long[] range : ranges) {
+                for (final boolean isMaxInclusive : new boolean[] {false, true}) {
+                    final Query query = Query.newRangeQuery("if1", range[0], range[1], isMaxInclusive);
+                    assertMatches(values, range[0], range[1], isMaxInclusive, false, searcher.search(query));
+
+                    final Query everything = Query.newRangeQuery("if1", -100, 1000, true);
+                    final Query and = Query.newBooleanQuery(BooleanOp.AND, Arrays.asList(everything, query));
+                    assertMatches(values, range[0], range[1], isMaxInclusive, false, searcher.search(and));
+
+                    final Query not = Query.newBooleanQuery(BooleanOp.NOT, Collections.singletonList(query));
+                    assertMatches(values, range[0], range[1], isMaxInclusive, true, searcher.search(not));
+
+                    final FastBitSet filtered = new FastBitSet(NUM_DOCS);
+                    searcher.search(query, allDocs, filtered, pooler);
+                    assertMatches(values, range[0], range[1], isMaxInclusive, false, filtered);
+                }
+            }
+            // the first search built the zone map, which the reader keeps in memory only
+            assertFalse(new File(dir, ZoneMap.getFileName("if1")).exists());
+            r.close();
+        } finally {
+            Files.delete(dir);
+        }
+    }
+}
@@ -15,17 +15,21 @@
 
 import com.google.common.collect.Sets;
 import com.indeed.flamdex.MakeAFlamdex;
+import com.indeed.flamdex.MemoryFlamdex;
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
 import com.indeed.flamdex.datastruct.MockFastBitSetPooler;
 import com.indeed.flamdex.query.BooleanOp;
+import com.indeed.flamdex.query.Query;
 import com.indeed.flamdex.query.Term;
 import com.indeed.flamdex.reader.MockFlamdexReader;
+import com.indeed.flamdex.writer.FlamdexDocument;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -505,4 +509,155 @@ public class TestQueryEvaluator {
         evaluator.and(r, bitSet, pooler);
         assertEquals(0, bitSet.cardinality());
     }
+
+    private static class CountingFastBitSetPooler implements FastBitSetPooler {
+        private long used = 0;
+
+        @Override
+        public FastBitSet create(int size) throws FlamdexOutOfMemoryException {
+            used += FastBitSet.calculateMemoryUsage(size);
+            return new FastBitSet(size);
+        }
+
+        @Override
+        public void claim(long bytes) throws FlamdexOutOfMemoryException {
+            used += bytes;
+        }
+
+        @Override
+        public void release(long bytes) {
+            used -= bytes;
+        }
+    }
+
+    private static void assertMatches(FlamdexReader r, QueryEvaluator evaluator, List<Integer> expected) throws FlamdexOutOfMemoryException {
+        final CountingFastBitSetPooler pooler = new CountingFastBitSetPooler();
+        final FastBitSet expectedBitSet = new FastBitSet(r.getNumDocs());
+        for (final int doc : expected) {
+            expectedBitSet.set(doc);
+        }
+
+        final FastBitSet bitSet = new FastBitSet(r.getNumDocs());
+        evaluator.or(r, bitSet, pooler);
+        assertEquals(expected.size(), bitSet.cardinality());
+        bitSet.xor(expectedBitSet);
+        assertEquals(0, bitSet.cardinality());
+
+        bitSet.setAll();
+        evaluator.and(r, bitSet, pooler);
+        assertEquals(expected.size(), bitSet.cardinality());
+        bitSet.xor(expectedBitSet);
+        assertEquals(0, bitSet.cardinality());
+
+        evaluator.not(r, bitSet, pooler);
+        assertEquals(r.getNumDocs() - expected.size(), bitSet.cardinality());
+        bitSet.and(expectedBitSet);
+        assertEquals(0, bitSet.cardinality());
+
+        assertEquals(0, pooler.used);
+    }
+
+    @Test
+    public void testCompressedPostings() throws FlamdexOutOfMemoryException {
+        // large enough for selective term queries to be evaluated as compressed bitsets
+        final int numDocs = 200000;
+        final MemoryFlamdex r = new MemoryFlamdex();
+        for (int doc = 0; doc < numDocs; ++doc) {
+            final FlamdexDocument document = new FlamdexDocument();
+            document.setIntField("sparse", doc % 1000);
+            document.setIntField("dense", doc % 3);
+            document.setStringField("sf", Arrays.asList("s" + (doc % 500)));
+            r.addDocument(document);
+        }
+
+        // sparse:7 AND sf IN (s7, s8) AND dense:1
+        final QueryEvaluator and = new BooleanQueryEvaluator(BooleanOp.AND, Arrays.asList(
+                new TermQueryEvaluator(new Term("sparse", true, 7, null)),
+                new BooleanQueryEvaluator(BooleanOp.OR, Arrays.asList(new StringTermSetQueryEvaluator("sf", new String[] { "s7", "s8" }))),
+                new TermQueryEvaluator(new Term("dense", true, 1, null))
+        ));
+        // (sparse IN (3, 4) AND sf:s3) OR sparse:999
+        final QueryEvaluator or = new BooleanQueryEvaluator(BooleanOp.OR, Arrays.asList(
+                new BooleanQueryEvaluator(BooleanOp.AND, Arrays.asList(
+                        new IntTermSetQueryEvaluator("sparse", new long[] { 3, 4 }),
+                        new TermQueryEvaluator(new Term("sf", false, 0, "s3"))
+                )),
+                new TermQueryEvaluator(new Term("sparse", true, 999, null))
+        ));
+        // sparse:12 AND NOT sf:s12, which matches nothing
+        final QueryEvaluator andNot = new BooleanQueryEvaluator(BooleanOp.AND, Arrays.asList(
+                new TermQueryEvaluator(new Term("sparse", true, 12, null)),
+                new BooleanQueryEvaluator(BooleanOp.NOT, Arrays.asList(new TermQueryEvaluator(new Term("sf", false, 0, "s12"))))
+        ));
+        final List<Integer> andExpected = new ArrayList<Integer>();
+        final List<Integer> orExpected = new ArrayList<Integer>();
+        for (int doc = 0; doc < numDocs; ++doc) {
+            if (doc % 1000 == 7 && doc % 3 == 1) {
+                andExpected.add(doc);
+            }
+            if ((doc % 1000 == 3 && doc % 500 == 3) || doc % 1000 == 999) {
+                orExpected.add(doc);
+            }
+        }
+        assertMatches(r, and, andExpected);
+        assertMatches(r, or, orExpected);
+        assertMatches(r, andNot, Collections.<Integer>emptyList());
+    }
+
+    @Test
+    public void testQueryPlanner() throws FlamdexOutOfMemoryException {
+        final int numDocs = 200000;
+        final MemoryFlamdex r = new MemoryFlamdex();
+        for (int doc = 0; doc < numDocs; ++doc) {
+            final FlamdexDocument document = new FlamdexDocument();
+            document.setIntField("sparse", doc % 1000);
+            document.setIntField("dense", doc % 3);
+            document.setIntField("metric", doc % 100);
+            document.setStringField("sf", Arrays.asList("s" + (doc % 500)));
+            r.addDocument(document);
+        }
+
+        // written from the least selective operand to the most: metric:[10, 60) AND NOT dense:2 AND sf:[s1, s3) AND sparse:1XX
+        final QueryEvaluator and = new BooleanQueryEvaluator(BooleanOp.AND, Arrays.asList(
+                new IntRangeQueryEvaluator(new Term("metric", true, 10, null), new Term("metric", true, 60, null), false),
+                new BooleanQueryEvaluator(BooleanOp.NOT, Arrays.asList(new TermQueryEvaluator(new Term("dense", true, 2, null)))),
+                new StringRangeQueryEvaluator(new Term("sf", false, 0, "s1"), new Term("sf", false, 0, "s3"), false),
+                new IntTermSetQueryEvaluator("sparse", new long[] { 123, 145, 150, 999 })
+        ));
+        // sparse:7 AND NOT (sparse:7 OR dense:0) matches nothing, so the dense operand is never expanded
+        final QueryEvaluator empty = new BooleanQueryEvaluator(BooleanOp.AND, Arrays.asList(
+                new BooleanQueryEvaluator(BooleanOp.NOT, Arrays.asList(new BooleanQueryEvaluator(BooleanOp.OR, Arrays.asList(
+                        new TermQueryEvaluator(new Term("sparse", true, 7, null)),
+                        new TermQueryEvaluator(new Term("dense", true, 0, null))
+                )))),
+                new TermQueryEvaluator(new Term("sparse", true, 7, null))
+        ));
+        final List<Integer> andExpected = new ArrayList<Integer>();
+        for (int doc = 0; doc < numDocs; ++doc) {
+            final int sparse = doc % 1000;
+            final int metric = doc % 100;
+            final String sf = "s" + (doc % 500);
+            if ((sparse == 123 || sparse == 145 || sparse == 150 || sparse == 999)
+                    && metric >= 10 && metric < 60 && doc % 3 != 2 && sf.compareTo("s1") >= 0 && sf.compareTo("s3") < 0) {
+                andExpected.add(doc);
+            }
+        }
+        assertFalse(andExpected.isEmpty());
+        assertMatches(r, and, andExpected);
+        assertMatches(r, empty, Collections.<Integer>emptyList());
+
+        assertTrue(and.estimateDocCount(r) <= 4 * numDocs / 1000);
+        assertEquals(numDocs / 2, new IntRangeQueryEvaluator(new Term("metric", true, 10, null), new Term("metric", true, 60, null), false).estimateDocCount(r));
+
+        // NOTs are pushed down by the searcher: NOT NOT sparse:7, and NOT (sparse:7 OR dense:0) as NOT sparse:7 AND NOT dense:0
+        final Query sparse = Query.newTermQuery(new Term("sparse", true, 7, null));
+        final Query dense = Query.newTermQuery(new Term("dense", true, 0, null));
+        final FlamdexSearcher searcher = new FlamdexSearcher(r);
+        assertEquals(numDocs / 1000, searcher.search(Query.newBooleanQuery(BooleanOp.NOT, Arrays.asList(
+                Query.newBooleanQuery(BooleanOp.NOT, Arrays.asList(sparse))))).cardinality());
+        final FastBitSet neither = searcher.search(Query.newBooleanQuery(BooleanOp.NOT, Arrays.asList(sparse, dense)));
+        for (int doc = 0; doc < numDocs; ++doc) {
+            assertEquals(doc % 1000 != 7 && doc % 3 != 0, neither.get(doc));
+        }
+    }
 }
@@ -23,11 +23,14 @@ import com.indeed.flamdex.api.IntTermIterator;
 import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.flamdex.api.RawStringTermDocIterator;
 import com.indeed.flamdex.api.StringTermIterator;
+import com.indeed.flamdex.fieldcache.FieldCacher;
+import com.indeed.flamdex.reader.FlamdexMetadata;
 import com.indeed.flamdex.writer.IntFieldWriter;
 import com.indeed.flamdex.writer.StringFieldWriter;
 import junit.framework.TestCase;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
@@ -82,17 +85,51 @@ public class SimpleFlamdexTest extends TestCase {
         }
     }
 
+    @Test
+    public void testGetPrecomputedMetric() throws IOException, FlamdexOutOfMemoryException {
+        final String dir = Files.getTempDirectory("flamdex-test", "foo");
+        try {
+            internalTestGetMetric(dir, true);
+
+            final FlamdexMetadata metadata = FlamdexMetadata.readMetadata(dir);
+            final FieldCacher cacher = FieldCacher.valueOf(metadata.getMetricCaches().get("if1"));
+            assertTrue(new File(dir, cacher.getMMapFileName("if1")).exists());
+
+            // rewriting the field must drop its now stale cache
+            final SimpleFlamdexWriter w = new SimpleFlamdexWriter(dir, 10L, false);
+            final IntFieldWriter ifw = w.getIntFieldWriter("if1", true);
+            ifw.nextTerm(1);
+            ifw.nextDoc(3);
+            ifw.close();
+            w.close();
+            assertFalse(new File(dir, cacher.getMMapFileName("if1")).exists());
+            assertNull(FlamdexMetadata.readMetadata(dir).getMetricCaches());
+            final SimpleFlamdexReader r = SimpleFlamdexReader.open(dir);
+            assertEquals(1, r.getMetric("if1").getMax());
+            r.close();
+        } finally {
+            Files.delete(dir);
+        }
+    }
+
     private void internalTestGetMetric(String dir) throws IOException, FlamdexOutOfMemoryException {
-        getMetricCase(dir, 2);
-        getMetricCase(dir, 256);
-        getMetricCase(dir, 65536);
-        getMetricCase(dir, Integer.MAX_VALUE);
+        internalTestGetMetric(dir, false);
     }
 
-    private void getMetricCase(String dir, int maxTermVal) throws IOException, FlamdexOutOfMemoryException {
+    private void internalTestGetMetric(String dir, boolean writeMetricCaches) throws IOException, FlamdexOutOfMemoryException {
+        getMetricCase(dir, 2, writeMetricCaches);
+        getMetricCase(dir, 256, writeMetricCaches);
+        getMetricCase(dir, 65536, writeMetricCaches);
+        getMetricCase(dir, Integer.MAX_VALUE, writeMetricCaches);
+    }
+
+    private void getMetricCase(String dir, int maxTermVal, boolean writeMetricCaches) throws IOException, FlamdexOutOfMemoryException {
         for (int i = 0; i < 10; ++i) {
-            long[] cache = writeGetMetricIndex(dir, maxTermVal);
+            long[] cache = writeGetMetricIndex(dir, maxTermVal, writeMetricCaches);
             SimpleFlamdexReader r = SimpleFlamdexReader.open(dir);
+            if (writeMetricCaches) {
+                assertEquals(0, r.memoryRequired("if1"));
+            }
             // do it multiple times because these methods update internal state, make sure nothing unexpectedly weird happens
             for (int j = 0; j < 3; ++j) {
                 long memReq = r.memoryRequired("if1");
@@ -107,8 +144,8 @@ public class SimpleFlamdexTest extends TestCase {
         }
     }
 
-    private long[] writeGetMetricIndex(String dir, int maxTermVal) throws IOException {
-        SimpleFlamdexWriter w = new SimpleFlamdexWriter(dir, 10L, true);
+    private long[] writeGetMetricIndex(String dir, int maxTermVal, boolean writeMetricCaches) throws IOException {
+        SimpleFlamdexWriter w = new SimpleFlamdexWriter(dir, 10L, true).setWriteMetricCaches(writeMetricCaches);
         IntFieldWriter ifw = w.getIntFieldWriter("if1");
         List<Integer> docs = Lists.newArrayList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
         long[] cache = new long[10];
@@ -21,6 +21,7 @@ import com.indeed.util.io.Files;
 import com.indeed.flamdex.api.DocIdStream;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntTermIterator;
+import com.indeed.flamdex.reader.FlamdexMetadata;
 import com.indeed.flamdex.utils.FlamdexReinverter;
 import com.indeed.flamdex.writer.FlamdexDocWriter;
 import com.indeed.flamdex.writer.FlamdexDocument;
@@ -46,9 +47,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author jsgroth
@@ -109,26 +116,7 @@ public class TestSimpleFlamdexDocWriter {
         final int numDocs = rand.nextInt(20000) + 20000;
         final List<FlamdexDocument> expected = Lists.newArrayList();
         for (int i = 0; i < numDocs; ++i) {
-            final FlamdexDocument doc = new FlamdexDocument();
-            final int nif = rand.nextInt(5) + 5;
-            for (int j = 0; j < nif; ++j) {
-                final int nt = rand.nextInt(5) + 5;
-                for (int k = 0; k < nt; ++k) {
-                    doc.addIntTerm("if" + j, rand.nextInt() & Integer.MAX_VALUE);
-                }
-            }
-            final int nsf = rand.nextInt(5) + 5;
-            for (int j = 0; j < nsf; ++j) {
-                final int nt = rand.nextInt(3) + 1;
-                for (int k = 0; k < nt; ++k) {
-                    final int nc = rand.nextInt(20) + 1;
-                    final StringBuilder sb = new StringBuilder(nc);
-                    for (int l = 0; l < nc; ++l) {
-                        sb.append((char)(rand.nextInt('z' - 'a') + 'a'));
-                    }
-                    doc.addStringTerm("sf" + j, sb.toString());
-                }
-            }
+            final FlamdexDocument doc = randomDocument(rand);
             w.addDocument(doc);
             expected.add(doc);
         }
@@ -152,6 +140,163 @@ public class TestSimpleFlamdexDocWriter {
         }
     }
 
+    private static FlamdexDocument randomDocument(Random rand) {
+        final FlamdexDocument doc = new FlamdexDocument();
+        final int nif = rand.nextInt(5) + 5;
+        for (int j = 0; j < nif; ++j) {
+            final int nt = rand.nextInt(5) + 5;
+            for (int k = 0; k < nt; ++k) {
+                doc.addIntTerm("if" + j, rand.nextInt() & Integer.MAX_VALUE);
+            }
+        }
+        final int nsf = rand.nextInt(5) + 5;
+        for (int j = 0; j < nsf; ++j) {
+            final int nt = rand.nextInt(3) + 1;
+            for (int k = 0; k < nt; ++k) {
+                final int nc = rand.nextInt(20) + 1;
+                final StringBuilder sb = new StringBuilder(nc);
+                for (int l = 0; l < nc; ++l) {
+                    sb.append((char)(rand.nextInt('z' - 'a') + 'a'));
+                }
+                doc.addStringTerm("sf" + j, sb.toString());
+            }
+        }
+        return doc;
+    }
+
+    @Test
+    public void testConcurrentMatchesSequential() throws IOException {
+        final File sequentialDir = new File(tempDir, "sequential");
+        final File concurrentDir = new File(tempDir, "concurrent");
+        final FlamdexDocWriter sequential = new SimpleFlamdexDocWriter(sequentialDir.getPath(), new SimpleFlamdexDocWriter.Config().setDocBufferSize(100).setMergeFactor(4));
+        final FlamdexDocWriter concurrent = new SimpleFlamdexDocWriter(concurrentDir.getPath(), new SimpleFlamdexDocWriter.Config().setDocBufferSize(100).setMergeFactor(4).setNumThreads(4));
+        final Random rand = new Random(0);
+        for (int i = 0; i < 5000; ++i) {
+            final FlamdexDocument doc = randomDocument(rand);
+            sequential.addDocument(doc);
+            concurrent.addDocument(doc);
+        }
+        sequential.close();
+        concurrent.close();
+
+        final File[] files = sequentialDir.listFiles();
+        assertEquals(files.length, concurrentDir.listFiles().length);
+        for (final File file : files) {
+            if (file.isFile()) {
+                assertTrue(file.getName(), Arrays.equals(com.google.common.io.Files.toByteArray(file), com.google.common.io.Files.toByteArray(new File(concurrentDir, file.getName()))));
+            }
+        }
+    }
+
+    @Test
+    public void testMultipleProducers() throws Exception {
+        final FlamdexDocWriter w = new SimpleFlamdexDocWriter(tempDir, new SimpleFlamdexDocWriter.Config().setDocBufferSize(50).setMergeFactor(3).setNumThreads(4));
+        final int numThreads = 4;
+        final int docsPerThread = 2000;
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        final List<Future<Void>> futures = Lists.newArrayList();
+        for (int t = 0; t < numThreads; ++t) {
+            final int thread = t;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    final Random rand = new Random(thread);
+                    for (int i = 0; i < docsPerThread; ++i) {
+                        final FlamdexDocument doc = randomDocument(rand);
+                        doc.setIntField("thread", thread);
+                        doc.setIntField("seq", i);
+                        w.addDocument(doc);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (final Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        w.close();
+
+        final SimpleFlamdexReader r = SimpleFlamdexReader.open(tempDir);
+        final List<FlamdexDocument> actual = FlamdexReinverter.reinvertInMemory(r);
+        r.close();
+
+        assertEquals(numThreads * docsPerThread, actual.size());
+        // documents added by one thread keep their relative order
+        final int[] nextSeq = new int[numThreads];
+        for (final FlamdexDocument doc : actual) {
+            final int thread = (int) doc.getIntFields().get("thread").getLong(0);
+            assertEquals(nextSeq[thread]++, doc.getIntFields().get("seq").getLong(0));
+        }
+        for (int t = 0; t < numThreads; ++t) {
+            assertEquals(docsPerThread, nextSeq[t]);
+        }
+    }
+
+    @Test
+    public void testSortKey() throws IOException {
+        final List<String> sortKey = Arrays.asList("time/10", "dim");
+        final FlamdexDocWriter w = new SimpleFlamdexDocWriter(tempDir, new SimpleFlamdexDocWriter.Config().setDocBufferSize(100).setMergeFactor(4).setSortKey(sortKey));
+        final Random rand = new Random(0);
+        final List<FlamdexDocument> expected = Lists.newArrayList();
+        for (int i = 0; i < 2000; ++i) {
+            final FlamdexDocument doc = randomDocument(rand);
+            doc.setIntField("time", rand.nextInt(100) - 20);
+            if (rand.nextInt(10) != 0) {
+                doc.setStringField("dim", Arrays.asList("d" + rand.nextInt(20)));
+            }
+            doc.setIntField("seq", i);
+            w.addDocument(doc);
+            expected.add(doc);
+        }
+        w.close();
+
+        assertEquals(sortKey, FlamdexMetadata.readMetadata(tempDir).getSortKey());
+
+        final SimpleFlamdexReader r = SimpleFlamdexReader.open(tempDir);
+        final List<FlamdexDocument> actual = FlamdexReinverter.reinvertInMemory(r);
+        r.close();
+
+        assertEquals(expected.size(), actual.size());
+        FlamdexDocument prev = null;
+        for (final FlamdexDocument ad : actual) {
+            final FlamdexDocument ed = expected.get((int) ad.getIntFields().get("seq").getLong(0));
+            assertTrue(unorderedEquals(ed.getIntFields(), ad.getIntFields()));
+            assertTrue(unorderedEquals(ed.getStringFields(), ad.getStringFields()));
+            if (prev != null) {
+                final long prevBucket = Math.round(Math.floor(prev.getIntFields().get("time").getLong(0) / 10.0));
+                final long bucket = Math.round(Math.floor(ad.getIntFields().get("time").getLong(0) / 10.0));
+                assertTrue(prevBucket <= bucket);
+                if (prevBucket == bucket) {
+                    final List<String> prevDim = prev.getStringFields().get("dim");
+                    final List<String> dim = ad.getStringFields().get("dim");
+                    assertTrue(prevDim == null || (dim != null && prevDim.get(0).compareTo(dim.get(0)) <= 0));
+                    if (prevDim == null ? dim == null : prevDim.equals(dim)) {
+                        // ties keep the order the documents were added in
+                        assertTrue(prev.getIntFields().get("seq").getLong(0) < ad.getIntFields().get("seq").getLong(0));
+                    }
+                }
+            }
+            prev = ad;
+        }
+    }
+
+    @Test
+    public void testFailedSortRemovesUnsortedSegment() throws IOException {
+        final SimpleFlamdexDocWriter.Config config = new SimpleFlamdexDocWriter.Config()
+                .setDocBufferSize(999999999).setMergeFactor(999999999).setSortKey(Arrays.asList("missing"));
+        try {
+            writeFlamdex(tempDir, config);
+            fail("sorting by a missing field should fail");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        // only the buffered segment file is left behind, not the unsorted index directory
+        for (final File file : new File(tempDir).listFiles()) {
+            assertFalse(file + " was not removed", file.isDirectory());
+        }
+    }
+
     private static <T> boolean unorderedEquals(Map<String, ? extends List<T>> o1, Map<String, ? extends List<T>> o2) {
         if (!o1.keySet().equals(o2.keySet())) return false;
 
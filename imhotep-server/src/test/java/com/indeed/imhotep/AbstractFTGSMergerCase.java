@@ -37,8 +37,13 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
 
 import javax.annotation.Nullable;
 
@@ -255,6 +260,118 @@ public abstract class AbstractFTGSMergerCase extends TestCase {
         assertFalse(it.nextField());
     }
 
+    @Test
+    public void testManyIterators() throws IOException {
+        final Random rand = new Random(0);
+        for (int numIterators : new int[] { 1, 2, 7, 64, 257 }) {
+            final List<byte[]> streams = new ArrayList<byte[]>(numIterators);
+            final List<String> expected = randomStreams(rand, numIterators, true, streams);
+            final List<RawFTGSIterator> iterators = new ArrayList<RawFTGSIterator>(numIterators);
+            for (byte[] stream : streams) {
+                iterators.add(new InputStreamFTGSIterator(new ByteArrayInputStream(stream), 2));
+            }
+            assertEquals(expected, flatten(newFTGSMerger(iterators, 2), 2));
+        }
+    }
+
+    private static final List<String> STRING_TERMS = new ArrayList<String>();
+    static {
+        for (int term = 0; term < 300; term++) {
+            STRING_TERMS.add("term" + term);
+        }
+        Collections.sort(STRING_TERMS);
+    }
+
+    /**
+     * writes an int field "i" and, if withStringField, a string field "s" with random terms, groups and stats to
+     * each stream
+     *
+     * @return the flattened merge of all the streams
+     */
+    static List<String> randomStreams(Random rand, int numStreams, boolean withStringField, List<byte[]> streams) throws IOException {
+        final Map<Long, Map<Integer, long[]>> intTerms = new TreeMap<Long, Map<Integer, long[]>>();
+        final Map<String, Map<Integer, long[]>> stringTerms = new TreeMap<String, Map<Integer, long[]>>();
+        for (int i = 0; i < numStreams; i++) {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final FTGSOutputStreamWriter writer = new FTGSOutputStreamWriter(baos);
+            writer.switchField("i", true);
+            for (long term = 0; term < 300; term++) {
+                if (rand.nextInt(4) == 0) {
+                    writer.switchIntTerm(term, 1);
+                    writeRandomGroups(rand, writer, intTerms, term);
+                }
+            }
+            if (withStringField) {
+                writer.switchField("s", false);
+                for (String term : STRING_TERMS) {
+                    if (rand.nextInt(4) == 0) {
+                        final byte[] termBytes = term.getBytes(Charsets.UTF_8);
+                        writer.switchBytesTerm(termBytes, termBytes.length, 1);
+                        writeRandomGroups(rand, writer, stringTerms, term);
+                    }
+                }
+            }
+            writer.close();
+            streams.add(baos.toByteArray());
+        }
+        final List<String> flattened = new ArrayList<String>();
+        flattened.add("i");
+        flattenTerms(intTerms, flattened);
+        if (withStringField) {
+            flattened.add("s");
+            flattenTerms(stringTerms, flattened);
+        }
+        return flattened;
+    }
+
+    private static <T> void writeRandomGroups(Random rand, FTGSOutputStreamWriter writer, Map<T, Map<Integer, long[]>> terms, T term) throws IOException {
+        Map<Integer, long[]> groups = terms.get(term);
+        if (groups == null) {
+            groups = new TreeMap<Integer, long[]>();
+            terms.put(term, groups);
+        }
+        int group = 1 + rand.nextInt(3);
+        for (int j = rand.nextInt(4); j >= 0; j--) {
+            writer.switchGroup(group);
+            long[] stats = groups.get(group);
+            if (stats == null) {
+                stats = new long[2];
+                groups.put(group, stats);
+            }
+            for (int k = 0; k < stats.length; k++) {
+                final long stat = rand.nextInt(1000) - 500;
+                writer.addStat(stat);
+                stats[k] += stat;
+            }
+            group += 1 + rand.nextInt(5000);
+        }
+    }
+
+    private static <T> void flattenTerms(Map<T, Map<Integer, long[]>> terms, List<String> flattened) {
+        for (Map.Entry<T, Map<Integer, long[]>> term : terms.entrySet()) {
+            flattened.add(String.valueOf(term.getKey()));
+            for (Map.Entry<Integer, long[]> group : term.getValue().entrySet()) {
+                flattened.add(group.getKey() + " " + Arrays.toString(group.getValue()));
+            }
+        }
+    }
+
+    static List<String> flatten(FTGSIterator iterator, int numStats) {
+        final List<String> flattened = new ArrayList<String>();
+        final long[] stats = new long[numStats];
+        while (iterator.nextField()) {
+            flattened.add(iterator.fieldName());
+            while (iterator.nextTerm()) {
+                flattened.add(iterator.fieldIsIntType() ? String.valueOf(iterator.termIntVal()) : iterator.termStringVal());
+                while (iterator.nextGroup()) {
+                    iterator.groupStats(stats);
+                    flattened.add(iterator.group() + " " + Arrays.toString(stats));
+                }
+            }
+        }
+        return flattened;
+    }
+
     @Test
     private static void writeStream(ByteArrayOutputStream out) throws IOException {
         final FTGSOutputStreamWriter writer = new FTGSOutputStreamWriter(out);
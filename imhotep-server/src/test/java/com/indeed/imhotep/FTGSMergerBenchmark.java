@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.api.FTGSIterator;
+import com.indeed.imhotep.api.RawFTGSIterator;
+import com.indeed.imhotep.service.FTGSOutputStreamWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * times the mergers over synthetic iterators at several fan-ins, each iterator holding a random quarter of the terms
+ */
+public class FTGSMergerBenchmark {
+    private static final int NUM_TERMS = 200000;
+    private static final int NUM_STATS = 2;
+    private static final int NUM_GROUPS = 16;
+
+    public static void main(String[] args) throws IOException {
+        for (int fanIn : new int[] { 2, 16, 128, 512 }) {
+            final List<byte[]> intStreams = Lists.newArrayList();
+            final List<byte[]> stringStreams = Lists.newArrayList();
+            final Random rand = new Random(fanIn);
+            for (int i = 0; i < fanIn; ++i) {
+                intStreams.add(writeStream(rand, true, NUM_TERMS / fanIn * 4));
+                stringStreams.add(writeStream(rand, false, NUM_TERMS / fanIn * 4));
+            }
+            for (int i = 0; i < 5; ++i) {
+                long elapsed = -System.currentTimeMillis();
+                iterate(new RawFTGSMerger(rawIterators(intStreams), NUM_STATS, null));
+                elapsed += System.currentTimeMillis();
+                final long intTime = elapsed;
+
+                elapsed = -System.currentTimeMillis();
+                iterate(new FastIntFTGSMerger(rawIterators(intStreams), NUM_STATS, NUM_GROUPS, null));
+                elapsed += System.currentTimeMillis();
+                final long fastIntTime = elapsed;
+
+                elapsed = -System.currentTimeMillis();
+                iterate(new RawFTGSMerger(rawIterators(stringStreams), NUM_STATS, null));
+                elapsed += System.currentTimeMillis();
+                final long rawStringTime = elapsed;
+
+                elapsed = -System.currentTimeMillis();
+                iterate(new FTGSMerger(rawIterators(stringStreams), NUM_STATS, null));
+                elapsed += System.currentTimeMillis();
+                final long stringTime = elapsed;
+
+                System.out.println("fan-in " + fanIn + ": int " + intTime + "ms, fast int " + fastIntTime +
+                        "ms, raw string " + rawStringTime + "ms, string " + stringTime + "ms");
+            }
+        }
+    }
+
+    private static byte[] writeStream(Random rand, boolean isIntType, int numTerms) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final FTGSOutputStreamWriter writer = new FTGSOutputStreamWriter(baos);
+        writer.switchField("f", isIntType);
+        final int[] terms = new int[numTerms];
+        for (int i = 0; i < numTerms; ++i) {
+            terms[i] = rand.nextInt(NUM_TERMS);
+        }
+        if (isIntType) {
+            Arrays.sort(terms);
+        } else {
+            final String[] strings = new String[numTerms];
+            for (int i = 0; i < numTerms; ++i) {
+                strings[i] = "term" + terms[i];
+            }
+            Arrays.sort(strings);
+            for (int i = 0; i < numTerms; ++i) {
+                terms[i] = Integer.parseInt(strings[i].substring(4));
+            }
+        }
+        for (int i = 0; i < numTerms; ++i) {
+            if (i > 0 && terms[i] == terms[i - 1]) {
+                continue;
+            }
+            if (isIntType) {
+                writer.switchIntTerm(terms[i], 1);
+            } else {
+                final byte[] termBytes = ("term" + terms[i]).getBytes(Charsets.UTF_8);
+                writer.switchBytesTerm(termBytes, termBytes.length, 1);
+            }
+            writer.switchGroup(1 + rand.nextInt(NUM_GROUPS - 1));
+            for (int stat = 0; stat < NUM_STATS; ++stat) {
+                writer.addStat(rand.nextInt(100));
+            }
+        }
+        writer.close();
+        return baos.toByteArray();
+    }
+
+    private static List<RawFTGSIterator> rawIterators(List<byte[]> streams) {
+        final List<RawFTGSIterator> iterators = Lists.newArrayList();
+        for (byte[] stream : streams) {
+            iterators.add(new InputStreamFTGSIterator(new ByteArrayInputStream(stream), NUM_STATS));
+        }
+        return iterators;
+    }
+
+    private static void iterate(FTGSIterator merger) {
+        final long[] stats = new long[NUM_STATS];
+        while (merger.nextField()) {
+            while (merger.nextTerm()) {
+                while (merger.nextGroup()) {
+                    merger.groupStats(stats);
+                }
+            }
+        }
+    }
+}
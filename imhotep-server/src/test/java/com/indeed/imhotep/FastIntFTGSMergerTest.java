@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import com.indeed.imhotep.api.FTGSIterator;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class FastIntFTGSMergerTest extends TestCase {
+    @Test
+    public void testManyIterators() throws IOException {
+        final Random rand = new Random(0);
+        for (int numIterators : new int[] { 1, 2, 7, 64, 257 }) {
+            final List<byte[]> streams = new ArrayList<byte[]>(numIterators);
+            final List<String> expected = AbstractFTGSMergerCase.randomStreams(rand, numIterators, false, streams);
+            final List<FTGSIterator> iterators = new ArrayList<FTGSIterator>(numIterators);
+            for (byte[] stream : streams) {
+                iterators.add(new InputStreamFTGSIterator(new ByteArrayInputStream(stream), 2));
+            }
+            assertEquals(expected, AbstractFTGSMergerCase.flatten(new FastIntFTGSMerger(iterators, 2, 30000, null), 2));
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.api.DocBlockIterator;
+import com.indeed.imhotep.api.DocIterator;
+import com.indeed.imhotep.service.BlockDocIterator;
+import com.indeed.imhotep.service.DocBlockIteratorMerger;
+import com.indeed.imhotep.service.DocBlockOutputStreamWriter;
+import com.indeed.imhotep.service.InputStreamDocBlockIterator;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class TestDocBlockRoundTrip {
+    private static final long[] TEST_INTS = { -1, 0, 1, 127, 128, 129, -127, -128, -129,
+        Integer.MIN_VALUE, Integer.MAX_VALUE, 1000000000, -1000000000,
+        Long.MIN_VALUE, Long.MAX_VALUE, -1000000000000L, 1000000000000L };
+    private static final String[] TEST_STRINGS = { "", "foo", "foo", "bar", "été", "😀", "foo" };
+
+    /**
+     * hands out the given docs in blocks of blockSize, with the doc index as the group
+     */
+    private static DocBlockIterator arrayIterator(final long[] ints, final String[] strings, final int blockSize) {
+        return new DocBlockIterator() {
+            final int[] groups = new int[blockSize];
+            final long[] intBlock = new long[blockSize];
+            final String[] stringBlock = new String[blockSize];
+            int start = 0;
+            int n = 0;
+
+            @Override
+            public boolean nextBlock() {
+                start += n;
+                n = Math.min(blockSize, ints.length - start);
+                for (int i = 0; i < n; i++) {
+                    groups[i] = start + i + 1;
+                    intBlock[i] = ints[start + i];
+                    stringBlock[i] = strings[start + i];
+                }
+                return n > 0;
+            }
+
+            @Override
+            public int getNumDocs() {
+                return n;
+            }
+
+            @Override
+            public int[] getGroups() {
+                return groups;
+            }
+
+            @Override
+            public long[] getInts(int index) {
+                return intBlock;
+            }
+
+            @Override
+            public String[] getStrings(int index) {
+                return stringBlock;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static byte[] write(DocBlockIterator iterator) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DocBlockOutputStreamWriter.write(iterator, 1, 1, baos);
+        return baos.toByteArray();
+    }
+
+    private static long[] ints(int numDocs) {
+        final long[] ints = new long[numDocs];
+        for (int i = 0; i < numDocs; i++) {
+            ints[i] = TEST_INTS[i % TEST_INTS.length];
+        }
+        return ints;
+    }
+
+    private static String[] strings(int numDocs) {
+        final String[] strings = new String[numDocs];
+        for (int i = 0; i < numDocs; i++) {
+            strings[i] = TEST_STRINGS[(i / 3) % TEST_STRINGS.length];
+        }
+        return strings;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final int numDocs = 1000;
+        final long[] ints = ints(numDocs);
+        final String[] strings = strings(numDocs);
+        for (int blockSize : new int[] { 1, 7, 256, 4096 }) {
+            final byte[] bytes = write(arrayIterator(ints, strings, blockSize));
+            final DocIterator in = new BlockDocIterator(
+                    new InputStreamDocBlockIterator(new ByteArrayInputStream(bytes), 1, 1));
+            for (int i = 0; i < numDocs; i++) {
+                assertTrue(in.next());
+                assertEquals(i + 1, in.getGroup());
+                assertEquals(ints[i], in.getInt(0));
+                assertEquals(strings[i], in.getString(0));
+            }
+            assertFalse(in.next());
+            in.close();
+        }
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        final byte[] bytes = write(arrayIterator(new long[0], new String[0], 16));
+        final DocBlockIterator in = new InputStreamDocBlockIterator(new ByteArrayInputStream(bytes), 1, 1);
+        assertFalse(in.nextBlock());
+        in.close();
+    }
+
+    @Test
+    public void testMerger() throws Exception {
+        final int numSources = 5;
+        final int numDocs = 3000;
+        final List<DocBlockIterator> sources = Lists.newArrayList();
+        for (int source = 0; source < numSources; source++) {
+            final byte[] bytes = write(arrayIterator(ints(numDocs), strings(numDocs), 100 + source));
+            sources.add(new InputStreamDocBlockIterator(new ByteArrayInputStream(bytes), 1, 1));
+        }
+        final long[] ints = ints(numDocs);
+        final String[] strings = strings(numDocs);
+        final int[] seen = new int[numDocs];
+        final DocBlockIterator merger = new DocBlockIteratorMerger(sources, 1, 1);
+        try {
+            while (merger.nextBlock()) {
+                assertTrue(merger.getNumDocs() > 0);
+                for (int i = 0; i < merger.getNumDocs(); i++) {
+                    final int doc = merger.getGroups()[i] - 1;
+                    assertEquals(ints[doc], merger.getInts(0)[i]);
+                    assertEquals(strings[doc], merger.getStrings(0)[i]);
+                    seen[doc]++;
+                }
+            }
+        } finally {
+            merger.close();
+        }
+        for (int count : seen) {
+            assertEquals(numSources, count);
+        }
+    }
+
+    @Test
+    public void testMergerOfNothing() throws Exception {
+        final DocBlockIterator merger = new DocBlockIteratorMerger(Lists.<DocBlockIterator>newArrayList(), 1, 1);
+        assertFalse(merger.nextBlock());
+        assertFalse(merger.nextBlock());
+        merger.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testMergerCloseUnblocksReaders() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        // like a socket read, ignores interrupts and only returns once the iterator is closed
+        final DocBlockIterator blocked = new DocBlockIterator() {
+            @Override
+            public boolean nextBlock() {
+                reading.countDown();
+                while (true) {
+                    try {
+                        closed.await();
+                        throw new IllegalStateException("closed");
+                    } catch (InterruptedException e) {
+                        // ignored
+                    }
+                }
+            }
+
+            @Override
+            public int getNumDocs() {
+                return 0;
+            }
+
+            @Override
+            public int[] getGroups() {
+                return new int[0];
+            }
+
+            @Override
+            public long[] getInts(int index) {
+                return new long[0];
+            }
+
+            @Override
+            public String[] getStrings(int index) {
+                return new String[0];
+            }
+
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        };
+        final DocBlockIterator merger = new DocBlockIteratorMerger(Lists.newArrayList(blocked), 1, 1);
+        reading.await();
+        merger.close();
+        assertEquals(0, closed.getCount());
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestDocSample {
+    @Test
+    public void testShardsAreSampledIndependently() {
+        final DocSample sample = new DocSample(0.5, 17);
+        final long key1 = DocSample.shardKey("index20130418.18-20130418.19");
+        final long key2 = DocSample.shardKey("index20130418.19-20130418.20");
+        final int numBlocks = 10000;
+        int sampled1 = 0;
+        int sampled2 = 0;
+        int sampledBoth = 0;
+        for (int block = 0; block < numBlocks; block++) {
+            final boolean contains1 = sample.containsBlock(key1, block);
+            final boolean contains2 = sample.containsBlock(key2, block);
+            if (contains1) sampled1++;
+            if (contains2) sampled2++;
+            if (contains1 && contains2) sampledBoth++;
+        }
+        assertEquals(numBlocks / 2, sampled1, numBlocks / 20);
+        assertEquals(numBlocks / 2, sampled2, numBlocks / 20);
+        // independent samples share about a quarter of the blocks, identical ones would share half
+        assertEquals(numBlocks / 4, sampledBoth, numBlocks / 20);
+    }
+
+    @Test
+    public void testDeterministic() {
+        final long key = DocSample.shardKey("shard");
+        final DocSample sample1 = new DocSample(0.3, 5);
+        final DocSample sample2 = new DocSample(0.3, 5);
+        final DocSample full = new DocSample(1, 5);
+        for (int block = 0; block < 1000; block++) {
+            assertEquals(sample1.containsBlock(key, block), sample2.containsBlock(key, block));
+            assertTrue(full.containsBlock(key, block));
+        }
+    }
+}
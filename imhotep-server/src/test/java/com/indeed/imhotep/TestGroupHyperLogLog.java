@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestGroupHyperLogLog {
+    @Test
+    public void testEstimates() {
+        final int[] cardinalities = { 0, 1, 10, 1000, 100000, 1000000 };
+        final GroupHyperLogLog sketches = new GroupHyperLogLog(12, cardinalities.length);
+        final Random rand = new Random(0);
+        for (int group = 0; group < cardinalities.length; group++) {
+            for (int i = 0; i < cardinalities[group]; i++) {
+                final long term = rand.nextLong();
+                sketches.add(group, GroupHyperLogLog.hash(term));
+                // duplicates do not count
+                sketches.add(group, GroupHyperLogLog.hash(term));
+            }
+        }
+        for (int group = 0; group < cardinalities.length; group++) {
+            // about three standard errors
+            assertEquals(cardinalities[group], sketches.estimate(group), cardinalities[group] * 0.05);
+        }
+    }
+
+    @Test
+    public void testMerge() {
+        final GroupHyperLogLog a = new GroupHyperLogLog(10, 3);
+        final GroupHyperLogLog b = new GroupHyperLogLog(10, 2);
+        final GroupHyperLogLog union = new GroupHyperLogLog(10, 3);
+        for (int i = 0; i < 5000; i++) {
+            final long hash = GroupHyperLogLog.hash("term" + i);
+            if (i % 3 == 0) {
+                b.add(1, hash);
+            } else {
+                a.add(1, hash);
+            }
+            if (i % 2 == 0) {
+                a.add(2, hash);
+                union.add(2, hash);
+            }
+            union.add(1, hash);
+        }
+        a.merge(b);
+        assertEquals(union, a);
+
+        final GroupHyperLogLog copy = new GroupHyperLogLog(10, 3, a.getRegisters().clone());
+        assertEquals(a.estimate(1), copy.estimate(1));
+        try {
+            b.merge(a);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            a.merge(new GroupHyperLogLog(11, 1));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTooManyRegisters() {
+        // 2^17 groups of 2^16 registers wrap around to 0 in int arithmetic
+        try {
+            new GroupHyperLogLog(16, 1 << 17);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new GroupHyperLogLog(16, 1 << 17, new byte[0]);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(1L << 33, GroupHyperLogLog.memoryUsage(16, 1 << 17));
+        // more than fit in one response
+        assertEquals(GroupHyperLogLog.MAX_REGISTERS, GroupHyperLogLog.getNumRegisters(16, 4096));
+        try {
+            GroupHyperLogLog.getNumRegisters(16, 4097);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
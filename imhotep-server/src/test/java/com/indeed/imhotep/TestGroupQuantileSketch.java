@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestGroupQuantileSketch {
+    private static final double[] QUANTILES = { 0, 0.001, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 0.999, 1 };
+
+    // the fraction of the values below the estimate should be close to the quantile asked for, up to one value
+    private static void assertQuantiles(long[] sortedValues, GroupQuantileSketch sketch, int group, double maxRankError) {
+        for (final double q : QUANTILES) {
+            final double estimate = sketch.quantile(group, q);
+            int lower = 0;
+            while (lower < sortedValues.length && sortedValues[lower] < estimate) {
+                lower++;
+            }
+            int upper = lower;
+            while (upper < sortedValues.length && sortedValues[upper] <= estimate) {
+                upper++;
+            }
+            final double rank = Math.max(lower, Math.min(upper, q * sortedValues.length));
+            assertEquals("quantile " + q, q, rank / sortedValues.length, maxRankError + 1.0 / sortedValues.length);
+        }
+    }
+
+    @Test
+    public void testQuantiles() {
+        final int[] counts = { 0, 1, 7, 1000, 100000, 1000000 };
+        final GroupQuantileSketch sketch = new GroupQuantileSketch(100, counts.length);
+        final long[][] values = new long[counts.length][];
+        final Random rand = new Random(0);
+        for (int group = 0; group < counts.length; group++) {
+            values[group] = new long[counts[group]];
+            for (int i = 0; i < counts[group]; i++) {
+                // long tailed like a latency
+                values[group][i] = (long) Math.exp(rand.nextGaussian() * 2 + 5);
+                sketch.add(group, values[group][i]);
+            }
+            Arrays.sort(values[group]);
+        }
+        assertTrue(Double.isNaN(sketch.quantile(0, 0.5)));
+        for (int group = 1; group < counts.length; group++) {
+            assertEquals(counts[group], sketch.count(group));
+            assertEquals(values[group][0], sketch.quantile(group, 0), 0);
+            assertEquals(values[group][counts[group] - 1], sketch.quantile(group, 1), 0);
+            assertQuantiles(values[group], sketch, group, 0.01);
+        }
+    }
+
+    @Test
+    public void testMerge() {
+        final Random rand = new Random(1);
+        final GroupQuantileSketch a = new GroupQuantileSketch(50, 3);
+        final GroupQuantileSketch b = new GroupQuantileSketch(50, 2);
+        final long[] values = new long[200000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = rand.nextInt(1000000) - 500000;
+            if (i % 3 == 0) {
+                b.add(1, values[i]);
+            } else {
+                a.add(1, values[i]);
+            }
+            a.add(2, i);
+        }
+        a.merge(b);
+        Arrays.sort(values);
+        assertEquals(values.length, a.count(1));
+        assertQuantiles(values, a, 1, 0.01);
+
+        final GroupQuantileSketch copy = GroupQuantileSketch.fromBytes(a.toBytes());
+        assertEquals(3, copy.getNumGroups());
+        assertEquals(50, copy.getCompression());
+        for (final double q : QUANTILES) {
+            assertEquals(a.quantile(1, q), copy.quantile(1, q), 0);
+            assertEquals(a.quantile(2, q), copy.quantile(2, q), 0);
+        }
+        try {
+            b.merge(a);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -64,4 +64,96 @@ public class TestImhotepMultiSession {
         s1.close();
         s2.close();
     }
+
+    @Test
+    public void testGroupStatAggregations() throws ImhotepOutOfMemoryException {
+        final MockFlamdexReader r1 = new MockFlamdexReader(Arrays.asList("if1"),
+                Collections.<String>emptyList(), Arrays.asList("if1"), 4);
+        r1.addIntTerm("if1", -3, Arrays.asList(2));
+        r1.addIntTerm("if1", 5, Arrays.asList(1));
+        r1.addIntTerm("if1", 7, Arrays.asList(3));
+
+        final MockFlamdexReader r2 = new MockFlamdexReader(Arrays.asList("if1"),
+                Collections.<String>emptyList(), Arrays.asList("if1"), 3);
+        r2.addIntTerm("if1", 2, Arrays.asList(0));
+        r2.addIntTerm("if1", 9, Arrays.asList(2));
+
+        final ImhotepLocalSession s1 = new ImhotepLocalSession(r1), s2 = new ImhotepLocalSession(r2);
+        final ImhotepSession s = new RemoteImhotepMultiSession(new ImhotepSession[] { s1, s2 }, null, null, -1, null);
+        s.pushStat("if1");
+
+        // groups: 1=[0, 5, -3] [2, 0, 9], 2=[7] []
+        s.intOrRegroup("if1", new long[] { 7 }, 1, 1, 2);
+
+        assertEquals(Arrays.asList(0L, 13L, 7L), Longs.asList(s.getGroupStats(0)).subList(0, 3));
+        assertEquals(Arrays.asList(0L, 13L, 7L), Longs.asList(s.getGroupStats(0, GroupStatAggregation.SUM)).subList(0, 3));
+        assertEquals(Arrays.asList(-3L, 7L), Longs.asList(s.getGroupStats(0, GroupStatAggregation.MIN)).subList(1, 3));
+        assertEquals(Arrays.asList(9L, 7L), Longs.asList(s.getGroupStats(0, GroupStatAggregation.MAX)).subList(1, 3));
+        assertEquals(Arrays.asList(4L, 1L), Longs.asList(s.getGroupStats(0, GroupStatAggregation.COUNT_NONZERO)).subList(1, 3));
+
+        // the sums of a new stat are computed along with its first aggregation, and only once
+        s.pushStat("if1");
+        assertEquals(Arrays.asList(-3L, 7L), Longs.asList(s.getGroupStats(1, GroupStatAggregation.MIN)).subList(1, 3));
+        assertEquals(Arrays.asList(9L, 7L), Longs.asList(s.getGroupStats(1, GroupStatAggregation.MAX)).subList(1, 3));
+        assertEquals(Arrays.asList(0L, 13L, 7L), Longs.asList(s.getGroupStats(1)).subList(0, 3));
+
+        s.close();
+        s1.close();
+        s2.close();
+    }
+
+    @Test
+    public void testExecuteProgram() throws ImhotepOutOfMemoryException {
+        final MockFlamdexReader r1 = new MockFlamdexReader(Arrays.asList("if1"),
+                Collections.<String>emptyList(), Arrays.asList("if1"), 4);
+        r1.addIntTerm("if1", -3, Arrays.asList(2));
+        r1.addIntTerm("if1", 5, Arrays.asList(1));
+        r1.addIntTerm("if1", 7, Arrays.asList(3));
+
+        final MockFlamdexReader r2 = new MockFlamdexReader(Arrays.asList("if1"),
+                Collections.<String>emptyList(), Arrays.asList("if1"), 3);
+        r2.addIntTerm("if1", 2, Arrays.asList(0));
+        r2.addIntTerm("if1", 9, Arrays.asList(2));
+
+        final ImhotepLocalSession s1 = new ImhotepLocalSession(r1), s2 = new ImhotepLocalSession(r2);
+        final ImhotepSession s = new RemoteImhotepMultiSession(new ImhotepSession[] { s1, s2 }, null, null, -1, null);
+
+        final SessionProgram program = new SessionProgram()
+                .pushStat("if1")
+                .intOrRegroup("if1", new long[] { 7 }, 1, 1, 2)
+                .getGroupStats(0)
+                .metricFilter(0, 0, 6, false)
+                .getGroupStats(0, GroupStatAggregation.MAX)
+                .pushStat("count()")
+                .getGroupStats(1)
+                .getNumGroups();
+        final SessionProgram.Results results = s.executeProgram(program);
+
+        // groups: 1=[0, 5, -3] [2, 0, 9], 2=[7] [], then only values in [0, 6] stay
+        assertEquals(1, results.getNumStats(0));
+        assertEquals(Arrays.asList(0L, 13L, 7L), Longs.asList(results.getGroupStats(2)).subList(0, 3));
+        assertEquals(Arrays.asList(5L), Longs.asList(results.getGroupStats(4)).subList(1, 2));
+        assertEquals(2, results.getNumStats(5));
+        assertEquals(Arrays.asList(4L), Longs.asList(results.getGroupStats(6)).subList(1, 2));
+        assertEquals(s.getNumGroups(), results.getNumGroups(7));
+        assertEquals(2, s.getNumStats());
+        assertEquals(2, results.getFinalNumStats(0));
+        try {
+            results.getNumGroups(2);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        try {
+            s.executeProgram(new SessionProgram().popStat().popStat().popStat());
+            fail();
+        } catch (RuntimeException e) {
+            // expected, the third pop has no stat to pop
+        }
+
+        s.close();
+        s1.close();
+        s2.close();
+    }
 }
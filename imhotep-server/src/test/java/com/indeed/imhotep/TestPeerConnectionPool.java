@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import com.google.common.io.ByteStreams;
+import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.reader.MockFlamdexReader;
+import com.indeed.imhotep.io.ImhotepProtobufShipping;
+import com.indeed.imhotep.protobuf.ImhotepRequest;
+import com.indeed.imhotep.service.FlamdexReaderSource;
+import com.indeed.imhotep.service.ImhotepDaemonRunner;
+import com.indeed.util.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+public class TestPeerConnectionPool {
+    private static final int TIMEOUT = 10000;
+
+    private String directory;
+    private String tempDir;
+    private ImhotepDaemonRunner daemon;
+    private ImhotepRemoteSession session;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.getTempDirectory("imhotep", "test");
+        tempDir = Files.getTempDirectory("imhotep", "temp");
+        final File datasetDir = new File(directory, "dataset");
+        datasetDir.mkdir();
+        new File(datasetDir, "shard").mkdir();
+
+        final ServerSocket ss = new ServerSocket(0);
+        final int port = ss.getLocalPort();
+        ss.close();
+        daemon = new ImhotepDaemonRunner(directory, tempDir, port, new FlamdexReaderSource() {
+            @Override
+            public FlamdexReader openReader(String directory) throws IOException {
+                final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("if1"), Collections.<String>emptyList(), Arrays.asList("if1"), 10);
+                for (int term = 0; term < 10; term++) {
+                    r.addIntTerm("if1", term, Arrays.asList(term));
+                }
+                return r;
+            }
+        });
+        daemon.start();
+        session = ImhotepRemoteSession.openSession("localhost", port, "dataset", Arrays.asList("shard"), "pooled");
+        session.pushStat("count()");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (session != null) {
+            session.close();
+        }
+        daemon.stop();
+        Files.delete(directory);
+        Files.delete(tempDir);
+    }
+
+    @Test
+    public void testKeepAlive() throws IOException {
+        final PeerConnectionPool pool = new PeerConnectionPool();
+        final PeerConnectionPool.Connection connection = pool.borrow("localhost", daemon.getPort(), TIMEOUT);
+        final ImhotepRequest request = ImhotepRequest.newBuilder()
+                .setRequestType(ImhotepRequest.RequestType.GET_NUM_STATS)
+                .setSessionId("pooled")
+                .setKeepAlive(true)
+                .setCompressResponse(true)
+                .build();
+        try {
+            // the daemon has to answer every request on the same socket
+            for (int i = 0; i < 3; i++) {
+                ImhotepProtobufShipping.sendProtobuf(request, connection.getOutputStream());
+                final InputStream in = pool.openResponse(connection);
+                assertEquals(1, ImhotepProtobufShipping.readResponse(in).getNumStats());
+                ByteStreams.toByteArray(in);
+                in.close();
+                assertEquals(1, pool.getNumIdleConnections());
+                assertSame(connection, pool.borrow("localhost", daemon.getPort(), TIMEOUT));
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testPooledSplits() throws IOException {
+        final PeerConnectionPool pool = new PeerConnectionPool();
+        final Map<Long, Long> counts = new TreeMap<Long, Long>();
+        for (int split = 0; split < 2; split++) {
+            final InputStream in = session.getFTGSSplitStream(new String[]{"if1"}, new String[0], split, 2, pool);
+            final byte[] bytes;
+            try {
+                bytes = ByteStreams.toByteArray(in);
+            } finally {
+                in.close();
+            }
+            // read to the end, so the connection went back to the pool for the next split
+            assertEquals(1, pool.getNumIdleConnections());
+
+            final InputStreamFTGSIterator iterator = new InputStreamFTGSIterator(new ByteArrayInputStream(bytes), 1);
+            final long[] stats = new long[1];
+            while (iterator.nextField()) {
+                while (iterator.nextTerm()) {
+                    while (iterator.nextGroup()) {
+                        assertEquals(1, iterator.group());
+                        iterator.groupStats(stats);
+                        counts.put(iterator.termIntVal(), stats[0]);
+                    }
+                }
+            }
+            iterator.close();
+        }
+        final Map<Long, Long> expected = new TreeMap<Long, Long>();
+        for (long term = 0; term < 10; term++) {
+            expected.put(term, 1L);
+        }
+        assertEquals(expected, counts);
+    }
+
+    @Test
+    public void testExpiredConnectionsOfOtherPeers() throws IOException, InterruptedException {
+        final PeerConnectionPool pool = new PeerConnectionPool(50);
+        final InputStream in = session.getFTGSSplitStream(new String[]{"if1"}, new String[0], 0, 1, pool);
+        ByteStreams.toByteArray(in);
+        in.close();
+        assertEquals(1, pool.getNumIdleConnections());
+        Thread.sleep(100);
+
+        // the same daemon under another name, whose connections are separate from the expired one
+        final PeerConnectionPool.Connection connection = pool.borrow("127.0.0.1", daemon.getPort(), TIMEOUT);
+        try {
+            assertFalse(connection.isReused());
+            assertEquals(0, pool.getNumIdleConnections());
+        } finally {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.io;
+
+import com.google.common.io.ByteStreams;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TestSpillingStreamBuffer extends TestCase {
+    private static byte[] randomBytes(int length) {
+        final byte[] bytes = new byte[length];
+        new Random(0).nextBytes(bytes);
+        return bytes;
+    }
+
+    public void testFillWithoutReader() throws IOException {
+        // the whole stream is taken in before anything is read, most of it spilled to disk
+        final byte[] bytes = randomBytes(1000000);
+        final SpillingStreamBuffer buffer = new SpillingStreamBuffer(200000, null);
+        buffer.fill(new ByteArrayInputStream(bytes));
+        final InputStream in = buffer.getInputStream();
+        try {
+            assertTrue(Arrays.equals(bytes, ByteStreams.toByteArray(in)));
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testConcurrentReader() throws Exception {
+        final byte[] bytes = randomBytes(3000000);
+        final SpillingStreamBuffer buffer = new SpillingStreamBuffer(500000, null);
+        final Thread filler = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    buffer.fill(new ByteArrayInputStream(bytes));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        filler.start();
+        final InputStream in = buffer.getInputStream();
+        final byte[] read = new byte[bytes.length];
+        int ptr = 0;
+        final Random rand = new Random(1);
+        while (ptr < read.length) {
+            if (rand.nextInt(4) == 0) {
+                read[ptr++] = (byte)in.read();
+            } else {
+                final int n = in.read(read, ptr, Math.min(read.length - ptr, 1 + rand.nextInt(100000)));
+                assertTrue(n > 0);
+                ptr += n;
+            }
+        }
+        assertEquals(-1, in.read());
+        in.close();
+        filler.join();
+        assertTrue(Arrays.equals(bytes, read));
+    }
+
+    public void testTempFileLimit() throws IOException {
+        final SpillingStreamBuffer buffer = new SpillingStreamBuffer(65536, new AtomicLong(100000));
+        try {
+            buffer.fill(new ByteArrayInputStream(randomBytes(1000000)));
+            fail();
+        } catch (WriteLimitExceededException e) {
+            // expected
+        }
+        final InputStream in = buffer.getInputStream();
+        try {
+            ByteStreams.toByteArray(in);
+            fail();
+        } catch (TempFileSizeLimitExceededException e) {
+            // expected
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testClosedByReader() throws IOException {
+        final SpillingStreamBuffer buffer = new SpillingStreamBuffer(65536, null);
+        buffer.getInputStream().close();
+        try {
+            buffer.fill(new ByteArrayInputStream(randomBytes(100000)));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.io.caching;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.indeed.util.core.shell.PosixFileOperations;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestParallelRangeDownloader {
+
+    private File dir;
+
+    /**
+     * stands in for a remote store by serving ranges of local files
+     */
+    private static class LocalRangeSource implements ParallelRangeDownloader.RangeSource {
+        private final AtomicInteger rangeRequests = new AtomicInteger(0);
+
+        @Override
+        public long length(String path) {
+            return new File(path).length();
+        }
+
+        @Override
+        public InputStream openRange(String path, long start, long length) throws IOException {
+            rangeRequests.incrementAndGet();
+            final FileInputStream in = new FileInputStream(path);
+            ByteStreams.skipFully(in, start);
+            return ByteStreams.limit(in, length);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        PosixFileOperations.rmrf(dir);
+    }
+
+    private File writeRandomFile(String name, int size) throws IOException {
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        final File file = new File(dir, name);
+        Files.write(data, file);
+        return file;
+    }
+
+    @Test
+    public void testMultipartDownload() throws IOException {
+        final LocalRangeSource source = new LocalRangeSource();
+        final ParallelRangeDownloader downloader = new ParallelRangeDownloader(1000, 4, 0);
+        try {
+            for (final int size : Arrays.asList(0, 1, 999, 1000, 1001, 12345)) {
+                final File remote = writeRandomFile("remote" + size, size);
+                final File local = new File(dir, "local" + size);
+                final int before = source.rangeRequests.get();
+                downloader.download(source, remote.getPath(), local);
+                assertArrayEquals(Files.toByteArray(remote), Files.toByteArray(local));
+                assertEquals((size + 999) / 1000, source.rangeRequests.get() - before);
+            }
+        } finally {
+            downloader.close();
+        }
+    }
+
+    @Test
+    public void testBandwidthCap() throws IOException {
+        final LocalRangeSource source = new LocalRangeSource();
+        final ParallelRangeDownloader downloader = new ParallelRangeDownloader(4096, 4, 64 * 1024);
+        try {
+            final File remote = writeRandomFile("remote", 64 * 1024);
+            final File local = new File(dir, "local");
+            final long start = System.currentTimeMillis();
+            downloader.download(source, remote.getPath(), local);
+            final long elapsed = System.currentTimeMillis() - start;
+            assertArrayEquals(Files.toByteArray(remote), Files.toByteArray(local));
+            assertTrue("download finished in " + elapsed + "ms despite the bandwidth cap", elapsed >= 800);
+        } finally {
+            downloader.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testFailedPartFailsDownload() throws IOException {
+        final ParallelRangeDownloader downloader = new ParallelRangeDownloader(1000, 4, 0);
+        try {
+            final File remote = writeRandomFile("remote", 5000);
+            downloader.download(new LocalRangeSource() {
+                @Override
+                public InputStream openRange(String path, long start, long length) throws IOException {
+                    if (start == 3000) {
+                        throw new IOException("part unavailable");
+                    }
+                    return super.openRange(path, start, length);
+                }
+            }, remote.getPath(), new File(dir, "local"));
+        } finally {
+            downloader.close();
+        }
+    }
+
+    @Test
+    public void testFailureWaitsForRunningParts() throws IOException {
+        final ParallelRangeDownloader downloader = new ParallelRangeDownloader(1000, 4, 0);
+        try {
+            final File remote = writeRandomFile("remote", 5000);
+            final AtomicBoolean slowPartClosed = new AtomicBoolean(false);
+            try {
+                downloader.download(new LocalRangeSource() {
+                    @Override
+                    public InputStream openRange(String path, long start, long length) throws IOException {
+                        if (start == 0) {
+                            throw new IOException("part unavailable");
+                        }
+                        final InputStream in = super.openRange(path, start, length);
+                        if (start != 1000) {
+                            return in;
+                        }
+                        return new FilterInputStream(in) {
+                            @Override
+                            public int read(byte[] b, int off, int len) throws IOException {
+                                try {
+                                    Thread.sleep(200);
+                                } catch (InterruptedException e) {
+                                    throw new IOException("slow part interrupted", e);
+                                }
+                                return super.read(b, off, len);
+                            }
+
+                            @Override
+                            public void close() throws IOException {
+                                super.close();
+                                slowPartClosed.set(true);
+                            }
+                        };
+                    }
+                }, remote.getPath(), new File(dir, "local"));
+                fail("download should have failed");
+            } catch (IOException e) {
+                assertEquals("part unavailable", e.getMessage());
+            }
+            assertTrue("download returned while a part was still running", slowPartClosed.get());
+        } finally {
+            downloader.close();
+        }
+    }
+}
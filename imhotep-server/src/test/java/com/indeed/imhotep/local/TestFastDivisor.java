@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.google.common.primitives.UnsignedLongs;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestFastDivisor {
+    private static final long[] EDGE_VALUES = {
+            0, 1, 2, 3, 5, 7, 10, 641, 6700417, (1L << 31) - 1, 1L << 31, (1L << 31) + 1,
+            0xFFFFFFFEL, 0xFFFFFFFFL, 1L << 32, Long.MAX_VALUE, Long.MIN_VALUE, -1
+    };
+
+    private static void check(long divisor, long dividend) {
+        assertEquals(divisor + " / " + dividend,
+                UnsignedLongs.divide(dividend, divisor), new FastDivisor(divisor).divide(dividend));
+    }
+
+    @Test
+    public void testEdgeValues() {
+        for (final long divisor : EDGE_VALUES) {
+            if (divisor <= 0) {
+                continue;
+            }
+            for (final long dividend : EDGE_VALUES) {
+                check(divisor, dividend);
+                check(divisor, dividend - 1);
+                check(divisor, dividend + 1);
+            }
+        }
+    }
+
+    @Test
+    public void testRandom() {
+        final Random rand = new Random(0);
+        for (int i = 0; i < 1000; ++i) {
+            final long divisor = 1 + (rand.nextLong() >>> (1 + rand.nextInt(63)));
+            final FastDivisor fastDivisor = new FastDivisor(divisor);
+            for (int j = 0; j < 1000; ++j) {
+                final long dividend = j % 2 == 0 ? rand.nextInt() & 0xFFFFFFFFL : rand.nextLong() >>> rand.nextInt(64);
+                assertEquals(UnsignedLongs.divide(dividend, divisor), fastDivisor.divide(dividend));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZero() {
+        new FastDivisor(0);
+    }
+}
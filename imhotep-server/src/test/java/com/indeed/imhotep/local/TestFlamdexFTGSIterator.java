@@ -16,6 +16,8 @@
 import com.indeed.util.core.Pair;
 import com.indeed.flamdex.reader.MockFlamdexReader;
 import com.indeed.imhotep.GroupRemapRule;
+import com.indeed.imhotep.ImhotepMemoryPool;
+import com.indeed.imhotep.MemoryReservationContext;
 import com.indeed.imhotep.RegroupCondition;
 import com.indeed.imhotep.api.FTGSIterator;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
@@ -26,6 +28,8 @@ import java.util.List;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author jwolfe
@@ -167,6 +171,71 @@ public class TestFlamdexFTGSIterator {
         }
     }
 
+    @Test
+    public void testHugeNumberOfGroups() throws ImhotepOutOfMemoryException {
+        for (BitsetOptimizationLevel level : BitsetOptimizationLevel.values()) {
+            ImhotepLocalSession session = makeTestSession(level);
+            session.pushStat("count()");
+            // too many groups for dense group stats, the iterator has to fall back to hashing them
+            final int group1 = 1000 * 1000;
+            final int group2 = 3 * 1000 * 1000;
+            final RegroupCondition condition = new RegroupCondition(DOCID_FIELD, true, 4, null, true);
+            session.regroup(new GroupRemapRule[]{
+                    new GroupRemapRule(1, condition, group1, group1),
+                    new GroupRemapRule(2, condition, group2, group2)});
+            assertEquals(true, (long) session.getNumGroups() * 3 > AbstractFlamdexFTGSIterator.MAX_DENSE_GROUP_STATS);
+            FTGSIterator ftgsIterator = session.getFTGSIterator(new String[]{INT_ITERATION_FIELD}, new String[]{});
+            try {
+                ftgsIterator.nextField();
+                expectTerms(Arrays.asList(
+                        new IntTerm(Integer.MIN_VALUE, Arrays.asList(Pair.of(group2, new long[]{1, 3}))),
+                        new IntTerm(-1, Arrays.asList(Pair.of(group1, new long[]{11, 3}))),
+                        new IntTerm(0, Arrays.asList(Pair.of(group1, new long[]{0, 1}), Pair.of(group2, new long[]{0, 2}))),
+                        new IntTerm(1, Arrays.asList(Pair.of(group1, new long[]{11, 3}))),
+                        new IntTerm(Integer.MAX_VALUE, Arrays.asList(Pair.of(group2, new long[]{1, 3})))
+                ), ftgsIterator);
+            } finally {
+                ftgsIterator.close();
+                session.close();
+            }
+        }
+    }
+
+    @Test
+    public void testGroupStatsMemory() throws ImhotepOutOfMemoryException {
+        final MemoryReservationContext memory = new MemoryReservationContext(new ImhotepMemoryPool(Long.MAX_VALUE));
+        final ImhotepLocalSession session = new ImhotepLocalSession(makeTestFlamdexReader(), "/tmp/imhotep.test", memory, false, null);
+        try {
+            session.pushStat("count()");
+            assertFalse(session.sparseFTGSGroupStats);
+            final long denseMemory = memory.usedMemory();
+
+            // too many groups for dense group stats with one stat, but not without any
+            final int group = 1500 * 1000;
+            final RegroupCondition condition = new RegroupCondition(DOCID_FIELD, true, 4, null, true);
+            session.regroup(new GroupRemapRule[]{new GroupRemapRule(1, condition, group, group)});
+            assertTrue(session.sparseFTGSGroupStats);
+            // the group counts and stats grow with the groups, but nothing is reserved for dense FTGS group stats
+            final long sparseMemory = memory.usedMemory();
+            assertTrue(sparseMemory - denseMemory < (12L + 8L) * group);
+
+            final FTGSIterator ftgsIterator = session.getFTGSIterator(new String[]{INT_ITERATION_FIELD}, new String[]{});
+            try {
+                // the sparse group stats claim their own memory
+                assertTrue(memory.usedMemory() > sparseMemory);
+            } finally {
+                ftgsIterator.close();
+            }
+            assertEquals(sparseMemory, memory.usedMemory());
+
+            // without the stat the dense arrays fit again
+            session.popStat();
+            assertFalse(session.sparseFTGSGroupStats);
+        } finally {
+            session.close();
+        }
+    }
+
     private ImhotepLocalSession makeTestSession(BitsetOptimizationLevel level) throws ImhotepOutOfMemoryException {
         MockFlamdexReader r = makeTestFlamdexReader();
         ImhotepLocalSession session = new ImhotepLocalSession(r, level == BitsetOptimizationLevel.OPTIMIZE);
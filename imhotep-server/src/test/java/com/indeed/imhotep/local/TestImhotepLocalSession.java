@@ -18,11 +18,18 @@ import com.google.common.collect.Maps;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
 import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.fieldcache.ZoneMap;
 import com.indeed.flamdex.query.Query;
 import com.indeed.flamdex.query.Term;
 import com.indeed.flamdex.reader.MockFlamdexReader;
+import com.indeed.flamdex.simple.SimpleFlamdexReader;
+import com.indeed.flamdex.simple.SimpleFlamdexWriter;
+import com.indeed.flamdex.writer.IntFieldWriter;
 import com.indeed.imhotep.BucketStats;
+import com.indeed.imhotep.DocSample;
+import com.indeed.imhotep.GroupHyperLogLog;
 import com.indeed.imhotep.GroupMultiRemapRule;
+import com.indeed.imhotep.GroupQuantileSketch;
 import com.indeed.imhotep.GroupRemapRule;
 import com.indeed.imhotep.ImhotepMemoryPool;
 import com.indeed.imhotep.MemoryReservationContext;
@@ -31,16 +38,20 @@ import com.indeed.imhotep.RegroupCondition;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.flamdex.MakeAFlamdex;
 import com.indeed.imhotep.group.ImhotepChooser;
+import com.indeed.util.io.Files;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.fail;
@@ -194,6 +205,63 @@ public class TestImhotepLocalSession {
         assertEquals(Arrays.asList(3, 1, 3, 0, 0, 2, 3, 1, 0, 4), Ints.asList(docIdToGroup));
     }
 
+    @Test
+    public void testZoneMapPruning() throws IOException, ImhotepOutOfMemoryException {
+        final String dir = Files.getTempDirectory("imhotep-test", "zonemap");
+        try {
+            final int numDocs = 5 * ZoneMap.BLOCK_SIZE + 17;
+            final long[] values = new long[numDocs];
+            final SimpleFlamdexWriter w = new SimpleFlamdexWriter(dir, numDocs, true).setWriteMetricCaches(true);
+            final IntFieldWriter ifw = w.getIntFieldWriter("time");
+            for (int doc = 0; doc < numDocs; ) {
+                final long term = doc / 1000;
+                ifw.nextTerm(term);
+                for (; doc < numDocs && doc / 1000 == term; ++doc) {
+                    values[doc] = term;
+                    ifw.nextDoc(doc);
+                }
+            }
+            ifw.close();
+            w.close();
+            assertTrue(new File(dir, ZoneMap.getFileName("time")).exists());
+
+            for (final boolean negate : new boolean[] { false, true }) {
+                // closing the session closes its reader
+                final ImhotepLocalSession session = new ImhotepLocalSession(SimpleFlamdexReader.open(dir));
+                session.pushStat("time");
+                session.metricFilter(0, 6, 12, negate);
+                final int[] docIdToGroup = new int[numDocs];
+                session.exportDocIdToGroupId(docIdToGroup);
+                for (int doc = 0; doc < numDocs; ++doc) {
+                    final boolean inRange = values[doc] >= 6 && values[doc] <= 12;
+                    assertEquals(inRange != negate ? 1 : 0, docIdToGroup[doc]);
+                }
+                session.close();
+            }
+            for (final boolean noGutters : new boolean[] { false, true }) {
+                final ImhotepLocalSession session = new ImhotepLocalSession(SimpleFlamdexReader.open(dir));
+                session.pushStat("time");
+                session.metricRegroup(0, 5, 17, 4, noGutters);
+                final int[] docIdToGroup = new int[numDocs];
+                session.exportDocIdToGroupId(docIdToGroup);
+                for (int doc = 0; doc < numDocs; ++doc) {
+                    final int expected;
+                    if (values[doc] < 5) {
+                        expected = noGutters ? 0 : 4;
+                    } else if (values[doc] >= 17) {
+                        expected = noGutters ? 0 : 5;
+                    } else {
+                        expected = (int) ((values[doc] - 5) / 4 + 1);
+                    }
+                    assertEquals(expected, docIdToGroup[doc]);
+                }
+                session.close();
+            }
+        } finally {
+            Files.delete(dir);
+        }
+    }
+
     private static MockFlamdexReader newMetricRegroupTestReader() {
         MockFlamdexReader r =
                 new MockFlamdexReader(Arrays.asList("if1"), Arrays.asList("sf1"),
@@ -458,6 +526,151 @@ public class TestImhotepLocalSession {
         assertEquals(Longs.asList(0, 10), Longs.asList(session.getGroupStats(0)).subList(0, 2));
     }
 
+    @Test
+    public void testApproximateDistinctTerms() throws ImhotepOutOfMemoryException {
+        final int numDocs = 1000;
+        final MockFlamdexReader r =
+                new MockFlamdexReader(Arrays.asList("if1"), Arrays.asList("sf1"),
+                                      Arrays.asList("if1"), numDocs);
+        final Map<Long, List<Integer>> intTerms = Maps.newTreeMap();
+        final Map<String, List<Integer>> stringTerms = Maps.newTreeMap();
+        for (int doc = 0; doc < numDocs; doc++) {
+            final long intTerm = doc % 100;
+            final String stringTerm = "s" + (doc % 37);
+            if (!intTerms.containsKey(intTerm)) {
+                intTerms.put(intTerm, Lists.<Integer>newArrayList());
+            }
+            intTerms.get(intTerm).add(doc);
+            if (!stringTerms.containsKey(stringTerm)) {
+                stringTerms.put(stringTerm, Lists.<Integer>newArrayList());
+            }
+            stringTerms.get(stringTerm).add(doc);
+        }
+        for (Map.Entry<Long, List<Integer>> entry : intTerms.entrySet()) {
+            r.addIntTerm("if1", entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, List<Integer>> entry : stringTerms.entrySet()) {
+            r.addStringTerm("sf1", entry.getKey(), entry.getValue());
+        }
+
+        final ImhotepLocalSession session = new ImhotepLocalSession(r);
+        final long[] lowTerms = new long[10];
+        for (int i = 0; i < lowTerms.length; i++) {
+            lowTerms[i] = i;
+        }
+        // docs with if1 < 10 go to group 2
+        session.intOrRegroup("if1", lowTerms, 1, 1, 2);
+
+        final GroupHyperLogLog intSketches = session.approximateDistinctTerms("if1", true, 12);
+        assertEquals(3, intSketches.getNumGroups());
+        // linear counting is within a term or two this far below the number of registers
+        assertEquals(90, intSketches.estimate(1), 2);
+        assertEquals(10, intSketches.estimate(2), 2);
+
+        final GroupHyperLogLog stringSketches = session.approximateDistinctTerms("sf1", false, 12);
+        final Set<Integer> group2StringTerms = new HashSet<Integer>();
+        for (int doc = 0; doc < numDocs; doc++) {
+            if (doc % 100 < 10) {
+                group2StringTerms.add(doc % 37);
+            }
+        }
+        assertEquals(37, stringSketches.estimate(1), 2);
+        assertEquals(group2StringTerms.size(), stringSketches.estimate(2), 2);
+        session.close();
+    }
+
+    @Test
+    public void testGroupQuantiles() throws ImhotepOutOfMemoryException {
+        final int numDocs = 1000;
+        final MockFlamdexReader r =
+                new MockFlamdexReader(Arrays.asList("if1"), Arrays.<String>asList(),
+                                      Arrays.asList("if1"), numDocs);
+        for (int term = 0; term < 100; term++) {
+            final List<Integer> docs = Lists.newArrayList();
+            for (int doc = term; doc < numDocs; doc += 100) {
+                docs.add(doc);
+            }
+            r.addIntTerm("if1", term, docs);
+        }
+
+        final ImhotepLocalSession session = new ImhotepLocalSession(r);
+        final long[] lowTerms = new long[10];
+        for (int i = 0; i < lowTerms.length; i++) {
+            lowTerms[i] = i;
+        }
+        // docs with if1 < 10 go to group 2
+        session.intOrRegroup("if1", lowTerms, 1, 1, 2);
+        session.pushStat("if1");
+
+        final GroupQuantileSketch sketch = session.getGroupQuantiles(0, 100);
+        assertEquals(3, sketch.getNumGroups());
+        assertEquals(900, sketch.count(1));
+        assertEquals(100, sketch.count(2));
+        assertEquals(10, sketch.quantile(1, 0), 0);
+        assertEquals(99, sketch.quantile(1, 1), 0);
+        assertEquals(54.5, sketch.quantile(1, 0.5), 1);
+        assertEquals(0, sketch.quantile(2, 0), 0);
+        assertEquals(9, sketch.quantile(2, 1), 0);
+        assertEquals(4.5, sketch.quantile(2, 0.5), 1);
+        session.close();
+    }
+
+    @Test
+    public void testCheckpointRestore() throws ImhotepOutOfMemoryException, IOException {
+        final ImhotepMemoryPool checkpointMemory = new ImhotepMemoryPool(Long.MAX_VALUE);
+        final ImhotepLocalSession session = new ImhotepLocalSession(MakeAFlamdex.make());
+        session.createDynamicMetric("foo");
+        session.regroup(new GroupRemapRule[] { new GroupRemapRule(1, new RegroupCondition("if2", true, 0, null, false), 1, 2) });
+        session.updateDynamicMetric("foo", new int[] { 0, 1, -2 });
+        session.pushStat("dynamic foo");
+        session.pushStat("count()");
+        session.pushStat("if3");
+        session.popStat();
+        final SessionCheckpoint checkpoint = session.checkpoint(checkpointMemory);
+
+        // changing the original session does not change the checkpoint
+        session.regroup(new GroupRemapRule[] { new GroupRemapRule(2, new RegroupCondition("if2", true, 0, null, false), 1, 1) });
+        session.updateDynamicMetric("foo", new int[] { 0, 1 });
+        session.close();
+
+        final ImhotepLocalSession fork = new ImhotepLocalSession(MakeAFlamdex.make());
+        fork.restore(checkpoint);
+        assertEquals(2, fork.getNumStats());
+        assertEquals(Longs.asList(0, 15, -10), Longs.asList(fork.getGroupStats(0)));
+        assertEquals(Longs.asList(0, 15, 5), Longs.asList(fork.getGroupStats(1)));
+
+        // nor does regrouping a forked session
+        fork.regroup(new GroupRemapRule[] { new GroupRemapRule(2, new RegroupCondition("if2", true, 0, null, false), 1, 1) });
+        fork.updateDynamicMetric("foo", new int[] { 0, 1 });
+        assertEquals(Longs.asList(0, 20, 0), Longs.asList(fork.getGroupStats(0)).subList(0, 3));
+
+        final String dir = Files.getTempDirectory("imhotep-test", "checkpoint");
+        try {
+            checkpoint.spill(new File(dir));
+            assertTrue(checkpoint.isSpilled());
+            assertEquals(0, checkpoint.memoryUsed());
+
+            final ImhotepLocalSession spilledFork = new ImhotepLocalSession(MakeAFlamdex.make());
+            spilledFork.restore(checkpoint);
+            assertEquals(Longs.asList(0, 15, -10), Longs.asList(spilledFork.getGroupStats(0)));
+            assertEquals(Longs.asList(0, 15, 5), Longs.asList(spilledFork.getGroupStats(1)));
+
+            // a checkpoint of a session that has not been regrouped since it was restored shares the groups
+            final SessionCheckpoint secondCheckpoint = spilledFork.checkpoint(checkpointMemory);
+            checkpoint.close();
+            spilledFork.close();
+            final ImhotepLocalSession secondFork = new ImhotepLocalSession(MakeAFlamdex.make());
+            secondFork.restore(secondCheckpoint);
+            assertEquals(Longs.asList(0, 15, 5), Longs.asList(secondFork.getGroupStats(1)));
+            secondCheckpoint.close();
+            secondFork.close();
+        } finally {
+            Files.delete(dir);
+        }
+        fork.close();
+        assertEquals(0, checkpointMemory.usedMemory());
+    }
+
     @Test
     public void testRandomMultiRegroup_firstIndexLessThan() throws ImhotepOutOfMemoryException {
         final FlamdexReader r = MakeAFlamdex.make();
@@ -1949,4 +2162,187 @@ public class TestImhotepLocalSession {
         Assert.assertArrayEquals(new long[]{0, 0}, session.getGroupStats(0));
         session.popStat();
     }
+
+    @Test
+    public void testDocSample() throws ImhotepOutOfMemoryException {
+        final int numBlocks = 8;
+        final int numDocs = numBlocks * DocSample.BLOCK_SIZE + 100;
+        final MockFlamdexReader r =
+                new MockFlamdexReader(Arrays.asList("if1"), Arrays.<String>asList(), Arrays.asList("if1"), numDocs);
+        for (int block = 0; block <= numBlocks; ++block) {
+            final List<Integer> docs = Lists.newArrayList();
+            for (int doc = block * DocSample.BLOCK_SIZE; doc < Math.min(numDocs, (block + 1) * DocSample.BLOCK_SIZE); ++doc) {
+                docs.add(doc);
+            }
+            r.addIntTerm("if1", block + 1, docs);
+        }
+
+        // a seed that samples some blocks but not all of them
+        final long shardKey = DocSample.shardKey("shard");
+        DocSample sample = null;
+        long sampledDocs = 0;
+        long sampledSum = 0;
+        for (long seed = 0; sampledDocs == 0 || sampledDocs == numDocs; ++seed) {
+            sample = new DocSample(0.5, seed);
+            sampledDocs = 0;
+            sampledSum = 0;
+            for (int block = 0; block <= numBlocks; ++block) {
+                if (sample.containsBlock(shardKey, block)) {
+                    final int blockDocs = Math.min(numDocs, (block + 1) * DocSample.BLOCK_SIZE) - block * DocSample.BLOCK_SIZE;
+                    sampledDocs += blockDocs;
+                    sampledSum += (long) blockDocs * (block + 1);
+                }
+            }
+        }
+        final double scale = (double) numDocs / sampledDocs;
+
+        final ImhotepLocalSession session = new ImhotepLocalSession(r);
+        session.restrictToSample(sample, "shard");
+        session.pushStat("count()");
+        session.pushStat("if1");
+        assertEquals(numDocs, session.getGroupStats(0)[1]);
+        assertEquals(Math.round(sampledSum * scale), session.getGroupStats(1)[1]);
+        // every sampled block has as many documents as its count
+        assertEquals(0, session.getGroupStatVariances(0)[1], 1e-6);
+        assertTrue(session.getGroupStatVariances(1)[1] > 0);
+
+        // documents outside of the sample stay in group 0 through regroups of group 0
+        session.regroup(new GroupRemapRule[] {
+                new GroupRemapRule(1, new RegroupCondition("if1", true, 1, null, false), 0, 0)
+        });
+        session.regroup(new GroupRemapRule[] {
+                new GroupRemapRule(0, new RegroupCondition("if1", true, 1, null, false), 2, 2)
+        });
+        assertEquals(numDocs, session.getGroupStats(0)[2]);
+        assertEquals(Math.round(sampledSum * scale), session.getGroupStats(1)[2]);
+
+        session.resetGroups();
+        assertEquals(numDocs, session.getGroupStats(0)[1]);
+        assertEquals(Math.round(sampledSum * scale), session.getGroupStats(1)[1]);
+
+        // sketches of the sampled documents would not describe the whole shard
+        try {
+            session.approximateDistinctTerms("if1", true, 12);
+            fail("approximateDistinctTerms didn't throw IllegalStateException on a sampled session");
+        } catch (final IllegalStateException expected) {
+        }
+        try {
+            session.getGroupQuantiles(1, 100);
+            fail("getGroupQuantiles didn't throw IllegalStateException on a sampled session");
+        } catch (final IllegalStateException expected) {
+        }
+
+        final ImhotepLocalSession fullSession = new ImhotepLocalSession(r);
+        fullSession.restrictToSample(new DocSample(1, 0), "shard");
+        fullSession.pushStat("if1");
+        assertEquals(0, fullSession.getGroupStatVariances(0)[1], 0);
+
+        // query regroups search the sampled documents
+        fullSession.regroup(new QueryRemapRule(1, Query.newTermQuery(new Term("if1", true, 1, null)), 0, 2));
+        assertEquals(DocSample.BLOCK_SIZE, fullSession.getGroupStats(0)[2]);
+        fullSession.regroup(new QueryRemapRule(2, Query.newTermQuery(new Term("if1", true, 1, null)), 0, 1));
+        assertEquals(DocSample.BLOCK_SIZE, fullSession.getGroupStats(0)[1]);
+        fullSession.close();
+        session.close();
+    }
+
+    private static MockFlamdexReader newRandomMetricReader(Random rand, int numDocs, long[][] values, String... fields) {
+        final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList(fields), Arrays.<String>asList(), Arrays.asList(fields), numDocs);
+        for (int f = 0; f < fields.length; ++f) {
+            final Map<Long, List<Integer>> docsByValue = Maps.newTreeMap();
+            for (int doc = 0; doc < numDocs; ++doc) {
+                values[f][doc] = rand.nextInt(40) - 10;
+                if (!docsByValue.containsKey(values[f][doc])) {
+                    docsByValue.put(values[f][doc], Lists.<Integer>newArrayList());
+                }
+                docsByValue.get(values[f][doc]).add(doc);
+            }
+            for (final Map.Entry<Long, List<Integer>> entry : docsByValue.entrySet()) {
+                r.addIntTerm(fields[f], entry.getKey(), entry.getValue());
+            }
+        }
+        return r;
+    }
+
+    @Test
+    public void testMetricRegroupND() throws ImhotepOutOfMemoryException {
+        final int numDocs = 1000;
+        final long[][] values = new long[3][numDocs];
+        final MockFlamdexReader r = newRandomMetricReader(new Random(0), numDocs, values, "if1", "if2", "if3");
+        final long[] mins = {0, -5, 3};
+        final long[] maxes = {20, 7, 25};
+        final long[] intervalSizes = {3, 4, 7};
+
+        for (final boolean noGutters : new boolean[] {false, true}) {
+            // with one stat it is metricRegroup
+            final ImhotepLocalSession session1D = new ImhotepLocalSession(r);
+            session1D.pushStat("if1");
+            session1D.randomRegroup("if1", true, "salt", 0.5, 1, 1, 2);
+            final ImhotepLocalSession sessionND = new ImhotepLocalSession(r);
+            sessionND.pushStat("if1");
+            sessionND.randomRegroup("if1", true, "salt", 0.5, 1, 1, 2);
+            assertEquals(session1D.metricRegroup(0, mins[0], maxes[0], intervalSizes[0], noGutters),
+                    sessionND.metricRegroupND(new int[] {0}, new long[] {mins[0]}, new long[] {maxes[0]},
+                            new long[] {intervalSizes[0]}, noGutters));
+            final int[] expected = new int[numDocs];
+            final int[] actual = new int[numDocs];
+            session1D.exportDocIdToGroupId(expected);
+            sessionND.exportDocIdToGroupId(actual);
+            assertArrayEquals(expected, actual);
+
+            final ImhotepLocalSession session = new ImhotepLocalSession(r);
+            session.pushStats(Arrays.asList("if1", "if2", "if3"));
+            session.randomRegroup("if1", true, "salt", 0.5, 1, 1, 2);
+            final int[] groups = new int[numDocs];
+            session.exportDocIdToGroupId(groups);
+            final int numGroups = session.metricRegroupND(new int[] {2, 0, 1}, new long[] {mins[2], mins[0], mins[1]},
+                    new long[] {maxes[2], maxes[0], maxes[1]}, new long[] {intervalSizes[2], intervalSizes[0], intervalSizes[1]}, noGutters);
+            session.exportDocIdToGroupId(actual);
+            int numBuckets = 1;
+            for (int d = 0; d < 3; ++d) {
+                numBuckets *= (maxes[d] - mins[d] + intervalSizes[d] - 1) / intervalSizes[d] + (noGutters ? 0 : 2);
+            }
+            int maxGroup = 0;
+            for (int doc = 0; doc < numDocs; ++doc) {
+                int bucket = 0;
+                int stride = 1;
+                for (final int d : new int[] {2, 0, 1}) {
+                    final int inRangeBuckets = (int) ((maxes[d] - mins[d] + intervalSizes[d] - 1) / intervalSizes[d]);
+                    final long val = values[d][doc];
+                    if (val < mins[d]) {
+                        bucket = noGutters ? -numBuckets : bucket + inRangeBuckets * stride;
+                    } else if (val >= maxes[d]) {
+                        bucket = noGutters ? -numBuckets : bucket + (inRangeBuckets + 1) * stride;
+                    } else {
+                        bucket += (val - mins[d]) / intervalSizes[d] * stride;
+                    }
+                    stride *= inRangeBuckets + (noGutters ? 0 : 2);
+                }
+                final int group = bucket < 0 ? 0 : (groups[doc] - 1) * numBuckets + bucket + 1;
+                assertEquals(group, actual[doc]);
+                maxGroup = Math.max(maxGroup, group);
+            }
+            assertEquals(maxGroup + 1, numGroups);
+        }
+    }
+
+    @Test
+    public void testMetricRegroupNDTooManyGroups() throws ImhotepOutOfMemoryException {
+        final ImhotepLocalSession session = new ImhotepLocalSession(new MockFlamdexReader());
+        session.pushStat("if1");
+        try {
+            session.metricRegroupND(new int[] {0, 0, 0}, new long[] {0, 0, 0}, new long[] {2000, 2000, 2000},
+                    new long[] {1, 1, 1}, true);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            session.metricRegroupND(new int[] {0}, new long[] {Long.MIN_VALUE}, new long[] {Long.MAX_VALUE},
+                    new long[] {1}, false);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
 }
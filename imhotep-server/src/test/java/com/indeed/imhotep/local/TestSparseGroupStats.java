@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.indeed.imhotep.ImhotepMemoryPool;
+import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestSparseGroupStats {
+    @Test
+    public void testAgainstTreeMap() {
+        final Random rand = new Random(0);
+        final ImhotepMemoryPool memory = new ImhotepMemoryPool(Long.MAX_VALUE);
+        final SparseGroupStats groupStats = new SparseGroupStats(2, memory);
+        for (int term = 0; term < 20; term++) {
+            // a few terms reach many groups so the table has to grow
+            final int numGroups = term % 5 == 0 ? 100000 : 50;
+            final TreeMap<Integer, long[]> expected = new TreeMap<Integer, long[]>();
+            for (int buffer = 0; buffer < 10; buffer++) {
+                final int n = 1 + rand.nextInt(2048);
+                final int[] docIdBuf = new int[n];
+                final int[] docGrpBuffer = new int[n];
+                final long[] values = new long[n];
+                for (int i = 0; i < n; i++) {
+                    docIdBuf[i] = i;
+                    docGrpBuffer[i] = rand.nextInt(4) == 0 ? 0 : 1 + rand.nextInt(numGroups) * 1000;
+                    values[i] = rand.nextInt(100);
+                    if (docGrpBuffer[i] != 0) {
+                        long[] stats = expected.get(docGrpBuffer[i]);
+                        if (stats == null) {
+                            stats = new long[2];
+                            expected.put(docGrpBuffer[i], stats);
+                        }
+                        stats[0] += values[i];
+                        stats[1]++;
+                    }
+                }
+                final int numDocs = groupStats.toSlots(docIdBuf, docGrpBuffer, n);
+                final long[][] slotStats = groupStats.getSlotStats();
+                for (int i = 0; i < numDocs; i++) {
+                    slotStats[0][docGrpBuffer[i]] += values[docIdBuf[i]];
+                    slotStats[1][docGrpBuffer[i]]++;
+                }
+            }
+            assertEquals(expected.size(), groupStats.sortGroups());
+            int index = 0;
+            final long[] stats = new long[2];
+            for (final Integer group : expected.keySet()) {
+                assertEquals(group.intValue(), groupStats.group(index));
+                groupStats.groupStats(index, stats);
+                assertArrayEquals(expected.get(group), stats);
+                index++;
+            }
+            groupStats.clear();
+            assertEquals(memory.usedMemory(), groupStats.memoryUsed());
+        }
+        groupStats.close();
+        assertEquals(0, memory.usedMemory());
+    }
+
+    @Test
+    public void testMemoryLimit() {
+        final ImhotepMemoryPool memory = new ImhotepMemoryPool(1 << 16);
+        final SparseGroupStats groupStats = new SparseGroupStats(2, memory);
+        final int n = 4096;
+        final int[] docIdBuf = new int[n];
+        final int[] docGrpBuffer = new int[n];
+        for (int i = 0; i < n; i++) {
+            docIdBuf[i] = i;
+            docGrpBuffer[i] = i + 1;
+        }
+        try {
+            groupStats.toSlots(docIdBuf, docGrpBuffer, n);
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof ImhotepOutOfMemoryException);
+        }
+        groupStats.close();
+        assertEquals(0, memory.usedMemory());
+    }
+}
@@ -16,6 +16,7 @@
 import com.indeed.util.io.Files;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.reader.MockFlamdexReader;
+import com.indeed.imhotep.SessionProgram;
 import com.indeed.imhotep.ShardInfo;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 
@@ -30,6 +31,7 @@ import org.apache.log4j.varia.LevelRangeFilter;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -38,6 +40,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.fail;
@@ -95,7 +98,7 @@ public class TestLocalImhotepServiceCore {
                 }
             }, new LocalImhotepServiceConfig());
 
-            final String sessionId = service.handleOpenSession("dataset", Arrays.asList("shard"), "", "", 0, 0, false, "", null);
+            final String sessionId = service.handleOpenSession("dataset", Arrays.asList("shard"), "", "", 0, 0, false, "", null, null);
             service.handlePushStat(sessionId, "count()");
             final OutputStream os = new CloseableNullOutputStream();
             final Thread t = new Thread(new Runnable() {
@@ -178,4 +181,108 @@ public class TestLocalImhotepServiceCore {
             Files.delete(directory);
         }
     }
+
+    @Test
+    @SuppressWarnings({"ResultOfMethodCallIgnored"})
+    public void testResultCache() throws IOException, ImhotepOutOfMemoryException {
+        String directory = Files.getTempDirectory("imhotep", "test");
+        String tempDir = Files.getTempDirectory("imhotep", "temp");
+        try {
+            File datasetDir = new File(directory, "dataset");
+            datasetDir.mkdir();
+            new File(datasetDir, "shard").mkdir();
+
+            final LocalImhotepServiceCore service = new LocalImhotepServiceCore(directory, tempDir, Long.MAX_VALUE, false, new FlamdexReaderSource() {
+                @Override
+                public FlamdexReader openReader(String directory) throws IOException {
+                    final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("if1"), Collections.<String>emptyList(), Arrays.asList("if1"), 10);
+                    r.addIntTerm("if1", 1, Arrays.asList(0, 2, 4, 6));
+                    r.addIntTerm("if1", 5, Arrays.asList(1, 3, 5, 7, 8, 9));
+                    return r;
+                }
+            }, new LocalImhotepServiceConfig());
+            final SessionProgram program = new SessionProgram()
+                    .pushStat("if1")
+                    .intOrRegroup("if1", new long[]{5}, 1, 1, 2)
+                    .getGroupStats(0);
+
+            final String session1 = service.handleOpenSession("dataset", Arrays.asList("shard"), "", "", 0, 0, false, "", null, null);
+            final SessionProgram.Results results1 = service.handleExecuteProgram(session1, program);
+            assertArrayEquals(new long[]{0, 4, 30}, results1.getGroupStats(2));
+            final ByteArrayOutputStream ftgs1 = new ByteArrayOutputStream();
+            service.handleGetFTGSIterator(session1, new String[]{"if1"}, new String[0], ftgs1);
+            assertEquals(0, service.getResultCacheHitCount());
+
+            // the same program on a new session of the same shard is answered from the cache
+            final String session2 = service.handleOpenSession("dataset", Arrays.asList("shard"), "", "", 0, 0, false, "", null, null);
+            final SessionProgram.Results results2 = service.handleExecuteProgram(session2, program);
+            assertEquals(1, service.getResultCacheHitCount());
+            assertArrayEquals(results1.getGroupStats(2), results2.getGroupStats(2));
+            final ByteArrayOutputStream ftgs2 = new ByteArrayOutputStream();
+            service.handleGetFTGSIterator(session2, new String[]{"if1"}, new String[0], ftgs2);
+            assertEquals(2, service.getResultCacheHitCount());
+            assertArrayEquals(ftgs1.toByteArray(), ftgs2.toByteArray());
+
+            // anything else replays the deferred program first
+            assertArrayEquals(results1.getGroupStats(2), service.handleGetGroupStats(session2, 0));
+            assertEquals(0, service.handlePopStat(session2));
+
+            // a session changed outside of a program is no longer cached
+            final SessionProgram.Results results3 = service.handleExecuteProgram(session2, program);
+            assertEquals(2, service.getResultCacheHitCount());
+            assertArrayEquals(results1.getGroupStats(2), results3.getGroupStats(2));
+
+            service.handleCloseSession(session1);
+            service.handleCloseSession(session2);
+            service.close();
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    @SuppressWarnings({"ResultOfMethodCallIgnored"})
+    public void testFTGSAfterFailedProgram() throws IOException, ImhotepOutOfMemoryException {
+        String directory = Files.getTempDirectory("imhotep", "test");
+        String tempDir = Files.getTempDirectory("imhotep", "temp");
+        try {
+            File datasetDir = new File(directory, "dataset");
+            datasetDir.mkdir();
+            new File(datasetDir, "shard").mkdir();
+
+            final LocalImhotepServiceCore service = new LocalImhotepServiceCore(directory, tempDir, Long.MAX_VALUE, false, new FlamdexReaderSource() {
+                @Override
+                public FlamdexReader openReader(String directory) throws IOException {
+                    final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("if1"), Collections.<String>emptyList(), Arrays.asList("if1"), 10);
+                    r.addIntTerm("if1", 1, Arrays.asList(0, 2, 4, 6));
+                    r.addIntTerm("if1", 5, Arrays.asList(1, 3, 5, 7, 8, 9));
+                    return r;
+                }
+            }, new LocalImhotepServiceConfig());
+
+            final String session1 = service.handleOpenSession("dataset", Arrays.asList("shard"), "", "", 0, 0, false, "", null, null);
+            service.handleExecuteProgram(session1, new SessionProgram().pushStat("if1").pushStat("count()"));
+            try {
+                // the first two pops go through before the third fails
+                service.handleExecuteProgram(session1, new SessionProgram().popStat().popStat().popStat());
+                fail();
+            } catch (RuntimeException e) {
+                // expected, the third pop has no stat to pop
+            }
+            assertEquals(0, service.handleGetNumStats(session1));
+            final ByteArrayOutputStream ftgs1 = new ByteArrayOutputStream();
+            service.handleGetFTGSIterator(session1, new String[]{"if1"}, new String[0], ftgs1);
+
+            final String session2 = service.handleOpenSession("dataset", Arrays.asList("shard"), "", "", 0, 0, false, "", null, null);
+            final ByteArrayOutputStream ftgs2 = new ByteArrayOutputStream();
+            service.handleGetFTGSIterator(session2, new String[]{"if1"}, new String[0], ftgs2);
+            assertArrayEquals(ftgs2.toByteArray(), ftgs1.toByteArray());
+
+            service.handleCloseSession(session1);
+            service.handleCloseSession(session2);
+            service.close();
+        } finally {
+            Files.delete(directory);
+        }
+    }
 }
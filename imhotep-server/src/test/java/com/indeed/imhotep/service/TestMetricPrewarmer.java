@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.google.common.base.Suppliers;
+import com.google.common.io.Files;
+import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.flamdex.reader.MockFlamdexReader;
+import com.indeed.imhotep.CachedMemoryReserver;
+import com.indeed.imhotep.ImhotepMemoryCache;
+import com.indeed.imhotep.ImhotepMemoryPool;
+import com.indeed.imhotep.MemoryReservationContext;
+import com.indeed.imhotep.MemoryReserver;
+import com.indeed.imhotep.MetricKey;
+import com.indeed.imhotep.io.Shard;
+import com.indeed.util.core.reference.ReloadableSharedReference;
+import com.indeed.util.core.reference.SharedReference;
+import com.indeed.util.core.shell.PosixFileOperations;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class TestMetricPrewarmer {
+
+    private static MetricPrewarmer newPrewarmer(final File usageFile) {
+        final ImhotepMemoryCache<MetricKey, IntValueLookup> cache = new ImhotepMemoryCache<MetricKey, IntValueLookup>();
+        return newPrewarmer(usageFile, false, cache, new CachedMemoryReserver(new ImhotepMemoryPool(Long.MAX_VALUE), cache));
+    }
+
+    private static MetricPrewarmer newPrewarmer(final File usageFile,
+                                                final boolean openShards,
+                                                final ImhotepMemoryCache<MetricKey, IntValueLookup> cache,
+                                                final MemoryReserver memory) {
+        return new MetricPrewarmer(usageFile, 60L * 60 * 1000, Long.MAX_VALUE, 8, openShards, memory,
+                                   cache, Suppliers.ofInstance(false));
+    }
+
+    private static Shard newShard(final ImhotepMemoryCache<MetricKey, IntValueLookup> cache,
+                                  final MemoryReserver memory,
+                                  final AtomicInteger numOpens) {
+        final List<String> metrics = Arrays.asList("clicks", "impressions");
+        final ReloadableSharedReference.Loader<CachedFlamdexReader, IOException> loader =
+                new ReloadableSharedReference.Loader<CachedFlamdexReader, IOException>() {
+                    @Override
+                    public CachedFlamdexReader load() throws IOException {
+                        numOpens.incrementAndGet();
+                        final MockFlamdexReader flamdex =
+                                new MockFlamdexReader(metrics, Collections.<String>emptyList(), metrics, 10);
+                        flamdex.addIntTerm("clicks", 1, 0, 2, 4);
+                        flamdex.addIntTerm("impressions", 5, 1, 3);
+                        return new CachedFlamdexReader(new MemoryReservationContext(memory), flamdex, null,
+                                                       "dataset", "shard", cache);
+                    }
+                };
+        return new Shard(ReloadableSharedReference.create(loader), null, 1, "shard", "dataset", "shard",
+                         10, metrics, Collections.<String>emptyList(), metrics);
+    }
+
+    private static void awaitPrewarm(final MetricPrewarmer prewarmer) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (prewarmer.getPrewarmDump().pendingShards > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, prewarmer.getPrewarmDump().pendingShards);
+    }
+
+    @Test
+    public void testHottestMetrics() {
+        final MetricPrewarmer prewarmer = newPrewarmer(null);
+        try {
+            for (int i = 0; i < 3; i++) {
+                prewarmer.recordUse("dataset", "clicks");
+            }
+            prewarmer.recordUse("dataset", "impressions");
+            for (int i = 0; i < 5; i++) {
+                prewarmer.recordUse("dataset", "unixtime");
+            }
+            prewarmer.recordUse("other", "foo");
+            assertEquals(Arrays.asList("unixtime", "clicks", "impressions"), prewarmer.getHottestMetrics("dataset"));
+            assertEquals(Collections.<String>emptyList(), prewarmer.getHottestMetrics("missing"));
+        } finally {
+            prewarmer.close();
+        }
+    }
+
+    @Test
+    public void testUsagePersistedAcrossRestarts() throws IOException {
+        final File dir = Files.createTempDir();
+        try {
+            final File usageFile = new File(dir, "metric-usage.tsv");
+            final MetricPrewarmer prewarmer = newPrewarmer(usageFile);
+            prewarmer.recordUse("dataset", "clicks");
+            for (int i = 0; i < 4; i++) {
+                prewarmer.recordUse("dataset", "unixtime");
+            }
+            prewarmer.close();
+
+            final MetricPrewarmer reopened = newPrewarmer(usageFile);
+            try {
+                assertEquals(Arrays.asList("unixtime", "clicks"), reopened.getHottestMetrics("dataset"));
+            } finally {
+                reopened.close();
+            }
+        } finally {
+            PosixFileOperations.rmrf(dir);
+        }
+    }
+
+    @Test
+    public void testPrewarmLoadedShard() throws IOException, InterruptedException {
+        final ImhotepMemoryCache<MetricKey, IntValueLookup> cache = new ImhotepMemoryCache<MetricKey, IntValueLookup>();
+        final MemoryReserver memory = new CachedMemoryReserver(new ImhotepMemoryPool(Long.MAX_VALUE), cache);
+        final MetricPrewarmer prewarmer = newPrewarmer(null, false, cache, memory);
+        final AtomicInteger numOpens = new AtomicInteger(0);
+        final Shard shard = newShard(cache, memory, numOpens);
+        try {
+            prewarmer.recordUse("dataset", "clicks");
+            final SharedReference<CachedFlamdexReader> ref = shard.getRef();
+            try {
+                assertEquals(0, cache.memoryUsed());
+                prewarmer.prewarm(shard);
+                awaitPrewarm(prewarmer);
+                assertEquals(1, prewarmer.getPrewarmDump().warmedMetrics);
+                // prewarmed metrics are released into the free cache right after loading
+                assertNull(cache.tryRemove(new MetricKey("dataset", "shard", "impressions")));
+                final IntValueLookup clicks = cache.tryRemove(new MetricKey("dataset", "shard", "clicks"));
+                assertNotNull(clicks);
+                clicks.close();
+            } finally {
+                ref.close();
+            }
+            assertEquals(1, numOpens.get());
+        } finally {
+            shard.close();
+            prewarmer.close();
+        }
+    }
+
+    @Test
+    public void testPrewarmDoesNotOpenShards() throws IOException, InterruptedException {
+        final ImhotepMemoryCache<MetricKey, IntValueLookup> cache = new ImhotepMemoryCache<MetricKey, IntValueLookup>();
+        final MemoryReserver memory = new CachedMemoryReserver(new ImhotepMemoryPool(Long.MAX_VALUE), cache);
+        final MetricPrewarmer prewarmer = newPrewarmer(null, false, cache, memory);
+        final AtomicInteger numOpens = new AtomicInteger(0);
+        final Shard shard = newShard(cache, memory, numOpens);
+        try {
+            prewarmer.recordUse("dataset", "clicks");
+            prewarmer.prewarm(shard);
+            awaitPrewarm(prewarmer);
+            assertEquals(0, numOpens.get());
+            assertEquals(0, prewarmer.getPrewarmDump().warmedMetrics);
+        } finally {
+            shard.close();
+            prewarmer.close();
+        }
+    }
+
+    @Test
+    public void testPrewarmOpensShardsWhenConfigured() throws IOException, InterruptedException {
+        final ImhotepMemoryCache<MetricKey, IntValueLookup> cache = new ImhotepMemoryCache<MetricKey, IntValueLookup>();
+        final MemoryReserver memory = new CachedMemoryReserver(new ImhotepMemoryPool(Long.MAX_VALUE), cache);
+        final MetricPrewarmer prewarmer = newPrewarmer(null, true, cache, memory);
+        final AtomicInteger numOpens = new AtomicInteger(0);
+        final Shard shard = newShard(cache, memory, numOpens);
+        try {
+            prewarmer.recordUse("dataset", "impressions");
+            prewarmer.prewarm(shard);
+            awaitPrewarm(prewarmer);
+            assertEquals(1, numOpens.get());
+            assertEquals(1, prewarmer.getPrewarmDump().warmedMetrics);
+            final IntValueLookup impressions = cache.tryRemove(new MetricKey("dataset", "shard", "impressions"));
+            assertNotNull(impressions);
+            impressions.close();
+        } finally {
+            shard.close();
+            prewarmer.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.reader.MockFlamdexReader;
+import com.indeed.util.core.shell.PosixFileOperations;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestShardManifest {
+
+    @Test
+    public void testEntriesReadOnceAndPersisted() throws IOException {
+        final AtomicInteger opens = new AtomicInteger(0);
+        final FlamdexReaderSource factory = new FlamdexReaderSource() {
+            @Override
+            public FlamdexReader openReader(String directory) throws IOException {
+                opens.incrementAndGet();
+                if (directory.endsWith("broken")) {
+                    throw new IOException("broken shard");
+                }
+                return new MockFlamdexReader(Arrays.asList("if1"), Arrays.asList("sf1"), Arrays.asList("if1"), directory.length());
+            }
+        };
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final File dir = Files.createTempDir();
+        try {
+            final File file = new File(dir, "shard-manifest.bin");
+            final ShardManifest manifest = new ShardManifest(file);
+            final Map<String, ShardManifest.Entry> entries =
+                    manifest.getEntries(Arrays.asList("/shards/a", "/shards/bb", "/shards/broken"), factory, executor);
+            assertEquals(3, opens.get());
+            assertEquals(2, entries.size());
+            assertFalse(entries.containsKey("/shards/broken"));
+            assertEquals("/shards/bb".length(), entries.get("/shards/bb").numDocs);
+            assertEquals(Arrays.asList("if1"), entries.get("/shards/a").availableMetrics);
+
+            manifest.getEntries(Arrays.asList("/shards/a", "/shards/bb"), factory, executor);
+            assertEquals(3, opens.get());
+
+            manifest.retainAll(ImmutableSet.of("/shards/a"));
+            manifest.save();
+
+            final ShardManifest reloaded = new ShardManifest(file);
+            final Map<String, ShardManifest.Entry> reloadedEntries =
+                    reloaded.getEntries(Arrays.asList("/shards/a"), factory, executor);
+            assertEquals(3, opens.get());
+            assertEquals("/shards/a".length(), reloadedEntries.get("/shards/a").numDocs);
+            assertEquals(Arrays.asList("sf1"), reloadedEntries.get("/shards/a").stringFields);
+
+            reloaded.getEntries(Collections.singletonList("/shards/bb"), factory, executor);
+            assertEquals(4, opens.get());
+            assertTrue(file.exists());
+        } finally {
+            executor.shutdown();
+            PosixFileOperations.rmrf(dir);
+        }
+    }
+}